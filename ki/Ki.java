@@ -10,8 +10,6 @@ public final class Ki
     String strArg2 = rgstr.length > 2 ? rgstr[2] : ".zip";
     String strArg3 = rgstr.length > 3 ? rgstr[3] : ".data";
 
-    System.runFinalizersOnExit(true);
-
     try
     {
       new AgentHostImplementation(strArg0, strArg1, strArg2, strArg3);
@@ -0,0 +1,13 @@
+#!/bin/sh
+#
+# Builds Ki in place.
+#
+# The class files are written next to their sources.  Wrapper.class
+# must stay in this directory -- the agent host reads it from the
+# working directory and defines a copy of it for every agent.  The
+# Jess classes are already compiled.
+
+cd `dirname "$0"` || exit 1
+
+javac -nowarn -classpath . -sourcepath /nonexistent -d . \
+  Ki.java Wrapper.java `find etcee -name '*.java'`
@@ -120,4 +120,26 @@ abstract public class Agent
 
   abstract public void
   conclude();
+
+  /**
+   * Asks the agent whether it may be transferred.
+   *
+   * The agent host calls <CODE>allowTransfer()</CODE> before it
+   * transfers the agent on its own initiative -- to balance the load
+   * on the agent hosts, or to bring the agent to the agents it talks
+   * to.  An agent that must stay where it is returns false.
+   * Transfers the agent requests itself are not affected.
+   *
+   * By default the agent allows the transfer.
+   *
+   * @parameter strAgentHostName the agent host the agent would be
+   *            transferred to.
+   *
+   */
+
+  public boolean
+  allowTransfer(String strAgentHostName)
+  {
+    return true;
+  }
 }
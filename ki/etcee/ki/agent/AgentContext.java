@@ -2,6 +2,7 @@
 package etcee.ki.agent;
 
 import java.util.Enumeration;
+import java.util.Hashtable;
 
 /**
  * The agent context.
@@ -55,7 +56,8 @@ abstract public class AgentContext
    * Publishes an agent.
    *
    * By publishing itself, an agent makes itself visible to other
-   * agents in the same agent host.
+   * agents in the same agent host, and in the agent hosts that share
+   * their directories.
    *
    * @parameter strIdentifier identifies the agent to other agents.
    *
@@ -66,6 +68,24 @@ abstract public class AgentContext
   abstract public void
   publish(String strIdentifier);
 
+  /**
+   * Publishes an agent with attributes.
+   *
+   * An agent that publishes itself again replaces its entry.
+   *
+   * @parameter strIdentifier identifies the agent to other agents.
+   *
+   * @parameter hashtableAttributes maps attribute names to values.
+   *            Both are used as strings.  May be null.
+   *
+   * @see unpublish
+   * @see findPublishedAgents
+   *
+   */
+
+  abstract public void
+  publish(String strIdentifier, Hashtable hashtableAttributes);
+
   /**
    * Unpublishes an agent.
    *
@@ -93,10 +113,41 @@ abstract public class AgentContext
   /**
    * Gets the agent identity of a published agent.
    *
+   * If more than one agent is published under the identifier, an
+   * agent in the same agent host is preferred.
+   *
    * @see getPublishedAgents
    *
    */
 
   abstract public AgentIdentity
   getPublishedAgentIdentity(String strIdentifier);
+
+  /**
+   * Finds published agents.
+   *
+   * The entries are returned in order, a page at a time.  To get the
+   * next page, pass the cursor of the last entry of this one.
+   *
+   * @parameter strPrefix the prefix of the identifiers to find, or
+   *            null for any identifier.
+   *
+   * @parameter hashtableAttributes the attributes the agents must
+   *            have, or null.
+   *
+   * @parameter strCursor the cursor of the last entry already found,
+   *            or null to start at the beginning.
+   *
+   * @parameter nLimit the maximum number of entries to return.  The
+   *            agent host may return fewer.
+   *
+   * @see DirectoryEntry.getCursor
+   *
+   */
+
+  abstract public DirectoryEntry []
+  findPublishedAgents(String strPrefix,
+                      Hashtable hashtableAttributes,
+                      String strCursor,
+                      int nLimit);
 }
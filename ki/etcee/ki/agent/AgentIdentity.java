@@ -3,6 +3,13 @@ package etcee.ki.agent;
 
 import java.security.SecureRandom;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.InvalidObjectException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 
 /**
@@ -10,6 +17,16 @@ import java.io.Serializable;
  *
  * The <CODE>AgentIdentity</CODE> class identifies agents.
  *
+ * An agent identity is a 128 bit random ID, held as two longs.
+ * Agent identities written by earlier versions held a 128 byte ID.
+ * When one of those is read, its ID is folded to 128 bits by
+ * exclusive-oring its sixteen byte blocks together, so an agent keeps
+ * the same (folded) identity wherever it is read.
+ *
+ * Agent hosts key many tables by agent identity.  Each agent host
+ * interns the agent identities it keeps, so that its tables share one
+ * instance per agent.
+ *
  * This class <EM>is</EM> thread safe.
  *
  */
@@ -17,6 +34,32 @@ import java.io.Serializable;
 public final class AgentIdentity
   implements Serializable
 {
+  /**
+   * The serial version UID.
+   *
+   * The serial version UID is fixed at the value computed for the
+   * original class, so that agents serialized with it can still be
+   * read.
+   *
+   */
+
+  private final static long serialVersionUID = -264339084625830571L;
+
+  /**
+   * The serializable fields.
+   *
+   * The serialized form is that of the original class -- the agent
+   * host name and an ID array.  The array holds sixteen bytes, or
+   * 128 bytes if it was written by an earlier version.
+   *
+   */
+
+  private final static ObjectStreamField [] serialPersistentFields =
+  {
+    new ObjectStreamField("strAgentHostName", String.class),
+    new ObjectStreamField("rgbID", byte [].class)
+  };
+
   /**
    * The agent host name.
    *
@@ -37,18 +80,29 @@ public final class AgentIdentity
   private final static SecureRandom securerandom = new SecureRandom();
 
   /**
-   * The length (in bytes) of rgbID.
+   * The length (in bytes) of the ID.
    *
    */
 
-  private final static int nL = 128;
+  private final static int nL = 16;
 
   /**
-   * The ID array.
+   * The length (in bytes) of the ID serialized by earlier versions.
+   *
+   */
+
+  private final static int nLegacyL = 128;
+
+  /**
+   * The ID.
+   *
+   * The high long holds bytes fifteen through eight of the ID, and the
+   * low long bytes seven through zero, the highest byte first.
    *
    */
 
-  private byte [] rgbID = new byte [nL];
+  private transient long nHigh = 0;
+  private transient long nLow = 0;
 
   /**
    * Constructs the agent identity.
@@ -60,18 +114,16 @@ public final class AgentIdentity
   public
   AgentIdentity()
   {
-    // Agent identities in which the topmost four bytes of rgbID are
+    // Agent identities in which the topmost four bytes of the ID are
     // all zero are reserved for "well known" agent identities.  Such
-    // arrays must not be generated randomly.
+    // IDs must not be generated randomly.
 
-    int n = 0;
-
-    while (n == 0)
+    while ((nHigh >>> 32) == 0)
     {
-      securerandom.nextBytes(rgbID);
-
-      n = rgbID[nL - 1] | rgbID[nL - 2] | rgbID[nL - 3] | rgbID[nL - 4];
+      nHigh = securerandom.nextLong();
     }
+
+    nLow = securerandom.nextLong();
   }
 
   /**
@@ -84,7 +136,155 @@ public final class AgentIdentity
   {
     strAgentHostName = agentidentity.strAgentHostName;
 
-    System.arraycopy(agentidentity.rgbID, 0, rgbID, 0, rgbID.length);
+    nHigh = agentidentity.nHigh;
+    nLow = agentidentity.nLow;
+  }
+
+  /**
+   * Constructs the agent identity from an ID.
+   *
+   */
+
+  private
+  AgentIdentity(long nHigh, long nLow)
+  {
+    this.nHigh = nHigh;
+    this.nLow = nLow;
+  }
+
+  /**
+   * Sets the ID from an ID array.
+   *
+   * A 128 byte array, written by an earlier version, is folded.
+   *
+   */
+
+  private void
+  setID(byte [] rgbID)
+    throws InvalidObjectException
+  {
+    if (rgbID == null || (rgbID.length != nL && rgbID.length != nLegacyL))
+    {
+      throw new InvalidObjectException("bad ID length");
+    }
+
+    nHigh = 0;
+    nLow = 0;
+
+    for (int i = 0; i < rgbID.length; i += nL)
+    {
+      nHigh ^= getLong(rgbID, i + 8);
+      nLow ^= getLong(rgbID, i);
+    }
+  }
+
+  /**
+   * Gets the long made of eight bytes of an ID array, the highest byte
+   * last.
+   *
+   */
+
+  private static long
+  getLong(byte [] rgb, int n)
+  {
+    long l = 0;
+
+    for (int i = 7; i >= 0; i--)
+    {
+      l = (l << 8) | (rgb[n + i] & 0xFF);
+    }
+
+    return l;
+  }
+
+  /**
+   * Gets the ID array.
+   *
+   */
+
+  private byte []
+  getID()
+  {
+    byte [] rgbID = new byte [nL];
+
+    for (int i = 0; i < 8; i++)
+    {
+      rgbID[i] = (byte)(nLow >>> (i * 8));
+      rgbID[i + 8] = (byte)(nHigh >>> (i * 8));
+    }
+
+    return rgbID;
+  }
+
+  /**
+   * Writes the agent identity.
+   *
+   */
+
+  private void
+  writeObject(ObjectOutputStream objectoutputstream)
+    throws IOException
+  {
+    ObjectOutputStream.PutField putfield = objectoutputstream.putFields();
+
+    putfield.put("strAgentHostName", strAgentHostName);
+    putfield.put("rgbID", getID());
+
+    objectoutputstream.writeFields();
+  }
+
+  /**
+   * Reads the agent identity.
+   *
+   */
+
+  private void
+  readObject(ObjectInputStream objectinputstream)
+    throws IOException,
+           ClassNotFoundException
+  {
+    ObjectInputStream.GetField getfield = objectinputstream.readFields();
+
+    strAgentHostName = (String)getfield.get("strAgentHostName", null);
+
+    setID((byte [])getfield.get("rgbID", null));
+  }
+
+  /**
+   * Writes the ID.
+   *
+   * The ID is written as a fixed number of bytes, the highest byte
+   * first.  The agent host name is not written.
+   *
+   * @see readID
+   *
+   */
+
+  public final void
+  writeID(DataOutput dataoutput)
+    throws IOException
+  {
+    dataoutput.writeLong(nHigh);
+    dataoutput.writeLong(nLow);
+  }
+
+  /**
+   * Reads an agent identity written by <CODE>writeID()</CODE>.
+   *
+   * The agent host name is set separately.
+   *
+   * @see writeID
+   *
+   */
+
+  public static AgentIdentity
+  readID(DataInput datainput)
+    throws IOException
+  {
+    long nHigh = datainput.readLong();
+    long nLow = datainput.readLong();
+
+    return new AgentIdentity(nHigh, nLow);
   }
 
   /**
@@ -112,54 +312,38 @@ public final class AgentIdentity
   /**
    * Tests two objects for equality.
    *
+   * The test takes the same time whichever bits of the IDs differ.
+   *
    */
 
   public final boolean
   equals(Object obj)
   {
-    try
-    {
-      AgentIdentity agentidentity = (AgentIdentity)obj;
-
-      if (agentidentity == null)
-      {
-        return false;
-      }
-
-      if (this == agentidentity)
-      {
-        return true;
-      }
-
-      for (int i = 0; i < rgbID.length; i++)
-      {
-        if (rgbID[i] != agentidentity.rgbID[i])
-        {
-          return false;
-        }
-      }
-    }
-    catch (ClassCastException ex)
+    if (!(obj instanceof AgentIdentity))
     {
       return false;
     }
 
-    return true;
+    AgentIdentity agentidentity = (AgentIdentity)obj;
+
+    return ((nHigh ^ agentidentity.nHigh) | (nLow ^ agentidentity.nLow)) == 0;
   }
 
   /**
    * Returns the hashcode.
    *
+   * The hashcode depends on every bit of the ID, and is the same on
+   * every agent host.
+   *
    */
 
   public final int
   hashCode()
   {
-    // The hashcode is built from the lowest four bytes in rgbID.
+    long l = nHigh * 0x9E3779B97F4A7C15L + nLow;
+
+    l = (l ^ (l >>> 32)) * 0xD6E8FEB86659FD93L;
 
-    return (rgbID[0] & 0xFF) +
-          ((rgbID[1] & 0xFF) << 8) +
-          ((rgbID[2] & 0xFF) << 16) +
-          ((rgbID[3] & 0xFF) << 24);
+    return (int)(l ^ (l >>> 32));
   }
 }
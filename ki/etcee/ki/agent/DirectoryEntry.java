@@ -0,0 +1,218 @@
+package etcee.ki.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * The directory entry.
+ *
+ * The <CODE>DirectoryEntry</CODE> class describes a published agent:
+ * the identifier it was published under, its agent identity, the
+ * agent host it was published on, and its attributes.  Attribute
+ * names and values are strings.
+ *
+ * Each entry has a cursor.  Entries are ordered by their cursors,
+ * which order them by identifier first.  A lookup that asks for the
+ * entries after the cursor of the last entry it got continues where
+ * it left off.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see AgentContext.findPublishedAgents
+ *
+ */
+
+public final class DirectoryEntry
+  implements Serializable
+{
+  /**
+   * The identifier.
+   *
+   */
+
+  private String strIdentifier = null;
+
+  /**
+   * Gets the identifier.
+   *
+   */
+
+  public final String
+  getIdentifier()
+  {
+    return strIdentifier;
+  }
+
+  /**
+   * The agent identity.
+   *
+   */
+
+  private AgentIdentity agentidentity = null;
+
+  /**
+   * Gets the agent identity.
+   *
+   */
+
+  public final AgentIdentity
+  getAgentIdentity()
+  {
+    return agentidentity;
+  }
+
+  /**
+   * The agent host name.
+   *
+   */
+
+  private String strAgentHostName = null;
+
+  /**
+   * Gets the name of the agent host the agent was published on.
+   *
+   */
+
+  public final String
+  getAgentHostName()
+  {
+    return strAgentHostName;
+  }
+
+  /**
+   * The attributes.
+   *
+   */
+
+  private Hashtable hashtableAttributes = null;
+
+  /**
+   * Gets an attribute.
+   *
+   * @returns the value, or null if the agent has no such attribute.
+   *
+   */
+
+  public final String
+  getAttribute(String strName)
+  {
+    return (String)hashtableAttributes.get(strName);
+  }
+
+  /**
+   * Gets the attribute names.
+   *
+   */
+
+  public final Enumeration
+  getAttributeNames()
+  {
+    return hashtableAttributes.keys();
+  }
+
+  /**
+   * The cursor.
+   *
+   */
+
+  private transient String strCursor = null;
+
+  /**
+   * Constructs the directory entry.
+   *
+   * The agent identity and the attributes are copied.  Attribute
+   * values that are not strings are converted to strings.
+   *
+   * @parameter hashtableAttributes may be null.
+   *
+   */
+
+  public
+  DirectoryEntry(String strIdentifier,
+                 AgentIdentity agentidentity,
+                 String strAgentHostName,
+                 Hashtable hashtableAttributes)
+  {
+    this.strIdentifier = strIdentifier;
+    this.agentidentity = new AgentIdentity(agentidentity);
+    this.strAgentHostName = strAgentHostName;
+    this.hashtableAttributes = new Hashtable();
+
+    if (hashtableAttributes != null)
+    {
+      Enumeration enumeration = hashtableAttributes.keys();
+
+      while (enumeration.hasMoreElements())
+      {
+        Object obj = enumeration.nextElement();
+
+        this.hashtableAttributes.put(obj.toString(),
+                                     hashtableAttributes.get(obj).toString());
+      }
+    }
+  }
+
+  /**
+   * Gets the cursor.
+   *
+   * The cursor is the identifier, a zero character, and the agent
+   * identity in hexadecimal.
+   *
+   */
+
+  public final String
+  getCursor()
+  {
+    if (strCursor == null)
+    {
+      strCursor = getCursor(strIdentifier, agentidentity);
+    }
+
+    return strCursor;
+  }
+
+  /**
+   * Gets the cursor of the entry for an agent published under an
+   * identifier.
+   *
+   */
+
+  public static String
+  getCursor(String strIdentifier, AgentIdentity agentidentity)
+  {
+    ByteArrayOutputStream bytearrayoutputstream = new ByteArrayOutputStream();
+
+    try
+    {
+      DataOutputStream dataoutputstream = new DataOutputStream(bytearrayoutputstream);
+
+      agentidentity.writeID(dataoutputstream);
+
+      dataoutputstream.close();
+    }
+    catch (IOException ex)
+    {
+      throw new InternalError(ex.toString());
+    }
+
+    byte [] rgb = bytearrayoutputstream.toByteArray();
+
+    StringBuffer stringbuffer = new StringBuffer(strIdentifier.length() + 1 + rgb.length * 2);
+
+    stringbuffer.append(strIdentifier);
+    stringbuffer.append('\u0000');
+
+    for (int i = 0; i < rgb.length; i++)
+    {
+      stringbuffer.append(Character.forDigit((rgb[i] >> 4) & 0xF, 16));
+      stringbuffer.append(Character.forDigit(rgb[i] & 0xF, 16));
+    }
+
+    return stringbuffer.toString();
+  }
+}
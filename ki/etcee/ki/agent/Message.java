@@ -1,6 +1,11 @@
 
 package etcee.ki.agent;
 
+import etcee.ki.agenthost.Codec;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -8,8 +13,14 @@ import java.io.Serializable;
  *
  * The <CODE>Message</CODE> class defines a message.
  *
+ * A message is serializable.  It writes its name and parameters
+ * with the codec, so that the common types take only a few bytes.
+ * The serialized form is therefore not that of the original,
+ * field-by-field message, and the two cannot be mixed.
+ *
  * This class <EM>is not</EM> thread safe.
  *
+ * @see Codec
  * @see MessageResponse
  *
  */
@@ -22,7 +33,7 @@ public final class Message
    *
    */
 
-  private String strMessageName = null;
+  private transient String strMessageName = null;
 
   /**
    * Gets the message name.
@@ -42,7 +53,7 @@ public final class Message
    *
    */
 
-  private Object [] rgobjParameters = null;
+  private transient Object [] rgobjParameters = null;
 
   /**
    * Gets the parameters.
@@ -63,6 +74,34 @@ public final class Message
     return rgobjParameters;
   }
 
+  /**
+   * Gets the number of parameters.
+   *
+   */
+
+  public final int
+  getParameterCount()
+  {
+    return rgobjParameters.length;
+  }
+
+  /**
+   * Gets a parameter.
+   *
+   * Unlike <CODE>getParameters()</CODE>, this method does not copy
+   * the parameters.
+   *
+   * @throws ArrayIndexOutOfBoundsException if there is no such
+   *         parameter.
+   *
+   */
+
+  public final Object
+  getParameter(int i)
+  {
+    return rgobjParameters[i];
+  }
+
   /**
    * Constructs the message.
    *
@@ -154,6 +193,56 @@ public final class Message
                      this.rgobjParameters.length);
   }
 
+  /**
+   * Writes the message.
+   *
+   */
+
+  private void
+  writeObject(ObjectOutputStream objectoutputstream)
+    throws IOException
+  {
+    objectoutputstream.defaultWriteObject();
+
+    objectoutputstream.writeUTF(strMessageName);
+
+    objectoutputstream.writeInt(rgobjParameters.length);
+
+    for (int i = 0; i < rgobjParameters.length; i++)
+    {
+      Codec.writeValue(objectoutputstream, rgobjParameters[i]);
+    }
+  }
+
+  /**
+   * Reads the message.
+   *
+   */
+
+  private void
+  readObject(ObjectInputStream objectinputstream)
+    throws IOException,
+           ClassNotFoundException
+  {
+    objectinputstream.defaultReadObject();
+
+    strMessageName = objectinputstream.readUTF();
+
+    int n = objectinputstream.readInt();
+
+    if (n < 0)
+    {
+      throw new IOException("bad parameter count " + n);
+    }
+
+    rgobjParameters = new Object [n];
+
+    for (int i = 0; i < n; i++)
+    {
+      rgobjParameters[i] = Codec.readValue(objectinputstream);
+    }
+  }
+
   /**
    * Tests two objects for equality.
    *
@@ -1,6 +1,12 @@
 
 package etcee.ki.agent;
 
+import java.util.Vector;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
 /**
  * The message response.
  *
@@ -10,6 +16,11 @@ package etcee.ki.agent;
  * response object allows the caller to check on the status of the
  * send and to obtain the ultimate return value.
  *
+ * A caller need not wait for the result.  It may register a listener
+ * to be called back when the result becomes valid, wait for a
+ * limited time, cancel the send, or obtain a completable future
+ * through which further work can be composed.
+ *
  * This class <EM>is</EM> thread safe.
  *
  * @see AgentContext.sendMessage
@@ -25,6 +36,7 @@ public final class MessageResponse
    * @see UNDEFINED
    * @see SUCCEEDED
    * @see FAILED
+   * @see CANCELLED
    *
    */
 
@@ -51,6 +63,13 @@ public final class MessageResponse
 
   public final static int FAILED = 2;
 
+  /**
+   * The send was cancelled.
+   *
+   */
+
+  public final static int CANCELLED = 3;
+
   /**
    * Gets the response code.
    *
@@ -102,22 +121,74 @@ public final class MessageResponse
   }
 
   /**
-   * Called to indicate the send failed.
+   * The listeners.
    *
-   * The agent host calls this method to indicate the send failed.
+   * The listeners are called back, and then forgotten, when the
+   * result becomes valid.
    *
    */
 
-  public synchronized final void
-  setFailed(Exception ex)
+  private Vector vectorListeners = null;
+
+  /**
+   * Completes the response.
+   *
+   * The first completion wins -- a send that has already completed
+   * (or has been cancelled) ignores later completions.
+   *
+   * @returns true if this call completed the response.
+   *
+   */
+
+  private boolean
+  complete(int nCode, Exception ex, Object objResponse)
   {
-    nCode = FAILED;
+    Vector vector = null;
+
+    synchronized (this)
+    {
+      if (this.nCode != UNDEFINED)
+      {
+        return false;
+      }
+
+      this.nCode = nCode;
+
+      this.ex = ex;
+
+      this.objResponse = objResponse;
+
+      vector = vectorListeners;
 
-    this.ex = ex;
+      vectorListeners = null;
 
-    this.objResponse = null;
+      notifyAll();
+    }
+
+    // Call the listeners outside of the lock.
+
+    if (vector != null)
+    {
+      for (int i = 0; i < vector.size(); i++)
+      {
+        ((MessageResponseListener)vector.elementAt(i)).responseReceived(this);
+      }
+    }
 
-    notifyAll();
+    return true;
+  }
+
+  /**
+   * Called to indicate the send failed.
+   *
+   * The agent host calls this method to indicate the send failed.
+   *
+   */
+
+  public final void
+  setFailed(Exception ex)
+  {
+    complete(FAILED, ex, null);
   }
 
   /**
@@ -127,26 +198,83 @@ public final class MessageResponse
    *
    */
 
-  public synchronized final void
+  public final void
   setSucceeded(Object objResponse)
   {
-    nCode = SUCCEEDED;
+    complete(SUCCEEDED, null, objResponse);
+  }
+
+  /**
+   * Cancels the send.
+   *
+   * Cancelling a send releases anyone waiting for the response.  The
+   * message may or may not already have been delivered, but its
+   * result will be discarded.
+   *
+   * @returns false if the send had already completed.
+   *
+   */
+
+  public final boolean
+  cancel()
+  {
+    return complete(CANCELLED, new CancellationException(), null);
+  }
 
-    this.ex = null;
+  /**
+   * Determines whether or not the response is valid.
+   *
+   */
+
+  public synchronized final boolean
+  isDone()
+  {
+    return nCode != UNDEFINED;
+  }
 
-    this.objResponse = objResponse;
+  /**
+   * Adds a listener.
+   *
+   * The listener is called back exactly once, when the response
+   * becomes valid.  If the response is already valid, the listener
+   * is called back immediately.
+   *
+   */
 
-    notifyAll();
+  public final void
+  addListener(MessageResponseListener messageresponselistener)
+  {
+    synchronized (this)
+    {
+      if (nCode == UNDEFINED)
+      {
+        if (vectorListeners == null)
+        {
+          vectorListeners = new Vector(1);
+        }
+
+        vectorListeners.addElement(messageresponselistener);
+
+        return;
+      }
+    }
+
+    messageresponselistener.responseReceived(this);
   }
 
   /**
    * Waits for the response to become valid.
    *
+   * If the waiting thread is interrupted, it keeps waiting, but its
+   * interrupt status is restored before the method returns.
+   *
    */
 
   public synchronized final void
   waitForResponse()
   {
+    boolean boolInterrupted = false;
+
     while (nCode == UNDEFINED)
     {
       try
@@ -155,8 +283,46 @@ public final class MessageResponse
       }
       catch (InterruptedException ex)
       {
+        boolInterrupted = true;
+      }
+    }
+
+    if (boolInterrupted)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Waits at most the specified number of milliseconds for the
+   * response to become valid.
+   *
+   * @returns true if the response is valid.
+   *
+   * @throws InterruptedException if the waiting thread was
+   *         interrupted.
+   *
+   */
+
+  public synchronized final boolean
+  waitForResponse(long msTimeout)
+    throws InterruptedException
+  {
+    long msDeadline = System.currentTimeMillis() + msTimeout;
+
+    while (nCode == UNDEFINED)
+    {
+      long ms = msDeadline - System.currentTimeMillis();
+
+      if (ms <= 0)
+      {
+        return false;
       }
+
+      wait(ms);
     }
+
+    return true;
   }
 
   /**
@@ -172,4 +338,53 @@ public final class MessageResponse
 
     return nCode == SUCCEEDED;
   }
+
+  /**
+   * Gets a completable future for the response.
+   *
+   * The future completes with the response when the send succeeds,
+   * and exceptionally when it fails or is cancelled.  Cancelling the
+   * future cancels the send.
+   *
+   */
+
+  public final CompletableFuture
+  toCompletableFuture()
+  {
+    final CompletableFuture completablefuture = new CompletableFuture();
+
+    addListener(new MessageResponseListener()
+      {
+        public void
+        responseReceived(MessageResponse messageresponse)
+        {
+          if (messageresponse.getResponseCode() == SUCCEEDED)
+          {
+            completablefuture.complete(messageresponse.getResponse());
+          }
+          else if (messageresponse.getResponseCode() == CANCELLED)
+          {
+            completablefuture.cancel(false);
+          }
+          else
+          {
+            completablefuture.completeExceptionally(messageresponse.getException());
+          }
+        }
+      });
+
+    completablefuture.whenComplete(new BiConsumer()
+      {
+        public void
+        accept(Object obj, Object objThrowable)
+        {
+          if (completablefuture.isCancelled())
+          {
+            cancel();
+          }
+        }
+      });
+
+    return completablefuture;
+  }
 }
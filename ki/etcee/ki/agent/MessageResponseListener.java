@@ -0,0 +1,26 @@
+package etcee.ki.agent;
+
+/**
+ * The message response listener.
+ *
+ * The <CODE>MessageResponseListener</CODE> interface defines the
+ * callback a message response makes when its result becomes valid.
+ *
+ * @see MessageResponse.addListener
+ *
+ */
+
+public interface MessageResponseListener
+{
+  /**
+   * Called when the result of the send becomes valid.
+   *
+   * The callback is made on the thread that completed the send, or on
+   * the thread that added the listener if the send had already
+   * completed.  The callback should return promptly.
+   *
+   */
+
+  public void
+  responseReceived(MessageResponse messageresponse);
+}
@@ -1,6 +1,12 @@
 
 package etcee.ki.agent;
 
+import java.util.Vector;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
 /**
  * The transfer response.
  *
@@ -10,6 +16,12 @@ package etcee.ki.agent;
  * response object allows the caller to check on the status of the
  * transfer.
  *
+ * A caller need not wait for the result.  It may register a listener
+ * to be called back when the result becomes valid, wait for a
+ * limited time, cancel a transfer that has not yet started, or
+ * obtain a completable future through which further work can be
+ * composed.
+ *
  * This class <EM>is</EM> thread safe.
  *
  * @see AgentContext.requestToTransfer
@@ -25,6 +37,7 @@ public final class TransferResponse
    * @see UNDEFINED
    * @see SUCCEEDED
    * @see FAILED
+   * @see CANCELLED
    *
    */
 
@@ -51,6 +64,13 @@ public final class TransferResponse
 
   public final static int FAILED = 2;
 
+  /**
+   * The transfer was cancelled before it started.
+   *
+   */
+
+  public final static int CANCELLED = 3;
+
   /**
    * Gets the response code.
    *
@@ -83,6 +103,98 @@ public final class TransferResponse
     return ex;
   }
 
+  /**
+   * The started flag.
+   *
+   * Once a transfer has started it can no longer be cancelled.
+   *
+   */
+
+  private boolean boolStarted = false;
+
+  /**
+   * The listeners.
+   *
+   * The listeners are called back, and then forgotten, when the
+   * result becomes valid.
+   *
+   */
+
+  private Vector vectorListeners = null;
+
+  /**
+   * Completes the response.
+   *
+   * The first completion wins -- a transfer that has already
+   * completed (or has been cancelled) ignores later completions.
+   *
+   * @returns true if this call completed the response.
+   *
+   */
+
+  private boolean
+  complete(int nCode, Exception ex)
+  {
+    Vector vector = null;
+
+    synchronized (this)
+    {
+      if (this.nCode != UNDEFINED)
+      {
+        return false;
+      }
+
+      if (nCode == CANCELLED && boolStarted)
+      {
+        return false;
+      }
+
+      this.nCode = nCode;
+
+      this.ex = ex;
+
+      vector = vectorListeners;
+
+      vectorListeners = null;
+
+      notifyAll();
+    }
+
+    // Call the listeners outside of the lock.
+
+    if (vector != null)
+    {
+      for (int i = 0; i < vector.size(); i++)
+      {
+        ((TransferResponseListener)vector.elementAt(i)).responseReceived(this);
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Called to indicate the transfer is starting.
+   *
+   * The agent host calls this method before it starts the transfer.
+   *
+   * @returns false if the transfer was cancelled and must not start.
+   *
+   */
+
+  public synchronized final boolean
+  setStarted()
+  {
+    if (nCode == CANCELLED)
+    {
+      return false;
+    }
+
+    boolStarted = true;
+
+    return true;
+  }
+
   /**
    * Called to indicate the transfer failed.
    *
@@ -90,14 +202,10 @@ public final class TransferResponse
    *
    */
 
-  public synchronized final void
+  public final void
   setFailed(Exception ex)
   {
-    nCode = FAILED;
-
-    this.ex = ex;
-
-    notifyAll();
+    complete(FAILED, ex);
   }
 
   /**
@@ -107,24 +215,81 @@ public final class TransferResponse
    *
    */
 
-  public synchronized final void
+  public final void
   setSucceeded()
   {
-    nCode = SUCCEEDED;
+    complete(SUCCEEDED, null);
+  }
 
-    this.ex = null;
+  /**
+   * Cancels the transfer.
+   *
+   * Only a transfer that has not yet started can be cancelled.
+   *
+   * @returns false if the transfer had already started or completed.
+   *
+   */
 
-    notifyAll();
+  public final boolean
+  cancel()
+  {
+    return complete(CANCELLED, new CancellationException());
+  }
+
+  /**
+   * Determines whether or not the response is valid.
+   *
+   */
+
+  public synchronized final boolean
+  isDone()
+  {
+    return nCode != UNDEFINED;
+  }
+
+  /**
+   * Adds a listener.
+   *
+   * The listener is called back exactly once, when the response
+   * becomes valid.  If the response is already valid, the listener
+   * is called back immediately.
+   *
+   */
+
+  public final void
+  addListener(TransferResponseListener transferresponselistener)
+  {
+    synchronized (this)
+    {
+      if (nCode == UNDEFINED)
+      {
+        if (vectorListeners == null)
+        {
+          vectorListeners = new Vector(1);
+        }
+
+        vectorListeners.addElement(transferresponselistener);
+
+        return;
+      }
+    }
+
+    transferresponselistener.responseReceived(this);
   }
 
   /**
    * Waits for the response to become valid.
    *
+   * If the waiting thread is interrupted, it keeps waiting, but its
+   * interrupt status is restored before the method returns.
+   *
    */
 
   public synchronized final void
   waitForResponse()
   {
+    boolean boolInterrupted = false;
+
     while (nCode == UNDEFINED)
     {
       try
@@ -133,8 +298,46 @@ public final class TransferResponse
       }
       catch (InterruptedException ex)
       {
+        boolInterrupted = true;
       }
     }
+
+    if (boolInterrupted)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Waits at most the specified number of milliseconds for the
+   * response to become valid.
+   *
+   * @returns true if the response is valid.
+   *
+   * @throws InterruptedException if the waiting thread was
+   *         interrupted.
+   *
+   */
+
+  public synchronized final boolean
+  waitForResponse(long msTimeout)
+    throws InterruptedException
+  {
+    long msDeadline = System.currentTimeMillis() + msTimeout;
+
+    while (nCode == UNDEFINED)
+    {
+      long ms = msDeadline - System.currentTimeMillis();
+
+      if (ms <= 0)
+      {
+        return false;
+      }
+
+      wait(ms);
+    }
+
+    return true;
   }
 
   /**
@@ -150,4 +353,53 @@ public final class TransferResponse
 
     return nCode == SUCCEEDED;
   }
+
+  /**
+   * Gets a completable future for the response.
+   *
+   * The future completes (with null) when the transfer succeeds, and
+   * exceptionally when it fails or is cancelled.  Cancelling the
+   * future cancels the transfer, if it has not yet started.
+   *
+   */
+
+  public final CompletableFuture
+  toCompletableFuture()
+  {
+    final CompletableFuture completablefuture = new CompletableFuture();
+
+    addListener(new TransferResponseListener()
+      {
+        public void
+        responseReceived(TransferResponse transferresponse)
+        {
+          if (transferresponse.getResponseCode() == SUCCEEDED)
+          {
+            completablefuture.complete(null);
+          }
+          else if (transferresponse.getResponseCode() == CANCELLED)
+          {
+            completablefuture.cancel(false);
+          }
+          else
+          {
+            completablefuture.completeExceptionally(transferresponse.getException());
+          }
+        }
+      });
+
+    completablefuture.whenComplete(new BiConsumer()
+      {
+        public void
+        accept(Object obj, Object objThrowable)
+        {
+          if (completablefuture.isCancelled())
+          {
+            cancel();
+          }
+        }
+      });
+
+    return completablefuture;
+  }
 }
@@ -0,0 +1,26 @@
+package etcee.ki.agent;
+
+/**
+ * The transfer response listener.
+ *
+ * The <CODE>TransferResponseListener</CODE> interface defines the
+ * callback a transfer response makes when its result becomes valid.
+ *
+ * @see TransferResponse.addListener
+ *
+ */
+
+public interface TransferResponseListener
+{
+  /**
+   * Called when the result of the transfer becomes valid.
+   *
+   * The callback is made on the thread that completed the transfer,
+   * or on the thread that added the listener if the transfer had
+   * already completed.  The callback should return promptly.
+   *
+   */
+
+  public void
+  responseReceived(TransferResponse transferresponse);
+}
@@ -26,6 +26,11 @@ public interface AgentHost
    * If the specified agent is no longer hosted by this agent host,
    * the agent host will attempt to locate it.
    *
+   * If the agent has a mailbox, the message is queued and the
+   * response has the code <CODE>QUEUED</CODE>.  The real response is
+   * later delivered to the sending agent host, along with the
+   * voucher, via <CODE>deliverResponse()</CODE>.
+   *
    * @parameter agenthost is the sending agent host.
    *
    * @throws MessageFailedException if the message dispatch failed --
@@ -49,6 +54,56 @@ public interface AgentHost
            AgentNotFoundException,
            RemoteException;
 
+  /**
+   * Delivers the response to a queued message.
+   *
+   * The agent host to which a message was sent calls this method on
+   * the sending agent host once the agent has handled the message.
+   *
+   * @parameter voucher the voucher sent with the message.
+   *
+   * @throws RemoteException if something unexpected happened during
+   *         the remote method invocation.
+   *
+   * @see sendMessage
+   *
+   */
+
+  public void
+  deliverResponse(Voucher voucher,
+                  Response response)
+    throws RemoteException;
+
+  /**
+   * Sends a batch of messages.
+   *
+   * The messages are delivered in order, each as if it had been sent
+   * with <CODE>sendMessage()</CODE>.  The response at each position
+   * corresponds to the message at the same position.  A message that
+   * could not be delivered yields a <CODE>FAILED</CODE> response
+   * rather than aborting the batch.
+   *
+   * @parameter agenthost is the sending agent host.
+   *
+   * @parameter rgvoucher holds one voucher per message.
+   *
+   * @throws MessageFailedException if the batch was malformed.
+   *
+   * @throws RemoteException if something unexpected happened during
+   *         the remote method invocation.
+   *
+   * @see sendMessage
+   *
+   */
+
+  public Response []
+  sendMessages(AgentHost agenthost,
+               Voucher [] rgvoucher,
+               AgentIdentity [] rgagentidentity,
+               Message [] rgmessage)
+    throws MessageFailedException,
+           RemoteException;
+
   /**
    * Requests that an agent transfer occur.
    *
@@ -58,16 +113,20 @@ public interface AgentHost
    * A transfer occurs as follows:
    *
    * <OL>
-   * <LI>the local host invokes the <CODE>beginTransfer()</CODE>
-   *     method on the remote host
-   * <LI>the local host invokes the <CODE>transferResourceFile()</CODE>
-   *     method on the remote host
-   * <LI>the local host invokes the <CODE>transferDataFile()</CODE>
-   *     method on the remote host
+   * <LI>the local host invokes the <CODE>transferAgent()</CODE>
+   *     method on the remote host, which stops the agent and returns
+   *     its resource file (unless the local host already holds it)
+   *     and data file in a single package
+   * <LI>the local host stores the package in its repository
    * <LI>the local host invokes the <CODE>endTransfer()</CODE>
    *     method on the remote host
    * </OL>
    *
+   * The <CODE>beginTransfer()</CODE>,
+   * <CODE>transferResourceFile()</CODE> and
+   * <CODE>transferDataFile()</CODE> methods remain available to
+   * agent hosts that transfer the pieces separately.
+   *
    * @parameter agenthost the agent host originating the request.
    *
    * @throws IOException if problems occurred while serializing the
@@ -137,6 +196,64 @@ public interface AgentHost
            AgentNotFoundException,
            RemoteException;
 
+  /**
+   * Transfers an agent.
+   *
+   * Begins the transfer and returns the agent's resource file and
+   * data file in a single package.  The files are streamed, rather
+   * than copied into memory, as the package is serialized.
+   *
+   * If the digest of the agent's resource file is among the
+   * specified digests, the resource file is left out of the package.
+   *
+   * The data is encoded with at most the specified encodings.  If
+   * the remote host holds the same earlier state of the agent as the
+   * local host, the data may be sent as a delta against it.
+   *
+   * @parameter rgstrResourceDigests the digests of the resource
+   *            files the local host already holds.
+   *
+   * @parameter nDataEncodings the data encodings the local host
+   *            accepts.
+   *
+   * @parameter strDataDigest the digest of the earlier state of the
+   *            agent the local host holds, or null.
+   *
+   * @see TransferPackage.DEFLATE
+   * @see TransferPackage.DELTA
+   *
+   * The local host must call <CODE>endTransfer()</CODE> once it has
+   * stored the package.
+   *
+   * @throws IOException if problems occurred while serializing the
+   *         data.
+   *
+   * @throws TransferFailedException if the transfer failed -- either
+   *         because the remote host rejected the transfer, or the
+   *         transfer failed for some other reason.
+   *
+   * @throws AgentNotFoundException if the specified agent did not
+   *         exist on the specified host.
+   *
+   * @throws RemoteException if something unexpected happened during
+   *         the remote method invocation.
+   *
+   * @see requestToTransfer
+   * @see endTransfer
+   *
+   */
+
+  public TransferPackage
+  transferAgent(Voucher voucher,
+                AgentIdentity agentidentity,
+                String [] rgstrResourceDigests,
+                int nDataEncodings,
+                String strDataDigest)
+    throws IOException,
+           TransferFailedException,
+           AgentNotFoundException,
+           RemoteException;
+
   /**
    * Ends a transfer.
    *
@@ -226,4 +343,90 @@ public interface AgentHost
            TransferFailedException,
            AgentNotFoundException,
            RemoteException;
+
+  /**
+   * Locates an agent.
+   *
+   * Another agent host calls this method on an agent's home to learn
+   * where the agent is.
+   *
+   * @returns the name of the agent host the agent is on, or null if
+   *          the agent is unknown or this agent host keeps no
+   *          locations.
+   *
+   * @throws RemoteException if something unexpected happened during
+   *         the remote method invocation.
+   *
+   * @see relocateAgent
+   *
+   */
+
+  public String
+  locateAgent(AgentIdentity agentidentity)
+    throws RemoteException;
+
+  /**
+   * Records the move of an agent.
+   *
+   * The agent host an agent has moved to calls this method on the
+   * agent's home.
+   *
+   * @parameter strFrom the name of the agent host the agent left, or
+   *            null if the agent host is claiming an agent whose
+   *            location is unknown.
+   *
+   * @parameter strTo the name of the agent host the agent is on.
+   *
+   * @throws RemoteException if something unexpected happened during
+   *         the remote method invocation.
+   *
+   * @see locateAgent
+   *
+   */
+
+  public void
+  relocateAgent(AgentIdentity agentidentity,
+                String strFrom,
+                String strTo)
+    throws RemoteException;
+
+  /**
+   * Gets the changes to the agents published on this agent host.
+   *
+   * Another agent host calls this method to copy the published agents
+   * into its own directory.
+   *
+   * @parameter nEpoch the epoch of the last update received, or zero.
+   *
+   * @parameter nSequence the sequence number of the last update
+   *            received, or zero.
+   *
+   * @returns the changes since then, or a snapshot.
+   *
+   * @throws RemoteException if something unexpected happened during
+   *         the remote method invocation.
+   *
+   */
+
+  public DirectoryUpdate
+  getDirectoryUpdate(long nEpoch, long nSequence)
+    throws RemoteException;
+
+  /**
+   * Gets the load on this agent host.
+   *
+   * Another agent host calls this method to decide whether to move
+   * agents here.
+   *
+   * @returns the load, or null if this agent host does not measure
+   *          its load.
+   *
+   * @throws RemoteException if something unexpected happened during
+   *         the remote method invocation.
+   *
+   */
+
+  public Load
+  getLoad()
+    throws RemoteException;
 }
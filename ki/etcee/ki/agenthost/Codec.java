@@ -0,0 +1,283 @@
+package etcee.ki.agenthost;
+
+import etcee.ki.agent.AgentIdentity;
+
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.IOException;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The codec.
+ *
+ * The <CODE>Codec</CODE> class writes the values that travel between
+ * agent hosts -- message parameters, responses and agent identities
+ * -- in a compact form.  Each value is written as a one byte tag
+ * followed by the value:
+ *
+ * <UL>
+ * <LI>null, strings, integers and doubles (the types Jess agents
+ *     send) are written directly
+ * <LI>agent identities, and arrays of them, are written as their
+ *     fixed width ID followed by their agent host name (values
+ *     written by earlier versions, with a 128 byte ID, can still be
+ *     read)
+ * <LI>everything else is serialized
+ * </UL>
+ *
+ * Agent host names are interned when read.  An object output stream
+ * writes a string it has already written as a short reference, so
+ * the name shared by a batch of agent identities is written only
+ * once.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see Message
+ * @see Response
+ *
+ */
+
+public final class Codec
+{
+  /**
+   * The tags.
+   *
+   */
+
+  private final static int NULL = 0;
+  private final static int STRING = 1;
+  private final static int INTEGER = 2;
+  private final static int DOUBLE = 3;
+  private final static int IDENTITY = 4;
+  private final static int OBJECT = 5;
+  private final static int IDENTITIES = 6;
+
+  /**
+   * The longest string written directly.
+   *
+   * Longer strings might not fit in modified UTF-8's 64K limit.
+   *
+   */
+
+  private final static int nMaximumString = 65535 / 3;
+
+  /**
+   * The forms of a written agent identity.
+   *
+   */
+
+  private final static int ABSENT = 0;
+  private final static int COMPACT = 2;
+
+  /**
+   * The most agent host names interned.
+   *
+   */
+
+  private final static int nMaximumHostNames = 1024;
+
+  /**
+   * The agent host name table.
+   *
+   */
+
+  private final static ConcurrentHashMap concurrenthashmapHostNames = new ConcurrentHashMap();
+
+  /**
+   * Constructs the codec.
+   *
+   * The codec has no instances.
+   *
+   */
+
+  private
+  Codec()
+  {
+  }
+
+  /**
+   * Interns an agent host name.
+   *
+   */
+
+  private static String
+  intern(String strAgentHostName)
+  {
+    if (strAgentHostName == null)
+    {
+      return null;
+    }
+
+    String str = (String)concurrenthashmapHostNames.get(strAgentHostName);
+
+    if (str != null)
+    {
+      return str;
+    }
+
+    if (concurrenthashmapHostNames.size() >= nMaximumHostNames)
+    {
+      return strAgentHostName;
+    }
+
+    str = (String)concurrenthashmapHostNames.putIfAbsent(strAgentHostName, strAgentHostName);
+
+    return str == null ? strAgentHostName : str;
+  }
+
+  /**
+   * Writes an agent identity.
+   *
+   * The agent identity may be null.
+   *
+   */
+
+  public static void
+  writeAgentIdentity(ObjectOutput objectoutput, AgentIdentity agentidentity)
+    throws IOException
+  {
+    if (agentidentity == null)
+    {
+      objectoutput.writeByte(ABSENT);
+
+      return;
+    }
+
+    objectoutput.writeByte(COMPACT);
+
+    agentidentity.writeID(objectoutput);
+
+    objectoutput.writeObject(agentidentity.getAgentHostName());
+  }
+
+  /**
+   * Reads an agent identity.
+   *
+   */
+
+  public static AgentIdentity
+  readAgentIdentity(ObjectInput objectinput)
+    throws IOException,
+           ClassNotFoundException
+  {
+    AgentIdentity agentidentity = null;
+
+    int nForm = objectinput.readByte();
+
+    switch (nForm)
+    {
+    case ABSENT:
+      return null;
+    case COMPACT:
+      agentidentity = AgentIdentity.readID(objectinput);
+      break;
+    default:
+      throw new IOException("bad agent identity form " + nForm);
+    }
+
+    agentidentity.setAgentHostName(intern((String)objectinput.readObject()));
+
+    return agentidentity;
+  }
+
+  /**
+   * Writes a value.
+   *
+   */
+
+  public static void
+  writeValue(ObjectOutput objectoutput, Object obj)
+    throws IOException
+  {
+    if (obj == null)
+    {
+      objectoutput.writeByte(NULL);
+    }
+    else if (obj instanceof String && ((String)obj).length() <= nMaximumString)
+    {
+      objectoutput.writeByte(STRING);
+      objectoutput.writeUTF((String)obj);
+    }
+    else if (obj instanceof Integer)
+    {
+      objectoutput.writeByte(INTEGER);
+      objectoutput.writeInt(((Integer)obj).intValue());
+    }
+    else if (obj instanceof Double)
+    {
+      objectoutput.writeByte(DOUBLE);
+      objectoutput.writeDouble(((Double)obj).doubleValue());
+    }
+    else if (obj instanceof AgentIdentity)
+    {
+      objectoutput.writeByte(IDENTITY);
+
+      writeAgentIdentity(objectoutput, (AgentIdentity)obj);
+    }
+    else if (obj instanceof AgentIdentity [])
+    {
+      AgentIdentity [] rgagentidentity = (AgentIdentity [])obj;
+
+      objectoutput.writeByte(IDENTITIES);
+      objectoutput.writeInt(rgagentidentity.length);
+
+      for (int i = 0; i < rgagentidentity.length; i++)
+      {
+        writeAgentIdentity(objectoutput, rgagentidentity[i]);
+      }
+    }
+    else
+    {
+      objectoutput.writeByte(OBJECT);
+      objectoutput.writeObject(obj);
+    }
+  }
+
+  /**
+   * Reads a value.
+   *
+   */
+
+  public static Object
+  readValue(ObjectInput objectinput)
+    throws IOException,
+           ClassNotFoundException
+  {
+    int nTag = objectinput.readByte();
+
+    switch (nTag)
+    {
+    case NULL:
+      return null;
+    case STRING:
+      return objectinput.readUTF();
+    case INTEGER:
+      return Integer.valueOf(objectinput.readInt());
+    case DOUBLE:
+      return Double.valueOf(objectinput.readDouble());
+    case IDENTITY:
+      return readAgentIdentity(objectinput);
+    case OBJECT:
+      return objectinput.readObject();
+    case IDENTITIES:
+      int n = objectinput.readInt();
+
+      if (n < 0)
+      {
+        throw new IOException("bad array length " + n);
+      }
+
+      AgentIdentity [] rgagentidentity = new AgentIdentity [n];
+
+      for (int i = 0; i < n; i++)
+      {
+        rgagentidentity[i] = readAgentIdentity(objectinput);
+      }
+
+      return rgagentidentity;
+    default:
+      throw new IOException("bad tag " + nTag);
+    }
+  }
+}
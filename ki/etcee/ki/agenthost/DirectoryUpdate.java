@@ -0,0 +1,142 @@
+package etcee.ki.agenthost;
+
+import etcee.ki.agent.DirectoryEntry;
+
+import java.io.Serializable;
+
+/**
+ * The directory update.
+ *
+ * The <CODE>DirectoryUpdate</CODE> class carries the changes to an
+ * agent host's published agents since a point in its change log, in
+ * the order they were made.  Each change either publishes an entry
+ * or withdraws it.
+ *
+ * If the change log no longer reaches back to that point, or the
+ * agent host has restarted since, the update is a snapshot instead
+ * -- every entry the agent host holds, each published, which replace
+ * whatever the receiver held for it.
+ *
+ * This class <EM>is not</EM> thread safe.
+ *
+ * @see AgentHost.getDirectoryUpdate
+ *
+ */
+
+public final class DirectoryUpdate
+  implements Serializable
+{
+  /**
+   * The epoch.
+   *
+   * The epoch changes whenever the agent host restarts.
+   *
+   */
+
+  private long nEpoch = 0;
+
+  /**
+   * Gets the epoch.
+   *
+   */
+
+  public final long
+  getEpoch()
+  {
+    return nEpoch;
+  }
+
+  /**
+   * The sequence number of the last change in the update.
+   *
+   */
+
+  private long nSequence = 0;
+
+  /**
+   * Gets the sequence number of the last change in the update.
+   *
+   * The next update should be asked for from this point.
+   *
+   */
+
+  public final long
+  getSequence()
+  {
+    return nSequence;
+  }
+
+  /**
+   * The update is a snapshot.
+   *
+   */
+
+  private boolean boolSnapshot = false;
+
+  /**
+   * Determines whether or not the update is a snapshot.
+   *
+   */
+
+  public final boolean
+  isSnapshot()
+  {
+    return boolSnapshot;
+  }
+
+  /**
+   * The entries.
+   *
+   */
+
+  private DirectoryEntry [] rgdirectoryentry = null;
+
+  /**
+   * Gets the entries.
+   *
+   */
+
+  public final DirectoryEntry []
+  getEntries()
+  {
+    return rgdirectoryentry;
+  }
+
+  /**
+   * The withdrawal flags.
+   *
+   */
+
+  private boolean [] rgboolWithdrawn = null;
+
+  /**
+   * Determines whether or not the change at a position withdraws its
+   * entry.
+   *
+   */
+
+  public final boolean
+  isWithdrawn(int n)
+  {
+    return rgboolWithdrawn[n];
+  }
+
+  /**
+   * Constructs the directory update.
+   *
+   */
+
+  public
+  DirectoryUpdate(long nEpoch,
+                  long nSequence,
+                  boolean boolSnapshot,
+                  DirectoryEntry [] rgdirectoryentry,
+                  boolean [] rgboolWithdrawn)
+  {
+    this.nEpoch = nEpoch;
+    this.nSequence = nSequence;
+    this.boolSnapshot = boolSnapshot;
+    this.rgdirectoryentry = rgdirectoryentry;
+    this.rgboolWithdrawn = rgboolWithdrawn;
+  }
+}
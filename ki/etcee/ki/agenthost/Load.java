@@ -0,0 +1,125 @@
+package etcee.ki.agenthost;
+
+import java.io.Serializable;
+
+/**
+ * The load.
+ *
+ * The <CODE>Load</CODE> class describes how busy an agent host is:
+ * the number of agents it hosts, the rate at which they handle
+ * messages, and the share of a processor they spend doing so.  The
+ * rates are measured over the agent host's last sampling period.
+ *
+ * This class <EM>is not</EM> thread safe.
+ *
+ * @see AgentHost.getLoad
+ *
+ */
+
+public final class Load
+  implements Serializable
+{
+  /**
+   * The agent host name.
+   *
+   */
+
+  private String strAgentHostName = null;
+
+  /**
+   * Gets the agent host name.
+   *
+   */
+
+  public final String
+  getAgentHostName()
+  {
+    return strAgentHostName;
+  }
+
+  /**
+   * The number of agents hosted, resident or passivated.
+   *
+   */
+
+  private int nAgents = 0;
+
+  /**
+   * Gets the number of agents hosted, resident or passivated.
+   *
+   */
+
+  public final int
+  getAgentCount()
+  {
+    return nAgents;
+  }
+
+  /**
+   * The message rate.
+   *
+   */
+
+  private double dMessageRate = 0.0;
+
+  /**
+   * Gets the number of messages handled per second.
+   *
+   */
+
+  public final double
+  getMessageRate()
+  {
+    return dMessageRate;
+  }
+
+  /**
+   * The handler load.
+   *
+   */
+
+  private double dHandlerLoad = 0.0;
+
+  /**
+   * Gets the handler load -- the time spent handling messages divided
+   * by the time elapsed.
+   *
+   * A handler load of one is one processor's worth of work.
+   *
+   */
+
+  public final double
+  getHandlerLoad()
+  {
+    return dHandlerLoad;
+  }
+
+  /**
+   * Constructs the load.
+   *
+   */
+
+  public
+  Load(String strAgentHostName,
+       int nAgents,
+       double dMessageRate,
+       double dHandlerLoad)
+  {
+    this.strAgentHostName = strAgentHostName;
+    this.nAgents = nAgents;
+    this.dMessageRate = dMessageRate;
+    this.dHandlerLoad = dHandlerLoad;
+  }
+
+  /**
+   * Returns a string representation of the load.
+   *
+   */
+
+  public String
+  toString()
+  {
+    return strAgentHostName + ": " + nAgents + " agents, " +
+           dMessageRate + " messages/s, handler load " + dHandlerLoad;
+  }
+}
@@ -3,11 +3,20 @@ package etcee.ki.agenthost;
 
 import etcee.ki.agent.AgentIdentity;
 
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
  * The response.
  *
+ * A response is serializable.  It writes its agent identity and
+ * value with the codec, so its serialized form is not that of the
+ * original, field-by-field response, and the two cannot be mixed.
+ *
+ * @see Codec
+ *
  */
 
 public final class Response
@@ -18,21 +27,21 @@ public final class Response
    *
    */
 
-  public AgentIdentity agentidentity;
+  public transient AgentIdentity agentidentity;
 
   /**
    * The response.
    *
    */
 
-  public Object objResponse;
+  public transient Object objResponse;
 
   /**
    * The result code.
    *
    */
 
-  public int nCode;
+  public transient int nCode;
 
   public final static int SUCCEEDED = 0;
   public final static int FAILED = 1;
@@ -41,6 +50,42 @@ public final class Response
   public final static int LOCKED = 3;
   public final static int NOT_FOUND = 4;
 
+  /**
+   * The message was queued for the agent.  The response will be
+   * delivered later.
+   *
+   * @see AgentHost.deliverResponse
+   *
+   */
+
+  public final static int QUEUED = 5;
+
+  /**
+   * The names of the result codes.
+   *
+   */
+
+  private final static String [] rgstrCodeNames =
+  {
+    "SUCCEEDED", "FAILED", "TRY_AGAIN", "LOCKED", "NOT_FOUND", "QUEUED"
+  };
+
+  /**
+   * Gets the name of a result code.
+   *
+   */
+
+  public static String
+  getCodeName(int nCode)
+  {
+    if (nCode < 0 || nCode >= rgstrCodeNames.length)
+    {
+      return "UNKNOWN";
+    }
+
+    return rgstrCodeNames[nCode];
+  }
+
   /**
    * Constructs the response.
    *
@@ -55,4 +100,41 @@ public final class Response
     this.objResponse = objResponse;
     this.nCode = nCode;
   }
+
+  /**
+   * Writes the response.
+   *
+   */
+
+  private void
+  writeObject(ObjectOutputStream objectoutputstream)
+    throws IOException
+  {
+    objectoutputstream.defaultWriteObject();
+
+    objectoutputstream.writeByte(nCode);
+
+    Codec.writeAgentIdentity(objectoutputstream, agentidentity);
+
+    Codec.writeValue(objectoutputstream, objResponse);
+  }
+
+  /**
+   * Reads the response.
+   *
+   */
+
+  private void
+  readObject(ObjectInputStream objectinputstream)
+    throws IOException,
+           ClassNotFoundException
+  {
+    objectinputstream.defaultReadObject();
+
+    nCode = objectinputstream.readByte();
+
+    agentidentity = Codec.readAgentIdentity(objectinputstream);
+
+    objResponse = Codec.readValue(objectinputstream);
+  }
 }
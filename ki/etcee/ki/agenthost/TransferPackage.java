@@ -0,0 +1,485 @@
+package etcee.ki.agenthost;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * The transfer package.
+ *
+ * The <CODE>TransferPackage</CODE> class carries an agent's resource
+ * file and data file from one agent host to another in a single
+ * call.
+ *
+ * The files are never held in memory.  When the package is
+ * serialized, the contents of the files are copied to the stream a
+ * chunk at a time.  When the package is deserialized, the contents
+ * are copied a chunk at a time into temporary files, which the
+ * receiving agent host then takes over.
+ *
+ * A transport that can move files itself may detach them from the
+ * package.  The package is then serialized without them, and the
+ * transport attaches the files it received on the other side.
+ *
+ * The package always carries the digest of the resource file.  If
+ * the receiving agent host already holds a resource file with that
+ * digest, the resource file itself is left out.
+ *
+ * The data may be encoded -- compressed, or expressed as a delta
+ * against an earlier state of the agent that both agent hosts hold,
+ * or both.  The receiving agent host decodes it.
+ *
+ * @see AgentHost.transferAgent
+ *
+ */
+
+public final class TransferPackage
+  implements Serializable
+{
+  /**
+   * The chunk size.
+   *
+   */
+
+  private final static int nChunk = 64 * 1024;
+
+  /**
+   * The data is compressed.
+   *
+   */
+
+  public final static int DEFLATE = 1;
+
+  /**
+   * The data is a delta against an earlier state.
+   *
+   */
+
+  public final static int DELTA = 2;
+
+  /**
+   * The resource file.
+   *
+   */
+
+  private transient File fileResource = null;
+
+  /**
+   * Gets the resource file.
+   *
+   * @returns the resource file, or null if the agent had none.
+   *
+   */
+
+  public final File
+  getResourceFile()
+  {
+    return fileResource;
+  }
+
+  /**
+   * The resource digest.
+   *
+   */
+
+  private String strResourceDigest = null;
+
+  /**
+   * Gets the digest of the resource file.
+   *
+   * The digest is present even if the resource file was left out of
+   * the package.
+   *
+   */
+
+  public final String
+  getResourceDigest()
+  {
+    return strResourceDigest;
+  }
+
+  /**
+   * The name of the agent host the package came from.
+   *
+   */
+
+  private String strAgentHostName = null;
+
+  /**
+   * Sets the name of the agent host the package came from.
+   *
+   */
+
+  public final void
+  setAgentHostName(String strAgentHostName)
+  {
+    this.strAgentHostName = strAgentHostName;
+  }
+
+  /**
+   * Gets the name of the agent host the package came from.
+   *
+   * @returns the name, or null if the sending agent host did not set
+   *          it.
+   *
+   */
+
+  public final String
+  getAgentHostName()
+  {
+    return strAgentHostName;
+  }
+
+  /**
+   * The data file.
+   *
+   */
+
+  private transient File fileData = null;
+
+  /**
+   * Gets the data file.
+   *
+   * @returns the data file, or null if the agent had none.
+   *
+   */
+
+  public final File
+  getDataFile()
+  {
+    return fileData;
+  }
+
+  /**
+   * The encoded data.
+   *
+   * The encoded data replaces the data file on the sending side.
+   *
+   */
+
+  private transient byte [] rgbData = null;
+
+  /**
+   * The data encoding.
+   *
+   * @see DEFLATE
+   * @see DELTA
+   *
+   */
+
+  private int nDataEncoding = 0;
+
+  /**
+   * Gets the data encoding.
+   *
+   * @see DEFLATE
+   * @see DELTA
+   *
+   */
+
+  public final int
+  getDataEncoding()
+  {
+    return nDataEncoding;
+  }
+
+  /**
+   * The files are carried apart from the package.
+   *
+   */
+
+  private boolean boolDetached = false;
+
+  /**
+   * The number of bytes in the package.
+   *
+   */
+
+  private transient long nLength = 0;
+
+  /**
+   * Gets the number of bytes in the package.
+   *
+   */
+
+  public final long
+  getLength()
+  {
+    return nLength;
+  }
+
+  /**
+   * Constructs the transfer package.
+   *
+   * Either file may be null or may not exist, in which case the
+   * package carries no such file.
+   *
+   */
+
+  public
+  TransferPackage(File fileResource, File fileData, String strResourceDigest)
+  {
+    this.strResourceDigest = strResourceDigest;
+
+    this.fileResource = fileResource != null && fileResource.exists() ? fileResource : null;
+    this.fileData = fileData != null && fileData.exists() ? fileData : null;
+
+    nLength = (this.fileResource == null ? 0 : this.fileResource.length()) +
+              (this.fileData == null ? 0 : this.fileData.length());
+  }
+
+  /**
+   * Constructs the transfer package with encoded data.
+   *
+   * The resource file may be null or may not exist, in which case
+   * the package carries no resource file.
+   *
+   * @see DEFLATE
+   * @see DELTA
+   *
+   */
+
+  public
+  TransferPackage(File fileResource, byte [] rgbData, int nDataEncoding, String strResourceDigest)
+  {
+    this(fileResource, null, strResourceDigest);
+
+    this.rgbData = rgbData;
+    this.nDataEncoding = nDataEncoding;
+
+    nLength += rgbData.length;
+  }
+
+  /**
+   * Deletes the files in the package.
+   *
+   * The receiving agent host calls this method to discard a package
+   * it could not use.
+   *
+   */
+
+  public final void
+  delete()
+  {
+    if (fileResource != null)
+    {
+      fileResource.delete();
+    }
+
+    if (fileData != null)
+    {
+      fileData.delete();
+    }
+  }
+
+  /**
+   * Detaches the files from the package.
+   *
+   * The package is serialized without the files returned, and the
+   * transport must carry them itself.  Encoded data is held in memory
+   * and stays in the package.
+   *
+   * @returns the resource file and the data file, either of which may
+   *          be null.
+   *
+   * @see attach
+   *
+   */
+
+  public final File []
+  detach()
+  {
+    boolDetached = true;
+
+    return new File [] { fileResource, rgbData == null ? fileData : null };
+  }
+
+  /**
+   * Attaches the files carried apart from the package.
+   *
+   * The receiving transport calls this method with the files it
+   * received, which the package then owns.
+   *
+   * @see detach
+   *
+   */
+
+  public final void
+  attach(File fileResource, File fileData)
+  {
+    if (fileResource != null)
+    {
+      this.fileResource = fileResource;
+    }
+
+    if (fileData != null)
+    {
+      this.fileData = fileData;
+    }
+
+    nLength = (this.fileResource == null ? 0 : this.fileResource.length()) +
+              (this.fileData == null ? 0 : this.fileData.length());
+  }
+
+  /**
+   * Writes the package.
+   *
+   */
+
+  private void
+  writeObject(ObjectOutputStream objectoutputstream)
+    throws IOException
+  {
+    objectoutputstream.defaultWriteObject();
+
+    byte [] rgb = new byte [nChunk];
+
+    writeFile(objectoutputstream, boolDetached ? null : fileResource, rgb);
+
+    if (rgbData != null)
+    {
+      objectoutputstream.writeLong(rgbData.length);
+      objectoutputstream.write(rgbData);
+    }
+    else
+    {
+      writeFile(objectoutputstream, boolDetached ? null : fileData, rgb);
+    }
+  }
+
+  /**
+   * Reads the package.
+   *
+   */
+
+  private void
+  readObject(ObjectInputStream objectinputstream)
+    throws IOException,
+           ClassNotFoundException
+  {
+    objectinputstream.defaultReadObject();
+
+    byte [] rgb = new byte [nChunk];
+
+    try
+    {
+      fileResource = readFile(objectinputstream, rgb);
+      fileData = readFile(objectinputstream, rgb);
+    }
+    catch (IOException ex)
+    {
+      delete();
+
+      throw ex;
+    }
+
+    nLength = (fileResource == null ? 0 : fileResource.length()) +
+              (fileData == null ? 0 : fileData.length());
+  }
+
+  /**
+   * Writes a file to the stream.
+   *
+   * The file is written as its length followed by its contents.  A
+   * missing file is written as a length of -1.
+   *
+   */
+
+  private static void
+  writeFile(ObjectOutputStream objectoutputstream, File file, byte [] rgb)
+    throws IOException
+  {
+    if (file == null)
+    {
+      objectoutputstream.writeLong(-1);
+
+      return;
+    }
+
+    InputStream inputstream = new FileInputStream(file);
+
+    try
+    {
+      long n = file.length();
+
+      objectoutputstream.writeLong(n);
+
+      while (n > 0)
+      {
+        int m = inputstream.read(rgb, 0, (int)Math.min(n, rgb.length));
+
+        if (m < 0)
+        {
+          throw new EOFException(file.getName());
+        }
+
+        objectoutputstream.write(rgb, 0, m);
+
+        n -= m;
+      }
+    }
+    finally
+    {
+      inputstream.close();
+    }
+  }
+
+  /**
+   * Reads a file from the stream into a temporary file.
+   *
+   * @returns the temporary file, or null if the file was missing.
+   *
+   */
+
+  private static File
+  readFile(ObjectInputStream objectinputstream, byte [] rgb)
+    throws IOException
+  {
+    long n = objectinputstream.readLong();
+
+    if (n < 0)
+    {
+      return null;
+    }
+
+    File file = File.createTempFile("ki-", null);
+
+    OutputStream outputstream = new FileOutputStream(file);
+
+    try
+    {
+      while (n > 0)
+      {
+        int m = objectinputstream.read(rgb, 0, (int)Math.min(n, rgb.length));
+
+        if (m < 0)
+        {
+          throw new EOFException();
+        }
+
+        outputstream.write(rgb, 0, m);
+
+        n -= m;
+      }
+    }
+    catch (IOException ex)
+    {
+      outputstream.close();
+
+      file.delete();
+
+      throw ex;
+    }
+
+    outputstream.close();
+
+    return file;
+  }
+}
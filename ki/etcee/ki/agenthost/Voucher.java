@@ -71,4 +71,15 @@ public final class Voucher
 
     return false;
   }
+
+  /**
+   * Returns the hashcode.
+   *
+   */
+
+  public int
+  hashCode()
+  {
+    return (int)(nID ^ (nID >>> 32));
+  }
 }
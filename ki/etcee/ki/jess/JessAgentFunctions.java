@@ -4,6 +4,7 @@ package etcee.ki.jess;
 import etcee.ki.agent.Agent;
 import etcee.ki.agent.AgentContext;
 import etcee.ki.agent.AgentIdentity;
+import etcee.ki.agent.DirectoryEntry;
 import etcee.ki.agent.Message;
 import etcee.ki.agent.MessageResponse;
 
@@ -17,8 +18,6 @@ import jess.Value;
 import jess.Funcall;
 import jess.RU;
 
-import java.util.Enumeration;
-
 public class JessAgentFunctions
   implements Userpackage
 {
@@ -100,6 +99,8 @@ public class JessAgentFunctions
     rete.addUserfunction(new agent_hostname());
     rete.addUserfunction(new agent_list());
     rete.addUserfunction(new agent_send());
+    rete.addUserfunction(new agent_send_async());
+    rete.addUserfunction(new agent_wait_response());
     rete.addUserfunction(new agent_transfer());
   }
 
@@ -137,6 +138,13 @@ public class JessAgentFunctions
     }
   }
 
+  /**
+   * The number of directory entries asked for at a time.
+   *
+   */
+
+  private final static int nListPage = 256;
+
   class agent_list
     implements Userfunction
   {
@@ -152,17 +160,160 @@ public class JessAgentFunctions
     {
       ValueVector valuevectorT = new ValueVector();
 
-      Enumeration enumeration = agentcontext.getPublishedAgents();
+      // The optional arguments are an identifier prefix and the
+      // maximum number of agents to list.  Without a limit, every
+      // agent is listed.
+
+      String strPrefix = null;
+
+      int nLimit = Integer.MAX_VALUE;
+
+      if (valuevector.size() > 1)
+      {
+        strPrefix = valuevector.get(1).stringValue();
+      }
 
-      while (enumeration.hasMoreElements())
+      if (valuevector.size() > 2)
       {
-        valuevectorT.add(new Value((String)enumeration.nextElement(), RU.STRING));
+        nLimit = valuevector.get(2).intValue();
+      }
+
+      String strCursor = null;
+
+      String strLast = null;
+
+      int n = 0;
+
+      // The directory hands out entries a page at a time, and may
+      // hand out fewer than asked for, so keep asking until it runs
+      // out.
+
+      while (n < nLimit)
+      {
+        DirectoryEntry [] rgdirectoryentry =
+          agentcontext.findPublishedAgents(strPrefix,
+                                           null,
+                                           strCursor,
+                                           Math.min(nListPage, nLimit - n));
+
+        if (rgdirectoryentry.length == 0)
+        {
+          break;
+        }
+
+        for (int i = 0; i < rgdirectoryentry.length; i++)
+        {
+          String str = rgdirectoryentry[i].getIdentifier();
+
+          // Entries are ordered by identifier, so agents published
+          // under the same identifier are listed once.
+
+          if (!str.equals(strLast))
+          {
+            valuevectorT.add(new Value(str, RU.STRING));
+          }
+
+          strLast = str;
+        }
+
+        n += rgdirectoryentry.length;
+
+        strCursor = rgdirectoryentry[rgdirectoryentry.length - 1].getCursor();
       }
 
       return new Value(valuevectorT, RU.LIST);
     }
   }
 
+  /**
+   * Builds a message from the arguments of a send call.
+   *
+   * The arguments are the receiving agent (a published identifier or
+   * an agent identity), the message name, and the message parameters.
+   *
+   * @returns the message response, or null if the arguments were
+   *          invalid.
+   *
+   */
+
+  private MessageResponse
+  send(ValueVector valuevector)
+    throws ReteException
+  {
+    Value value = null;
+
+    AgentIdentity agentidentity = null;
+
+    value = valuevector.get(1);
+
+    if (value.type() == RU.STRING)
+    {
+      agentidentity = agentcontext.getPublishedAgentIdentity(value.stringValue());
+    }
+    else if (value.type() == RU.EXTERNAL_ADDRESS)
+    {
+      agentidentity = (AgentIdentity)value.externalAddressValue();
+    }
+
+    if (agentidentity == null)
+    {
+      return null;
+    }
+
+    String strMessage = null;
+
+    value = valuevector.get(2);
+
+    if (value.type() == RU.STRING)
+    {
+      strMessage = value.stringValue();
+    }
+
+    if (strMessage == null)
+    {
+      return null;
+    }
+
+    Object [] rgobject = new Object [valuevector.size() - 3];
+
+    for (int i = 3; i < valuevector.size(); i++)
+    {
+      rgobject[i - 3] = valueToObject(valuevector.get(i));
+    }
+
+    Message message = new Message(strMessage, rgobject);
+
+    return agentcontext.sendMessage(null, agentidentity, message);
+  }
+
+  /**
+   * Converts a valid message response into a list.
+   *
+   * The list holds a status (0 for success, -1 for failure) followed
+   * by the response or the exception.
+   *
+   */
+
+  private static Value
+  responseToValue(MessageResponse messageresponse)
+    throws ReteException
+  {
+    ValueVector valuevectorT = new ValueVector();
+
+    if (messageresponse.getResponseCode() == MessageResponse.SUCCEEDED)
+    {
+      valuevectorT.add(new Value(0, RU.INTEGER));
+      valuevectorT.add(objectToValue(messageresponse.getResponse()));
+    }
+    else
+    {
+      valuevectorT.add(new Value(-1, RU.INTEGER));
+      valuevectorT.add(objectToValue(messageresponse.getException()));
+    }
+
+    return new Value(valuevectorT, RU.LIST);
+  }
+
   class agent_send
     implements Userfunction
   {
@@ -176,71 +327,105 @@ public class JessAgentFunctions
     call(ValueVector valuevector, Context context)
       throws ReteException
     {
-      Value value = null;
-
-      AgentIdentity agentidentity = null;
-
-      value = valuevector.get(1);
-
-      if (value.type() == RU.STRING)
-      {
-        agentidentity = agentcontext.getPublishedAgentIdentity(value.stringValue());
-      }
-      else if (value.type() == RU.EXTERNAL_ADDRESS)
-      {
-        agentidentity = (AgentIdentity)value.externalAddressValue();
-      }
+      MessageResponse messageresponse = send(valuevector);
 
-      if (agentidentity == null)
+      if (messageresponse == null)
       {
         return Funcall.FALSE();
       }
 
-      String strMessage = null;
+      messageresponse.waitForResponse();
 
-      value = valuevector.get(2);
+      return responseToValue(messageresponse);
+    }
+  }
 
-      if (value.type() == RU.STRING)
-      {
-        strMessage = value.stringValue();
-      }
+  /**
+   * Sends a message without waiting for the response.
+   *
+   * Returns the message response, which can later be passed to
+   * <CODE>wait-response</CODE>.  Many sends can be in flight at once.
+   *
+   */
 
-      if (strMessage == null)
-      {
-        return Funcall.FALSE();
-      }
+  class agent_send_async
+    implements Userfunction
+  {
+    public int
+    name()
+    {
+      return RU.putAtom("send-async");
+    }
 
-      Object [] rgobject = new Object [valuevector.size() - 3];
+    public Value
+    call(ValueVector valuevector, Context context)
+      throws ReteException
+    {
+      MessageResponse messageresponse = send(valuevector);
 
-      for (int i = 3; i < valuevector.size(); i++)
+      if (messageresponse == null)
       {
-        rgobject[i - 3] = valueToObject(valuevector.get(i));
+        return Funcall.FALSE();
       }
 
-      Message message = new Message(strMessage, rgobject);
+      return new Value(messageresponse, RU.EXTERNAL_ADDRESS);
+    }
+  }
 
-      MessageResponse messageresponse = agentcontext.sendMessage(null, agentidentity, message);
+  /**
+   * Waits for the response to an asynchronous send.
+   *
+   * Takes the message response and an optional timeout in
+   * milliseconds.  Returns the same list as <CODE>send</CODE>, or
+   * false if the timeout expired first.
+   *
+   */
 
-      messageresponse.waitForResponse();
+  class agent_wait_response
+    implements Userfunction
+  {
+    public int
+    name()
+    {
+      return RU.putAtom("wait-response");
+    }
+
+    public Value
+    call(ValueVector valuevector, Context context)
+      throws ReteException
+    {
+      Value value = valuevector.get(1);
 
-      if (messageresponse.getResponseCode() == MessageResponse.FAILED)
+      if (value.type() != RU.EXTERNAL_ADDRESS ||
+          !(value.externalAddressValue() instanceof MessageResponse))
       {
-        ValueVector valuevectorT = new ValueVector();
+        return Funcall.FALSE();
+      }
 
-        valuevectorT.add(new Value(-1, RU.INTEGER));
-        valuevectorT.add(objectToValue(messageresponse.getException()));
+      MessageResponse messageresponse = (MessageResponse)value.externalAddressValue();
 
-        return new Value(valuevectorT, RU.LIST);
+      if (valuevector.size() > 2)
+      {
+        try
+        {
+          if (!messageresponse.waitForResponse(valuevector.get(2).intValue()))
+          {
+            return Funcall.FALSE();
+          }
+        }
+        catch (InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+
+          return Funcall.FALSE();
+        }
       }
       else
       {
-        ValueVector valuevectorT = new ValueVector();
-
-        valuevectorT.add(new Value(0, RU.INTEGER));
-        valuevectorT.add(objectToValue(messageresponse.getResponse()));
-
-        return new Value(valuevectorT, RU.LIST);
+        messageresponse.waitForResponse();
       }
+
+      return responseToValue(messageresponse);
     }
   }
 
@@ -0,0 +1,829 @@
+package etcee.ki.server;
+
+import etcee.ki.agent.AgentIdentity;
+import etcee.ki.agent.TransferResponse;
+import etcee.ki.agent.TransferResponseListener;
+
+import java.io.PrintWriter;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The affinity optimizer.
+ *
+ * The <CODE>Affinity</CODE> class brings agents that talk to each
+ * other onto the same agent host.  It counts the messages each
+ * resident agent sends to each other agent, and at regular intervals
+ * works out, for every sender, the rate at which it talks to agents
+ * on this agent host and to agents on each of the others.  A sender
+ * that talks to the agents on some other agent host much more than
+ * to those on this one is moved there, through
+ * <CODE>AgentHostImplementation.initiateTransfer()</CODE>, so that
+ * its messages no longer cross between agent hosts.
+ *
+ * The gain of a move is the rate of messages that stop crossing
+ * between agent hosts, less the rate of those that start -- the
+ * sender's messages to the agents it leaves behind.  So that agents
+ * do not thrash between agent hosts:
+ *
+ * <UL>
+ * <LI>a move must gain at least the minimum rate, and the sender
+ *     must talk to the other agent host more than to this one by the
+ *     threshold
+ * <LI>the move must be worth making for a number of periods in a
+ *     row
+ * <LI>the agent hosts take turns -- each moves agents only in every
+ *     <EM>n</EM>th period, by the clock, so that two agent hosts do
+ *     not move both agents of a pair past each other at once
+ * <LI>only a few agents are moved each period
+ * <LI>an agent must have been on this agent host for the cooldown
+ *     before it is moved
+ * </UL>
+ *
+ * An agent may refuse a move.
+ *
+ * If moves are disabled the optimizer only proposes them -- they are
+ * counted, and the message rates behind them are written by
+ * <CODE>write()</CODE>.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see Agent.allowTransfer
+ *
+ */
+
+final class Affinity
+{
+  /**
+   * The most pairs of agents counted at once.
+   *
+   */
+
+  private final static int nMaximumPairs = 65536;
+
+  /**
+   * A pair of agents -- a sender and the agent it sends to.
+   *
+   */
+
+  private final static class Pair
+  {
+    AgentIdentity agentidentityFrom = null;
+    AgentIdentity agentidentityTo = null;
+
+    Pair(AgentIdentity agentidentityFrom, AgentIdentity agentidentityTo)
+    {
+      this.agentidentityFrom = agentidentityFrom;
+      this.agentidentityTo = agentidentityTo;
+    }
+
+    public boolean
+    equals(Object obj)
+    {
+      if (!(obj instanceof Pair))
+      {
+        return false;
+      }
+
+      Pair pair = (Pair)obj;
+
+      return agentidentityFrom.equals(pair.agentidentityFrom) &&
+             agentidentityTo.equals(pair.agentidentityTo);
+    }
+
+    public int
+    hashCode()
+    {
+      return agentidentityFrom.hashCode() * 31 + agentidentityTo.hashCode();
+    }
+  }
+
+  /**
+   * The messages sent between a pair of agents since the last period.
+   *
+   */
+
+  private final static class Tally
+  {
+    AtomicLong atomiclongMessages = new AtomicLong();
+
+    // The agent host the sender named, if any.
+
+    volatile String strAgentHostName = null;
+  }
+
+  /**
+   * A resident agent.
+   *
+   */
+
+  private final static class Candidate
+  {
+    AgentWrapper agentwrapper = null;
+
+    long msFirstSeen = 0;
+
+    // The number of periods in a row a move has been worth making.
+
+    int nRounds = 0;
+
+    String strAgentHostName = null;
+
+    double dGain = 0.0;
+  }
+
+  /**
+   * The agent host implementation.
+   *
+   */
+
+  private AgentHostImplementation agenthostimplementation = null;
+
+  /**
+   * The number of agent hosts taking turns.
+   *
+   */
+
+  private int nTurns = 0;
+
+  /**
+   * This agent host's turn.
+   *
+   */
+
+  private int nTurn = 0;
+
+  /**
+   * The smallest gain (in messages per second) worth moving an agent
+   * for.
+   *
+   */
+
+  private double dMinimum = 0.0;
+
+  /**
+   * The threshold (in percent).
+   *
+   */
+
+  private int nThreshold = 0;
+
+  /**
+   * The number of periods in a row a move must be worth making.
+   *
+   */
+
+  private int nRounds = 0;
+
+  /**
+   * The most agents moved in a period.
+   *
+   */
+
+  private int nBatch = 0;
+
+  /**
+   * The time (in milliseconds) an agent must have been on this agent
+   * host before it is moved.
+   *
+   */
+
+  private long msCooldown = 0;
+
+  /**
+   * Whether or not moves are made, rather than only proposed.
+   *
+   */
+
+  private boolean boolMoves = true;
+
+  /**
+   * The tallies.
+   *
+   * The tallies map pairs of agents to tallies.
+   *
+   */
+
+  private ConcurrentHashMap concurrenthashmapTallies = new ConcurrentHashMap();
+
+  /**
+   * The candidates.
+   *
+   * The candidates map the agent identities of the resident agents
+   * to candidates.
+   *
+   */
+
+  private HashMap hashmapCandidates = new HashMap();
+
+  /**
+   * The rates, as last measured.
+   *
+   * The rates map the agent identities of the senders to hash maps
+   * from agent host names to the rate (in messages per second) at
+   * which the sender talks to the agents there.
+   *
+   */
+
+  private volatile HashMap hashmapRates = new HashMap();
+
+  /**
+   * The local rates, as last measured.
+   *
+   * The local rates map the agent identities of the resident agents
+   * to the rate (in messages per second) at which they send messages
+   * to, or receive them from, the other agents on this agent host.
+   *
+   */
+
+  private volatile HashMap hashmapLocalRates = new HashMap();
+
+  /**
+   * The time of the last period.
+   *
+   */
+
+  private long msMeasured = 0;
+
+  /**
+   * The time (in milliseconds) between periods.
+   *
+   */
+
+  private long msPeriod = 0;
+
+  /**
+   * The timer.
+   *
+   */
+
+  private Timer timer = new Timer("affinity", true);
+
+  /**
+   * The counters.
+   *
+   */
+
+  private AtomicLong atomiclongLocal = new AtomicLong();
+  private AtomicLong atomiclongRemote = new AtomicLong();
+  private AtomicLong atomiclongMoves = new AtomicLong();
+  private AtomicLong atomiclongSaved = new AtomicLong();
+
+  /**
+   * Constructs the affinity optimizer.
+   *
+   * @parameter rgstrAgentHostNames the names of the agent hosts that
+   *            take turns.
+   *
+   * @parameter dMinimum the smallest gain (in messages per second)
+   *            worth moving an agent for.
+   *
+   * @parameter nThreshold the threshold, in percent.
+   *
+   * @parameter nRounds the number of periods in a row a move must be
+   *            worth making.
+   *
+   * @parameter nBatch the most agents moved in a period.
+   *
+   * @parameter msCooldown the time (in milliseconds) an agent must
+   *            have been on this agent host before it is moved.
+   *
+   * @parameter boolMoves whether or not moves are made, rather than
+   *            only proposed.
+   *
+   * @parameter msPeriod the time (in milliseconds) between periods.
+   *
+   */
+
+  Affinity(AgentHostImplementation agenthostimplementation,
+           String [] rgstrAgentHostNames,
+           double dMinimum,
+           int nThreshold,
+           int nRounds,
+           int nBatch,
+           long msCooldown,
+           boolean boolMoves,
+           long msPeriod)
+  {
+    this.agenthostimplementation = agenthostimplementation;
+    this.dMinimum = dMinimum;
+    this.nThreshold = nThreshold;
+    this.nRounds = nRounds;
+    this.nBatch = nBatch;
+    this.msCooldown = msCooldown;
+    this.boolMoves = boolMoves;
+    this.msPeriod = msPeriod;
+
+    nTurns = rgstrAgentHostNames.length;
+
+    for (int i = 0; i < rgstrAgentHostNames.length; i++)
+    {
+      if (rgstrAgentHostNames[i].equals(agenthostimplementation.getAgentHostName()))
+      {
+        nTurn = i;
+      }
+    }
+
+    msMeasured = System.currentTimeMillis();
+
+    TimerTask timertask = new TimerTask()
+      {
+        public void
+        run()
+        {
+          try
+          {
+            optimize();
+          }
+          catch (Throwable throwable)
+          {
+            throwable.printStackTrace();
+          }
+        }
+      };
+
+    timer.schedule(timertask, msPeriod, msPeriod);
+  }
+
+  /**
+   * Shuts the affinity optimizer down.
+   *
+   */
+
+  final void
+  shutdown()
+  {
+    timer.cancel();
+  }
+
+  /**
+   * Counts a message sent by a resident agent.
+   *
+   * @parameter strAgentHostName the agent host the sender named, or
+   *            null.
+   *
+   */
+
+  final void
+  record(AgentIdentity agentidentityFrom,
+         AgentIdentity agentidentityTo,
+         String strAgentHostName)
+  {
+    Pair pair = new Pair(agentidentityFrom, agentidentityTo);
+
+    Tally tally = (Tally)concurrenthashmapTallies.get(pair);
+
+    if (tally == null)
+    {
+      if (concurrenthashmapTallies.size() >= nMaximumPairs)
+      {
+        agenthostimplementation.getMetrics().increment("ki_affinity_pairs_dropped");
+
+        return;
+      }
+
+      tally = new Tally();
+
+      Tally tallyPrevious = (Tally)concurrenthashmapTallies.putIfAbsent(pair, tally);
+
+      if (tallyPrevious != null)
+      {
+        tally = tallyPrevious;
+      }
+    }
+
+    tally.atomiclongMessages.incrementAndGet();
+
+    if (strAgentHostName != null)
+    {
+      tally.strAgentHostName = strAgentHostName;
+    }
+  }
+
+  /**
+   * Determines whether or not an agent talks with the agents on this
+   * agent host at the minimum rate or more.
+   *
+   * The balancer leaves such agents where they are.
+   *
+   */
+
+  final boolean
+  isAnchored(AgentIdentity agentidentity)
+  {
+    Double d = (Double)hashmapLocalRates.get(agentidentity);
+
+    return d != null && d.doubleValue() >= dMinimum;
+  }
+
+  /**
+   * Adds to a rate in a hash map.
+   *
+   */
+
+  private static void
+  add(HashMap hashmap, Object obj, double d)
+  {
+    Double dPrevious = (Double)hashmap.get(obj);
+
+    hashmap.put(obj, Double.valueOf((dPrevious == null ? 0.0 : dPrevious.doubleValue()) + d));
+  }
+
+  /**
+   * Measures the message rates and moves the agents that would gain
+   * from it.
+   *
+   */
+
+  final synchronized void
+  optimize()
+  {
+    measure();
+
+    Vector vector = pick();
+
+    if ((System.currentTimeMillis() / msPeriod) % nTurns != nTurn)
+    {
+      return;
+    }
+
+    int nMoved = 0;
+
+    for (int i = 0; i < vector.size() && nMoved < nBatch; i++)
+    {
+      Candidate candidate = (Candidate)vector.elementAt(i);
+
+      Mailbox mailbox = candidate.agentwrapper.getMailbox();
+
+      if (mailbox != null && mailbox.getDepth() > 0)
+      {
+        continue;
+      }
+
+      // An agent that is already on the move, or being passivated, is
+      // left alone.
+
+      if (agenthostimplementation.isLocked(candidate.agentwrapper.getAgentIdentity()))
+      {
+        continue;
+      }
+
+      // A refused move is asked about again once it has been worth
+      // making for as long again.
+
+      candidate.nRounds = 0;
+
+      if (!candidate.agentwrapper.allowsTransfer(candidate.strAgentHostName))
+      {
+        agenthostimplementation.getMetrics().increment("ki_affinity_vetoes");
+
+        continue;
+      }
+
+      agenthostimplementation.getMetrics().increment("ki_affinity_proposals");
+
+      if (!boolMoves)
+      {
+        continue;
+      }
+
+      nMoved++;
+
+      move(candidate);
+    }
+  }
+
+  /**
+   * Measures the rate at which each resident agent talks to the
+   * agents on each agent host.
+   *
+   */
+
+  private void
+  measure()
+  {
+    long msNow = System.currentTimeMillis();
+
+    double dSeconds = Math.max(msNow - msMeasured, 1) / 1000.0;
+
+    msMeasured = msNow;
+
+    String strHere = agenthostimplementation.getAgentHostName();
+
+    HashMap hashmap = new HashMap();
+    HashMap hashmapLocal = new HashMap();
+
+    Iterator iterator = concurrenthashmapTallies.entrySet().iterator();
+
+    while (iterator.hasNext())
+    {
+      Map.Entry entry = (Map.Entry)iterator.next();
+
+      Pair pair = (Pair)entry.getKey();
+      Tally tally = (Tally)entry.getValue();
+
+      long n = tally.atomiclongMessages.getAndSet(0);
+
+      // A pair that was quiet for a whole period is forgotten.
+
+      if (n == 0)
+      {
+        iterator.remove();
+
+        continue;
+      }
+
+      String str = agenthostimplementation.getLastKnownLocation(pair.agentidentityTo);
+
+      if (str == null)
+      {
+        str = tally.strAgentHostName;
+      }
+
+      if (str == null)
+      {
+        continue;
+      }
+
+      double d = n / dSeconds;
+
+      if (str.equals(strHere))
+      {
+        atomiclongLocal.addAndGet(n);
+
+        add(hashmapLocal, pair.agentidentityFrom, d);
+        add(hashmapLocal, pair.agentidentityTo, d);
+      }
+      else
+      {
+        atomiclongRemote.addAndGet(n);
+      }
+
+      HashMap hashmapSender = (HashMap)hashmap.get(pair.agentidentityFrom);
+
+      if (hashmapSender == null)
+      {
+        hashmapSender = new HashMap();
+
+        hashmap.put(pair.agentidentityFrom, hashmapSender);
+      }
+
+      add(hashmapSender, str, d);
+    }
+
+    hashmapRates = hashmap;
+    hashmapLocalRates = hashmapLocal;
+  }
+
+  /**
+   * Picks the agents whose moves have been worth making for long
+   * enough, the greatest gain first.
+   *
+   */
+
+  private Vector
+  pick()
+  {
+    long msNow = System.currentTimeMillis();
+
+    String strHere = agenthostimplementation.getAgentHostName();
+
+    HashMap hashmap = new HashMap();
+
+    Vector vector = new Vector();
+
+    Iterator iterator = agenthostimplementation.getAgentWrappers().iterator();
+
+    while (iterator.hasNext())
+    {
+      AgentWrapper agentwrapper = (AgentWrapper)iterator.next();
+
+      AgentIdentity agentidentity = agentwrapper.getAgentIdentity();
+
+      Candidate candidate = (Candidate)hashmapCandidates.get(agentidentity);
+
+      // An agent seen for the first time -- or resurrected since --
+      // starts its cooldown.
+
+      if (candidate == null || candidate.agentwrapper != agentwrapper)
+      {
+        candidate = new Candidate();
+
+        candidate.agentwrapper = agentwrapper;
+        candidate.msFirstSeen = msNow;
+      }
+
+      hashmap.put(agentidentity, candidate);
+
+      HashMap hashmapSender = (HashMap)hashmapRates.get(agentidentity);
+
+      if (hashmapSender == null)
+      {
+        candidate.nRounds = 0;
+
+        continue;
+      }
+
+      // The agent host the agent talks to most, other than this one.
+
+      double dHere = 0.0;
+      double dThere = 0.0;
+
+      String strThere = null;
+
+      Iterator iteratorRates = hashmapSender.entrySet().iterator();
+
+      while (iteratorRates.hasNext())
+      {
+        Map.Entry entry = (Map.Entry)iteratorRates.next();
+
+        String str = (String)entry.getKey();
+
+        double d = ((Double)entry.getValue()).doubleValue();
+
+        if (str.equals(strHere))
+        {
+          dHere = d;
+        }
+        else if (d > dThere)
+        {
+          dThere = d;
+          strThere = str;
+        }
+      }
+
+      double dGain = dThere - dHere;
+
+      if (strThere == null || dGain < dMinimum || dGain <= dHere * nThreshold / 100.0)
+      {
+        candidate.nRounds = 0;
+
+        continue;
+      }
+
+      if (!strThere.equals(candidate.strAgentHostName))
+      {
+        candidate.nRounds = 0;
+      }
+
+      candidate.nRounds++;
+
+      candidate.strAgentHostName = strThere;
+      candidate.dGain = dGain;
+
+      if (candidate.nRounds >= nRounds &&
+          msNow - candidate.msFirstSeen >= msCooldown)
+      {
+        vector.addElement(candidate);
+      }
+    }
+
+    hashmapCandidates = hashmap;
+
+    Collections.sort(vector, new Comparator()
+      {
+        public int
+        compare(Object obj1, Object obj2)
+        {
+          double d1 = ((Candidate)obj1).dGain;
+          double d2 = ((Candidate)obj2).dGain;
+
+          return d1 > d2 ? -1 : d1 < d2 ? 1 : 0;
+        }
+      });
+
+    return vector;
+  }
+
+  /**
+   * Moves an agent to the agent host it talks to most.
+   *
+   */
+
+  private void
+  move(Candidate candidate)
+  {
+    final AgentIdentity agentidentity = candidate.agentwrapper.getAgentIdentity();
+
+    final long nGain = Math.round(candidate.dGain);
+
+    // The agent is forgotten, so that it starts its cooldown if it
+    // comes back.
+
+    hashmapCandidates.remove(agentidentity);
+
+    TransferResponse transferresponse =
+      agenthostimplementation.initiateTransfer(candidate.strAgentHostName, agentidentity);
+
+    transferresponse.addListener(new TransferResponseListener()
+      {
+        public void
+        responseReceived(TransferResponse transferresponse)
+        {
+          if (transferresponse.wasSuccessful())
+          {
+            atomiclongMoves.incrementAndGet();
+            atomiclongSaved.addAndGet(nGain);
+
+            agenthostimplementation.getMetrics().increment("ki_affinity_moves");
+          }
+          else
+          {
+            agenthostimplementation.getMetrics().increment("ki_affinity_failures");
+          }
+        }
+      });
+  }
+
+  /**
+   * Writes the rate at which each resident agent talks to the agents
+   * on each agent host, as text.
+   *
+   * @see MetricsEndpoint
+   *
+   */
+
+  final void
+  write(PrintWriter printwriter)
+  {
+    HashMap hashmap = hashmapRates;
+
+    Iterator iterator = hashmap.entrySet().iterator();
+
+    while (iterator.hasNext())
+    {
+      Map.Entry entry = (Map.Entry)iterator.next();
+
+      String strAgent = Metrics.getName((AgentIdentity)entry.getKey());
+
+      Iterator iteratorRates = ((HashMap)entry.getValue()).entrySet().iterator();
+
+      while (iteratorRates.hasNext())
+      {
+        Map.Entry entryRate = (Map.Entry)iteratorRates.next();
+
+        printwriter.println("ki_agent_message_rate{agent=\"" + strAgent +
+                            "\",host=\"" + entryRate.getKey() + "\"} " +
+                            entryRate.getValue());
+      }
+    }
+  }
+
+  /**
+   * Gets the number of messages resident agents sent to agents on
+   * this agent host.
+   *
+   */
+
+  final long
+  getLocalCount()
+  {
+    return atomiclongLocal.get();
+  }
+
+  /**
+   * Gets the number of messages resident agents sent to agents on
+   * other agent hosts.
+   *
+   */
+
+  final long
+  getRemoteCount()
+  {
+    return atomiclongRemote.get();
+  }
+
+  /**
+   * Gets the number of agents moved.
+   *
+   */
+
+  final long
+  getMoveCount()
+  {
+    return atomiclongMoves.get();
+  }
+
+  /**
+   * Gets the rate (in messages per second) of messages that no
+   * longer cross between agent hosts because of the moves, as
+   * estimated when they were made.
+   *
+   */
+
+  final long
+  getSavedRate()
+  {
+    return atomiclongSaved.get();
+  }
+}
@@ -1,6 +1,8 @@
 
 package etcee.ki.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
@@ -8,21 +10,52 @@ import java.io.IOException;
 
 import java.net.URL;
 
+import java.nio.ByteBuffer;
+
+import java.security.ProtectionDomain;
+
 import java.util.zip.ZipFile;
 import java.util.zip.ZipEntry;
 
+import java.util.Enumeration;
 import java.util.Hashtable;
 
 /**
  * The agent class loader.
  *
+ * A shared agent class loader serves every agent with the same
+ * resource file.  It reads the resource file when it is created, so
+ * it does not depend on any one agent's copy of the file.
+ *
+ * If the <CODE>etcee.ki.classloader.mapped</CODE> system property is
+ * true, an agent class loader maps its resource file into memory and
+ * defines classes straight from the mapping.
+ *
+ * The agent class loader is parallel capable -- different classes
+ * may be loaded at the same time.
+ *
  * This class <EM>is</EM> thread safe.
  *
+ * @see ClassLoaderCache
+ * @see MappedArchive
+ *
  */
 
 final class AgentClassLoader
   extends ClassLoader
 {
+  static
+  {
+    registerAsParallelCapable();
+  }
+
+  /**
+   * The mapped resource file indicator.
+   *
+   */
+
+  private final static boolean boolMapped = Boolean.getBoolean("etcee.ki.classloader.mapped");
+
   /**
    * The zipfile.
    *
@@ -32,6 +65,72 @@ final class AgentClassLoader
 
   private ZipFile zipfile = null;
 
+  /**
+   * The mapped archive.
+   *
+   * The class loader loads agent classes from the mapped archive, if
+   * the resource file is mapped.
+   *
+   */
+
+  private MappedArchive mappedarchive = null;
+
+  /**
+   * The contents of the resource file.
+   *
+   * A shared class loader keeps the contents of the resource file in
+   * the hashtable, which maps entry names to arrays of bytes.
+   *
+   */
+
+  private Hashtable hashtableEntries = null;
+
+  /**
+   * The digest of the resource file.
+   *
+   * The digest is null unless the class loader is shared.
+   *
+   */
+
+  private String strDigest = null;
+
+  /**
+   * Gets the digest of the resource file.
+   *
+   */
+
+  final String
+  getDigest()
+  {
+    return strDigest;
+  }
+
+  /**
+   * The wrapper class.
+   *
+   */
+
+  private Class classWrapper = null;
+
+  /**
+   * The wrapper class file.
+   *
+   * The wrapper class file is read once and shared by every class
+   * loader.
+   *
+   */
+
+  private static byte [] rgbWrapper = null;
+
+  /**
+   * The definition counters.
+   *
+   */
+
+  private int nClasses = 0;
+  private long nClassBytes = 0;
+  private long nsLoadTime = 0;
+
   /**
    * The cache.
    *
@@ -60,9 +159,59 @@ final class AgentClassLoader
   AgentClassLoader(File file)
     throws IOException
   {
+    if (boolMapped)
+    {
+      try
+      {
+        mappedarchive = new MappedArchive(file);
+
+        return;
+      }
+      catch (IOException ex)
+      {
+        // Fall back to the zipfile.
+      }
+    }
+
     zipfile = new ZipFile(file);
   }
 
+  /**
+   * Constructs a shared agent class loader.
+   *
+   * @parameter strDigest the digest of the resource file.
+   *
+   */
+
+  AgentClassLoader(File file, String strDigest)
+    throws IOException
+  {
+    this.strDigest = strDigest;
+
+    hashtableEntries = new Hashtable();
+
+    ZipFile zipfile = new ZipFile(file);
+
+    try
+    {
+      Enumeration enumeration = zipfile.entries();
+
+      while (enumeration.hasMoreElements())
+      {
+        ZipEntry zipentry = (ZipEntry)enumeration.nextElement();
+
+        if (!zipentry.isDirectory())
+        {
+          hashtableEntries.put(zipentry.getName(), readEntry(zipfile, zipentry));
+        }
+      }
+    }
+    finally
+    {
+      zipfile.close();
+    }
+  }
+
   /**
    * Deconstructs the agent class loader.
    *
@@ -72,7 +221,123 @@ final class AgentClassLoader
   deconstruct()
     throws IOException
   {
-    zipfile.close();
+    if (zipfile != null)
+    {
+      zipfile.close();
+    }
+
+    if (mappedarchive != null)
+    {
+      mappedarchive.close();
+    }
+  }
+
+  /**
+   * Gets the number of classes defined.
+   *
+   */
+
+  final synchronized int
+  getClassCount()
+  {
+    return nClasses;
+  }
+
+  /**
+   * Gets the number of bytes of class files defined.
+   *
+   */
+
+  final synchronized long
+  getClassBytes()
+  {
+    return nClassBytes;
+  }
+
+  /**
+   * Gets the time (in nanoseconds) spent reading and defining
+   * classes.
+   *
+   */
+
+  final synchronized long
+  getLoadTime()
+  {
+    return nsLoadTime;
+  }
+
+  /**
+   * Records a class definition.
+   *
+   */
+
+  private synchronized void
+  recordDefinition(int nBytes, long ns)
+  {
+    nClasses++;
+    nClassBytes += nBytes;
+    nsLoadTime += ns;
+  }
+
+  /**
+   * Reads an entry from a zipfile.
+   *
+   */
+
+  private static byte []
+  readEntry(ZipFile zipfile, ZipEntry zipentry)
+    throws IOException
+  {
+    int n = (int)zipentry.getSize();
+
+    byte [] rgb = new byte [n];
+
+    DataInputStream datainputstream =
+      new DataInputStream(zipfile.getInputStream(zipentry));
+
+    try
+    {
+      datainputstream.readFully(rgb);
+    }
+    finally
+    {
+      datainputstream.close();
+    }
+
+    return rgb;
+  }
+
+  /**
+   * Gets the wrapper class file.
+   *
+   */
+
+  private static synchronized byte []
+  getWrapperBytes()
+    throws IOException
+  {
+    if (rgbWrapper == null)
+    {
+      File file = new File("Wrapper.class");
+
+      byte [] rgb = new byte [(int)file.length()];
+
+      DataInputStream datainputstream =
+        new DataInputStream(new FileInputStream(file));
+
+      try
+      {
+        datainputstream.readFully(rgb);
+      }
+      finally
+      {
+        datainputstream.close();
+      }
+
+      rgbWrapper = rgb;
+    }
+
+    return rgbWrapper;
   }
 
   /**
@@ -99,11 +364,14 @@ final class AgentClassLoader
       return true;
     }
 
-    if (boolFirstTime && strClassName.equalsIgnoreCase("etcee.ki.server.AgentWrapper"))
+    synchronized (this)
     {
-      boolFirstTime = false;
+      if (boolFirstTime && strClassName.equalsIgnoreCase("etcee.ki.server.AgentWrapper"))
+      {
+        boolFirstTime = false;
 
-      return true;
+        return true;
+      }
     }
 
     if (strClassName.toLowerCase().startsWith("etcee.ki.agenthost") ||
@@ -118,39 +386,49 @@ final class AgentClassLoader
   /**
    * Loads the wrapper class.
    *
-   * This method loads the wrapper class.  It works once.
+   * This method defines the wrapper class the first time it is
+   * called.  A shared class loader hands out the same wrapper class
+   * after that.
    *
    */
 
-  private final Class
+  private final synchronized Class
   loadWrapperClass(String strClassName)
     throws ClassNotFoundException
   {
-    if (!boolFirstTime || !strClassName.equals(""))
+    if (!strClassName.equals(""))
     {
       return null;
     }
 
-    byte [] rgb = null;
+    if (classWrapper != null)
+    {
+      return strDigest == null ? null : classWrapper;
+    }
 
-    try
+    if (!boolFirstTime)
     {
-      FileInputStream fileinputstream = new FileInputStream("Wrapper.class");
+      return null;
+    }
 
-      int n = fileinputstream.available();
+    long nsStart = System.nanoTime();
 
-      rgb = new byte [n];
+    byte [] rgb = null;
 
-      fileinputstream.read(rgb);
+    try
+    {
+      rgb = getWrapperBytes();
     }
     catch (IOException ex)
     {
       throw new ClassNotFoundException();
     }
 
-    Class c = defineClass("Wrapper", rgb, 0, rgb.length);
+    classWrapper = defineClass("Wrapper", rgb, 0, rgb.length);
 
-    return c;
+    recordDefinition(rgb.length, System.nanoTime() - nsStart);
+
+    return classWrapper;
   }
 
   /**
@@ -169,33 +447,63 @@ final class AgentClassLoader
       return c;
     }
 
-    String strFileName = transform(strClassName);
+    long nsStart = System.nanoTime();
 
-    ZipEntry zipentry = zipfile.getEntry(strFileName);
+    String strFileName = transform(strClassName);
 
-    if (zipentry == null)
+    if (mappedarchive != null)
     {
-      throw new ClassNotFoundException(strClassName);
-    }
+      ByteBuffer bytebuffer = null;
 
-    byte [] rgb = null;
+      try
+      {
+        bytebuffer = mappedarchive.getEntry(strFileName);
+      }
+      catch (IOException ex)
+      {
+        throw new ClassNotFoundException(strClassName);
+      }
 
-    try
-    {
-      int n = (int)zipentry.getSize();
+      if (bytebuffer == null)
+      {
+        throw new ClassNotFoundException(strClassName);
+      }
+
+      int n = bytebuffer.remaining();
 
-      rgb = new byte [n];
+      c = defineClass(strClassName, bytebuffer, (ProtectionDomain)null);
 
-      InputStream inputstream = zipfile.getInputStream(zipentry);
+      hashtableClasses.put(strClassName, c);
 
-      int m = 0;
+      recordDefinition(n, System.nanoTime() - nsStart);
+
+      return c;
+    }
+
+    byte [] rgb = null;
 
-      while (m < n)
+    if (hashtableEntries != null)
+    {
+      rgb = (byte [])hashtableEntries.get(strFileName);
+    }
+    else
+    {
+      ZipEntry zipentry = zipfile.getEntry(strFileName);
+
+      if (zipentry != null)
       {
-        m += inputstream.read(rgb, m, n - m);
+        try
+        {
+          rgb = readEntry(zipfile, zipentry);
+        }
+        catch (IOException ex)
+        {
+          throw new ClassNotFoundException(strClassName);
+        }
       }
     }
-    catch (IOException ex)
+
+    if (rgb == null)
     {
       throw new ClassNotFoundException(strClassName);
     }
@@ -204,6 +512,8 @@ final class AgentClassLoader
 
     hashtableClasses.put(strClassName, c);
 
+    recordDefinition(rgb.length, System.nanoTime() - nsStart);
+
     return c;
   }
 
@@ -238,9 +548,12 @@ final class AgentClassLoader
    * Otherwise, the class loader loads the named agent class from the
    * zipfile.
    *
+   * Loads of different classes proceed in parallel.  Loads of the
+   * same class are serialized.
+   *
    */
 
-  protected final synchronized Class
+  protected final Class
   loadClass(String strClassName, boolean boolResolve)
     throws ClassNotFoundException
   {
@@ -249,25 +562,28 @@ final class AgentClassLoader
       throw new ClassNotFoundException(strClassName);
     }
 
-    Class c = null;
-
-    if ((c = loadWrapperClass(strClassName)) == null)
+    synchronized (getClassLoadingLock(strClassName))
     {
-      if ((c = loadSystemClass(strClassName)) == null)
+      Class c = null;
+
+      if ((c = loadWrapperClass(strClassName)) == null)
       {
-        if ((c = loadAgentClass(strClassName)) == null)
+        if ((c = loadSystemClass(strClassName)) == null)
         {
-          throw new ClassNotFoundException(strClassName);
+          if ((c = loadAgentClass(strClassName)) == null)
+          {
+            throw new ClassNotFoundException(strClassName);
+          }
         }
       }
-    }
 
-    if (boolResolve)
-    {
-      resolveClass(c);
-    }
+      if (boolResolve)
+      {
+        resolveClass(c);
+      }
 
-    return c;
+      return c;
+    }
   }
 
   /**
@@ -289,6 +605,36 @@ final class AgentClassLoader
   public InputStream
   getResourceAsStream(String strResource)
   {
+    if (mappedarchive != null)
+    {
+      try
+      {
+        ByteBuffer bytebuffer = mappedarchive.getEntry(strResource);
+
+        if (bytebuffer == null)
+        {
+          return null;
+        }
+
+        byte [] rgb = new byte [bytebuffer.remaining()];
+
+        bytebuffer.get(rgb);
+
+        return new ByteArrayInputStream(rgb);
+      }
+      catch (IOException ex)
+      {
+        return null;
+      }
+    }
+
+    if (hashtableEntries != null)
+    {
+      byte [] rgb = (byte [])hashtableEntries.get(strResource);
+
+      return rgb == null ? null : new ByteArrayInputStream(rgb);
+    }
+
     ZipEntry zipentry = zipfile.getEntry(strResource);
 
     try
@@ -4,12 +4,13 @@ package etcee.ki.server;
 import etcee.ki.agent.Agent;
 import etcee.ki.agent.AgentContext;
 import etcee.ki.agent.AgentIdentity;
+import etcee.ki.agent.DirectoryEntry;
 import etcee.ki.agent.Message;
 import etcee.ki.agent.MessageResponse;
 import etcee.ki.agent.TransferResponse;
 
-import java.util.Hashtable;
 import java.util.Enumeration;
+import java.util.Hashtable;
 
 /**
  * The agent context implementation.
@@ -84,8 +85,10 @@ public final class AgentContextImplementation
       throw new IllegalStateException();
     }
 
+    agentwrapper.touch();
+
     return agentwrapper.getAgentHostImplementation().initiateSendMessage
-      (strAgentHostName, agentidentity, message);
+      (getAgentIdentity(), strAgentHostName, agentidentity, message);
   }
 
   /**
@@ -120,8 +123,21 @@ public final class AgentContextImplementation
    *
    */
 
-  public final synchronized void
+  public final void
   publish(String strIdentifier)
+  {
+    publish(strIdentifier, null);
+  }
+
+  /**
+   * Publishes the agent with attributes.
+   *
+   * @see AgentContext.publish
+   *
+   */
+
+  public final synchronized void
+  publish(String strIdentifier, Hashtable hashtableAttributes)
   {
     if (agentwrapper.getState() != AgentWrapper.STARTING &&
         agentwrapper.getState() != AgentWrapper.STARTED)
@@ -129,7 +145,17 @@ public final class AgentContextImplementation
       throw new IllegalStateException();
     }
 
-    agentwrapper.getServerData().hashtableDirectory.put(strIdentifier, getAgentIdentity());
+    Directory directory = agentwrapper.getServerData().directory;
+
+    if (this.strIdentifier != null && !this.strIdentifier.equals(strIdentifier))
+    {
+      directory.unpublish(this.strIdentifier, getAgentIdentity());
+    }
+
+    directory.publish(new DirectoryEntry(strIdentifier,
+                                         getAgentIdentity(),
+                                         getAgentHostName(),
+                                         hashtableAttributes));
 
     this.strIdentifier = strIdentifier;
   }
@@ -137,6 +163,12 @@ public final class AgentContextImplementation
   /**
    * Unpublishes the agent.
    *
+   * An agent may unpublish itself while it is stopping, so that it
+   * leaves the directory when it leaves the agent host.  An agent
+   * that is stopping to wait in the repository stays on this agent
+   * host, so it stays published -- a message sent to it is what
+   * activates it again.
+   *
    * @see AgentContext.unpublish
    *
    */
@@ -145,12 +177,18 @@ public final class AgentContextImplementation
   unpublish()
   {
     if (agentwrapper.getState() != AgentWrapper.STARTING &&
-        agentwrapper.getState() != AgentWrapper.STARTED)
+        agentwrapper.getState() != AgentWrapper.STARTED &&
+        agentwrapper.getState() != AgentWrapper.STOPPING)
     {
       throw new IllegalStateException();
     }
 
-    agentwrapper.getServerData().hashtableDirectory.remove(strIdentifier);
+    if (strIdentifier == null || agentwrapper.isDormant())
+    {
+      return;
+    }
+
+    agentwrapper.getServerData().directory.unpublish(strIdentifier, getAgentIdentity());
 
     strIdentifier = null;
   }
@@ -171,7 +209,7 @@ public final class AgentContextImplementation
       throw new IllegalStateException();
     }
 
-    return agentwrapper.getServerData().hashtableDirectory.keys();
+    return agentwrapper.getServerData().directory.getIdentifiers();
   }
 
   /**
@@ -190,6 +228,34 @@ public final class AgentContextImplementation
       throw new IllegalStateException();
     }
 
-    return (AgentIdentity)agentwrapper.getServerData().hashtableDirectory.get(strIdentifier);
+    DirectoryEntry directoryentry =
+      agentwrapper.getServerData().directory.lookup(strIdentifier, getAgentHostName());
+
+    return directoryentry == null ? null : directoryentry.getAgentIdentity();
+  }
+
+  /**
+   * Finds published agents.
+   *
+   * @see AgentContext.findPublishedAgents
+   *
+   */
+
+  public final DirectoryEntry []
+  findPublishedAgents(String strPrefix,
+                      Hashtable hashtableAttributes,
+                      String strCursor,
+                      int nLimit)
+  {
+    if (agentwrapper.getState() != AgentWrapper.STARTING &&
+        agentwrapper.getState() != AgentWrapper.STARTED)
+    {
+      throw new IllegalStateException();
+    }
+
+    return agentwrapper.getServerData().directory.find(strPrefix,
+                                                       hashtableAttributes,
+                                                       strCursor,
+                                                       nLimit);
   }
 }
@@ -0,0 +1,212 @@
+package etcee.ki.server;
+
+import etcee.ki.agenthost.AgentHost;
+
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.rmi.NotBoundException;
+import java.rmi.UnknownHostException;
+
+import java.net.MalformedURLException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The agent host cache.
+ *
+ * The <CODE>AgentHostCache</CODE> class caches the remote references
+ * obtained from the registry, so that sending a message or
+ * transferring an agent does not cost a registry round trip.
+ *
+ * Entries expire after a time to live.  An agent host name that was
+ * not bound is remembered for a shorter time, so that repeated sends
+ * to a missing agent host fail fast.  A reference that failed with a
+ * <CODE>RemoteException</CODE> should be invalidated by the caller.
+ *
+ * Agent host names with the <CODE>nio</CODE> scheme are not looked
+ * up in the registry -- a new <CODE>NioAgentHost</CODE> stands in for
+ * the agent host.
+ *
+ * The times to live (in milliseconds) are set with the
+ * <CODE>etcee.ki.lookup.ttl</CODE> and
+ * <CODE>etcee.ki.lookup.negativettl</CODE> system properties.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ */
+
+final class AgentHostCache
+{
+  /**
+   * The cache entry.
+   *
+   */
+
+  private final static class Entry
+  {
+    /**
+     * The agent host, or null if the name was not bound.
+     *
+     */
+
+    AgentHost agenthost = null;
+
+    /**
+     * The time at which the entry expires.
+     *
+     */
+
+    long msExpires = 0;
+
+    Entry(AgentHost agenthost, long msExpires)
+    {
+      this.agenthost = agenthost;
+      this.msExpires = msExpires;
+    }
+  }
+
+  /**
+   * The entry table.
+   *
+   * The entry table maps agent host names to entries.
+   *
+   */
+
+  private ConcurrentHashMap concurrenthashmapEntries = new ConcurrentHashMap();
+
+  /**
+   * The time to live of an entry.
+   *
+   */
+
+  private long msTimeToLive = Long.getLong("etcee.ki.lookup.ttl", 60000L).longValue();
+
+  /**
+   * The time to live of an entry for a name that was not bound.
+   *
+   */
+
+  private long msNegativeTimeToLive = Long.getLong("etcee.ki.lookup.negativettl", 5000L).longValue();
+
+  /**
+   * The hit and miss counters.
+   *
+   */
+
+  private AtomicLong atomiclongHits = new AtomicLong();
+  private AtomicLong atomiclongMisses = new AtomicLong();
+
+  /**
+   * Gets the number of lookups satisfied from the cache.
+   *
+   */
+
+  final long
+  getHitCount()
+  {
+    return atomiclongHits.get();
+  }
+
+  /**
+   * Gets the number of lookups that went to the registry.
+   *
+   */
+
+  final long
+  getMissCount()
+  {
+    return atomiclongMisses.get();
+  }
+
+  /**
+   * Looks up an agent host.
+   *
+   * @throws MalformedURLException if the agent host name was not a
+   *         valid URL.
+   *
+   * @throws UnknownHostException if the registry was on an unknown
+   *         host.
+   *
+   * @throws RemoteException if the registry could not be contacted.
+   *
+   * @throws NotBoundException if the agent host name was not bound.
+   *
+   */
+
+  final AgentHost
+  lookup(String strAgentHostName)
+    throws MalformedURLException,
+           UnknownHostException,
+           RemoteException,
+           NotBoundException
+  {
+    long ms = System.currentTimeMillis();
+
+    Entry entry = (Entry)concurrenthashmapEntries.get(strAgentHostName);
+
+    if (entry != null && entry.msExpires > ms)
+    {
+      atomiclongHits.incrementAndGet();
+
+      if (entry.agenthost == null)
+      {
+        throw new NotBoundException(strAgentHostName);
+      }
+
+      return entry.agenthost;
+    }
+
+    atomiclongMisses.incrementAndGet();
+
+    AgentHost agenthost = null;
+
+    // An agent host reached over the NIO transport needs no registry.
+
+    if (NioTransport.isTransportName(strAgentHostName))
+    {
+      agenthost = new NioAgentHost(strAgentHostName);
+
+      concurrenthashmapEntries.put(strAgentHostName, new Entry(agenthost, ms + msTimeToLive));
+
+      return agenthost;
+    }
+
+    try
+    {
+      agenthost = (AgentHost)Naming.lookup(strAgentHostName);
+    }
+    catch (NotBoundException ex)
+    {
+      concurrenthashmapEntries.put(strAgentHostName, new Entry(null, ms + msNegativeTimeToLive));
+
+      throw ex;
+    }
+
+    concurrenthashmapEntries.put(strAgentHostName, new Entry(agenthost, ms + msTimeToLive));
+
+    return agenthost;
+  }
+
+  /**
+   * Invalidates the entry for an agent host.
+   *
+   */
+
+  final void
+  invalidate(String strAgentHostName)
+  {
+    concurrenthashmapEntries.remove(strAgentHostName);
+  }
+
+  /**
+   * Invalidates all entries.
+   *
+   */
+
+  final void
+  clear()
+  {
+    concurrenthashmapEntries.clear();
+  }
+}
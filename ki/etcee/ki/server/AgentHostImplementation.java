@@ -2,6 +2,7 @@
 package etcee.ki.server;
 
 import etcee.ki.agent.AgentIdentity;
+import etcee.ki.agent.DirectoryEntry;
 import etcee.ki.agent.Message;
 import etcee.ki.agent.MessageResponse;
 import etcee.ki.agent.TransferResponse;
@@ -10,34 +11,57 @@ import etcee.ki.agenthost.AgentHost;
 import etcee.ki.agenthost.AgentException;
 import etcee.ki.agenthost.AgentNotFoundException;
 import etcee.ki.agenthost.AgentDefinitionException;
+import etcee.ki.agenthost.DirectoryUpdate;
+import etcee.ki.agenthost.Load;
 import etcee.ki.agenthost.MessageFailedException;
 import etcee.ki.agenthost.TransferFailedException;
+import etcee.ki.agenthost.TransferPackage;
 import etcee.ki.agenthost.Response;
 import etcee.ki.agenthost.Voucher;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.NotBoundException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.ConnectException;
 import java.rmi.UnknownHostException;
 
 import java.rmi.server.UnicastRemoteObject;
 
 import java.net.MalformedURLException;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.Vector;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
 
 /**
  * The agent host implementation.
  *
- * This class <EM>is</EM> thread safe.
+ * This class <EM>is</EM> thread safe.  The agent tables are consulted
+ * on every message send, so they are concurrent hash maps -- lookups
+ * never contend for a common monitor.
  *
  * @see AgentHost
  *
@@ -54,6 +78,12 @@ public class AgentHostImplementation
    *
    * <CODE>protocol://host:port/name</CODE>
    *
+   * The protocol selects the transport that serves the agent host --
+   * <CODE>rmi</CODE> for RMI or <CODE>nio</CODE> for the NIO
+   * transport.
+   *
+   * @see NioTransport
+   *
    */
 
   private String strAgentHostName = null;
@@ -98,7 +128,7 @@ public class AgentHostImplementation
    *
    */
 
-  private Hashtable hashtableRepositoryEntries = null;
+  private ConcurrentHashMap concurrenthashmapRepositoryEntries = null;
 
   /**
    * The agent wrapper table.
@@ -107,7 +137,7 @@ public class AgentHostImplementation
    *
    */
 
-  private Hashtable hashtableAgentWrappers = null;
+  private ConcurrentHashMap concurrenthashmapAgentWrappers = null;
 
   /**
    * The transfer vouchers table.
@@ -117,7 +147,7 @@ public class AgentHostImplementation
    *
    */
 
-  private Hashtable hashtableTransferVouchers = null;
+  private ConcurrentHashMap concurrenthashmapTransferVouchers = null;
 
   /**
    * The message vouchers table.
@@ -127,506 +157,3304 @@ public class AgentHostImplementation
    *
    */
 
-  private Hashtable hashtableMessageVouchers = null;
+  private ConcurrentHashMap concurrenthashmapMessageVouchers = null;
 
   /**
-   * Constructs the agent host.
+   * The dispatcher.
+   *
+   * The dispatcher runs message sends and agent transfers in the
+   * background.
+   *
+   * @see Dispatcher
    *
    */
 
-  public
-  AgentHostImplementation(final String strAgentHostName,
-                          String strArg1,
-                          String strArg2,
-                          String strArg3)
-    throws IOException,
-           AgentException,
-           IllegalAccessException,
-           InstantiationException,
-           ClassNotFoundException,
-           RemoteException
-  {
-    serverdata = new ServerData();
+  private Dispatcher dispatcher = null;
 
-    monitor = new Monitor();
+  /**
+   * Gets the dispatcher.
+   *
+   */
 
-    this.strAgentHostName = strAgentHostName;
+  final Dispatcher
+  getDispatcher()
+  {
+    return dispatcher;
+  }
 
-    repository = new Repository(strArg1, strArg2, strArg3);
+  /**
+   * The handler dispatcher.
+   *
+   * The handler dispatcher delivers messages to resident agents and
+   * runs the mailboxes' consumers.  Both run agents' handlers, and a
+   * handler may send messages and wait for their responses, so they
+   * are kept off the dispatcher that runs those sends.  It runs each
+   * task on a thread of its own -- a pool would let a few waiting
+   * handlers take every thread the handlers they wait on need.
+   *
+   * @see getDeliveryDispatcher
+   *
+   */
 
-    hashtableRepositoryEntries = new Hashtable();
-    hashtableAgentWrappers = new Hashtable();
-    hashtableTransferVouchers = new Hashtable();
-    hashtableMessageVouchers = new Hashtable();
+  private Dispatcher dispatcherHandler = null;
 
-    Enumeration enumeration = repository.relinquishEntries().elements();
+  /**
+   * The agent host cache.
+   *
+   * @see AgentHostCache
+   *
+   */
 
-    while (enumeration.hasMoreElements())
-    {
-      final RepositoryEntry repositoryentry = (RepositoryEntry)enumeration.nextElement();
+  private AgentHostCache agenthostcache = null;
 
-      Thread thread = new Thread()
-        {
-          public void
-          run()
-          {
-            AgentIdentity agentidentity = null;
+  /**
+   * The state cache.
+   *
+   * @see StateCache
+   *
+   */
 
-            try
-            {
-              agentidentity = resurrect(repositoryentry);
-            }
-            catch (Throwable throwable)
-            {
-              throwable.printStackTrace();
-            }
+  private StateCache statecache = null;
 
-            hashtableRepositoryEntries.put(agentidentity, repositoryentry);
+  /**
+   * The data encodings this agent host accepts and uses.
+   *
+   * Compression and delta encoding are enabled by default.  They may
+   * be disabled with the <CODE>etcee.ki.transfer.deflate</CODE> and
+   * <CODE>etcee.ki.transfer.delta</CODE> system properties.
+   *
+   * @see TransferPackage.DEFLATE
+   * @see TransferPackage.DELTA
+   *
+   */
 
-            serverdata.hashtableAgentAddressBook.put(agentidentity, strAgentHostName);
-          }
-        };
+  private int nDataEncodings = 0;
 
-      thread.start();
-    }
+  /**
+   * Gets the agent host cache.
+   *
+   */
 
-    Naming.rebind(strAgentHostName, this);
+  final AgentHostCache
+  getAgentHostCache()
+  {
+    return agenthostcache;
   }
 
   /**
-   * Deconstructs the agent host.
+   * The location service.
+   *
+   * The location service is null unless the agent hosts that share
+   * it are listed.
+   *
+   * @see LocationService
    *
    */
 
-  public void
-  deconstruct()
-    throws IOException,
-           AgentException
-  {
-    try
-    {
-      monitor.lockAndWait();
-    }
-    catch (InterruptedException ex)
-    {
-    }
+  private LocationService locationservice = null;
 
-    try
-    {
-      Naming.unbind(strAgentHostName);
-    }
-    catch (NotBoundException ex)
-    {
-    }
+  /**
+   * Gets the location service.
+   *
+   * @returns the location service, or null.
+   *
+   */
 
-    Enumeration enumeration = hashtableRepositoryEntries.keys();
+  final LocationService
+  getLocationService()
+  {
+    return locationservice;
+  }
 
-    while (enumeration.hasMoreElements())
-    {
-      AgentIdentity agentidentity =
-        (AgentIdentity)enumeration.nextElement();
+  /**
+   * The directory replicator.
+   *
+   * The directory replicator is null unless the agent hosts that
+   * share their directories are listed.
+   *
+   * @see DirectoryReplicator
+   *
+   */
 
-      RepositoryEntry repositoryentry = mummify(agentidentity);
+  private DirectoryReplicator directoryreplicator = null;
 
-      hashtableRepositoryEntries.remove(agentidentity);
+  /**
+   * Gets the directory replicator.
+   *
+   * @returns the directory replicator, or null.
+   *
+   */
 
-      repository.assumeEntry(repositoryentry);
-    }
+  final DirectoryReplicator
+  getDirectoryReplicator()
+  {
+    return directoryreplicator;
   }
 
   /**
-   * Finalizes the agent host.
+   * The balancer.
+   *
+   * The balancer is null unless the agent hosts that share agents are
+   * listed and a period is given for it.
+   *
+   * @see Balancer
    *
    */
 
-  public void
-  finalize()
+  private Balancer balancer = null;
+
+  /**
+   * Gets the balancer.
+   *
+   * @returns the balancer, or null.
+   *
+   */
+
+  final Balancer
+  getBalancer()
   {
-    try
-    {
-      deconstruct();
-    }
-    catch (Exception ex)
-    {
-    }
+    return balancer;
   }
 
   /**
-   * Resurrects an agent.
+   * The affinity optimizer.
    *
-   * The following operations occur during resurrection:
+   * The affinity optimizer is null unless the agent hosts that share
+   * agents are listed and a period is given for it.
    *
-   * <OL>
-   * <LI> create the class loader
-   * <LI> instantiate the agent wrapper from within the class loader
-   * <LI> read or create the agent
-   * <LI> remember the agent wrapper
-   * <LI> start the agent
-   * </OL> 
+   * @see Affinity
    *
-   * @returns the agent identity of the agent
+   */
+
+  private Affinity affinity = null;
+
+  /**
+   * Gets the affinity optimizer.
    *
-   * @see mummify
+   * @returns the affinity optimizer, or null.
    *
    */
 
-  private AgentIdentity
-  resurrect(RepositoryEntry repositoryentry)
-       throws IOException,
-              AgentDefinitionException,
-              IllegalAccessException,
-              InstantiationException,
-              ClassNotFoundException
+  final Affinity
+  getAffinity()
   {
-    File fileResource = repositoryentry.getResource();
-    File fileData = repositoryentry.getData();
+    return affinity;
+  }
 
-    AgentClassLoader agentclassloader = new AgentClassLoader(fileResource);
+  /**
+   * The metrics.
+   *
+   * @see Metrics
+   *
+   */
 
-    Class c = agentclassloader.loadClass("");
+  private Metrics metrics = new Metrics();
 
-    AgentWrapper agentwrapper = (AgentWrapper)c.newInstance();
+  /**
+   * Gets the metrics.
+   *
+   */
 
-    agentwrapper.initialize(this, serverdata);
+  final Metrics
+  getMetrics()
+  {
+    return metrics;
+  }
 
-    if (fileData.exists())
-    {
-      FileInputStream fileinputstream =
-        new FileInputStream(fileData);
+  /**
+   * The metrics endpoint.
+   *
+   * The metrics endpoint is null unless a port is given for it.
+   *
+   * @see MetricsEndpoint
+   *
+   */
 
-      ObjectInputStream objectinputstream =
-        new ObjectInputStream(fileinputstream);
+  private MetricsEndpoint metricsendpoint = null;
 
-      agentwrapper.load(objectinputstream);
+  /**
+   * Gets the metrics endpoint.
+   *
+   * @returns the metrics endpoint, or null.
+   *
+   */
 
-      objectinputstream.close();
-    }
-    else
-    {
-      agentwrapper.load(null);
-    }
+  final MetricsEndpoint
+  getMetricsEndpoint()
+  {
+    return metricsendpoint;
+  }
 
-    AgentIdentity agentidentity = agentwrapper.getAgentIdentity();
+  /**
+   * The message batcher.
+   *
+   * The message batcher is null unless message coalescing is
+   * enabled.
+   *
+   * @see MessageBatcher
+   *
+   */
 
-    agentidentity.setAgentHostName(strAgentHostName);
+  private MessageBatcher messagebatcher = null;
 
-    hashtableAgentWrappers.put(agentidentity, agentwrapper);
+  /**
+   * The mailbox capacity.
+   *
+   * The mailbox capacity is zero unless agents have mailboxes.  It is
+   * set with the <CODE>etcee.ki.mailbox</CODE> system property, and
+   * the overflow policy with the <CODE>etcee.ki.mailbox.policy</CODE>
+   * system property (<CODE>reject</CODE>, <CODE>drop-oldest</CODE> or
+   * <CODE>block</CODE>).
+   *
+   * @see Mailbox
+   *
+   */
 
-    // Initializing and starting the agent must be the last thing we
-    // do.  If it's not, we run the risk of the agent identity not
-    // being set up correctly.
+  private int nMailboxCapacity = 0;
 
-    if (fileData.exists())
-    {
-      agentwrapper.agentStart();
-    }
-    else
-    {
-      agentwrapper.agentInitialize();
-      agentwrapper.agentStart();
-    }
+  /**
+   * The mailbox overflow policy.
+   *
+   */
 
-    return agentidentity;
-  }    
+  private int nMailboxPolicy = Mailbox.REJECT;
 
   /**
-   * Mummifies an agent.
+   * The resurrector.
    *
-   * <OL>
-   * <LI> forget the agent wrapper
-   * <LI> stop the agent
-   * <LI> write the agent
-   * <LI> destroy the class loader
-   * </OL> 
+   * The resurrector resurrects the agents in the repository when the
+   * agent host starts.
    *
-   * @see resurrect
+   * @see Resurrector
    *
    */
 
-  private RepositoryEntry
-  mummify(AgentIdentity agentidentity)
-       throws IOException,
-              AgentNotFoundException
-  {
-    AgentWrapper agentwrapper =
-      (AgentWrapper)hashtableAgentWrappers.remove(agentidentity);
-
-    RepositoryEntry repositoryentry = findRepositoryEntry(agentidentity);
-
-    File fileData = repositoryentry.getData();
+  private Resurrector resurrector = null;
 
-    agentwrapper.agentStop();
+  /**
+   * The passivator.
+   *
+   * The passivator is null unless idle agents are passivated.
+   *
+   * @see Passivator
+   *
+   */
 
-    FileOutputStream fileoutputstream =
-      new FileOutputStream(fileData);
+  private Passivator passivator = null;
 
-    ObjectOutputStream objectoutputstream =
-      new ObjectOutputStream(fileoutputstream);
+  /**
+   * The lazy activation flag.
+   *
+   * With lazy activation, agents that have state wait in the
+   * repository until they are sent a message.
+   *
+   * @see registerDormantAgents
+   *
+   */
 
-    agentwrapper.unload(objectoutputstream);
+  private boolean boolLazy = Boolean.getBoolean("etcee.ki.activation.lazy");
 
-    objectoutputstream.close();
+  /**
+   * The checkpointer.
+   *
+   * The checkpointer is null unless running agents are checkpointed.
+   * When it is not null, every write of an agent's data goes through
+   * the checkpoint log.
+   *
+   * @see Checkpointer
+   *
+   */
 
-    AgentClassLoader agentclassloader =
-      (AgentClassLoader)agentwrapper.getClass().getClassLoader();
+  private Checkpointer checkpointer = null;
 
-    agentclassloader.deconstruct();
+  /**
+   * The class loader cache.
+   *
+   * The class loader cache is null unless agents with the same
+   * resource file share a class loader.
+   *
+   * @see ClassLoaderCache
+   *
+   */
 
-    return repositoryentry;
-  }    
+  private ClassLoaderCache classloadercache = null;
 
   /**
-   * Initiates a message send.
+   * The pending message.
+   *
+   * A pending message is a message sent by this agent host that was
+   * queued in the agent's mailbox, and whose response has not yet
+   * been delivered.
    *
    */
 
-  public final MessageResponse
-  initiateSendMessage(final String strAgentHostName,
-                      final AgentIdentity agentidentity,
-                      final Message message)
+  private final static class PendingMessage
   {
-    final MessageResponse messageresponse = new MessageResponse();
+    AgentIdentity agentidentity = null;
+    Message message = null;
+    MessageResponse messageresponse = null;
 
-    Thread thread = new Thread()
-      {
+    long msAwaited = System.currentTimeMillis();
+
+    PendingMessage(AgentIdentity agentidentity,
+                   Message message,
+                   MessageResponse messageresponse)
+    {
+      this.agentidentity = agentidentity;
+      this.message = message;
+      this.messageresponse = messageresponse;
+    }
+  }
+
+  /**
+   * The pending message table.
+   *
+   * The pending message table maps message vouchers to pending
+   * messages.
+   *
+   */
+
+  private ConcurrentHashMap concurrenthashmapPendingMessages = null;
+
+  /**
+   * The pending message timer.
+   *
+   * The pending message timer fails the pending messages whose
+   * responses never arrive.  It is null if pending messages never
+   * expire.
+   *
+   * @see expirePendingMessages
+   *
+   */
+
+  private Timer timerPending = null;
+
+  /**
+   * Constructs the agent host.
+   *
+   */
+
+  public
+  AgentHostImplementation(final String strAgentHostName,
+                          String strArg1,
+                          String strArg2,
+                          String strArg3)
+    throws IOException,
+           AgentException,
+           IllegalAccessException,
+           InstantiationException,
+           ClassNotFoundException,
+           RemoteException
+  {
+    serverdata = new ServerData();
+
+    monitor = new Monitor();
+
+    this.strAgentHostName = strAgentHostName;
+
+    repository = Repository.createRepository(strArg1, strArg2, strArg3);
+
+    concurrenthashmapRepositoryEntries = new ConcurrentHashMap();
+    concurrenthashmapAgentWrappers = new ConcurrentHashMap();
+    concurrenthashmapTransferVouchers = new ConcurrentHashMap();
+    concurrenthashmapMessageVouchers = new ConcurrentHashMap();
+    concurrenthashmapPendingMessages = new ConcurrentHashMap();
+
+    dispatcher = Dispatcher.createDispatcher("dispatcher");
+
+    dispatcherHandler = new ThreadDispatcher("handler",
+                                             Integer.getInteger("etcee.ki.dispatcher.handlers", 256).intValue(),
+                                             true);
+
+    agenthostcache = new AgentHostCache();
+
+    statecache = new StateCache(serverdata.identitytable);
+
+    locationservice = LocationService.createLocationService(strAgentHostName, serverdata.identitytable);
+
+    addGauges();
+
+    if (!"false".equals(System.getProperty("etcee.ki.transfer.deflate")))
+    {
+      nDataEncodings |= TransferPackage.DEFLATE;
+    }
+
+    if (!"false".equals(System.getProperty("etcee.ki.transfer.delta")))
+    {
+      nDataEncodings |= TransferPackage.DELTA;
+    }
+
+    long msWindow = Long.getLong("etcee.ki.batch.window", 0L).longValue();
+
+    if (msWindow > 0)
+    {
+      int nSize = Integer.getInteger("etcee.ki.batch.size", 64).intValue();
+
+      messagebatcher = new MessageBatcher(this, msWindow, nSize);
+    }
+
+    nMailboxCapacity = Integer.getInteger("etcee.ki.mailbox", 0).intValue();
+
+    nMailboxPolicy = Mailbox.parsePolicy(System.getProperty("etcee.ki.mailbox.policy"));
+
+    final long msPendingTimeout = Long.getLong("etcee.ki.mailbox.timeout", 300000L).longValue();
+
+    if (msPendingTimeout > 0)
+    {
+      timerPending = new Timer("pending", true);
+
+      TimerTask timertask = new TimerTask()
+        {
+          public void
+          run()
+          {
+            expirePendingMessages(msPendingTimeout);
+          }
+        };
+
+      long msPeriod = Math.max(msPendingTimeout / 4, 1L);
+
+      timerPending.schedule(timertask, msPeriod, msPeriod);
+    }
+
+    if (Boolean.getBoolean("etcee.ki.classloader.shared"))
+    {
+      classloadercache = new ClassLoaderCache();
+    }
+
+    int nReaders = Integer.getInteger("etcee.ki.resurrection.readers", 4).intValue();
+    int nThreads = Integer.getInteger("etcee.ki.resurrection.threads",
+                                      Runtime.getRuntime().availableProcessors()).intValue();
+    int nStarters = Integer.getInteger("etcee.ki.resurrection.starters", 16).intValue();
+    int nWindow = Integer.getInteger("etcee.ki.resurrection.window", 64).intValue();
+
+    long msTimeout = Long.getLong("etcee.ki.resurrection.timeout", 60000L).longValue();
+
+    resurrector = new Resurrector(this, nReaders, nThreads, nStarters, nWindow);
+
+    Vector vectorEntries = repository.relinquishEntries();
+
+    if (boolLazy)
+    {
+      vectorEntries = registerDormantAgents(vectorEntries);
+    }
+
+    resurrector.resurrect(vectorEntries);
+
+    // The agent host is not bound until its agents are running (or
+    // the wait times out), so no message arrives for an agent that
+    // is still being resurrected.
+
+    if (!resurrector.await(msTimeout))
+    {
+      System.err.println("resurrection timed out: " + resurrector);
+    }
+    else if (Boolean.getBoolean("etcee.ki.resurrection.verbose"))
+    {
+      System.err.println(resurrector);
+    }
+
+    long msIdle = Long.getLong("etcee.ki.passivation.idle", 0L).longValue();
+
+    int nResident = Integer.getInteger("etcee.ki.passivation.resident", 0).intValue();
+
+    if (msIdle > 0 || nResident > 0)
+    {
+      long msPeriod = Long.getLong("etcee.ki.passivation.period", 1000L).longValue();
+
+      passivator = new Passivator(this, msIdle, nResident, msPeriod);
+    }
+
+    long msCheckpoint = Long.getLong("etcee.ki.checkpoint.period", 0L).longValue();
+
+    if (msCheckpoint > 0)
+    {
+      checkpointer = new Checkpointer(this, repository.getCheckpointLog(), msCheckpoint);
+    }
+
+    if (NioTransport.isTransportName(strAgentHostName))
+    {
+      NioTransport.getTransport().listen(strAgentHostName, this);
+    }
+    else
+    {
+      Naming.rebind(strAgentHostName, this);
+    }
+
+    if (locationservice != null)
+    {
+      claimAgents();
+    }
+
+    if (!"false".equals(System.getProperty("etcee.ki.metrics.jmx")))
+    {
+      try
+      {
+        metrics.register(strAgentHostName);
+      }
+      catch (JMException ex)
+      {
+        System.err.println("metrics not registered: " + ex);
+      }
+    }
+
+    int nMetricsPort = Integer.getInteger("etcee.ki.metrics.port", 0).intValue();
+
+    if (nMetricsPort > 0)
+    {
+      metricsendpoint = new MetricsEndpoint(this, nMetricsPort);
+    }
+
+    String [] rgstrAgentHostNames = LocationService.getAgentHostNames();
+
+    long msReplication = Long.getLong("etcee.ki.directory.period", 1000L).longValue();
+
+    if (rgstrAgentHostNames != null && msReplication > 0)
+    {
+      directoryreplicator = new DirectoryReplicator(this,
+                                                    serverdata.directory,
+                                                    rgstrAgentHostNames,
+                                                    msReplication);
+    }
+
+    long msAffinity = Long.getLong("etcee.ki.affinity.period", 0L).longValue();
+
+    if (rgstrAgentHostNames != null && msAffinity > 0)
+    {
+      int nMinimum = Integer.getInteger("etcee.ki.affinity.minimum", 10).intValue();
+      int nThreshold = Integer.getInteger("etcee.ki.affinity.threshold", 50).intValue();
+      int nRounds = Integer.getInteger("etcee.ki.affinity.rounds", 3).intValue();
+      int nBatch = Integer.getInteger("etcee.ki.affinity.batch", 16).intValue();
+
+      long msCooldown = Long.getLong("etcee.ki.affinity.cooldown", 60000L).longValue();
+
+      boolean boolMoves = !"false".equals(System.getProperty("etcee.ki.affinity.moves"));
+
+      affinity = new Affinity(this,
+                              rgstrAgentHostNames,
+                              nMinimum,
+                              nThreshold,
+                              nRounds,
+                              nBatch,
+                              msCooldown,
+                              boolMoves,
+                              msAffinity);
+    }
+
+    long msPlacement = Long.getLong("etcee.ki.placement.period", 0L).longValue();
+
+    if (rgstrAgentHostNames != null && msPlacement > 0)
+    {
+      int nPolicy = Balancer.parsePolicy(System.getProperty("etcee.ki.placement.policy"));
+      int nThreshold = Integer.getInteger("etcee.ki.placement.threshold", 25).intValue();
+      int nRounds = Integer.getInteger("etcee.ki.placement.rounds", 3).intValue();
+      int nBatch = Integer.getInteger("etcee.ki.placement.batch", 16).intValue();
+
+      long msCooldown = Long.getLong("etcee.ki.placement.cooldown", 60000L).longValue();
+
+      balancer = new Balancer(this,
+                              rgstrAgentHostNames,
+                              nPolicy,
+                              nThreshold,
+                              nRounds,
+                              nBatch,
+                              msCooldown,
+                              msPlacement);
+    }
+  }
+
+  /**
+   * Deconstructs the agent host.
+   *
+   */
+
+  public void
+  deconstruct()
+    throws IOException,
+           AgentException
+  {
+    try
+    {
+      monitor.lockAndWait();
+    }
+    catch (InterruptedException ex)
+    {
+    }
+
+    if (NioTransport.isTransportName(strAgentHostName))
+    {
+      NioTransport.getTransport().unlisten(strAgentHostName);
+    }
+    else
+    {
+      try
+      {
+        Naming.unbind(strAgentHostName);
+      }
+      catch (NotBoundException ex)
+      {
+      }
+    }
+
+    if (balancer != null)
+    {
+      balancer.shutdown();
+    }
+
+    if (affinity != null)
+    {
+      affinity.shutdown();
+    }
+
+    if (directoryreplicator != null)
+    {
+      directoryreplicator.shutdown();
+    }
+
+    if (metricsendpoint != null)
+    {
+      metricsendpoint.shutdown();
+    }
+
+    metrics.unregister();
+
+    if (passivator != null)
+    {
+      passivator.shutdown();
+    }
+
+    if (checkpointer != null)
+    {
+      checkpointer.shutdown();
+    }
+
+    Enumeration enumeration = concurrenthashmapRepositoryEntries.keys();
+
+    while (enumeration.hasMoreElements())
+    {
+      AgentIdentity agentidentity =
+        (AgentIdentity)enumeration.nextElement();
+
+      // With lazy activation, the agent waits in the repository the
+      // next time round, so it stays published.
+
+      AgentWrapper agentwrapper =
+        (AgentWrapper)concurrenthashmapAgentWrappers.get(agentidentity);
+
+      if (boolLazy && agentwrapper != null)
+      {
+        agentwrapper.setDormant();
+      }
+
+      RepositoryEntry repositoryentry = mummify(agentidentity);
+
+      concurrenthashmapRepositoryEntries.remove(agentidentity);
+
+      repository.assumeEntry(repositoryentry);
+    }
+
+    if (boolLazy)
+    {
+      saveDirectoryEntries();
+    }
+
+    // Every agent's data is now in its data file.
+
+    if (checkpointer != null)
+    {
+      repository.getCheckpointLog().reset();
+    }
+
+    repository.close();
+
+    if (messagebatcher != null)
+    {
+      messagebatcher.shutdown();
+    }
+
+    if (timerPending != null)
+    {
+      timerPending.cancel();
+    }
+
+    dispatcherHandler.shutdown();
+
+    dispatcher.shutdown();
+  }
+
+  /**
+   * Finalizes the agent host.
+   *
+   */
+
+  public void
+  finalize()
+  {
+    try
+    {
+      deconstruct();
+    }
+    catch (Exception ex)
+    {
+    }
+  }
+
+  /**
+   * Resurrects an agent.
+   *
+   * The following operations occur during resurrection:
+   *
+   * <OL>
+   * <LI> create the class loader
+   * <LI> read the agent's data
+   * <LI> instantiate the agent wrapper from within the class loader
+   * <LI> give the agent wrapper a mailbox, if agents have mailboxes
+   * <LI> read or create the agent
+   * <LI> remember the agent wrapper
+   * <LI> start the agent
+   * </OL> 
+   *
+   * The resurrector runs the same operations, in stages, when the
+   * agent host starts.
+   *
+   * @returns the agent identity of the agent
+   *
+   * @see mummify
+   * @see Resurrector
+   *
+   */
+
+  private AgentIdentity
+  resurrect(RepositoryEntry repositoryentry)
+       throws IOException,
+              AgentDefinitionException,
+              IllegalAccessException,
+              InstantiationException,
+              ClassNotFoundException
+  {
+    long nsStart = System.nanoTime();
+
+    Resurrector.Resurrection resurrection =
+      new Resurrector.Resurrection(repositoryentry);
+
+    boolean boolDone = false;
+
+    try
+    {
+      readAgent(resurrection);
+      defineAgent(resurrection);
+      restoreAgent(resurrection);
+
+      boolDone = true;
+    }
+    finally
+    {
+      if (!boolDone)
+      {
+        abandonAgent(resurrection);
+      }
+    }
+
+    metrics.record("ki_resurrect_time_ns", System.nanoTime() - nsStart);
+
+    startAgent(resurrection);
+
+    return resurrection.agentidentity;
+  }    
+
+  /**
+   * Reads an agent.
+   *
+   * Creates the class loader and reads the agent's data.
+   *
+   * @see resurrect
+   *
+   */
+
+  final void
+  readAgent(Resurrector.Resurrection resurrection)
+       throws IOException
+  {
+    RepositoryEntry repositoryentry = resurrection.repositoryentry;
+
+    resurrection.agentclassloader = createClassLoader(repositoryentry);
+
+    resurrection.rgbData = repositoryentry.getDataAsBytes();
+
+    resurrection.boolRestored = resurrection.rgbData != null;
+  }
+
+  /**
+   * Defines an agent.
+   *
+   * Instantiates the agent wrapper from within the class loader and
+   * gives it a mailbox, if agents have mailboxes.
+   *
+   * @see resurrect
+   *
+   */
+
+  final void
+  defineAgent(Resurrector.Resurrection resurrection)
+       throws IllegalAccessException,
+              InstantiationException,
+              ClassNotFoundException
+  {
+    Class c = resurrection.agentclassloader.loadClass("");
+
+    AgentWrapper agentwrapper = (AgentWrapper)c.newInstance();
+
+    agentwrapper.initialize(this, serverdata);
+
+    if (nMailboxCapacity > 0)
+    {
+      agentwrapper.setMailbox(new Mailbox(agentwrapper,
+                                          dispatcherHandler,
+                                          metrics,
+                                          nMailboxCapacity,
+                                          nMailboxPolicy));
+    }
+
+    resurrection.agentwrapper = agentwrapper;
+  }
+
+  /**
+   * Restores an agent.
+   *
+   * Reads or creates the agent and remembers the agent wrapper.
+   *
+   * @see resurrect
+   *
+   */
+
+  final void
+  restoreAgent(Resurrector.Resurrection resurrection)
+       throws IOException,
+              AgentDefinitionException,
+              IllegalAccessException,
+              InstantiationException,
+              ClassNotFoundException
+  {
+    AgentWrapper agentwrapper = resurrection.agentwrapper;
+
+    if (resurrection.rgbData != null)
+    {
+      ObjectInputStream objectinputstream =
+        new ObjectInputStream(new ByteArrayInputStream(resurrection.rgbData));
+
+      agentwrapper.load(objectinputstream);
+
+      objectinputstream.close();
+
+      resurrection.rgbData = null;
+    }
+    else
+    {
+      agentwrapper.load(null);
+    }
+
+    AgentIdentity agentidentity = agentwrapper.getAgentIdentity();
+
+    agentidentity.setAgentHostName(strAgentHostName);
+
+    concurrenthashmapAgentWrappers.put(agentidentity, agentwrapper);
+
+    resurrection.agentidentity = agentidentity;
+  }
+
+  /**
+   * Starts an agent.
+   *
+   * Initializing and starting the agent must be the last thing we
+   * do.  If it's not, we run the risk of the agent identity not
+   * being set up correctly.
+   *
+   * @see resurrect
+   *
+   */
+
+  final void
+  startAgent(Resurrector.Resurrection resurrection)
+  {
+    AgentWrapper agentwrapper = resurrection.agentwrapper;
+
+    if (resurrection.boolRestored)
+    {
+      agentwrapper.agentStart();
+    }
+    else
+    {
+      agentwrapper.agentInitialize();
+      agentwrapper.agentStart();
+    }
+  }
+
+  /**
+   * Records a resurrected agent.
+   *
+   * Records the agent's repository entry and address.
+   *
+   * @see Resurrector
+   *
+   */
+
+  final void
+  recordAgent(Resurrector.Resurrection resurrection)
+  {
+    concurrenthashmapRepositoryEntries.put(resurrection.agentidentity,
+                                           resurrection.repositoryentry);
+
+    serverdata.concurrenthashmapAgentAddressBook.put(resurrection.agentidentity,
+                                                     strAgentHostName);
+  }
+
+  /**
+   * Abandons an agent whose resurrection failed.
+   *
+   * Forgets the agent wrapper, if it was remembered, and destroys the
+   * class loader.
+   *
+   * @see resurrect
+   *
+   */
+
+  final void
+  abandonAgent(Resurrector.Resurrection resurrection)
+  {
+    if (resurrection.agentidentity != null)
+    {
+      concurrenthashmapAgentWrappers.remove(resurrection.agentidentity);
+    }
+
+    if (resurrection.agentclassloader != null)
+    {
+      try
+      {
+        releaseClassLoader(resurrection.agentclassloader);
+      }
+      catch (IOException ex)
+      {
+      }
+    }
+  }
+
+  /**
+   * Mummifies an agent.
+   *
+   * <OL>
+   * <LI> forget the agent wrapper
+   * <LI> drain the mailbox, if the agent has one
+   * <LI> stop the agent
+   * <LI> write the agent
+   * <LI> destroy the class loader
+   * </OL> 
+   *
+   * A passivated agent is already mummified, so nothing happens.
+   *
+   * @see resurrect
+   *
+   */
+
+  private RepositoryEntry
+  mummify(AgentIdentity agentidentity)
+       throws IOException,
+              AgentNotFoundException
+  {
+    RepositoryEntry repositoryentry = findRepositoryEntry(agentidentity);
+
+    synchronized (repositoryentry)
+    {
+      AgentWrapper agentwrapper =
+        (AgentWrapper)concurrenthashmapAgentWrappers.remove(agentidentity);
+
+      if (agentwrapper != null)
+      {
+        mummify(agentwrapper, repositoryentry);
+      }
+    }
+
+    return repositoryentry;
+  }
+
+  /**
+   * Mummifies an agent wrapper.
+   *
+   * @see mummify
+   *
+   */
+
+  private void
+  mummify(AgentWrapper agentwrapper, RepositoryEntry repositoryentry)
+       throws IOException
+  {
+    long nsStart = System.nanoTime();
+
+    File fileData = repositoryentry.getData();
+
+    Mailbox mailbox = agentwrapper.getMailbox();
+
+    if (mailbox != null)
+    {
+      mailbox.close();
+    }
+
+    agentwrapper.agentStop();
+
+    if (checkpointer == null)
+    {
+      FileOutputStream fileoutputstream =
+        new FileOutputStream(fileData);
+
+      ObjectOutputStream objectoutputstream =
+        new ObjectOutputStream(fileoutputstream);
+
+      agentwrapper.unload(objectoutputstream);
+
+      objectoutputstream.close();
+    }
+    else
+    {
+      ByteArrayOutputStream bytearrayoutputstream = new ByteArrayOutputStream();
+
+      ObjectOutputStream objectoutputstream =
+        new ObjectOutputStream(bytearrayoutputstream);
+
+      agentwrapper.unload(objectoutputstream);
+
+      objectoutputstream.close();
+
+      // While the agent host shuts down, the log is forced once, at
+      // the end.
+
+      checkpointer.write(new CheckpointLog.Record(repositoryentry.getResource(),
+                                                  fileData,
+                                                  bytearrayoutputstream.toByteArray()),
+                         !monitor.getLockFlag());
+    }
+
+    AgentClassLoader agentclassloader =
+      (AgentClassLoader)agentwrapper.getClass().getClassLoader();
+
+    releaseClassLoader(agentclassloader);
+
+    metrics.record("ki_mummify_time_ns", System.nanoTime() - nsStart);
+  }    
+
+  /**
+   * Checkpoints an agent.
+   *
+   * @returns the record to commit, or null if the agent is no longer
+   *          resident here or is busy.
+   *
+   * @see Checkpointer
+   *
+   */
+
+  final CheckpointLog.Record
+  checkpoint(AgentWrapper agentwrapper)
+       throws IOException
+  {
+    AgentIdentity agentidentity = agentwrapper.getAgentIdentity();
+
+    RepositoryEntry repositoryentry =
+      (RepositoryEntry)concurrenthashmapRepositoryEntries.get(agentidentity);
+
+    if (repositoryentry == null)
+    {
+      return null;
+    }
+
+    synchronized (repositoryentry)
+    {
+      if (concurrenthashmapAgentWrappers.get(agentidentity) != agentwrapper)
+      {
+        return null;
+      }
+
+      byte [] rgb = agentwrapper.checkpoint();
+
+      if (rgb == null)
+      {
+        return null;
+      }
+
+      return new CheckpointLog.Record(repositoryentry.getResource(),
+                                      repositoryentry.getData(),
+                                      rgb);
+    }
+  }
+
+  /**
+   * Installs a committed checkpoint.
+   *
+   * If the agent was mummified after it was checkpointed, its data
+   * file already holds newer state, and the checkpoint is dropped.
+   *
+   * @returns false if the checkpoint was dropped.
+   *
+   * @see Checkpointer
+   *
+   */
+
+  final boolean
+  install(AgentWrapper agentwrapper, CheckpointLog.Record record)
+       throws IOException
+  {
+    AgentIdentity agentidentity = agentwrapper.getAgentIdentity();
+
+    RepositoryEntry repositoryentry =
+      (RepositoryEntry)concurrenthashmapRepositoryEntries.get(agentidentity);
+
+    if (repositoryentry == null)
+    {
+      return false;
+    }
+
+    synchronized (repositoryentry)
+    {
+      if (concurrenthashmapAgentWrappers.get(agentidentity) != agentwrapper)
+      {
+        return false;
+      }
+
+      repository.getCheckpointLog().install(record);
+
+      return true;
+    }
+  }
+
+  /**
+   * Gets the number of checkpoints written.
+   *
+   */
+
+  final long
+  getCheckpointCount()
+  {
+    return checkpointer == null ? 0 : checkpointer.getCheckpointCount();
+  }
+
+  /**
+   * Gets the number of bytes checkpointed.
+   *
+   */
+
+  final long
+  getCheckpointBytes()
+  {
+    return checkpointer == null ? 0 : checkpointer.getCheckpointBytes();
+  }
+
+  /**
+   * Creates the class loader for an agent.
+   *
+   * If agents share class loaders, the class loader for the agent's
+   * resource file is shared.
+   *
+   * @see ClassLoaderCache
+   *
+   */
+
+  private AgentClassLoader
+  createClassLoader(RepositoryEntry repositoryentry)
+       throws IOException
+  {
+    String strDigest = null;
+
+    if (classloadercache != null)
+    {
+      strDigest = repositoryentry.getResourceDigest();
+    }
+
+    if (strDigest == null)
+    {
+      return new AgentClassLoader(repositoryentry.getResource());
+    }
+
+    return classloadercache.acquire(repositoryentry.getResource(), strDigest);
+  }
+
+  /**
+   * Releases the class loader of an agent.
+   *
+   * @see createClassLoader
+   *
+   */
+
+  private void
+  releaseClassLoader(AgentClassLoader agentclassloader)
+       throws IOException
+  {
+    if (agentclassloader.getDigest() == null)
+    {
+      agentclassloader.deconstruct();
+    }
+    else
+    {
+      classloadercache.release(agentclassloader);
+    }
+  }
+
+  /**
+   * Gets class loading statistics.
+   *
+   * The metaspace figures come from the virtual machine and cover
+   * every class loaded, not just agent classes.
+   *
+   * @returns a hashtable that maps the following names to longs:
+   *
+   * <UL>
+   * <LI><CODE>agents</CODE> -- the number of resident agents
+   * <LI><CODE>loaders</CODE> -- the number of agent class loaders
+   * <LI><CODE>classes</CODE> -- the number of agent classes defined
+   * <LI><CODE>classBytes</CODE> -- the size of those class files
+   * <LI><CODE>classBytesPerAgent</CODE> -- the same, per agent
+   * <LI><CODE>metaspace</CODE> -- the metaspace in use, if known
+   * <LI><CODE>metaspacePerAgent</CODE> -- the same, per agent
+   * </UL>
+   *
+   */
+
+  final Hashtable
+  getClassStatistics()
+  {
+    Hashtable hashtableLoaders = new Hashtable();
+
+    Enumeration enumeration = concurrenthashmapAgentWrappers.elements();
+
+    while (enumeration.hasMoreElements())
+    {
+      ClassLoader classloader =
+        ((AgentWrapper)enumeration.nextElement()).getClass().getClassLoader();
+
+      hashtableLoaders.put(classloader, classloader);
+    }
+
+    long nAgents = concurrenthashmapAgentWrappers.size();
+    long nClasses = 0;
+    long nClassBytes = 0;
+
+    enumeration = hashtableLoaders.elements();
+
+    while (enumeration.hasMoreElements())
+    {
+      Object obj = enumeration.nextElement();
+
+      if (obj instanceof AgentClassLoader)
+      {
+        nClasses += ((AgentClassLoader)obj).getClassCount();
+        nClassBytes += ((AgentClassLoader)obj).getClassBytes();
+      }
+    }
+
+    Hashtable hashtable = new Hashtable();
+
+    hashtable.put("agents", Long.valueOf(nAgents));
+    hashtable.put("loaders", Long.valueOf(hashtableLoaders.size()));
+    hashtable.put("classes", Long.valueOf(nClasses));
+    hashtable.put("classBytes", Long.valueOf(nClassBytes));
+    hashtable.put("classBytesPerAgent", Long.valueOf(nAgents == 0 ? 0 : nClassBytes / nAgents));
+
+    Iterator iterator = ManagementFactory.getMemoryPoolMXBeans().iterator();
+
+    while (iterator.hasNext())
+    {
+      MemoryPoolMXBean memorypoolmxbean = (MemoryPoolMXBean)iterator.next();
+
+      if (memorypoolmxbean.getName().equals("Metaspace"))
+      {
+        long nMetaspace = memorypoolmxbean.getUsage().getUsed();
+
+        hashtable.put("metaspace", Long.valueOf(nMetaspace));
+        hashtable.put("metaspacePerAgent", Long.valueOf(nAgents == 0 ? 0 : nMetaspace / nAgents));
+      }
+    }
+
+    return hashtable;
+  }
+
+  /**
+   * Gets the time spent loading each agent's classes.
+   *
+   * Agents that share a class loader report the class loader's
+   * time, so the same time may be reported for several agents.
+   *
+   * @returns a hashtable that maps agent identities to the time (as
+   *          longs, in nanoseconds) spent reading and defining
+   *          classes.
+   *
+   */
+
+  final Hashtable
+  getClassLoadTimes()
+  {
+    Hashtable hashtable = new Hashtable();
+
+    Enumeration enumeration = concurrenthashmapAgentWrappers.elements();
+
+    while (enumeration.hasMoreElements())
+    {
+      AgentWrapper agentwrapper = (AgentWrapper)enumeration.nextElement();
+
+      ClassLoader classloader = agentwrapper.getClass().getClassLoader();
+
+      if (classloader instanceof AgentClassLoader)
+      {
+        hashtable.put(agentwrapper.getAgentIdentity(),
+                      Long.valueOf(((AgentClassLoader)classloader).getLoadTime()));
+      }
+    }
+
+    return hashtable;
+  }
+
+  /**
+   * Gets the size of each agent's classes.
+   *
+   * Agents that share a class loader report the class loader's
+   * size, so the same classes may be counted for several agents.
+   *
+   * @returns a hashtable that maps agent identities to the size (as
+   *          longs, in bytes) of the class files defined.
+   *
+   */
+
+  final Hashtable
+  getClassBytesLoaded()
+  {
+    Hashtable hashtable = new Hashtable();
+
+    Enumeration enumeration = concurrenthashmapAgentWrappers.elements();
+
+    while (enumeration.hasMoreElements())
+    {
+      AgentWrapper agentwrapper = (AgentWrapper)enumeration.nextElement();
+
+      ClassLoader classloader = agentwrapper.getClass().getClassLoader();
+
+      if (classloader instanceof AgentClassLoader)
+      {
+        hashtable.put(agentwrapper.getAgentIdentity(),
+                      Long.valueOf(((AgentClassLoader)classloader).getClassBytes()));
+      }
+    }
+
+    return hashtable;
+  }
+
+  /**
+   * Activates an agent.
+   *
+   * A passivated agent is resurrected from the repository.  Only one
+   * thread resurrects a given agent -- others wait for it to finish.
+   * An agent that is being transferred away is not activated.
+   *
+   * @throws AgentNotFoundException if the agent is not hosted here
+   *         or could not be activated.
+   *
+   * @see passivate
+   *
+   */
+
+  private AgentWrapper
+  activate(AgentIdentity agentidentity)
+       throws AgentNotFoundException
+  {
+    AgentWrapper agentwrapper =
+      (AgentWrapper)concurrenthashmapAgentWrappers.get(agentidentity);
+
+    if (agentwrapper != null)
+    {
+      return agentwrapper;
+    }
+
+    RepositoryEntry repositoryentry = findRepositoryEntry(agentidentity);
+
+    synchronized (repositoryentry)
+    {
+      agentwrapper = (AgentWrapper)concurrenthashmapAgentWrappers.get(agentidentity);
+
+      if (agentwrapper != null)
+      {
+        return agentwrapper;
+      }
+
+      // An agent without state has never run, so it can't be the
+      // agent we're looking for.
+
+      if (isLocked(agentidentity) || !repositoryentry.getData().exists())
+      {
+        throw new AgentNotFoundException(agentidentity, "agent not active");
+      }
+
+      try
+      {
+        resurrect(repositoryentry);
+      }
+      catch (Exception ex)
+      {
+        throw new AgentNotFoundException(agentidentity, "activation failed: " + ex);
+      }
+
+      recordActivation();
+
+      return findAgentWrapper(agentidentity);
+    }
+  }
+
+  /**
+   * Passivates an agent.
+   *
+   * The agent is mummified, but remains hosted here.  It is activated
+   * again when it is sent a message.
+   *
+   * @returns false if the agent could not be passivated.
+   *
+   * @see activate
+   * @see Passivator
+   *
+   */
+
+  final boolean
+  passivate(AgentIdentity agentidentity)
+  {
+    RepositoryEntry repositoryentry =
+      (RepositoryEntry)concurrenthashmapRepositoryEntries.get(agentidentity);
+
+    if (repositoryentry == null)
+    {
+      return false;
+    }
+
+    synchronized (repositoryentry)
+    {
+      // Don't passivate an agent that is being transferred.
+
+      try
+      {
+        lockAgentIdentity(null, agentidentity);
+      }
+      catch (AgentLockedException ex)
+      {
+        return false;
+      }
+
+      try
+      {
+        AgentWrapper agentwrapper =
+          (AgentWrapper)concurrenthashmapAgentWrappers.get(agentidentity);
+
+        // Lock the wrapper before forgetting it, so that no handler
+        // runs on the agent once it is stopped.  A busy agent is left
+        // alone.  A sender that finds the wrapper locked activates the
+        // agent again.
+
+        if (agentwrapper == null || !agentwrapper.tryLock())
+        {
+          return false;
+        }
+
+        agentwrapper.setDormant();
+
+        concurrenthashmapAgentWrappers.remove(agentidentity);
+
+        mummify(agentwrapper, repositoryentry);
+
+        recordPassivation();
+
+        return true;
+      }
+      catch (Exception ex)
+      {
+        // The agent is forgotten, but its last state remains in the
+        // repository.
+
+        ex.printStackTrace();
+
+        return false;
+      }
+      finally
+      {
+        unlockAgentIdentity(agentidentity);
+      }
+    }
+  }
+
+  /**
+   * Registers dormant agents.
+   *
+   * Agents that have state are registered without being resurrected.
+   * The agent identity is read from the start of the agent's data --
+   * the wrapper writes it first.
+   *
+   * @returns the repository entries of the agents that must be
+   *          resurrected now.
+   *
+   * @see activate
+   *
+   */
+
+  private Vector
+  registerDormantAgents(Vector vectorEntries)
+  {
+    Vector vector = new Vector();
+
+    Enumeration enumeration = vectorEntries.elements();
+
+    while (enumeration.hasMoreElements())
+    {
+      RepositoryEntry repositoryentry = (RepositoryEntry)enumeration.nextElement();
+
+      AgentIdentity agentidentity = null;
+
+      try
+      {
+        byte [] rgbData = repositoryentry.getDataAsBytes();
+
+        if (rgbData == null)
+        {
+          vector.addElement(repositoryentry);
+
+          continue;
+        }
+
+        ObjectInputStream objectinputstream =
+          new ObjectInputStream(new ByteArrayInputStream(rgbData));
+
+        try
+        {
+          agentidentity = (AgentIdentity)objectinputstream.readObject();
+        }
+        finally
+        {
+          objectinputstream.close();
+        }
+      }
+      catch (Exception ex)
+      {
+        vector.addElement(repositoryentry);
+
+        continue;
+      }
+
+      agentidentity = serverdata.identitytable.intern(agentidentity);
+
+      agentidentity.setAgentHostName(strAgentHostName);
+
+      concurrenthashmapRepositoryEntries.put(agentidentity, repositoryentry);
+
+      serverdata.concurrenthashmapAgentAddressBook.put(agentidentity, strAgentHostName);
+    }
+
+    restoreDirectoryEntries();
+
+    return vector;
+  }
+
+  /**
+   * Gets the file that holds the directory entries of the agents
+   * published on this agent host when it last shut down.
+   *
+   */
+
+  private File
+  getDirectoryFile()
+  {
+    return new File(repository.getPath(), "directory");
+  }
+
+  /**
+   * Saves the directory entries of the agents published on this
+   * agent host.
+   *
+   * A dormant agent is never started, so it never publishes itself
+   * -- its entries are saved so that it can be found again.
+   *
+   * @see restoreDirectoryEntries
+   *
+   */
+
+  private void
+  saveDirectoryEntries()
+  {
+    try
+    {
+      ObjectOutputStream objectoutputstream =
+        new ObjectOutputStream(new FileOutputStream(getDirectoryFile()));
+
+      try
+      {
+        objectoutputstream.writeObject(serverdata.directory.getEntries(strAgentHostName));
+      }
+      finally
+      {
+        objectoutputstream.close();
+      }
+    }
+    catch (IOException ex)
+    {
+      ex.printStackTrace();
+    }
+  }
+
+  /**
+   * Publishes the saved directory entries of the dormant agents.
+   *
+   * @see saveDirectoryEntries
+   *
+   */
+
+  private void
+  restoreDirectoryEntries()
+  {
+    File file = getDirectoryFile();
+
+    if (!file.exists())
+    {
+      return;
+    }
+
+    DirectoryEntry [] rgdirectoryentry = null;
+
+    try
+    {
+      ObjectInputStream objectinputstream =
+        new ObjectInputStream(new FileInputStream(file));
+
+      try
+      {
+        rgdirectoryentry = (DirectoryEntry [])objectinputstream.readObject();
+      }
+      finally
+      {
+        objectinputstream.close();
+      }
+    }
+    catch (Exception ex)
+    {
+      ex.printStackTrace();
+
+      return;
+    }
+
+    for (int i = 0; i < rgdirectoryentry.length; i++)
+    {
+      AgentIdentity agentidentity = rgdirectoryentry[i].getAgentIdentity();
+
+      if (!concurrenthashmapRepositoryEntries.containsKey(agentidentity))
+      {
+        continue;
+      }
+
+      Hashtable hashtable = new Hashtable();
+
+      Enumeration enumeration = rgdirectoryentry[i].getAttributeNames();
+
+      while (enumeration.hasMoreElements())
+      {
+        String strName = (String)enumeration.nextElement();
+
+        hashtable.put(strName, rgdirectoryentry[i].getAttribute(strName));
+      }
+
+      serverdata.directory.publish(new DirectoryEntry(rgdirectoryentry[i].getIdentifier(),
+                                                      agentidentity,
+                                                      strAgentHostName,
+                                                      hashtable));
+    }
+  }
+
+  /**
+   * The activation counters.
+   *
+   */
+
+  private long nActivations = 0;
+  private long nPassivations = 0;
+
+  /**
+   * Records an activation.
+   *
+   */
+
+  private synchronized void
+  recordActivation()
+  {
+    nActivations++;
+  }
+
+  /**
+   * Records a passivation.
+   *
+   */
+
+  private synchronized void
+  recordPassivation()
+  {
+    nPassivations++;
+  }
+
+  /**
+   * Gets the number of agents activated.
+   *
+   */
+
+  final synchronized long
+  getActivationCount()
+  {
+    return nActivations;
+  }
+
+  /**
+   * Gets the number of agents passivated.
+   *
+   */
+
+  final synchronized long
+  getPassivationCount()
+  {
+    return nPassivations;
+  }
+
+  /**
+   * Gets the number of resident agents.
+   *
+   */
+
+  final int
+  getResidentCount()
+  {
+    return concurrenthashmapAgentWrappers.size();
+  }
+
+  /**
+   * Gets the number of agents hosted, resident or passivated.
+   *
+   */
+
+  final int
+  getAgentCount()
+  {
+    return concurrenthashmapRepositoryEntries.size();
+  }
+
+  /**
+   * A gauge that reads one of the agent host's counters.
+   *
+   */
+
+  private final class HostGauge
+    extends Metrics.Gauge
+  {
+    private int n = 0;
+
+    HostGauge(int n)
+    {
+      this.n = n;
+    }
+
+    final long
+    getValue()
+    {
+      switch (n)
+      {
+      case 0:
+        return getResidentCount();
+      case 1:
+        return getAgentCount();
+      case 2:
+        return getActivationCount();
+      case 3:
+        return getPassivationCount();
+      case 4:
+        return getArchiveReuseCount();
+      case 5:
+        return getStateBytes();
+      case 6:
+        return getStateBytesEncoded();
+      case 7:
+        return getEncodingTime();
+      case 8:
+        return getDecodingTime();
+      case 9:
+        return getCheckpointCount();
+      case 10:
+        return concurrenthashmapPendingMessages.size();
+      case 11:
+        return serverdata.identitytable.getInternedCount();
+      case 12:
+        return serverdata.directory.getEntryCount();
+      case 13:
+        return directoryreplicator == null ? 0 : directoryreplicator.getFailureCount();
+      case 14:
+        return locationservice == null ? 0 : locationservice.getLookupCount();
+      case 15:
+        return locationservice == null ? 0 : locationservice.getMissCount();
+      case 16:
+        return locationservice == null ? 0 : locationservice.getMoveCount();
+      case 17:
+        return locationservice == null ? 0 : locationservice.getFailureCount();
+      case 18:
+        return NioTransport.getBytesAttached();
+      case 19:
+        return NioTransport.getBytesReceived();
+      case 20:
+        return affinity == null ? 0 : affinity.getLocalCount();
+      case 21:
+        return affinity == null ? 0 : affinity.getRemoteCount();
+      case 22:
+        return affinity == null ? 0 : affinity.getMoveCount();
+      case 23:
+        return affinity == null ? 0 : affinity.getSavedRate();
+      case 24:
+        return dispatcher.getQueueDepth();
+      case 25:
+        return dispatcher.getActiveCount();
+      case 26:
+        return dispatcher.getRejectedCount();
+      case 27:
+        return dispatcherHandler.getActiveCount();
+      case 28:
+        return dispatcherHandler.getRejectedCount();
+      case 29:
+        return agenthostcache.getHitCount();
+      case 30:
+        return agenthostcache.getMissCount();
+      case 31:
+        return getMailboxDepthTotal();
+      case 32:
+        return getClassStatistic("loaders");
+      case 33:
+        return getClassStatistic("classes");
+      case 34:
+        return getClassStatistic("classBytes");
+      case 35:
+        return getClassStatistic("metaspace");
+      default:
+        return 0;
+      }
+    }
+  }
+
+  /**
+   * The names of the gauges, in the order <CODE>HostGauge</CODE>
+   * reads them.
+   *
+   */
+
+  private final static String [] rgstrGaugeNames =
+  {
+    "ki_agents_resident",
+    "ki_agents",
+    "ki_activations",
+    "ki_passivations",
+    "ki_archive_reuses",
+    "ki_state_bytes",
+    "ki_state_bytes_encoded",
+    "ki_state_encoding_time_ns",
+    "ki_state_decoding_time_ns",
+    "ki_checkpoints",
+    "ki_messages_pending",
+    "ki_identities_interned",
+    "ki_directory_entries",
+    "ki_directory_failures",
+    "ki_location_lookups",
+    "ki_location_misses",
+    "ki_location_moves",
+    "ki_location_failures",
+    "ki_transport_bytes_attached",
+    "ki_transport_bytes_received",
+    "ki_affinity_messages_local",
+    "ki_affinity_messages_remote",
+    "ki_affinity_moves",
+    "ki_affinity_saved_rate",
+    "ki_dispatcher_queue_depth",
+    "ki_dispatcher_active",
+    "ki_dispatcher_rejected",
+    "ki_handlers_active",
+    "ki_handlers_rejected",
+    "ki_host_cache_hits",
+    "ki_host_cache_misses",
+    "ki_mailbox_depth",
+    "ki_class_loaders",
+    "ki_classes",
+    "ki_class_bytes",
+    "ki_metaspace_bytes"
+  };
+
+  /**
+   * Adds the agent host's gauges, and the resident agents' values,
+   * to the metrics.
+   *
+   */
+
+  private void
+  addGauges()
+  {
+    for (int i = 0; i < rgstrGaugeNames.length; i++)
+    {
+      metrics.addGauge(rgstrGaugeNames[i], new HostGauge(i));
+    }
+
+    metrics.addTable(new Metrics.Table()
+      {
+        final void
+        read(Map map)
+        {
+          readAgentMetrics(map);
+        }
+      });
+  }
+
+  /**
+   * Gets one of the class loading statistics.
+   *
+   * @returns the statistic, or zero if it is not known.
+   *
+   * @see getClassStatistics
+   *
+   */
+
+  private long
+  getClassStatistic(String strName)
+  {
+    Long l = (Long)getClassStatistics().get(strName);
+
+    return l == null ? 0 : l.longValue();
+  }
+
+  /**
+   * Reads the number of messages each resident agent has handled,
+   * the time it spent handling them, the state of its mailbox, and
+   * the time and space its classes took.
+   *
+   */
+
+  private void
+  readAgentMetrics(Map map)
+  {
+    Hashtable hashtableLoadTimes = getClassLoadTimes();
+    Hashtable hashtableClassBytes = getClassBytesLoaded();
+
+    Iterator iterator = concurrenthashmapAgentWrappers.values().iterator();
+
+    while (iterator.hasNext())
+    {
+      AgentWrapper agentwrapper = (AgentWrapper)iterator.next();
+
+      AgentIdentity agentidentity = agentwrapper.getAgentIdentity();
+
+      String str = "{agent=\"" + Metrics.getName(agentidentity) + "\"}";
+
+      map.put("ki_agent_messages_handled" + str, Long.valueOf(agentwrapper.getHandledCount()));
+      map.put("ki_agent_handler_time_ns" + str, Long.valueOf(agentwrapper.getHandlerTime()));
+
+      Mailbox mailbox = agentwrapper.getMailbox();
+
+      if (mailbox != null)
+      {
+        map.put("ki_agent_mailbox_depth" + str, Long.valueOf(mailbox.getDepth()));
+        map.put("ki_agent_mailbox_rejected" + str, Long.valueOf(mailbox.getRejectedCount()));
+        map.put("ki_agent_mailbox_dropped" + str, Long.valueOf(mailbox.getDroppedCount()));
+      }
+
+      if (hashtableLoadTimes.containsKey(agentidentity))
+      {
+        map.put("ki_agent_class_load_time_ns" + str, hashtableLoadTimes.get(agentidentity));
+        map.put("ki_agent_class_bytes" + str, hashtableClassBytes.get(agentidentity));
+      }
+    }
+  }
+
+  /**
+   * Writes the resident agents' values as text.
+   *
+   * @see readAgentMetrics
+   * @see MetricsEndpoint
+   *
+   */
+
+  final void
+  writeAgentMetrics(PrintWriter printwriter)
+  {
+    TreeMap treemap = new TreeMap();
+
+    readAgentMetrics(treemap);
+
+    Iterator iterator = treemap.entrySet().iterator();
+
+    while (iterator.hasNext())
+    {
+      Map.Entry entry = (Map.Entry)iterator.next();
+
+      printwriter.print(entry.getKey());
+      printwriter.print(' ');
+      printwriter.println(entry.getValue());
+    }
+
+    if (affinity != null)
+    {
+      affinity.write(printwriter);
+    }
+  }
+
+  /**
+   * Gets the agent host an agent was last known to be on.
+   *
+   * @returns this agent host's name if the agent is here, the agent
+   *          host in the address book otherwise, or null if the
+   *          agent is unknown.
+   *
+   */
+
+  final String
+  getLastKnownLocation(AgentIdentity agentidentity)
+  {
+    if (concurrenthashmapRepositoryEntries.containsKey(agentidentity))
+    {
+      return strAgentHostName;
+    }
+
+    return (String)serverdata.concurrenthashmapAgentAddressBook.get(agentidentity);
+  }
+
+  /**
+   * Gets the resident agent wrappers.
+   *
+   * The results may only be valid for a short period of time.
+   *
+   */
+
+  final Vector
+  getAgentWrappers()
+  {
+    return new Vector(concurrenthashmapAgentWrappers.values());
+  }
+
+  /**
+   * Initiates a message send.
+   *
+   * If message coalescing is enabled and the agent's host is known
+   * to be remote, the message joins a batch bound for that host.
+   * Otherwise the message is sent on its own.
+   *
+   * @see MessageBatcher
+   *
+   */
+
+  public final MessageResponse
+  initiateSendMessage(final String strAgentHostName,
+                      final AgentIdentity agentidentity,
+                      final Message message)
+  {
+    return initiateSendMessage(null, strAgentHostName, agentidentity, message);
+  }
+
+  /**
+   * Initiates a message send on behalf of a resident agent.
+   *
+   * The message is counted against the pair of agents, so that the
+   * affinity optimizer can bring them together.
+   *
+   * @parameter agentidentityFrom the sending agent, or null.
+   *
+   * @see Affinity
+   *
+   */
+
+  final MessageResponse
+  initiateSendMessage(AgentIdentity agentidentityFrom,
+                      final String strAgentHostName,
+                      final AgentIdentity agentidentity,
+                      final Message message)
+  {
+    final MessageResponse messageresponse = new MessageResponse();
+
+    metrics.increment("ki_messages_sent", "message", message.getMessageName());
+
+    if (affinity != null && agentidentityFrom != null)
+    {
+      affinity.record(agentidentityFrom, agentidentity, strAgentHostName);
+    }
+
+    if (messagebatcher != null)
+    {
+      String str = strAgentHostName;
+
+      if (str == null)
+      {
+        str = (String)serverdata.concurrenthashmapAgentAddressBook.get(agentidentity);
+      }
+
+      if (str != null && !this.strAgentHostName.equals(str))
+      {
+        if (messagebatcher.add(str, agentidentity, message, messageresponse))
+        {
+          return messageresponse;
+        }
+      }
+    }
+
+    Runnable runnable = new Runnable()
+      {
+        public void
+        run()
+        {
+          deliverMessage(strAgentHostName, agentidentity, message, messageresponse);
+        }
+      };
+
+    // If the dispatcher is saturated, fail the send rather than
+    // queue without bound.
+
+    if (!getDeliveryDispatcher(strAgentHostName, agentidentity).dispatch(runnable))
+    {
+      messageresponse.setFailed(new MessageFailedException("dispatcher saturated"));
+    }
+
+    return messageresponse;
+  }
+
+  /**
+   * Gets the dispatcher that should deliver a message.
+   *
+   * Messages to resident agents go to the handler dispatcher, so that
+   * handlers waiting on responses cannot take every thread the sends
+   * they wait on need.  Other messages go to the dispatcher.
+   *
+   * @parameter strAgentHostName may be null.
+   *
+   */
+
+  private Dispatcher
+  getDeliveryDispatcher(String strAgentHostName, AgentIdentity agentidentity)
+  {
+    if ((strAgentHostName == null || this.strAgentHostName.equals(strAgentHostName)) &&
+        concurrenthashmapRepositoryEntries.containsKey(agentidentity))
+    {
+      return dispatcherHandler;
+    }
+
+    return dispatcher;
+  }
+
+  /**
+   * Delivers a message.
+   *
+   * Sends the message to the specified agent host, following the
+   * agent from host to host if it has moved, and completes the
+   * message response.
+   *
+   * If the message is queued in the agent's mailbox, the message
+   * response is completed later, when the response is delivered.
+   *
+   * @see deliverResponse
+   *
+   * @parameter strAgentHostName may be null.
+   *
+   */
+
+  final void
+  deliverMessage(String strAgentHostName,
+                 AgentIdentity agentidentity,
+                 Message message,
+                 MessageResponse messageresponse)
+  {
+    deliverMessage(strAgentHostName, agentidentity, message, messageresponse, 0);
+  }
+
+  /**
+   * Delivers a message that has already followed its agent.
+   *
+   * @parameter nHops the number of agent hosts the message has
+   *            already followed the agent from.
+   *
+   * @see deliverMessage
+   *
+   */
+
+  final void
+  deliverMessage(String strAgentHostName,
+                 AgentIdentity agentidentity,
+                 Message message,
+                 MessageResponse messageresponse,
+                 int nHops)
+  {
+    // The send may have been cancelled while it waited to be
+    // dispatched.
+
+    if (messageresponse.isDone())
+    {
+      return;
+    }
+
+    Voucher voucher = new Voucher();
+
+    concurrenthashmapMessageVouchers.put(agentidentity, voucher);
+
+    try
+    {
+      String str = strAgentHostName;
+
+      boolean boolRetried = false;
+
+      // Ask the agent's home where the agent is, once -- either
+      // because the agent is neither here nor in the address book, or
+      // because the address book turns out to be stale.
+
+      boolean boolLocated = locationservice == null;
+
+      if (str == null &&
+          !boolLocated &&
+          !concurrenthashmapRepositoryEntries.containsKey(agentidentity) &&
+          !serverdata.concurrenthashmapAgentAddressBook.containsKey(agentidentity))
+      {
+        str = locate(agentidentity);
+
+        rememberLocation(agentidentity, null, str);
+
+        boolLocated = true;
+      }
+
+      while (!messageresponse.isDone())
+      {
+        AgentHost agenthost = this;
+
+        if (str != null && !this.strAgentHostName.equals(str))
+        {
+          agenthost = lookupAgentHost(str);
+        }
+
+        Response response = null;
+
+        // The response may be delivered before the call returns, so
+        // the message must be pending first.
+
+        awaitResponse(voucher, agentidentity, message, messageresponse);
+
+        try
+        {
+          response = agenthost.sendMessage(this,
+                                           voucher,
+                                           agentidentity,
+                                           message);
+        }
+        catch (RemoteException ex)
+        {
+          if (agenthost == this)
+          {
+            throw ex;
+          }
+
+          agenthostcache.invalidate(str);
+
+          // A stale reference (the remote agent host restarted) or a
+          // refused connection means the message was never
+          // delivered.  Look the agent host up again and retry, once.
+
+          if (boolRetried ||
+              !(ex instanceof NoSuchObjectException ||
+                ex instanceof ConnectException))
+          {
+            throw ex;
+          }
+
+          boolRetried = true;
+
+          continue;
+        }
+
+        String strTried = str;
+
+        str = completeMessage(voucher, agentidentity, message, messageresponse, response);
+
+        if (str == null)
+        {
+          metrics.record("ki_message_hops", nHops);
+
+          break;
+        }
+
+        nHops++;
+
+        // Rather than follow the agent from host to host, ask its
+        // home -- unless the home points back where the agent was not
+        // found.
+
+        if (!boolLocated)
+        {
+          boolLocated = true;
+
+          String strStale = (String)serverdata.concurrenthashmapAgentAddressBook.get(agentidentity);
+
+          String strLocated = locate(agentidentity);
+
+          if (strLocated != null && !strLocated.equals(strTried == null ? this.strAgentHostName : strTried))
+          {
+            rememberLocation(agentidentity, strStale, strLocated);
+
+            str = strLocated;
+          }
+        }
+      }
+    }
+    catch (Exception ex)
+    {
+      forgetResponse(voucher);
+
+      messageresponse.setFailed(ex);
+    }
+    finally
+    {
+      concurrenthashmapMessageVouchers.remove(agentidentity);
+    }
+  }
+
+  /**
+   * Marks a message as pending.
+   *
+   * @see deliverResponse
+   *
+   */
+
+  final void
+  awaitResponse(Voucher voucher,
+                AgentIdentity agentidentity,
+                Message message,
+                MessageResponse messageresponse)
+  {
+    concurrenthashmapPendingMessages.put(voucher,
+                                         new PendingMessage(agentidentity,
+                                                            message,
+                                                            messageresponse));
+  }
+
+  /**
+   * Fails the pending messages whose responses have not arrived in
+   * time.
+   *
+   * The agent host that queued a message may have failed to deliver
+   * its response, or may be gone.
+   *
+   * @parameter msTimeout the longest time (in milliseconds) a message
+   *            may be pending.
+   *
+   */
+
+  private void
+  expirePendingMessages(long msTimeout)
+  {
+    long msNow = System.currentTimeMillis();
+
+    Iterator iterator = concurrenthashmapPendingMessages.entrySet().iterator();
+
+    while (iterator.hasNext())
+    {
+      Map.Entry entry = (Map.Entry)iterator.next();
+
+      PendingMessage pendingmessage = (PendingMessage)entry.getValue();
+
+      if (msNow - pendingmessage.msAwaited < msTimeout)
+      {
+        continue;
+      }
+
+      // The response may be delivered meanwhile -- whoever removes
+      // the entry completes the message response.
+
+      if (concurrenthashmapPendingMessages.remove(entry.getKey(), pendingmessage))
+      {
+        metrics.increment("ki_responses_expired");
+
+        pendingmessage.messageresponse.setFailed(new MessageFailedException("response not delivered"));
+      }
+    }
+  }
+
+  /**
+   * Marks a message as no longer pending.
+   *
+   */
+
+  final void
+  forgetResponse(Voucher voucher)
+  {
+    concurrenthashmapPendingMessages.remove(voucher);
+  }
+
+  /**
+   * Delivers the response to a queued message.
+   *
+   * This method can be called via RMI.
+   *
+   * @see AgentHost.deliverResponse
+   *
+   */
+
+  public void
+  deliverResponse(Voucher voucher,
+                  Response response)
+    throws RemoteException
+  {
+    final PendingMessage pendingmessage =
+      (PendingMessage)concurrenthashmapPendingMessages.remove(voucher);
+
+    // The message response may already be complete.
+
+    if (pendingmessage == null)
+    {
+      return;
+    }
+
+    final String str = completeMessage(voucher,
+                                       pendingmessage.agentidentity,
+                                       pendingmessage.message,
+                                       pendingmessage.messageresponse,
+                                       response);
+
+    // The agent has moved -- follow it.
+
+    if (str != null)
+    {
+      Runnable runnable = new Runnable()
+        {
+          public void
+          run()
+          {
+            deliverMessage(str,
+                           pendingmessage.agentidentity,
+                           pendingmessage.message,
+                           pendingmessage.messageresponse);
+          }
+        };
+
+      if (!getDeliveryDispatcher(str, pendingmessage.agentidentity).dispatch(runnable))
+      {
+        pendingmessage.messageresponse.setFailed(new MessageFailedException("dispatcher saturated"));
+      }
+    }
+  }
+
+  /**
+   * Completes a message response.
+   *
+   * Unless the message was queued, it is no longer pending.
+   *
+   * @returns the name of the agent host to try next, if the agent has
+   *          moved, or null if the message response is complete or
+   *          the message was queued.
+   *
+   */
+
+  final String
+  completeMessage(Voucher voucher,
+                  AgentIdentity agentidentity,
+                  Message message,
+                  MessageResponse messageresponse,
+                  Response response)
+  {
+    metrics.increment("ki_responses", "code", Response.getCodeName(response.nCode));
+
+    if (response.nCode == Response.QUEUED)
+    {
+      return null;
+    }
+
+    forgetResponse(voucher);
+
+    if (response.nCode == Response.SUCCEEDED)
+    {
+      messageresponse.setSucceeded(response.objResponse);
+    }
+    else if (response.nCode == Response.FAILED)
+    {
+      messageresponse.setFailed((Exception)response.objResponse);
+    }
+    else if (response.nCode == Response.NOT_FOUND)
+    {
+      // No handler defined.
+
+      messageresponse.setFailed(new NoSuchMethodException(message.getMessageName()));
+    }
+    else if (response.nCode == Response.TRY_AGAIN)
+    {
+      // Update the address book.
+
+      String str = (String)response.objResponse;
+
+      serverdata.concurrenthashmapAgentAddressBook.put(serverdata.identitytable.intern(agentidentity), str);
+
+      return str;
+    }
+    else
+    {
+      // The agent was locked (it is being transferred or stopped), or
+      // the code is unknown.  The code is counted above.
+
+      messageresponse.setFailed(new MessageFailedException("unexpected response " +
+                                                           Response.getCodeName(response.nCode)));
+    }
+
+    return null;
+  }
+
+  /**
+   * The number of times a message is retried on an agent that was
+   * locked because it was being passivated.
+   *
+   */
+
+  private final static int nLockedRetries = 3;
+
+  /**
+   * Sends a message.
+   *
+   * This method can be called via RMI.
+   *
+   * @see AgentHost.sendMessage
+   *
+   */
+
+  public Response
+  sendMessage(AgentHost agenthost,
+              Voucher voucher,
+              AgentIdentity agentidentity,
+              Message message)
+    throws MessageFailedException,
+           AgentNotFoundException,
+           RemoteException
+  {
+    AgentWrapper agentwrapper = null;
+
+    try
+    {
+      agentwrapper = activate(agentidentity);
+    }
+    catch (AgentNotFoundException ex)
+    {
+      // If we aren't hosting the agent, try to find the agent in our
+      // address book.
+
+      String strAgentHostName = (String)serverdata.concurrenthashmapAgentAddressBook.get(agentidentity);
+
+      if (this.strAgentHostName.equals(strAgentHostName))
+      {
+        return new Response(agentidentity, ex, Response.FAILED);
+      }
+
+      if (strAgentHostName != null)
+      {
+        return new Response(agentidentity, strAgentHostName, Response.TRY_AGAIN);
+      }
+
+      // If the address book doesn't contain a entry, get the last
+      // known host from the agent identity itself.
+
+      strAgentHostName = agentidentity.getAgentHostName();
+
+      if (this.strAgentHostName.equals(strAgentHostName))
+      {
+        return new Response(agentidentity, ex, Response.FAILED);
+      }
+
+      return new Response(agentidentity, strAgentHostName, Response.TRY_AGAIN);
+    }      
+
+    Response response = agentwrapper.postMessage(agenthost, voucher, message);
+
+    // The agent is being passivated -- wait for that to finish, then
+    // activate it again and retry.
+
+    for (int i = 0; i < nLockedRetries && response.nCode == Response.LOCKED; i++)
+    {
+      try
+      {
+        synchronized (findRepositoryEntry(agentidentity))
+        {
+        }
+
+        agentwrapper = activate(agentidentity);
+      }
+      catch (AgentNotFoundException ex)
+      {
+        break;
+      }
+
+      response = agentwrapper.postMessage(agenthost, voucher, message);
+    }
+
+    return response;
+  }
+
+  /**
+   * Sends a batch of messages.
+   *
+   * This method can be called via RMI.
+   *
+   * @see AgentHost.sendMessages
+   *
+   */
+
+  public Response []
+  sendMessages(AgentHost agenthost,
+               Voucher [] rgvoucher,
+               AgentIdentity [] rgagentidentity,
+               Message [] rgmessage)
+    throws MessageFailedException,
+           RemoteException
+  {
+    if (rgagentidentity.length != rgmessage.length ||
+        rgvoucher.length != rgmessage.length)
+    {
+      throw new MessageFailedException("mismatched batch");
+    }
+
+    Response [] rgresponse = new Response [rgmessage.length];
+
+    for (int i = 0; i < rgmessage.length; i++)
+    {
+      try
+      {
+        rgresponse[i] = sendMessage(agenthost, rgvoucher[i], rgagentidentity[i], rgmessage[i]);
+      }
+      catch (Exception ex)
+      {
+        rgresponse[i] = new Response(rgagentidentity[i], ex, Response.FAILED);
+      }
+    }
+
+    return rgresponse;
+  }
+
+  /**
+   * Gets the number of messages queued for an agent.
+   *
+   * @returns the number of messages, or zero if the agent has no
+   *          mailbox.
+   *
+   * @throws AgentNotFoundException if the agent is not hosted here.
+   *
+   */
+
+  final int
+  getMailboxDepth(AgentIdentity agentidentity)
+    throws AgentNotFoundException
+  {
+    Mailbox mailbox = findAgentWrapper(agentidentity).getMailbox();
+
+    return mailbox == null ? 0 : mailbox.getDepth();
+  }
+
+  /**
+   * Gets the time spent resurrecting agents at start up.
+   *
+   * @returns a hashtable that maps resurrection phases to the time
+   *          (as longs, in milliseconds) spent in each.
+   *
+   * @see Resurrector.getPhaseTimes
+   *
+   */
+
+  final Hashtable
+  getResurrectionTimes()
+  {
+    return resurrector.getPhaseTimes();
+  }
+
+  /**
+   * Gets the number of messages queued for each agent.
+   *
+   * The results may only be valid for a short period of time.
+   *
+   * @returns a hashtable that maps agent identities to the number of
+   *          messages (as integers) of each agent with a mailbox.
+   *
+   */
+
+  final Hashtable
+  getMailboxDepths()
+  {
+    Hashtable hashtable = new Hashtable();
+
+    Enumeration enumeration = concurrenthashmapAgentWrappers.elements();
+
+    while (enumeration.hasMoreElements())
+    {
+      AgentWrapper agentwrapper = (AgentWrapper)enumeration.nextElement();
+
+      Mailbox mailbox = agentwrapper.getMailbox();
+
+      if (mailbox != null)
+      {
+        hashtable.put(agentwrapper.getAgentIdentity(), Integer.valueOf(mailbox.getDepth()));
+      }
+    }
+
+    return hashtable;
+  }
+
+  /**
+   * Gets the number of messages queued for all resident agents.
+   *
+   */
+
+  final long
+  getMailboxDepthTotal()
+  {
+    long n = 0;
+
+    Enumeration enumeration = getMailboxDepths().elements();
+
+    while (enumeration.hasMoreElements())
+    {
+      n += ((Integer)enumeration.nextElement()).intValue();
+    }
+
+    return n;
+  }
+
+  /**
+   * Initiates an agent transfer.
+   *
+   */
+
+  public final TransferResponse
+  initiateTransfer(final String strAgentHostName,
+                   final AgentIdentity agentidentity)
+  {
+    final TransferResponse transferresponse = new TransferResponse();
+
+    Runnable runnable = new Runnable()
+      {
         public void
         run()
         {
+          // The transfer may have been cancelled while it waited to be
+          // dispatched.
+
+          if (!transferresponse.setStarted())
+          {
+            return;
+          }
+
           Voucher voucher = new Voucher();
 
-          hashtableMessageVouchers.put(agentidentity, voucher);
+          // An agent that is already being transferred or passivated is
+          // left alone -- its lock belongs to someone else.
+
+          try
+          {
+            lockAgentIdentity(voucher, agentidentity);
+          }
+          catch (AgentLockedException ex)
+          {
+            transferresponse.setFailed(ex);
+
+            return;
+          }
 
           try
           {
-            String str = strAgentHostName;
+            AgentHost agenthost = AgentHostImplementation.this;
+
+            if (!AgentHostImplementation.this.strAgentHostName.equals(strAgentHostName))
+            {
+              agenthost = lookupAgentHost(strAgentHostName);
+            }
 
-            while (true)
+            try
+            {
+              agenthost.requestToTransfer(AgentHostImplementation.this,
+                                          voucher,
+                                          agentidentity);
+            }
+            catch (RemoteException ex)
             {
-              AgentHost agenthost = AgentHostImplementation.this;
-
-              if (str != null && !AgentHostImplementation.this.strAgentHostName.equals(str))
-              {
-                agenthost = lookupAgentHost(str);
-              }
-
-              Response response = agenthost.sendMessage(AgentHostImplementation.this,
-                                                        voucher,
-                                                        agentidentity,
-                                                        message);
-
-              if (response.nCode == Response.SUCCEEDED)
-              {
-                messageresponse.setSucceeded(response.objResponse);
-
-                break;
-              }
-              else if (response.nCode == Response.FAILED)
-              {
-                messageresponse.setFailed((Exception)response.objResponse);
-
-                break;
-              }
-              else if (response.nCode == Response.NOT_FOUND)
-              {
-                // No handler defined.
-
-                messageresponse.setFailed(new NoSuchMethodException(message.getMessageName()));
-
-                break;
-              }
-              else if (response.nCode == Response.TRY_AGAIN)
-              {
-                // Update the address book.
-
-                str = (String)response.objResponse;
-
-                serverdata.hashtableAgentAddressBook.put(agentidentity, str);
-              }
-              else
-              {
-                System.out.println("** nCode = " + response.nCode);
-                System.out.println("** response = " + response.objResponse);
-
-                break;
-              }
+              agenthostcache.invalidate(strAgentHostName);
+
+              throw ex;
             }
+
+            // Update the address book.
+
+            serverdata.concurrenthashmapAgentAddressBook.put(serverdata.identitytable.intern(agentidentity),
+                                                             strAgentHostName);
+
+            transferresponse.setSucceeded();
           }
           catch (Exception ex)
           {
-            messageresponse.setFailed(ex);
+            transferresponse.setFailed(ex);
           }
           finally
           {
-            hashtableMessageVouchers.remove(agentidentity);
+            unlockAgentIdentity(agentidentity);
           }
         }
       };
 
-    thread.start();
+    // If the dispatcher is saturated, fail the transfer rather than
+    // queue without bound.
 
-//  thread.setPriority(thread.getPriority() + 1);
+    if (!dispatcher.dispatch(runnable))
+    {
+      transferresponse.setFailed(new TransferFailedException("dispatcher saturated"));
+    }
 
-    return messageresponse;
+    return transferresponse;
   }
 
   /**
-   * Sends a message.
+   * Gets the resource files of the resident agents.
    *
-   * This method can be called via RMI.
+   * @returns a table mapping each digest to the resource file of one
+   *          agent with that code.
    *
-   * @see AgentHost.sendMessage
+   */
+
+  private Hashtable
+  getResourceFiles()
+  {
+    Hashtable hashtable = new Hashtable();
+
+    Iterator iterator = concurrenthashmapRepositoryEntries.values().iterator();
+
+    while (iterator.hasNext())
+    {
+      RepositoryEntry repositoryentry = (RepositoryEntry)iterator.next();
+
+      try
+      {
+        String strDigest = repositoryentry.getResourceDigest();
+
+        if (strDigest != null)
+        {
+          hashtable.put(strDigest, repositoryentry.getResource());
+        }
+      }
+      catch (IOException ex)
+      {
+        // The agent is leaving -- its code is archived, if at all.
+      }
+    }
+
+    return hashtable;
+  }
+
+  /**
+   * Gets the digests to offer an agent host that is sending an agent.
+   *
+   * The digests are those of the archived resource files and those
+   * of the resource files of the resident agents.
    *
    */
 
-  public Response
-  sendMessage(AgentHost agenthost,
-              Voucher voucher,
-              AgentIdentity agentidentity,
-              Message message)
-    throws MessageFailedException,
+  private String []
+  getOfferedDigests(Hashtable hashtableResources)
+  {
+    String [] rgstrArchived = repository.getArchiveDigests();
+
+    Hashtable hashtable = new Hashtable(hashtableResources);
+
+    for (int i = 0; i < rgstrArchived.length; i++)
+    {
+      hashtable.put(rgstrArchived[i], rgstrArchived[i]);
+    }
+
+    String [] rgstrDigests = new String [hashtable.size()];
+
+    Enumeration enumeration = hashtable.keys();
+
+    for (int i = 0; i < rgstrDigests.length; i++)
+    {
+      rgstrDigests[i] = (String)enumeration.nextElement();
+    }
+
+    return rgstrDigests;
+  }
+
+  /**
+   * Requests that an agent transfer occur.
+   *
+   * This method should only be called via RMI.
+   *
+   * @see AgentHost.requestToTransfer
+   *
+   */
+
+  public void
+  requestToTransfer(AgentHost agenthost,
+                    Voucher voucher,
+                    AgentIdentity agentidentity)
+    throws IOException,
+           IllegalAccessException,
+           InstantiationException,
+           ClassNotFoundException,
+           TransferFailedException,
            AgentNotFoundException,
+           AgentDefinitionException,
            RemoteException
   {
-    AgentWrapper agentwrapper = null;
+    long msStart = System.currentTimeMillis();
 
-    try
+    RepositoryEntry repositoryentry = null;
+
+    // Offer the earlier state of the agent we hold, if any, as the
+    // base for a delta.  A package from this very host is never
+    // serialized, so its data must not be encoded.
+
+    int nEncodings = agenthost == this ? 0 : nDataEncodings;
+
+    StateCache.State state = null;
+
+    if ((nEncodings & TransferPackage.DELTA) != 0)
     {
-      agentwrapper = findAgentWrapper(agentidentity);
+      state = statecache.get(agentidentity);
     }
-    catch (AgentNotFoundException ex)
+
+    // Offer the code we hold -- archived, or in use by a resident
+    // agent.  The offered archives are pinned until the agent has
+    // arrived, so that they are not discarded in the meantime.
+
+    Hashtable hashtableResources = getResourceFiles();
+
+    String [] rgstrDigests = getOfferedDigests(hashtableResources);
+
+    TransferPackage transferpackage = null;
+
+    repository.pinArchives(rgstrDigests);
+
+    try
     {
-      // If we aren't hosting the agent, try to find the agent in our
-      // address book.
+      transferpackage =
+        agenthost.transferAgent(voucher,
+                                agentidentity,
+                                rgstrDigests,
+                                nEncodings,
+                                state == null ? null : state.strDigest);
+
+      try
+      {
+        // If the package left out the resource file, we have it
+        // archived or in use.
 
-      String strAgentHostName = (String)serverdata.hashtableAgentAddressBook.get(agentidentity);
+        if (transferpackage.getResourceFile() == null &&
+            transferpackage.getResourceDigest() != null)
+        {
+          repositoryentry = repository.createEntry(transferpackage.getResourceDigest(),
+                                                   (File)hashtableResources.get(transferpackage.getResourceDigest()),
+                                                   transferpackage.getDataFile());
 
-      if (this.strAgentHostName.equals(strAgentHostName))
+          recordArchiveReuse();
+        }
+        else
+        {
+          repositoryentry = repository.createEntry(transferpackage.getResourceFile(),
+                                                   transferpackage.getDataFile());
+        }
+      }
+      catch (IOException ex)
       {
-        return new Response(agentidentity, ex, Response.FAILED);
+        // The package holds temporary files -- unless the agent is
+        // being transferred to this very host, in which case it holds
+        // the agent's own files.
+
+        if (agenthost != this)
+        {
+          transferpackage.delete();
+        }
+
+        throw ex;
       }
+    }
+    finally
+    {
+      repository.unpinArchives(rgstrDigests);
+    }
 
-      if (strAgentHostName != null)
+    try
+    {
+      byte [] rgbData = null;
+
+      if (transferpackage.getDataEncoding() != 0)
       {
-        return new Response(agentidentity, strAgentHostName, Response.TRY_AGAIN);
-      }
+        long nsStart = System.nanoTime();
 
-      // If the address book doesn't contain a entry, get the last
-      // known host from the agent identity itself.
+        byte [] rgbEncoded = repositoryentry.getDataAsBytes();
 
-      strAgentHostName = agentidentity.getAgentHostName();
+        rgbData = StateCodec.decode(rgbEncoded,
+                                    state == null ? null : state.rgb,
+                                    transferpackage.getDataEncoding());
 
-      if (this.strAgentHostName.equals(strAgentHostName))
+        repositoryentry.setDataAsBytes(rgbData);
+
+        recordDecoding(System.nanoTime() - nsStart);
+      }
+
+      if ((nEncodings & TransferPackage.DELTA) != 0)
       {
-        return new Response(agentidentity, ex, Response.FAILED);
+        if (rgbData == null)
+        {
+          rgbData = repositoryentry.getDataAsBytes();
+        }
+
+        if (rgbData != null)
+        {
+          statecache.put(agentidentity, rgbData);
+        }
       }
+    }
+    catch (IOException ex)
+    {
+      repository.deleteEntry(repositoryentry);
 
-      return new Response(agentidentity, strAgentHostName, Response.TRY_AGAIN);
-    }      
+      throw ex;
+    }
+
+    agenthost.endTransfer(voucher, agentidentity);
+
+    agentidentity = resurrect(repositoryentry);
+
+    concurrenthashmapRepositoryEntries.put(agentidentity, repositoryentry);
+
+    serverdata.concurrenthashmapAgentAddressBook.put(agentidentity, strAgentHostName);
+
+    if (locationservice != null && agenthost != this)
+    {
+      relocate(agentidentity, transferpackage.getAgentHostName());
+    }
 
-    return agentwrapper.handleMessage(message);
+    recordTransfer(transferpackage.getLength(), System.currentTimeMillis() - msStart);
   }
 
   /**
-   * Initiates an agent transfer.
+   * Records a completed transfer.
+   *
+   * The histograms count the transfers into this agent host and
+   * total their sizes and times.
    *
    */
 
-  public final TransferResponse
-  initiateTransfer(final String strAgentHostName,
-                   final AgentIdentity agentidentity)
+  private void
+  recordTransfer(long nBytes, long ms)
   {
-    final TransferResponse transferresponse = new TransferResponse();
+    metrics.record("ki_transfer_bytes", nBytes);
+    metrics.record("ki_transfer_time_ms", ms);
+  }
 
-    Thread thread = new Thread()
-      {
-        public void
-        run()
-        {
-          Voucher voucher = new Voucher();
+  private long nArchiveReuses = 0;
+
+  /**
+   * Records a transfer that reused an archived resource file.
+   *
+   */
+
+  private synchronized void
+  recordArchiveReuse()
+  {
+    nArchiveReuses++;
+  }
+
+  /**
+   * Gets the number of transfers into this agent host that reused an
+   * archived resource file rather than receiving one.
+   *
+   */
+
+  final synchronized long
+  getArchiveReuseCount()
+  {
+    return nArchiveReuses;
+  }
+
+  /**
+   * The state encoding counters.
+   *
+   * The state encoding counters track the data of agents transferred
+   * out of this agent host, and the time spent encoding and decoding
+   * it.
+   *
+   */
+
+  private long nStateBytes = 0;
+  private long nStateBytesEncoded = 0;
+  private long nsEncoding = 0;
+  private long nsDecoding = 0;
+
+  /**
+   * Records the encoding of an agent's data.
+   *
+   */
+
+  private synchronized void
+  recordEncoding(long nBytes, long nBytesEncoded, long ns)
+  {
+    nStateBytes += nBytes;
+    nStateBytesEncoded += nBytesEncoded;
+    nsEncoding += ns;
+  }
 
-          hashtableTransferVouchers.put(agentidentity, voucher);
+  /**
+   * Records the decoding of an agent's data.
+   *
+   */
 
-          try
-          {
-            AgentHost agenthost = AgentHostImplementation.this;
+  private synchronized void
+  recordDecoding(long ns)
+  {
+    nsDecoding += ns;
+  }
 
-            if (!AgentHostImplementation.this.strAgentHostName.equals(strAgentHostName))
-            {
-              agenthost = lookupAgentHost(strAgentHostName);
-            }
+  /**
+   * Gets the number of bytes of data in agents transferred out of
+   * this agent host, before encoding.
+   *
+   */
 
-            agenthost.requestToTransfer(AgentHostImplementation.this,
-                                        voucher,
-                                        agentidentity);
+  final synchronized long
+  getStateBytes()
+  {
+    return nStateBytes;
+  }
 
-            // Update the address book.
+  /**
+   * Gets the number of bytes of data in agents transferred out of
+   * this agent host, as sent.
+   *
+   * The compression ratio is <CODE>getStateBytes()</CODE> divided by
+   * this value.
+   *
+   */
 
-            serverdata.hashtableAgentAddressBook.put(agentidentity, strAgentHostName);
+  final synchronized long
+  getStateBytesEncoded()
+  {
+    return nStateBytesEncoded;
+  }
 
-            transferresponse.setSucceeded();
-          }
-          catch (Exception ex)
-          {
-            transferresponse.setFailed(ex);
-          }
-          finally
-          {
-            hashtableTransferVouchers.remove(agentidentity);
-          }
-        }
-      };
+  /**
+   * Gets the total time (in nanoseconds) spent encoding data.
+   *
+   */
 
-    thread.start();
+  final synchronized long
+  getEncodingTime()
+  {
+    return nsEncoding;
+  }
 
-//  thread.setPriority(thread.getPriority() + 1);
+  /**
+   * Gets the total time (in nanoseconds) spent decoding data.
+   *
+   */
 
-    return transferresponse;
+  final synchronized long
+  getDecodingTime()
+  {
+    return nsDecoding;
   }
 
   /**
-   * Requests that an agent transfer occur.
+   * Transfers an agent.
    *
    * This method should only be called via RMI.
    *
-   * @see AgentHost.requestToTransfer
+   * @see AgentHost.transferAgent
    *
    */
 
-  public void
-  requestToTransfer(AgentHost agenthost,
-                    Voucher voucher,
-                    AgentIdentity agentidentity)
+  public TransferPackage
+  transferAgent(Voucher voucher,
+                AgentIdentity agentidentity,
+                String [] rgstrResourceDigests,
+                int nDataEncodings,
+                String strDataDigest)
     throws IOException,
-           IllegalAccessException,
-           InstantiationException,
-           ClassNotFoundException,
            TransferFailedException,
            AgentNotFoundException,
-           AgentDefinitionException,
            RemoteException
   {
-    byte [] rgbResource = null;
-    byte [] rgbData = null;
+    beginTransfer(voucher, agentidentity);
 
-    RepositoryEntry repositoryentry = null;
+    RepositoryEntry repositoryentry = findRepositoryEntry(agentidentity);
 
-    agenthost.beginTransfer(voucher, agentidentity);
+    String strResourceDigest = repositoryentry.getResourceDigest();
 
-    rgbResource = agenthost.transferResourceFile(voucher, agentidentity);
+    File fileResource = repositoryentry.getResource();
 
-    rgbData = agenthost.transferDataFile(voucher, agentidentity);
+    // Leave the resource file out if the requesting agent host
+    // already holds it.
 
-    agenthost.endTransfer(voucher, agentidentity);
+    for (int i = 0; rgstrResourceDigests != null && i < rgstrResourceDigests.length; i++)
+    {
+      if (rgstrResourceDigests[i].equals(strResourceDigest))
+      {
+        fileResource = null;
 
-    repositoryentry = repository.createEntry(rgbResource, rgbData);
+        break;
+      }
+    }
 
-    agentidentity = resurrect(repositoryentry);
+    // Encode the data with the encodings both agent hosts accept.  A
+    // delta is only possible if both agent hosts hold the same
+    // earlier state.
 
-    hashtableRepositoryEntries.put(agentidentity, repositoryentry);
+    int nEncoding = nDataEncodings & this.nDataEncodings;
 
-    serverdata.hashtableAgentAddressBook.put(agentidentity, strAgentHostName);
+    if (nEncoding != 0 && repositoryentry.getData().exists())
+    {
+      long nsStart = System.nanoTime();
+
+      byte [] rgbData = repositoryentry.getDataAsBytes();
+
+      StateCache.State state = statecache.get(agentidentity);
+
+      if (state == null || !state.strDigest.equals(strDataDigest))
+      {
+        nEncoding &= ~TransferPackage.DELTA;
+
+        state = null;
+      }
+
+      byte [] rgbEncoded = rgbData;
+
+      if (nEncoding != 0)
+      {
+        rgbEncoded = StateCodec.encode(rgbData, state == null ? null : state.rgb, nEncoding);
+      }
+
+      // The requesting agent host will hold this state, so remember
+      // it as the base for the agent's return.
+
+      if ((nDataEncodings & TransferPackage.DELTA) != 0)
+      {
+        statecache.put(agentidentity, rgbData);
+      }
+
+      if (rgbEncoded.length < rgbData.length)
+      {
+        recordEncoding(rgbData.length, rgbEncoded.length, System.nanoTime() - nsStart);
+
+        TransferPackage transferpackage =
+          new TransferPackage(fileResource, rgbEncoded, nEncoding, strResourceDigest);
+
+        transferpackage.setAgentHostName(strAgentHostName);
+
+        return transferpackage;
+      }
+
+      recordEncoding(rgbData.length, rgbData.length, System.nanoTime() - nsStart);
+    }
+
+    TransferPackage transferpackage =
+      new TransferPackage(fileResource, repositoryentry.getData(), strResourceDigest);
+
+    transferpackage.setAgentHostName(strAgentHostName);
+
+    return transferpackage;
   }
 
+
   /**
    * Begins a transfer.
    *
@@ -728,7 +3556,7 @@ public class AgentHostImplementation
                       AgentIdentity agentidentity)
        throws TransferFailedException
   {
-    if (!voucher.equals(hashtableTransferVouchers.get(agentidentity)))
+    if (!voucher.equals(concurrenthashmapTransferVouchers.get(agentidentity)))
     {
       throw new TransferFailedException("invalid voucher");
     }
@@ -739,7 +3567,7 @@ public class AgentHostImplementation
        throws AgentNotFoundException
   {
     RepositoryEntry repositoryentry =
-      (RepositoryEntry)hashtableRepositoryEntries.get(agentidentity);
+      (RepositoryEntry)concurrenthashmapRepositoryEntries.get(agentidentity);
 
     if (repositoryentry == null)
     {
@@ -754,7 +3582,7 @@ public class AgentHostImplementation
        throws AgentNotFoundException
   {
     RepositoryEntry repositoryentry =
-      (RepositoryEntry)hashtableRepositoryEntries.remove(agentidentity);
+      (RepositoryEntry)concurrenthashmapRepositoryEntries.remove(agentidentity);
 
     if (repositoryentry == null)
     {
@@ -769,7 +3597,7 @@ public class AgentHostImplementation
        throws AgentNotFoundException
   {
     AgentWrapper agentwrapper =
-      (AgentWrapper)hashtableAgentWrappers.get(agentidentity);
+      (AgentWrapper)concurrenthashmapAgentWrappers.get(agentidentity);
 
     if (agentwrapper == null)
     {
@@ -784,7 +3612,7 @@ public class AgentHostImplementation
        throws AgentNotFoundException
   {
     AgentWrapper agentwrapper =
-      (AgentWrapper)hashtableAgentWrappers.remove(agentidentity);
+      (AgentWrapper)concurrenthashmapAgentWrappers.remove(agentidentity);
 
     if (agentwrapper == null)
     {
@@ -797,6 +3625,8 @@ public class AgentHostImplementation
   /**
    * Returns an enumeration of all agents.
    *
+   * Passivated agents are included.
+   *
    * The results may only be valid for a short period of time.
    *
    */
@@ -804,21 +3634,23 @@ public class AgentHostImplementation
   public Enumeration
   enumerateAllAgents()
   {
-    return hashtableAgentWrappers.keys();
+    return concurrenthashmapRepositoryEntries.keys();
   }
 
   /**
    * Determines whether or not the agent identity is locked.
    *
+   * An agent is locked while it is being transferred or passivated.
+   *
    * @see lockAgentIdentity
    * @see unlockAgentIdentity
    *
    */
 
-  private boolean
+  final boolean
   isLocked(AgentIdentity agentidentity)
   {
-    return hashtableTransferVouchers.containsKey(agentidentity);
+    return concurrenthashmapTransferVouchers.containsKey(agentidentity);
   }
 
   /**
@@ -849,14 +3681,9 @@ public class AgentHostImplementation
       voucher = new Voucher();
     }
 
-    synchronized (hashtableTransferVouchers)
+    if (concurrenthashmapTransferVouchers.putIfAbsent(agentidentity, voucher) != null)
     {
-      if (hashtableTransferVouchers.containsKey(agentidentity))
-      {
-        throw new AgentLockedException(agentidentity);
-      }
-
-      hashtableTransferVouchers.put(agentidentity, voucher);
+      throw new AgentLockedException(agentidentity);
     }
   }
 
@@ -870,12 +3697,263 @@ public class AgentHostImplementation
   private void
   unlockAgentIdentity(AgentIdentity agentidentity)
   {
-    hashtableTransferVouchers.remove(agentidentity);
+    concurrenthashmapTransferVouchers.remove(agentidentity);
+  }
+
+  /**
+   * Locates an agent.
+   *
+   * This method can be called via RMI.
+   *
+   * @see AgentHost.locateAgent
+   *
+   */
+
+  public String
+  locateAgent(AgentIdentity agentidentity)
+    throws RemoteException
+  {
+    if (locationservice == null)
+    {
+      return null;
+    }
+
+    return locationservice.locate(agentidentity);
+  }
+
+  /**
+   * Records the move of an agent.
+   *
+   * This method can be called via RMI.
+   *
+   * @see AgentHost.relocateAgent
+   *
+   */
+
+  public void
+  relocateAgent(AgentIdentity agentidentity,
+                String strFrom,
+                String strTo)
+    throws RemoteException
+  {
+    if (locationservice != null && strTo != null)
+    {
+      locationservice.relocate(agentidentity, strFrom, strTo);
+    }
+  }
+
+  /**
+   * Gets the changes to the agents published on this agent host.
+   *
+   * This method can be called via RMI.
+   *
+   * @see AgentHost.getDirectoryUpdate
+   *
+   */
+
+  public DirectoryUpdate
+  getDirectoryUpdate(long nEpoch, long nSequence)
+    throws RemoteException
+  {
+    return serverdata.directory.getUpdate(strAgentHostName, nEpoch, nSequence);
+  }
+
+  /**
+   * Gets the load on this agent host.
+   *
+   * This method can be called via RMI.
+   *
+   * @see AgentHost.getLoad
+   *
+   */
+
+  public Load
+  getLoad()
+    throws RemoteException
+  {
+    if (balancer == null)
+    {
+      return null;
+    }
+
+    return balancer.getLoad();
+  }
+
+  /**
+   * Asks an agent's home where the agent is.
+   *
+   * The answer is not kept -- the caller decides whether to trust it.
+   *
+   * @see rememberLocation
+   *
+   * @returns the name of the agent host the agent is on, or null if
+   *          the home does not know or could not be reached.
+   *
+   */
+
+  private String
+  locate(AgentIdentity agentidentity)
+  {
+    String strHome = locationservice.getHome(agentidentity);
+
+    String str = null;
+
+    try
+    {
+      if (strHome.equals(strAgentHostName))
+      {
+        str = locationservice.locate(agentidentity);
+      }
+      else
+      {
+        str = lookupAgentHost(strHome).locateAgent(agentidentity);
+      }
+    }
+    catch (Exception ex)
+    {
+      agenthostcache.invalidate(strHome);
+
+      locationservice.recordFailure();
+
+      return null;
+    }
+
+    return str;
+  }
+
+  /**
+   * Remembers where an agent's home says the agent is.
+   *
+   * Moves reach the home in the background, so its answer may be
+   * older than the address book.  The answer only fills in an entry
+   * the address book doesn't have, or replaces the entry the caller
+   * found stale -- never one written since, by a completed transfer
+   * for example.  An answer naming this agent host is not remembered:
+   * the agent is not here.
+   *
+   * @parameter strStale the entry the caller found stale, or null.
+   *
+   */
+
+  private void
+  rememberLocation(AgentIdentity agentidentity, String strStale, String strLocated)
+  {
+    if (strLocated == null || strLocated.equals(strAgentHostName))
+    {
+      return;
+    }
+
+    agentidentity = serverdata.identitytable.intern(agentidentity);
+
+    if (strStale == null)
+    {
+      serverdata.concurrenthashmapAgentAddressBook.putIfAbsent(agentidentity, strLocated);
+    }
+    else
+    {
+      serverdata.concurrenthashmapAgentAddressBook.replace(agentidentity, strStale, strLocated);
+    }
+  }
+
+  /**
+   * Tells an agent's home that the agent is now here.
+   *
+   * The home is told in the background.
+   *
+   * @parameter strFrom the agent host the agent left, or null to
+   *            claim the agent.
+   *
+   */
+
+  private void
+  relocate(final AgentIdentity agentidentity, final String strFrom)
+  {
+    Runnable runnable = new Runnable()
+      {
+        public void
+        run()
+        {
+          tell(agentidentity, strFrom);
+        }
+      };
+
+    if (!dispatcher.dispatch(runnable))
+    {
+      locationservice.recordFailure();
+    }
+  }
+
+  /**
+   * Claims the agents this agent host holds.
+   *
+   * The homes are told in the background, one agent at a time.
+   *
+   */
+
+  private void
+  claimAgents()
+  {
+    final Vector vector = new Vector();
+
+    Enumeration enumeration = concurrenthashmapRepositoryEntries.keys();
+
+    while (enumeration.hasMoreElements())
+    {
+      vector.addElement(enumeration.nextElement());
+    }
+
+    Runnable runnable = new Runnable()
+      {
+        public void
+        run()
+        {
+          for (int i = 0; i < vector.size(); i++)
+          {
+            tell((AgentIdentity)vector.elementAt(i), null);
+          }
+        }
+      };
+
+    if (!dispatcher.dispatch(runnable))
+    {
+      locationservice.recordFailure();
+    }
+  }
+
+  /**
+   * Tells an agent's home where the agent is.
+   *
+   */
+
+  private void
+  tell(AgentIdentity agentidentity, String strFrom)
+  {
+    String strHome = locationservice.getHome(agentidentity);
+
+    try
+    {
+      if (strHome.equals(strAgentHostName))
+      {
+        locationservice.relocate(agentidentity, strFrom, strAgentHostName);
+      }
+      else
+      {
+        lookupAgentHost(strHome).relocateAgent(agentidentity, strFrom, strAgentHostName);
+      }
+    }
+    catch (Exception ex)
+    {
+      agenthostcache.invalidate(strHome);
+
+      locationservice.recordFailure();
+    }
   }
 
   /**
    * Looks up an agent host.
    *
+   * Lookups are satisfied from the agent host cache where possible.
+   *
    * @throws MalformedURLException if the agent host name was not a
    *         valid URL.
    *
@@ -888,13 +3966,13 @@ public class AgentHostImplementation
    *
    */
 
-  private final AgentHost
+  final AgentHost
   lookupAgentHost(String strAgentHostName)
     throws MalformedURLException,
            UnknownHostException,
            RemoteException,
            NotBoundException
   {
-    return (AgentHost)Naming.lookup(strAgentHostName);
+    return agenthostcache.lookup(strAgentHostName);
   }
 }
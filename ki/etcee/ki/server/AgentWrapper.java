@@ -6,17 +6,18 @@ import etcee.ki.agent.AgentIdentity;
 import etcee.ki.agent.AgentContext;
 import etcee.ki.agent.Message;
 
+import etcee.ki.agenthost.AgentHost;
+import etcee.ki.agenthost.MessageFailedException;
 import etcee.ki.agenthost.Response;
+import etcee.ki.agenthost.Voucher;
 import etcee.ki.agenthost.AgentDefinitionException;
 
-import java.lang.reflect.Method;
-import java.lang.reflect.InvocationTargetException;
-
+import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.IOException;
 
-import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The agent wrapper.
@@ -127,13 +128,16 @@ abstract public class AgentWrapper
   private Object objTarget = null;
 
   /**
-   * The method table.
+   * The handler table.
+   *
+   * The handler table is shared by every agent whose target is of
+   * the same class.
    *
-   * The method table maps message names to methods.
+   * @see HandlerTable
    *
    */
 
-  private Hashtable hashtableMethods = null;
+  private HandlerTable handlertable = null;
 
   /**
    * The state.
@@ -163,6 +167,42 @@ abstract public class AgentWrapper
     return nState;
   }
 
+  /**
+   * The dormant flag.
+   *
+   * The dormant flag is set while the agent is stopped to wait in
+   * the repository -- it stays on this agent host, so it stays
+   * published.
+   *
+   */
+
+  private volatile boolean boolDormant = false;
+
+  /**
+   * Marks the agent as stopping to wait in the repository.
+   *
+   * @see AgentContextImplementation.unpublish
+   *
+   */
+
+  final void
+  setDormant()
+  {
+    boolDormant = true;
+  }
+
+  /**
+   * Determines whether or not the agent is stopping to wait in the
+   * repository.
+   *
+   */
+
+  final boolean
+  isDormant()
+  {
+    return boolDormant;
+  }
+
   /**
    * Initializes the agent wrapper.
    *
@@ -203,11 +243,13 @@ abstract public class AgentWrapper
   {
     this.agent = agent;
 
-    this.agentidentity = agentidentity;
+    // The agent host's tables share the agent's own agent identity.
+
+    this.agentidentity = serverdata.identitytable.intern(agentidentity);
 
     // Create the agent context.
 
-    agent.setAgentContext(new AgentContextImplementation(this));
+    ((AgentRoot)agent).setAgentContext(new AgentContextImplementation(this));
 
     objTarget = agent.getTarget();
 
@@ -218,25 +260,14 @@ abstract public class AgentWrapper
 
     nState = boolNew ? INERT : STOPPED;
 
-    // Scan the target for message handlers.
-
-    Method [] rgmethod = objTarget.getClass().getMethods();
+    // Get the message handlers of the target's class.  They are only
+    // scanned for the first agent of the class.
 
-    hashtableMethods = new Hashtable(rgmethod.length);
+    handlertable = HandlerTable.getHandlerTable(objTarget.getClass());
 
-    for (int i = 0; i < rgmethod.length; i++)
+    if (handlertable.getDuplicate() != null)
     {
-      String strName = rgmethod[i].getName();
-
-      if (strName.startsWith("handle"))
-      {
-        String strMessageName = strName.substring(6);
-
-        if (hashtableMethods.put(strMessageName, rgmethod[i]) != null)
-        {
-          throw new AgentDefinitionException(agentidentity, strMessageName);
-        }
-      }
+      throw new AgentDefinitionException(agentidentity, handlertable.getDuplicate());
     }
   }
 
@@ -280,6 +311,106 @@ abstract public class AgentWrapper
     monitor.lockAndWait();
   }
 
+  /**
+   * Locks the agent wrapper if it is not handling any messages.
+   *
+   * Unlike <CODE>lockAndWait()</CODE>, this method never waits.
+   *
+   * @returns false if the agent is busy or already locked.
+   *
+   * @see lockAndWait
+   *
+   */
+
+  final boolean
+  tryLock()
+  {
+    if (!monitor.pause())
+    {
+      return false;
+    }
+
+    monitor.setLockFlag(true);
+
+    monitor.resume();
+
+    return true;
+  }
+
+  /**
+   * Checkpoints the agent.
+   *
+   * The agent is written while it is between messages.  Messages
+   * that arrive meanwhile wait.  The agent is not stopped, so any
+   * threads of its own keep running.
+   *
+   * @returns the agent's data, or null if the agent is busy.
+   *
+   * @see Checkpointer
+   *
+   */
+
+  final byte []
+  checkpoint()
+    throws IOException
+  {
+    if (nState != STARTED || !monitor.pause())
+    {
+      return null;
+    }
+
+    try
+    {
+      ByteArrayOutputStream bytearrayoutputstream = new ByteArrayOutputStream();
+
+      ObjectOutputStream objectoutputstream = new ObjectOutputStream(bytearrayoutputstream);
+
+      unload(objectoutputstream);
+
+      objectoutputstream.close();
+
+      return bytearrayoutputstream.toByteArray();
+    }
+    finally
+    {
+      monitor.resume();
+    }
+  }
+
+  /**
+   * The handler counters.
+   *
+   * The handler counters track the messages this agent has handled
+   * and the time spent handling them.
+   *
+   */
+
+  private AtomicLong atomiclongHandled = new AtomicLong();
+  private AtomicLong atomiclongHandlerTime = new AtomicLong();
+
+  /**
+   * Gets the number of messages the agent has handled.
+   *
+   */
+
+  final long
+  getHandledCount()
+  {
+    return atomiclongHandled.get();
+  }
+
+  /**
+   * Gets the total time (in nanoseconds) the agent has spent
+   * handling messages.
+   *
+   */
+
+  final long
+  getHandlerTime()
+  {
+    return atomiclongHandlerTime.get();
+  }
+
   /**
    * Handles a message.
    *
@@ -293,31 +424,27 @@ abstract public class AgentWrapper
   final Response
   handleMessage(Message message)
   {
-    String strMessageName = message.getMessageName();
+    Metrics metrics = agenthostimplementation.getMetrics();
 
-    Object [] rgobj = message.getParameters();
+    metrics.increment("ki_messages_received", "message", message.getMessageName());
 
-    Method method = (Method)hashtableMethods.get(strMessageName);
+    HandlerTable.Handler handler = handlertable.getHandler(message.getMessageName());
 
     // If a handler wasn't defined, try the catch-all handler.  Pass
     // it the message name and the parameters.
 
-    if (method == null)
-    {
-      method = (Method)hashtableMethods.get("");
-
-      Object [] rgobjTemp = new Object [2];
-
-      rgobjTemp[0] = strMessageName;
+    boolean boolCatchAll = false;
 
-      rgobjTemp[1] = rgobj;
+    if (handler == null)
+    {
+      handler = handlertable.getCatchAllHandler();
 
-      rgobj = rgobjTemp;
+      boolCatchAll = true;
     }
 
     // If a handler wasn't defined, give up.
 
-    if (method == null)
+    if (handler == null)
     {
       return new Response(agentidentity, null, Response.NOT_FOUND);
     }
@@ -331,30 +458,134 @@ abstract public class AgentWrapper
 
     Object obj = null;
 
+    long nsStart = System.nanoTime();
+
     try
     {
-      obj = method.invoke(objTarget, rgobj);
-    }
-    catch (IllegalAccessException ex)
-    {
-      return new Response(agentidentity, ex, Response.FAILED);
+      obj = boolCatchAll ? handler.invokeCatchAll(objTarget, message)
+                         : handler.invoke(objTarget, message);
     }
-    catch (IllegalArgumentException ex)
+    catch (Exception ex)
     {
       return new Response(agentidentity, ex, Response.FAILED);
     }
-    catch (InvocationTargetException ex)
+    catch (Throwable throwable)
     {
-      return new Response(agentidentity, ex.getTargetException(), Response.FAILED);
+      // A failed response carries an exception -- an error thrown by
+      // the handler is reported as a failed message.
+
+      return new Response(agentidentity,
+                          new MessageFailedException(throwable.toString()),
+                          Response.FAILED);
     }
     finally
     {
       monitor.endOperation();
+
+      long ns = System.nanoTime() - nsStart;
+
+      atomiclongHandled.incrementAndGet();
+      atomiclongHandlerTime.addAndGet(ns);
+
+      metrics.record("ki_handler_time_ns", ns);
     }
 
     return new Response(agentidentity, obj, Response.SUCCEEDED);
   }
 
+  /**
+   * The mailbox.
+   *
+   * The mailbox is null unless the agent host queues messages.
+   *
+   */
+
+  private Mailbox mailbox = null;
+
+  /**
+   * Gets the mailbox.
+   *
+   */
+
+  final Mailbox
+  getMailbox()
+  {
+    return mailbox;
+  }
+
+  /**
+   * Sets the mailbox.
+   *
+   * @see AgentHostImplementation.resurrect
+   *
+   */
+
+  final void
+  setMailbox(Mailbox mailbox)
+  {
+    this.mailbox = mailbox;
+  }
+
+  /**
+   * The time (in milliseconds) the agent was last active.
+   *
+   */
+
+  private volatile long msLastActive = System.currentTimeMillis();
+
+  /**
+   * Gets the time (in milliseconds) the agent was last active.
+   *
+   * @see Passivator
+   *
+   */
+
+  final long
+  getLastActive()
+  {
+    return msLastActive;
+  }
+
+  /**
+   * Marks the agent as active.
+   *
+   * The agent is active when it is sent a message and when it sends
+   * one.
+   *
+   */
+
+  final void
+  touch()
+  {
+    msLastActive = System.currentTimeMillis();
+  }
+
+  /**
+   * Posts a message.
+   *
+   * The agent host calls this method when it wants the agent to
+   * handle a message.  If the agent has a mailbox, the message is
+   * queued and the response is delivered later to the sending agent
+   * host.  Otherwise the message is handled at once.
+   *
+   * @see Mailbox
+   * @see AgentHostImplementation.sendMessage
+   *
+   */
+
+  final Response
+  postMessage(AgentHost agenthost, Voucher voucher, Message message)
+  {
+    touch();
+
+    if (mailbox == null)
+    {
+      return handleMessage(message);
+    }
+
+    return mailbox.post(agenthost, voucher, message);
+  }
+
   /**
    * Initializes the agent.
    *
@@ -415,6 +646,33 @@ abstract public class AgentWrapper
     nState = AgentWrapper.CONCLUDED;
   }
 
+  /**
+   * Asks the agent whether the agent host may transfer it.
+   *
+   * An agent that is not started, or that fails to answer, refuses.
+   *
+   * @see Agent.allowTransfer
+   *
+   */
+
+  final boolean
+  allowsTransfer(String strAgentHostName)
+  {
+    if (nState != STARTED)
+    {
+      return false;
+    }
+
+    try
+    {
+      return agent.allowTransfer(strAgentHostName);
+    }
+    catch (Throwable throwable)
+    {
+      return false;
+    }
+  }
+
   /**
    * Loads the agent wrapper.
    *
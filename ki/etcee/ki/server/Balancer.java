@@ -0,0 +1,694 @@
+package etcee.ki.server;
+
+import etcee.ki.agent.AgentIdentity;
+import etcee.ki.agent.TransferResponse;
+import etcee.ki.agent.TransferResponseListener;
+
+import etcee.ki.agenthost.Load;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The balancer.
+ *
+ * The <CODE>Balancer</CODE> class spreads agents across the agent
+ * hosts listed in the <CODE>etcee.ki.hosts</CODE> system property.
+ * At regular intervals it measures this agent host's load, asks each
+ * of the other agent hosts for theirs, and if this agent host is
+ * overloaded, moves some of its agents to the agent hosts that are
+ * underloaded.  The agents move through
+ * <CODE>AgentHostImplementation.initiateTransfer()</CODE>, as they
+ * would if they had asked to.
+ *
+ * The policy decides what load means:
+ *
+ * <UL>
+ * <LI><CODE>agents</CODE> -- the number of agents hosted, resident
+ *     or passivated
+ * <LI><CODE>messages</CODE> -- the number of messages handled per
+ *     second
+ * <LI><CODE>cpu</CODE> -- the time spent handling messages, per
+ *     second
+ * </UL>
+ *
+ * So that agents do not thrash between agent hosts:
+ *
+ * <UL>
+ * <LI>an agent host only counts as overloaded if its load exceeds
+ *     the mean by the threshold, for a number of periods in a row
+ * <LI>agents are only moved while the load they take leaves this
+ *     agent host at or above the mean and the receiving agent host
+ *     at or below it
+ * <LI>only a few agents are moved each period
+ * <LI>an agent must have been on this agent host for the cooldown
+ *     before it is moved
+ * </UL>
+ *
+ * Agents that the affinity optimizer would keep here, because they
+ * talk to the agents on this agent host, are left where they are.
+ * An agent may also refuse a move.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see AgentHostImplementation.getLoad
+ * @see Affinity
+ *
+ */
+
+final class Balancer
+{
+  /**
+   * The policies.
+   *
+   */
+
+  final static int AGENTS = 0;
+  final static int MESSAGES = 1;
+  final static int CPU = 2;
+
+  /**
+   * The smallest excess worth moving agents for, by policy.
+   *
+   */
+
+  private final static double [] rgdMinimumExcess = { 1.0, 1.0, 0.01 };
+
+  /**
+   * Parses a policy.
+   *
+   * @returns the policy, or <CODE>AGENTS</CODE> if the name was null
+   *          or unknown.
+   *
+   */
+
+  static int
+  parsePolicy(String str)
+  {
+    if ("messages".equals(str))
+    {
+      return MESSAGES;
+    }
+    else if ("cpu".equals(str))
+    {
+      return CPU;
+    }
+
+    return AGENTS;
+  }
+
+  /**
+   * A sample of a resident agent.
+   *
+   */
+
+  private final static class Sample
+  {
+    AgentWrapper agentwrapper = null;
+
+    long msFirstSeen = 0;
+    long msLastActive = 0;
+
+    long nHandled = 0;
+    long nsHandlerTime = 0;
+
+    double dMessageRate = 0.0;
+    double dHandlerLoad = 0.0;
+  }
+
+  /**
+   * The agent host implementation.
+   *
+   */
+
+  private AgentHostImplementation agenthostimplementation = null;
+
+  /**
+   * The names of the agent hosts.
+   *
+   */
+
+  private String [] rgstrAgentHostNames = null;
+
+  /**
+   * The policy.
+   *
+   */
+
+  private int nPolicy = AGENTS;
+
+  /**
+   * The threshold (in percent of the mean).
+   *
+   */
+
+  private int nThreshold = 0;
+
+  /**
+   * The number of periods in a row an agent host must be overloaded
+   * before agents are moved.
+   *
+   */
+
+  private int nRounds = 0;
+
+  /**
+   * The most agents moved in a period.
+   *
+   */
+
+  private int nBatch = 0;
+
+  /**
+   * The time (in milliseconds) an agent must have been on this agent
+   * host before it is moved.
+   *
+   */
+
+  private long msCooldown = 0;
+
+  /**
+   * The samples.
+   *
+   * The samples map the agent identities of the resident agents to
+   * their samples.
+   *
+   */
+
+  private HashMap hashmapSamples = new HashMap();
+
+  /**
+   * The time of the last sample.
+   *
+   */
+
+  private long msSampled = 0;
+
+  /**
+   * This agent host's load, as last measured.
+   *
+   * The load is read without the lock, so that two agent hosts
+   * balancing at once can ask each other for theirs.
+   *
+   */
+
+  private volatile Load load = null;
+
+  /**
+   * The number of periods in a row this agent host has been
+   * overloaded.
+   *
+   */
+
+  private int nOverloaded = 0;
+
+  /**
+   * The timer.
+   *
+   */
+
+  private Timer timer = new Timer("balancer", true);
+
+  /**
+   * The counters.
+   *
+   */
+
+  private AtomicLong atomiclongMoves = new AtomicLong();
+  private AtomicLong atomiclongFailures = new AtomicLong();
+
+  /**
+   * Constructs the balancer.
+   *
+   * @parameter nThreshold the threshold, in percent of the mean.
+   *
+   * @parameter nRounds the number of periods in a row an agent host
+   *            must be overloaded before agents are moved.
+   *
+   * @parameter nBatch the most agents moved in a period.
+   *
+   * @parameter msCooldown the time (in milliseconds) an agent must
+   *            have been on this agent host before it is moved.
+   *
+   * @parameter msPeriod the time (in milliseconds) between periods.
+   *
+   */
+
+  Balancer(AgentHostImplementation agenthostimplementation,
+           String [] rgstrAgentHostNames,
+           int nPolicy,
+           int nThreshold,
+           int nRounds,
+           int nBatch,
+           long msCooldown,
+           long msPeriod)
+  {
+    this.agenthostimplementation = agenthostimplementation;
+    this.rgstrAgentHostNames = rgstrAgentHostNames;
+    this.nPolicy = nPolicy;
+    this.nThreshold = nThreshold;
+    this.nRounds = nRounds;
+    this.nBatch = nBatch;
+    this.msCooldown = msCooldown;
+
+    sample();
+
+    TimerTask timertask = new TimerTask()
+      {
+        public void
+        run()
+        {
+          try
+          {
+            balance();
+          }
+          catch (Throwable throwable)
+          {
+            throwable.printStackTrace();
+          }
+        }
+      };
+
+    timer.schedule(timertask, msPeriod, msPeriod);
+  }
+
+  /**
+   * Shuts the balancer down.
+   *
+   */
+
+  final void
+  shutdown()
+  {
+    timer.cancel();
+  }
+
+  /**
+   * Gets this agent host's load, as last measured.
+   *
+   */
+
+  final Load
+  getLoad()
+  {
+    return load;
+  }
+
+  /**
+   * Measures this agent host's load.
+   *
+   */
+
+  private synchronized void
+  sample()
+  {
+    long msNow = System.currentTimeMillis();
+
+    double dSeconds = Math.max(msNow - msSampled, 1) / 1000.0;
+
+    HashMap hashmap = new HashMap();
+
+    double dMessageRate = 0.0;
+    double dHandlerLoad = 0.0;
+
+    Iterator iterator = agenthostimplementation.getAgentWrappers().iterator();
+
+    while (iterator.hasNext())
+    {
+      AgentWrapper agentwrapper = (AgentWrapper)iterator.next();
+
+      AgentIdentity agentidentity = agentwrapper.getAgentIdentity();
+
+      Sample sample = (Sample)hashmapSamples.get(agentidentity);
+
+      long nHandled = agentwrapper.getHandledCount();
+      long nsHandlerTime = agentwrapper.getHandlerTime();
+
+      // An agent seen for the first time -- or resurrected since --
+      // has no rate yet.
+
+      if (sample == null || sample.agentwrapper != agentwrapper)
+      {
+        sample = new Sample();
+
+        sample.agentwrapper = agentwrapper;
+        sample.msFirstSeen = msNow;
+      }
+      else
+      {
+        sample.dMessageRate = (nHandled - sample.nHandled) / dSeconds;
+        sample.dHandlerLoad = (nsHandlerTime - sample.nsHandlerTime) / (dSeconds * 1.0e9);
+      }
+
+      sample.nHandled = nHandled;
+      sample.nsHandlerTime = nsHandlerTime;
+
+      sample.msLastActive = agentwrapper.getLastActive();
+
+      dMessageRate += sample.dMessageRate;
+      dHandlerLoad += sample.dHandlerLoad;
+
+      hashmap.put(agentidentity, sample);
+    }
+
+    hashmapSamples = hashmap;
+
+    msSampled = msNow;
+
+    load = new Load(agenthostimplementation.getAgentHostName(),
+                    agenthostimplementation.getAgentCount(),
+                    dMessageRate,
+                    dHandlerLoad);
+  }
+
+  /**
+   * Gets the value of a load under the policy.
+   *
+   */
+
+  private double
+  value(Load load)
+  {
+    switch (nPolicy)
+    {
+    case MESSAGES:
+      return load.getMessageRate();
+    case CPU:
+      return load.getHandlerLoad();
+    default:
+      return load.getAgentCount();
+    }
+  }
+
+  /**
+   * Gets the load an agent adds under the policy.
+   *
+   */
+
+  private double
+  value(Sample sample)
+  {
+    switch (nPolicy)
+    {
+    case MESSAGES:
+      return sample.dMessageRate;
+    case CPU:
+      return sample.dHandlerLoad;
+    default:
+      return 1.0;
+    }
+  }
+
+  /**
+   * Measures the load and moves agents if this agent host is
+   * overloaded.
+   *
+   */
+
+  final synchronized void
+  balance()
+  {
+    sample();
+
+    Vector vectorLoads = new Vector();
+
+    vectorLoads.addElement(load);
+
+    for (int i = 0; i < rgstrAgentHostNames.length; i++)
+    {
+      String strAgentHostName = rgstrAgentHostNames[i];
+
+      if (strAgentHostName.equals(agenthostimplementation.getAgentHostName()))
+      {
+        continue;
+      }
+
+      try
+      {
+        Load loadRemote = agenthostimplementation.lookupAgentHost(strAgentHostName).getLoad();
+
+        if (loadRemote != null)
+        {
+          vectorLoads.addElement(loadRemote);
+        }
+      }
+      catch (Exception ex)
+      {
+        agenthostimplementation.getAgentHostCache().invalidate(strAgentHostName);
+
+        agenthostimplementation.getMetrics().increment("ki_placement_unreachable");
+      }
+    }
+
+    agenthostimplementation.getMetrics().increment("ki_placement_rounds");
+
+    if (vectorLoads.size() < 2)
+    {
+      return;
+    }
+
+    double dMean = 0.0;
+
+    for (int i = 0; i < vectorLoads.size(); i++)
+    {
+      dMean += value((Load)vectorLoads.elementAt(i));
+    }
+
+    dMean /= vectorLoads.size();
+
+    double dExcess = value(load) - dMean;
+
+    if (dExcess < rgdMinimumExcess[nPolicy] || dExcess <= dMean * nThreshold / 100.0)
+    {
+      nOverloaded = 0;
+
+      return;
+    }
+
+    if (++nOverloaded < nRounds)
+    {
+      return;
+    }
+
+    // The loads are stale once agents move, so wait as long again
+    // before the next move.
+
+    nOverloaded = 0;
+
+    // The room each underloaded agent host has below the mean.
+
+    Vector vectorTargets = new Vector();
+
+    for (int i = 1; i < vectorLoads.size(); i++)
+    {
+      Load loadRemote = (Load)vectorLoads.elementAt(i);
+
+      if (value(loadRemote) < dMean)
+      {
+        vectorTargets.addElement(new Object [] { loadRemote.getAgentHostName(),
+                                                 Double.valueOf(dMean - value(loadRemote)) });
+      }
+    }
+
+    move(pick(), vectorTargets, dExcess);
+  }
+
+  /**
+   * Picks the agents that may be moved, in the order they should be
+   * considered.
+   *
+   * Under the <CODE>agents</CODE> policy, the least recently active
+   * agents come first.  Otherwise the busiest agents come first.
+   *
+   */
+
+  private Vector
+  pick()
+  {
+    long msNow = System.currentTimeMillis();
+
+    Affinity affinity = agenthostimplementation.getAffinity();
+
+    Vector vector = new Vector();
+
+    Iterator iterator = hashmapSamples.values().iterator();
+
+    while (iterator.hasNext())
+    {
+      Sample sample = (Sample)iterator.next();
+
+      if (msNow - sample.msFirstSeen < msCooldown)
+      {
+        continue;
+      }
+
+      Mailbox mailbox = sample.agentwrapper.getMailbox();
+
+      if (mailbox != null && mailbox.getDepth() > 0)
+      {
+        continue;
+      }
+
+      if (nPolicy != AGENTS && value(sample) <= 0.0)
+      {
+        continue;
+      }
+
+      if (affinity != null && affinity.isAnchored(sample.agentwrapper.getAgentIdentity()))
+      {
+        continue;
+      }
+
+      vector.addElement(sample);
+    }
+
+    Collections.sort(vector, new Comparator()
+      {
+        public int
+        compare(Object obj1, Object obj2)
+        {
+          Sample sample1 = (Sample)obj1;
+          Sample sample2 = (Sample)obj2;
+
+          if (nPolicy == AGENTS)
+          {
+            long ms1 = sample1.msLastActive;
+            long ms2 = sample2.msLastActive;
+
+            return ms1 < ms2 ? -1 : ms1 > ms2 ? 1 : 0;
+          }
+
+          double d1 = value(sample1);
+          double d2 = value(sample2);
+
+          return d1 > d2 ? -1 : d1 < d2 ? 1 : 0;
+        }
+      });
+
+    return vector;
+  }
+
+  /**
+   * Moves agents to the underloaded agent hosts.
+   *
+   * Each agent goes to the agent host with the most room, as long as
+   * it fits in both the excess and that room.
+   *
+   */
+
+  private void
+  move(Vector vectorSamples, Vector vectorTargets, double dExcess)
+  {
+    int nMoved = 0;
+
+    for (int i = 0; i < vectorSamples.size() && nMoved < nBatch; i++)
+    {
+      Sample sample = (Sample)vectorSamples.elementAt(i);
+
+      double d = value(sample);
+
+      if (d > dExcess)
+      {
+        continue;
+      }
+
+      Object [] rgobjTarget = null;
+
+      for (int j = 0; j < vectorTargets.size(); j++)
+      {
+        Object [] rgobj = (Object [])vectorTargets.elementAt(j);
+
+        if (rgobjTarget == null ||
+            ((Double)rgobj[1]).doubleValue() > ((Double)rgobjTarget[1]).doubleValue())
+        {
+          rgobjTarget = rgobj;
+        }
+      }
+
+      if (rgobjTarget == null || d > ((Double)rgobjTarget[1]).doubleValue())
+      {
+        continue;
+      }
+
+      // An agent that is already on the move, or being passivated, is
+      // left alone.
+
+      if (agenthostimplementation.isLocked(sample.agentwrapper.getAgentIdentity()))
+      {
+        continue;
+      }
+
+      if (!sample.agentwrapper.allowsTransfer((String)rgobjTarget[0]))
+      {
+        agenthostimplementation.getMetrics().increment("ki_placement_vetoes");
+
+        continue;
+      }
+
+      rgobjTarget[1] = Double.valueOf(((Double)rgobjTarget[1]).doubleValue() - d);
+
+      dExcess -= d;
+
+      nMoved++;
+
+      // The agent is forgotten, so that it is not picked again if it
+      // comes back.
+
+      AgentIdentity agentidentity = sample.agentwrapper.getAgentIdentity();
+
+      hashmapSamples.remove(agentidentity);
+
+      TransferResponse transferresponse =
+        agenthostimplementation.initiateTransfer((String)rgobjTarget[0], agentidentity);
+
+      transferresponse.addListener(new TransferResponseListener()
+        {
+          public void
+          responseReceived(TransferResponse transferresponse)
+          {
+            if (transferresponse.wasSuccessful())
+            {
+              atomiclongMoves.incrementAndGet();
+
+              agenthostimplementation.getMetrics().increment("ki_placement_moves");
+            }
+            else
+            {
+              atomiclongFailures.incrementAndGet();
+
+              agenthostimplementation.getMetrics().increment("ki_placement_failures");
+            }
+          }
+        });
+    }
+  }
+
+  /**
+   * Gets the number of agents moved.
+   *
+   */
+
+  final long
+  getMoveCount()
+  {
+    return atomiclongMoves.get();
+  }
+
+  /**
+   * Gets the number of moves that failed.
+   *
+   */
+
+  final long
+  getFailureCount()
+  {
+    return atomiclongFailures.get();
+  }
+}
@@ -0,0 +1,439 @@
+package etcee.ki.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Vector;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.zip.CRC32;
+
+/**
+ * The checkpoint log.
+ *
+ * The <CODE>CheckpointLog</CODE> class is a write-ahead log of agent
+ * data.  New data is appended to the log, and the log is forced to
+ * disk once for a whole batch of records.  Only then is the data
+ * installed in the agent's data file -- written to a temporary file
+ * and renamed over the old one, so a data file is never half
+ * written.
+ *
+ * Installed data files are not forced one by one.  Instead, the log
+ * keeps every record until it grows past its limit, at which point
+ * the installed data files are forced and the log is reset.
+ *
+ * When the repository is opened, the log is replayed.  Records are
+ * numbered as they are made, and the record with the highest number
+ * for a data file wins.  A torn record at the end of the log (from a
+ * crash during a write) ends the replay.  Records for agents whose
+ * resource file is gone -- agents that have since left -- are
+ * skipped.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see Checkpointer
+ * @see Repository
+ *
+ */
+
+final class CheckpointLog
+{
+  /**
+   * A record.
+   *
+   */
+
+  final static class Record
+  {
+    long nSequence = 0;
+    File fileResource = null;
+    File fileData = null;
+    byte [] rgb = null;
+
+    Record(File fileResource, File fileData, byte [] rgb)
+    {
+      this(atomiclongSequence.incrementAndGet(), fileResource, fileData, rgb);
+    }
+
+    Record(long nSequence, File fileResource, File fileData, byte [] rgb)
+    {
+      this.nSequence = nSequence;
+      this.fileResource = fileResource;
+      this.fileData = fileData;
+      this.rgb = rgb;
+    }
+  }
+
+  /**
+   * The record sequence.
+   *
+   * A record is numbered when it is made, while its agent is locked,
+   * so the numbers of an agent's records follow the order of its
+   * states even if the records reach the log out of order.
+   *
+   */
+
+  private final static AtomicLong atomiclongSequence = new AtomicLong();
+
+  /**
+   * The record signature.
+   *
+   */
+
+  private final static int RECORD = 0x4b494350;
+
+  /**
+   * The repository path.
+   *
+   */
+
+  private File filePath = null;
+
+  /**
+   * The log file.
+   *
+   */
+
+  private File fileLog = null;
+
+  /**
+   * The log limit (in bytes).
+   *
+   * The limit is set with the <CODE>etcee.ki.checkpoint.log</CODE>
+   * system property.
+   *
+   */
+
+  private long nLimit = Long.getLong("etcee.ki.checkpoint.log", 4L * 1024L * 1024L).longValue();
+
+  /**
+   * The data files installed since the log was last reset.
+   *
+   */
+
+  private HashSet hashsetInstalled = new HashSet();
+
+  /**
+   * Constructs the checkpoint log.
+   *
+   */
+
+  CheckpointLog(File filePath)
+  {
+    this.filePath = filePath;
+
+    fileLog = new File(filePath, "checkpoint.log");
+  }
+
+  /**
+   * Commits records.
+   *
+   * The records are appended to the log.  If the log is forced to
+   * disk, the records survive a crash once this method returns.
+   * Otherwise they survive once the log is reset.
+   *
+   * @parameter boolForce force the log to disk.
+   *
+   */
+
+  final synchronized void
+  commit(Vector vectorRecords, boolean boolForce)
+    throws IOException
+  {
+    ByteArrayOutputStream bytearrayoutputstream = new ByteArrayOutputStream();
+
+    for (int i = 0; i < vectorRecords.size(); i++)
+    {
+      write(bytearrayoutputstream, (Record)vectorRecords.elementAt(i));
+    }
+
+    FileOutputStream fileoutputstream = new FileOutputStream(fileLog, true);
+
+    try
+    {
+      bytearrayoutputstream.writeTo(fileoutputstream);
+
+      if (boolForce)
+      {
+        fileoutputstream.getChannel().force(false);
+      }
+    }
+    finally
+    {
+      fileoutputstream.close();
+    }
+  }
+
+  /**
+   * Writes a record.
+   *
+   */
+
+  private static void
+  write(ByteArrayOutputStream bytearrayoutputstream, Record record)
+    throws IOException
+  {
+    ByteArrayOutputStream bytearrayoutputstreamRecord = new ByteArrayOutputStream(record.rgb.length + 64);
+
+    DataOutputStream dataoutputstream = new DataOutputStream(bytearrayoutputstreamRecord);
+
+    dataoutputstream.writeInt(RECORD);
+    dataoutputstream.writeLong(record.nSequence);
+    dataoutputstream.writeUTF(record.fileResource.getName());
+    dataoutputstream.writeUTF(record.fileData.getName());
+    dataoutputstream.writeInt(record.rgb.length);
+    dataoutputstream.write(record.rgb);
+
+    dataoutputstream.flush();
+
+    CRC32 crc32 = new CRC32();
+
+    crc32.update(bytearrayoutputstreamRecord.toByteArray());
+
+    dataoutputstream.writeLong(crc32.getValue());
+
+    dataoutputstream.close();
+
+    bytearrayoutputstreamRecord.writeTo(bytearrayoutputstream);
+  }
+
+  /**
+   * Installs a committed record.
+   *
+   * The caller must make sure that no other thread writes the same
+   * data file at the same time.
+   *
+   */
+
+  final synchronized void
+  install(Record record)
+    throws IOException
+  {
+    File fileTemporary = new File(record.fileData.getPath() + ".tmp");
+
+    RandomAccessFile randomaccessfile = new RandomAccessFile(fileTemporary, "rw");
+
+    try
+    {
+      randomaccessfile.setLength(0);
+
+      randomaccessfile.write(record.rgb);
+    }
+    finally
+    {
+      randomaccessfile.close();
+    }
+
+    try
+    {
+      Files.move(fileTemporary.toPath(),
+                 record.fileData.toPath(),
+                 StandardCopyOption.ATOMIC_MOVE,
+                 StandardCopyOption.REPLACE_EXISTING);
+    }
+    catch (AtomicMoveNotSupportedException ex)
+    {
+      Files.move(fileTemporary.toPath(),
+                 record.fileData.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    hashsetInstalled.add(record.fileData);
+  }
+
+  /**
+   * Resets the log if it has grown past its limit.
+   *
+   */
+
+  final synchronized void
+  trim()
+    throws IOException
+  {
+    if (fileLog.length() > nLimit)
+    {
+      reset();
+    }
+  }
+
+  /**
+   * Resets the log.
+   *
+   * The installed data files are forced to disk, after which the log
+   * is no longer needed.
+   *
+   */
+
+  final synchronized void
+  reset()
+    throws IOException
+  {
+    Iterator iterator = hashsetInstalled.iterator();
+
+    while (iterator.hasNext())
+    {
+      File file = (File)iterator.next();
+
+      if (!file.exists())
+      {
+        continue;
+      }
+
+      RandomAccessFile randomaccessfile = new RandomAccessFile(file, "rw");
+
+      try
+      {
+        randomaccessfile.getChannel().force(false);
+      }
+      finally
+      {
+        randomaccessfile.close();
+      }
+    }
+
+    hashsetInstalled.clear();
+
+    fileLog.delete();
+  }
+
+  /**
+   * Replays the log.
+   *
+   * @returns the number of records installed.
+   *
+   */
+
+  final synchronized int
+  replay()
+    throws IOException
+  {
+    if (!fileLog.exists())
+    {
+      return 0;
+    }
+
+    int n = 0;
+
+    HashMap hashmapSequences = new HashMap();
+
+    DataInputStream datainputstream =
+      new DataInputStream(new BufferedInputStream(new FileInputStream(fileLog)));
+
+    try
+    {
+      Record record = null;
+
+      while ((record = read(datainputstream)) != null)
+      {
+        if (!record.fileResource.exists())
+        {
+          continue;
+        }
+
+        Long longSequence = (Long)hashmapSequences.get(record.fileData);
+
+        if (longSequence != null && longSequence.longValue() > record.nSequence)
+        {
+          continue;
+        }
+
+        hashmapSequences.put(record.fileData, Long.valueOf(record.nSequence));
+
+        install(record);
+
+        n++;
+      }
+    }
+    finally
+    {
+      datainputstream.close();
+    }
+
+    reset();
+
+    return n;
+  }
+
+  /**
+   * Reads a record.
+   *
+   * @returns the record, or null at the end of the log or at a torn
+   *          record.
+   *
+   */
+
+  private Record
+  read(DataInputStream datainputstream)
+    throws IOException
+  {
+    try
+    {
+      ByteArrayOutputStream bytearrayoutputstream = new ByteArrayOutputStream();
+
+      DataOutputStream dataoutputstream = new DataOutputStream(bytearrayoutputstream);
+
+      int nSignature = datainputstream.readInt();
+
+      if (nSignature != RECORD)
+      {
+        return null;
+      }
+
+      long nSequence = datainputstream.readLong();
+
+      String strResource = datainputstream.readUTF();
+      String strData = datainputstream.readUTF();
+
+      int nLength = datainputstream.readInt();
+
+      if (nLength < 0 || nLength > fileLog.length())
+      {
+        return null;
+      }
+
+      byte [] rgb = new byte [nLength];
+
+      datainputstream.readFully(rgb);
+
+      dataoutputstream.writeInt(nSignature);
+      dataoutputstream.writeLong(nSequence);
+      dataoutputstream.writeUTF(strResource);
+      dataoutputstream.writeUTF(strData);
+      dataoutputstream.writeInt(nLength);
+      dataoutputstream.write(rgb);
+
+      dataoutputstream.close();
+
+      CRC32 crc32 = new CRC32();
+
+      crc32.update(bytearrayoutputstream.toByteArray());
+
+      if (datainputstream.readLong() != crc32.getValue())
+      {
+        return null;
+      }
+
+      return new Record(nSequence, new File(filePath, strResource), new File(filePath, strData), rgb);
+    }
+    catch (EOFException ex)
+    {
+      return null;
+    }
+  }
+}
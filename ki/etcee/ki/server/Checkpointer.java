@@ -0,0 +1,321 @@
+package etcee.ki.server;
+
+import java.io.IOException;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+import java.util.WeakHashMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The checkpointer.
+ *
+ * The <CODE>Checkpointer</CODE> class writes the state of running
+ * agents to the repository at regular intervals, so that a crash
+ * loses no more than one interval's work.  Each sweep:
+ *
+ * <OL>
+ * <LI> writes every agent that has been active since it was last
+ *      written, and that is between messages
+ * <LI> drops the agents whose state has not changed
+ * <LI> commits the rest to the checkpoint log, forcing it to disk
+ *      once for the whole sweep
+ * <LI> installs the committed state in the agents' data files
+ * </OL>
+ *
+ * Sweeps run on a thread of their own -- a message is only held up
+ * while its agent is being written to memory, never while the log is
+ * forced to disk.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see CheckpointLog
+ * @see AgentHostImplementation.checkpoint
+ *
+ */
+
+final class Checkpointer
+{
+  /**
+   * The checkpoint of an agent.
+   *
+   */
+
+  private final static class Checkpoint
+  {
+    long msActive = 0;
+    String strDigest = null;
+  }
+
+  /**
+   * The agent host implementation.
+   *
+   */
+
+  private AgentHostImplementation agenthostimplementation = null;
+
+  /**
+   * The checkpoint log.
+   *
+   */
+
+  private CheckpointLog checkpointlog = null;
+
+  /**
+   * The checkpoint table.
+   *
+   * The checkpoint table maps agent wrappers to their last
+   * checkpoints.  A wrapper that is no longer resident is forgotten.
+   *
+   */
+
+  private WeakHashMap weakhashmapCheckpoints = new WeakHashMap();
+
+  /**
+   * The timer.
+   *
+   */
+
+  private Timer timer = new Timer("checkpointer", true);
+
+  /**
+   * The shutdown flag.
+   *
+   */
+
+  private boolean boolShutdown = false;
+
+  /**
+   * The counters.
+   *
+   */
+
+  private AtomicLong atomiclongSweeps = new AtomicLong();
+  private AtomicLong atomiclongCheckpoints = new AtomicLong();
+  private AtomicLong atomiclongBytes = new AtomicLong();
+  private AtomicLong atomiclongUnchanged = new AtomicLong();
+  private AtomicLong atomiclongCommitTime = new AtomicLong();
+
+  /**
+   * Constructs the checkpointer.
+   *
+   * @parameter msPeriod the time (in milliseconds) between sweeps.
+   *
+   */
+
+  Checkpointer(AgentHostImplementation agenthostimplementation,
+               CheckpointLog checkpointlog,
+               long msPeriod)
+  {
+    this.agenthostimplementation = agenthostimplementation;
+    this.checkpointlog = checkpointlog;
+
+    TimerTask timertask = new TimerTask()
+      {
+        public void
+        run()
+        {
+          try
+          {
+            sweep();
+          }
+          catch (Throwable throwable)
+          {
+            throwable.printStackTrace();
+          }
+        }
+      };
+
+    timer.schedule(timertask, msPeriod, msPeriod);
+  }
+
+  /**
+   * Shuts the checkpointer down.
+   *
+   * Waits for a sweep in progress to finish.
+   *
+   */
+
+  final synchronized void
+  shutdown()
+  {
+    timer.cancel();
+
+    boolShutdown = true;
+  }
+
+  /**
+   * Sweeps the resident agents.
+   *
+   */
+
+  final synchronized void
+  sweep()
+    throws IOException
+  {
+    if (boolShutdown)
+    {
+      return;
+    }
+
+    atomiclongSweeps.incrementAndGet();
+
+    Vector vectorWrappers = agenthostimplementation.getAgentWrappers();
+
+    Vector vectorCommitted = new Vector();
+    Vector vectorRecords = new Vector();
+
+    for (int i = 0; i < vectorWrappers.size(); i++)
+    {
+      AgentWrapper agentwrapper = (AgentWrapper)vectorWrappers.elementAt(i);
+
+      Checkpoint checkpoint = (Checkpoint)weakhashmapCheckpoints.get(agentwrapper);
+
+      // Read the activity time first -- activity during the write
+      // leaves the agent marked for the next sweep.
+
+      long msActive = agentwrapper.getLastActive();
+
+      if (checkpoint != null && checkpoint.msActive == msActive)
+      {
+        continue;
+      }
+
+      CheckpointLog.Record record = agenthostimplementation.checkpoint(agentwrapper);
+
+      if (record == null)
+      {
+        continue;
+      }
+
+      String strDigest = RepositoryEntry.digest(record.rgb);
+
+      if (checkpoint == null)
+      {
+        checkpoint = new Checkpoint();
+
+        weakhashmapCheckpoints.put(agentwrapper, checkpoint);
+      }
+
+      checkpoint.msActive = msActive;
+
+      if (strDigest.equals(checkpoint.strDigest))
+      {
+        atomiclongUnchanged.incrementAndGet();
+
+        continue;
+      }
+
+      checkpoint.strDigest = strDigest;
+
+      vectorCommitted.addElement(agentwrapper);
+      vectorRecords.addElement(record);
+    }
+
+    if (vectorRecords.size() == 0)
+    {
+      return;
+    }
+
+    long ns = System.nanoTime();
+
+    checkpointlog.commit(vectorRecords, true);
+
+    atomiclongCommitTime.addAndGet(System.nanoTime() - ns);
+
+    for (int i = 0; i < vectorRecords.size(); i++)
+    {
+      CheckpointLog.Record record = (CheckpointLog.Record)vectorRecords.elementAt(i);
+
+      if (agenthostimplementation.install((AgentWrapper)vectorCommitted.elementAt(i), record))
+      {
+        atomiclongCheckpoints.incrementAndGet();
+        atomiclongBytes.addAndGet(record.rgb.length);
+      }
+    }
+
+    checkpointlog.trim();
+  }
+
+  /**
+   * Writes an agent's final state.
+   *
+   * The agent host calls this method when it mummifies an agent, so
+   * that the log records every change to the agent's data file, in
+   * order.
+   *
+   * @parameter boolForce force the log to disk.
+   *
+   */
+
+  final void
+  write(CheckpointLog.Record record, boolean boolForce)
+    throws IOException
+  {
+    Vector vector = new Vector(1);
+
+    vector.addElement(record);
+
+    checkpointlog.commit(vector, boolForce);
+
+    checkpointlog.install(record);
+  }
+
+  /**
+   * Gets the number of sweeps.
+   *
+   */
+
+  final long
+  getSweepCount()
+  {
+    return atomiclongSweeps.get();
+  }
+
+  /**
+   * Gets the number of checkpoints written.
+   *
+   */
+
+  final long
+  getCheckpointCount()
+  {
+    return atomiclongCheckpoints.get();
+  }
+
+  /**
+   * Gets the number of bytes checkpointed.
+   *
+   */
+
+  final long
+  getCheckpointBytes()
+  {
+    return atomiclongBytes.get();
+  }
+
+  /**
+   * Gets the number of checkpoints dropped because the agent's state
+   * had not changed.
+   *
+   */
+
+  final long
+  getUnchangedCount()
+  {
+    return atomiclongUnchanged.get();
+  }
+
+  /**
+   * Gets the time (in nanoseconds) spent committing the log.
+   *
+   */
+
+  final long
+  getCommitTime()
+  {
+    return atomiclongCommitTime.get();
+  }
+}
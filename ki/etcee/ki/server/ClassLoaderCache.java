@@ -0,0 +1,175 @@
+package etcee.ki.server;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * The class loader cache.
+ *
+ * The <CODE>ClassLoaderCache</CODE> class shares agent class loaders
+ * among agents with the same resource file.  Class loaders are keyed
+ * by the digest of the resource file, so identical agents define
+ * their classes once, no matter which copy of the resource file they
+ * came from.  Each class loader is counted -- it is deconstructed
+ * when the last agent using it releases it.
+ *
+ * Agents that share a class loader share their classes, and so
+ * share the static fields of those classes.  Each agent is still a
+ * separate instance with its own agent wrapper and context.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see AgentClassLoader
+ *
+ */
+
+final class ClassLoaderCache
+{
+  /**
+   * The cached class loader.
+   *
+   */
+
+  private final static class Entry
+  {
+    AgentClassLoader agentclassloader = null;
+
+    int nReferences = 0;
+
+    Entry(AgentClassLoader agentclassloader)
+    {
+      this.agentclassloader = agentclassloader;
+    }
+  }
+
+  /**
+   * The class loader table.
+   *
+   * The class loader table maps digests to entries.
+   *
+   */
+
+  private Hashtable hashtableEntries = new Hashtable();
+
+  /**
+   * The counters.
+   *
+   */
+
+  private long nCreated = 0;
+  private long nShared = 0;
+
+  /**
+   * Acquires a class loader for a resource file.
+   *
+   */
+
+  final synchronized AgentClassLoader
+  acquire(File file, String strDigest)
+    throws IOException
+  {
+    Entry entry = (Entry)hashtableEntries.get(strDigest);
+
+    if (entry == null)
+    {
+      entry = new Entry(new AgentClassLoader(file, strDigest));
+
+      hashtableEntries.put(strDigest, entry);
+
+      nCreated++;
+    }
+    else
+    {
+      nShared++;
+    }
+
+    entry.nReferences++;
+
+    return entry.agentclassloader;
+  }
+
+  /**
+   * Releases a class loader.
+   *
+   * The class loader is deconstructed when the last agent using it
+   * releases it.
+   *
+   */
+
+  final synchronized void
+  release(AgentClassLoader agentclassloader)
+    throws IOException
+  {
+    Entry entry = (Entry)hashtableEntries.get(agentclassloader.getDigest());
+
+    if (entry == null || entry.agentclassloader != agentclassloader)
+    {
+      agentclassloader.deconstruct();
+
+      return;
+    }
+
+    if (--entry.nReferences == 0)
+    {
+      hashtableEntries.remove(agentclassloader.getDigest());
+
+      agentclassloader.deconstruct();
+    }
+  }
+
+  /**
+   * Gets the number of class loaders created.
+   *
+   */
+
+  final synchronized long
+  getCreatedCount()
+  {
+    return nCreated;
+  }
+
+  /**
+   * Gets the number of times a class loader was shared.
+   *
+   */
+
+  final synchronized long
+  getSharedCount()
+  {
+    return nShared;
+  }
+
+  /**
+   * Gets the number of class loaders in the cache.
+   *
+   */
+
+  final synchronized int
+  size()
+  {
+    return hashtableEntries.size();
+  }
+
+  /**
+   * Gets the number of agents using a cached class loader.
+   *
+   */
+
+  final synchronized int
+  getReferenceCount()
+  {
+    int n = 0;
+
+    Enumeration enumeration = hashtableEntries.elements();
+
+    while (enumeration.hasMoreElements())
+    {
+      n += ((Entry)enumeration.nextElement()).nReferences;
+    }
+
+    return n;
+  }
+}
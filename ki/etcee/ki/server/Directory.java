@@ -0,0 +1,617 @@
+package etcee.ki.server;
+
+import etcee.ki.agent.AgentIdentity;
+import etcee.ki.agent.DirectoryEntry;
+
+import etcee.ki.agenthost.DirectoryUpdate;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+
+/**
+ * The agent directory.
+ *
+ * The <CODE>Directory</CODE> class indexes published agents.  It
+ * holds the agents published on this agent host, and copies of those
+ * published on other agent hosts.
+ *
+ * Entries are kept in order of their cursors -- by identifier, then
+ * by agent identity -- so a lookup by identifier or by prefix reads
+ * only the entries it returns.  Each attribute value has its own
+ * ordered set of entries, so a lookup by attribute starts from the
+ * smallest such set.  Lookups return at most a page of entries, and
+ * continue from a cursor.
+ *
+ * Changes to the agents published on this agent host are numbered
+ * and kept in a change log, so other agent hosts can copy just what
+ * changed.  The change log holds the number of changes set with the
+ * <CODE>etcee.ki.directory.log</CODE> system property.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see DirectoryReplicator
+ * @see AgentContextImplementation
+ *
+ */
+
+final class Directory
+{
+  /**
+   * The maximum number of entries a lookup returns.
+   *
+   */
+
+  final static int nMaximumLimit = 1024;
+
+  /**
+   * The maximum number of changes in an update.
+   *
+   */
+
+  private final static int nMaximumChanges = 1024;
+
+  /**
+   * A change.
+   *
+   */
+
+  private final static class Change
+  {
+    long nSequence = 0;
+    DirectoryEntry directoryentry = null;
+    boolean boolWithdrawn = false;
+  }
+
+  /**
+   * The entries.
+   *
+   * The entries map cursors to entries.
+   *
+   */
+
+  private TreeMap treemapEntries = new TreeMap();
+
+  /**
+   * The attribute index.
+   *
+   * The attribute index maps attribute names and values, joined by a
+   * zero character, to ordered sets of cursors.
+   *
+   */
+
+  private HashMap hashmapAttributes = new HashMap();
+
+  /**
+   * The origin index.
+   *
+   * The origin index maps agent host names to the sets of cursors of
+   * the entries published there.
+   *
+   */
+
+  private HashMap hashmapOrigins = new HashMap();
+
+  /**
+   * The epoch.
+   *
+   */
+
+  private long nEpoch = System.currentTimeMillis();
+
+  /**
+   * The sequence number of the last change.
+   *
+   */
+
+  private long nSequence = 0;
+
+  /**
+   * The change log.
+   *
+   */
+
+  private LinkedList linkedlistChanges = new LinkedList();
+
+  /**
+   * The change log limit.
+   *
+   */
+
+  private int nLog = Integer.getInteger("etcee.ki.directory.log", 4096).intValue();
+
+  /**
+   * Adds an entry to the indexes, replacing the entry with the same
+   * cursor.
+   *
+   */
+
+  private void
+  add(DirectoryEntry directoryentry)
+  {
+    remove(directoryentry.getCursor());
+
+    String strCursor = directoryentry.getCursor();
+
+    treemapEntries.put(strCursor, directoryentry);
+
+    Enumeration enumeration = directoryentry.getAttributeNames();
+
+    while (enumeration.hasMoreElements())
+    {
+      String strName = (String)enumeration.nextElement();
+
+      String strKey = strName + '\u0000' + directoryentry.getAttribute(strName);
+
+      TreeSet treeset = (TreeSet)hashmapAttributes.get(strKey);
+
+      if (treeset == null)
+      {
+        treeset = new TreeSet();
+
+        hashmapAttributes.put(strKey, treeset);
+      }
+
+      treeset.add(strCursor);
+    }
+
+    HashSet hashset = (HashSet)hashmapOrigins.get(directoryentry.getAgentHostName());
+
+    if (hashset == null)
+    {
+      hashset = new HashSet();
+
+      hashmapOrigins.put(directoryentry.getAgentHostName(), hashset);
+    }
+
+    hashset.add(strCursor);
+  }
+
+  /**
+   * Removes an entry from the indexes.
+   *
+   * @returns the entry, or null if there was none.
+   *
+   */
+
+  private DirectoryEntry
+  remove(String strCursor)
+  {
+    DirectoryEntry directoryentry = (DirectoryEntry)treemapEntries.remove(strCursor);
+
+    if (directoryentry == null)
+    {
+      return null;
+    }
+
+    Enumeration enumeration = directoryentry.getAttributeNames();
+
+    while (enumeration.hasMoreElements())
+    {
+      String strName = (String)enumeration.nextElement();
+
+      String strKey = strName + '\u0000' + directoryentry.getAttribute(strName);
+
+      TreeSet treeset = (TreeSet)hashmapAttributes.get(strKey);
+
+      if (treeset != null)
+      {
+        treeset.remove(strCursor);
+
+        if (treeset.isEmpty())
+        {
+          hashmapAttributes.remove(strKey);
+        }
+      }
+    }
+
+    HashSet hashset = (HashSet)hashmapOrigins.get(directoryentry.getAgentHostName());
+
+    if (hashset != null)
+    {
+      hashset.remove(strCursor);
+
+      if (hashset.isEmpty())
+      {
+        hashmapOrigins.remove(directoryentry.getAgentHostName());
+      }
+    }
+
+    return directoryentry;
+  }
+
+  /**
+   * Records a change in the change log.
+   *
+   */
+
+  private void
+  log(DirectoryEntry directoryentry, boolean boolWithdrawn)
+  {
+    Change change = new Change();
+
+    change.nSequence = ++nSequence;
+    change.directoryentry = directoryentry;
+    change.boolWithdrawn = boolWithdrawn;
+
+    linkedlistChanges.addLast(change);
+
+    while (linkedlistChanges.size() > nLog)
+    {
+      linkedlistChanges.removeFirst();
+    }
+  }
+
+  /**
+   * Publishes an agent on this agent host.
+   *
+   */
+
+  final synchronized void
+  publish(DirectoryEntry directoryentry)
+  {
+    add(directoryentry);
+
+    log(directoryentry, false);
+  }
+
+  /**
+   * Withdraws an agent published on this agent host.
+   *
+   */
+
+  final synchronized void
+  unpublish(String strIdentifier, AgentIdentity agentidentity)
+  {
+    DirectoryEntry directoryentry = remove(DirectoryEntry.getCursor(strIdentifier, agentidentity));
+
+    if (directoryentry != null)
+    {
+      log(directoryentry, true);
+    }
+  }
+
+  /**
+   * Gets the changes to the agents published on this agent host.
+   *
+   * @parameter nEpoch the epoch of the last update received.
+   *
+   * @parameter nSince the sequence number of the last change
+   *            received.
+   *
+   */
+
+  final synchronized DirectoryUpdate
+  getUpdate(String strAgentHostName, long nEpoch, long nSince)
+  {
+    long nFirst = linkedlistChanges.isEmpty() ?
+                  nSequence + 1 :
+                  ((Change)linkedlistChanges.getFirst()).nSequence;
+
+    // A snapshot replaces whatever the receiver holds, so it is sent
+    // if the receiver has missed changes the log no longer holds.
+
+    if (nEpoch != this.nEpoch || nSince < nFirst - 1 || nSince > nSequence)
+    {
+      DirectoryEntry [] rgdirectoryentry = getEntries(strAgentHostName);
+
+      return new DirectoryUpdate(this.nEpoch,
+                                 nSequence,
+                                 true,
+                                 rgdirectoryentry,
+                                 new boolean [rgdirectoryentry.length]);
+    }
+
+    Vector vector = new Vector();
+
+    Iterator iterator = linkedlistChanges.iterator();
+
+    while (iterator.hasNext() && vector.size() < nMaximumChanges)
+    {
+      Change change = (Change)iterator.next();
+
+      if (change.nSequence > nSince)
+      {
+        vector.addElement(change);
+      }
+    }
+
+    DirectoryEntry [] rgdirectoryentry = new DirectoryEntry [vector.size()];
+
+    boolean [] rgboolWithdrawn = new boolean [vector.size()];
+
+    for (int i = 0; i < vector.size(); i++)
+    {
+      Change change = (Change)vector.elementAt(i);
+
+      rgdirectoryentry[i] = change.directoryentry;
+      rgboolWithdrawn[i] = change.boolWithdrawn;
+    }
+
+    return new DirectoryUpdate(this.nEpoch,
+                               vector.size() == 0 ?
+                               nSince :
+                               ((Change)vector.lastElement()).nSequence,
+                               false,
+                               rgdirectoryentry,
+                               rgboolWithdrawn);
+  }
+
+  /**
+   * Applies an update from another agent host.
+   *
+   * Only entries published on that agent host are applied.
+   *
+   * @returns the number of changes applied.
+   *
+   */
+
+  final synchronized int
+  apply(String strAgentHostName, DirectoryUpdate directoryupdate)
+  {
+    if (directoryupdate.isSnapshot())
+    {
+      HashSet hashset = (HashSet)hashmapOrigins.get(strAgentHostName);
+
+      if (hashset != null)
+      {
+        Object [] rgobj = hashset.toArray();
+
+        for (int i = 0; i < rgobj.length; i++)
+        {
+          remove((String)rgobj[i]);
+        }
+      }
+    }
+
+    DirectoryEntry [] rgdirectoryentry = directoryupdate.getEntries();
+
+    int n = 0;
+
+    for (int i = 0; i < rgdirectoryentry.length; i++)
+    {
+      if (!strAgentHostName.equals(rgdirectoryentry[i].getAgentHostName()))
+      {
+        continue;
+      }
+
+      if (directoryupdate.isWithdrawn(i))
+      {
+        remove(rgdirectoryentry[i].getCursor());
+      }
+      else
+      {
+        add(rgdirectoryentry[i]);
+      }
+
+      n++;
+    }
+
+    return n;
+  }
+
+  /**
+   * Finds published agents.
+   *
+   * @parameter strPrefix the prefix of the identifiers to find, or
+   *            null for any identifier.
+   *
+   * @parameter hashtableAttributes the attributes the agents must
+   *            have, or null.
+   *
+   * @parameter strCursor the cursor of the last entry already found,
+   *            or null to start at the beginning.
+   *
+   * @parameter nLimit the maximum number of entries to find.
+   *
+   */
+
+  final synchronized DirectoryEntry []
+  find(String strPrefix,
+       Hashtable hashtableAttributes,
+       String strCursor,
+       int nLimit)
+  {
+    if (strPrefix == null)
+    {
+      strPrefix = "";
+    }
+
+    nLimit = Math.max(0, Math.min(nLimit, nMaximumLimit));
+
+    // Start from the smallest set of cursors that holds every match.
+
+    SortedSet sortedset = null;
+
+    if (hashtableAttributes != null)
+    {
+      Enumeration enumeration = hashtableAttributes.keys();
+
+      while (enumeration.hasMoreElements())
+      {
+        Object obj = enumeration.nextElement();
+
+        TreeSet treeset =
+          (TreeSet)hashmapAttributes.get(obj.toString() + '\u0000' + hashtableAttributes.get(obj).toString());
+
+        if (treeset == null)
+        {
+          return new DirectoryEntry [0];
+        }
+
+        if (sortedset == null || treeset.size() < sortedset.size())
+        {
+          sortedset = treeset;
+        }
+      }
+    }
+
+    String strFrom = strCursor == null || strCursor.compareTo(strPrefix) < 0 ?
+                     strPrefix :
+                     strCursor + '\u0000';
+
+    Iterator iterator = sortedset == null ?
+                        treemapEntries.tailMap(strFrom).keySet().iterator() :
+                        sortedset.tailSet(strFrom).iterator();
+
+    Vector vector = new Vector();
+
+    while (iterator.hasNext() && vector.size() < nLimit)
+    {
+      String str = (String)iterator.next();
+
+      if (!str.startsWith(strPrefix))
+      {
+        break;
+      }
+
+      DirectoryEntry directoryentry = (DirectoryEntry)treemapEntries.get(str);
+
+      if (matches(directoryentry, hashtableAttributes))
+      {
+        vector.addElement(directoryentry);
+      }
+    }
+
+    DirectoryEntry [] rgdirectoryentry = new DirectoryEntry [vector.size()];
+
+    vector.copyInto(rgdirectoryentry);
+
+    return rgdirectoryentry;
+  }
+
+  /**
+   * Determines whether or not an entry has the specified attributes.
+   *
+   */
+
+  private static boolean
+  matches(DirectoryEntry directoryentry, Hashtable hashtableAttributes)
+  {
+    if (hashtableAttributes == null)
+    {
+      return true;
+    }
+
+    Enumeration enumeration = hashtableAttributes.keys();
+
+    while (enumeration.hasMoreElements())
+    {
+      Object obj = enumeration.nextElement();
+
+      if (!hashtableAttributes.get(obj).toString().equals(directoryentry.getAttribute(obj.toString())))
+      {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Finds an agent published under an identifier.
+   *
+   * An agent published on the specified agent host is preferred.
+   *
+   * @returns the entry, or null if no agent is published under the
+   *          identifier.
+   *
+   */
+
+  final synchronized DirectoryEntry
+  lookup(String strIdentifier, String strAgentHostName)
+  {
+    SortedMap sortedmap = treemapEntries.subMap(strIdentifier + '\u0000',
+                                                strIdentifier + '\u0001');
+
+    DirectoryEntry directoryentryFirst = null;
+
+    Iterator iterator = sortedmap.values().iterator();
+
+    while (iterator.hasNext())
+    {
+      DirectoryEntry directoryentry = (DirectoryEntry)iterator.next();
+
+      if (directoryentry.getAgentHostName().equals(strAgentHostName))
+      {
+        return directoryentry;
+      }
+
+      if (directoryentryFirst == null)
+      {
+        directoryentryFirst = directoryentry;
+      }
+    }
+
+    return directoryentryFirst;
+  }
+
+  /**
+   * Gets the identifiers agents are published under.
+   *
+   * Each identifier appears once, in order.
+   *
+   */
+
+  final synchronized Enumeration
+  getIdentifiers()
+  {
+    Vector vector = new Vector();
+
+    Iterator iterator = treemapEntries.values().iterator();
+
+    while (iterator.hasNext())
+    {
+      String str = ((DirectoryEntry)iterator.next()).getIdentifier();
+
+      if (vector.size() == 0 || !vector.lastElement().equals(str))
+      {
+        vector.addElement(str);
+      }
+    }
+
+    return vector.elements();
+  }
+
+  /**
+   * Gets the entries of the agents published on an agent host.
+   *
+   */
+
+  final synchronized DirectoryEntry []
+  getEntries(String strAgentHostName)
+  {
+    HashSet hashset = (HashSet)hashmapOrigins.get(strAgentHostName);
+
+    DirectoryEntry [] rgdirectoryentry =
+      new DirectoryEntry [hashset == null ? 0 : hashset.size()];
+
+    Iterator iterator = hashset == null ? null : hashset.iterator();
+
+    for (int i = 0; i < rgdirectoryentry.length; i++)
+    {
+      rgdirectoryentry[i] = (DirectoryEntry)treemapEntries.get(iterator.next());
+    }
+
+    return rgdirectoryentry;
+  }
+
+  /**
+   * Gets the number of entries.
+   *
+   */
+
+  final synchronized int
+  getEntryCount()
+  {
+    return treemapEntries.size();
+  }
+}
@@ -0,0 +1,229 @@
+package etcee.ki.server;
+
+import etcee.ki.agenthost.DirectoryUpdate;
+
+import java.util.Hashtable;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The directory replicator.
+ *
+ * The <CODE>DirectoryReplicator</CODE> class copies the agents
+ * published on other agent hosts into this agent host's directory.
+ * At regular intervals it asks each of the other agent hosts listed
+ * in the <CODE>etcee.ki.hosts</CODE> system property for the changes
+ * since the last ones it received, and applies them.
+ *
+ * An agent host that can not be reached is asked again at the next
+ * interval.  The entries copied from it are kept meanwhile.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see Directory
+ *
+ */
+
+final class DirectoryReplicator
+{
+  /**
+   * The agent host implementation.
+   *
+   */
+
+  private AgentHostImplementation agenthostimplementation = null;
+
+  /**
+   * The directory.
+   *
+   */
+
+  private Directory directory = null;
+
+  /**
+   * The names of the other agent hosts.
+   *
+   */
+
+  private String [] rgstrAgentHostNames = null;
+
+  /**
+   * The progress table.
+   *
+   * The progress table maps agent host names to the last updates
+   * received from them.
+   *
+   */
+
+  private Hashtable hashtableProgress = new Hashtable();
+
+  /**
+   * The timer.
+   *
+   */
+
+  private Timer timer = new Timer("directory", true);
+
+  /**
+   * The shutdown flag.
+   *
+   */
+
+  private boolean boolShutdown = false;
+
+  /**
+   * The counters.
+   *
+   */
+
+  private AtomicLong atomiclongUpdates = new AtomicLong();
+  private AtomicLong atomiclongSnapshots = new AtomicLong();
+  private AtomicLong atomiclongChanges = new AtomicLong();
+  private AtomicLong atomiclongFailures = new AtomicLong();
+
+  /**
+   * Constructs the directory replicator.
+   *
+   * @parameter rgstrAgentHostNames the names of the agent hosts to
+   *            copy from.  This agent host's own name is skipped.
+   *
+   * @parameter msPeriod the time (in milliseconds) between rounds.
+   *
+   */
+
+  DirectoryReplicator(AgentHostImplementation agenthostimplementation,
+                      Directory directory,
+                      String [] rgstrAgentHostNames,
+                      long msPeriod)
+  {
+    this.agenthostimplementation = agenthostimplementation;
+    this.directory = directory;
+    this.rgstrAgentHostNames = rgstrAgentHostNames;
+
+    TimerTask timertask = new TimerTask()
+      {
+        public void
+        run()
+        {
+          replicate();
+        }
+      };
+
+    timer.schedule(timertask, msPeriod, msPeriod);
+  }
+
+  /**
+   * Shuts the directory replicator down.
+   *
+   * Waits for a round in progress to finish.
+   *
+   */
+
+  final synchronized void
+  shutdown()
+  {
+    timer.cancel();
+
+    boolShutdown = true;
+  }
+
+  /**
+   * Copies the changes from each of the other agent hosts.
+   *
+   */
+
+  final synchronized void
+  replicate()
+  {
+    for (int i = 0; i < rgstrAgentHostNames.length && !boolShutdown; i++)
+    {
+      String strAgentHostName = rgstrAgentHostNames[i];
+
+      if (strAgentHostName.equals(agenthostimplementation.getAgentHostName()))
+      {
+        continue;
+      }
+
+      DirectoryUpdate directoryupdateLast =
+        (DirectoryUpdate)hashtableProgress.get(strAgentHostName);
+
+      try
+      {
+        DirectoryUpdate directoryupdate =
+          agenthostimplementation.lookupAgentHost(strAgentHostName).getDirectoryUpdate
+            (directoryupdateLast == null ? 0 : directoryupdateLast.getEpoch(),
+             directoryupdateLast == null ? 0 : directoryupdateLast.getSequence());
+
+        atomiclongUpdates.incrementAndGet();
+
+        if (directoryupdate.isSnapshot())
+        {
+          atomiclongSnapshots.incrementAndGet();
+        }
+
+        atomiclongChanges.addAndGet(directory.apply(strAgentHostName, directoryupdate));
+
+        // Only the position is needed from now on.
+
+        hashtableProgress.put(strAgentHostName,
+                              new DirectoryUpdate(directoryupdate.getEpoch(),
+                                                  directoryupdate.getSequence(),
+                                                  false,
+                                                  null,
+                                                  null));
+      }
+      catch (Exception ex)
+      {
+        agenthostimplementation.getAgentHostCache().invalidate(strAgentHostName);
+
+        atomiclongFailures.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Gets the number of updates received.
+   *
+   */
+
+  final long
+  getUpdateCount()
+  {
+    return atomiclongUpdates.get();
+  }
+
+  /**
+   * Gets the number of updates that were snapshots.
+   *
+   */
+
+  final long
+  getSnapshotCount()
+  {
+    return atomiclongSnapshots.get();
+  }
+
+  /**
+   * Gets the number of changes applied.
+   *
+   */
+
+  final long
+  getChangeCount()
+  {
+    return atomiclongChanges.get();
+  }
+
+  /**
+   * Gets the number of times an agent host could not be reached.
+   *
+   */
+
+  final long
+  getFailureCount()
+  {
+    return atomiclongFailures.get();
+  }
+}
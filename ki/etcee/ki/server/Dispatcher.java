@@ -0,0 +1,130 @@
+package etcee.ki.server;
+
+/**
+ * The dispatcher.
+ *
+ * The <CODE>Dispatcher</CODE> class defines the interface the agent
+ * host uses to run message sends and agent transfers in the
+ * background.  A dispatcher may refuse work -- when it does, the
+ * agent host reports the failure through the message response or
+ * transfer response rather than creating more threads.
+ *
+ * The dispatcher is selected with the <CODE>etcee.ki.dispatcher</CODE>
+ * system property:
+ *
+ * <UL>
+ * <LI><CODE>pool</CODE> (the default) -- a bounded pool of threads
+ *     with a bounded queue
+ * <LI><CODE>virtual</CODE> -- one virtual thread per task, if the
+ *     virtual machine supports them, otherwise one thread per task
+ * <LI><CODE>thread</CODE> -- one thread per task
+ * </UL>
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see PooledDispatcher
+ * @see ThreadDispatcher
+ *
+ */
+
+abstract class Dispatcher
+{
+  /**
+   * The rejected task counter.
+   *
+   */
+
+  private long nRejected = 0;
+
+  /**
+   * Gets the number of tasks the dispatcher refused.
+   *
+   */
+
+  final synchronized long
+  getRejectedCount()
+  {
+    return nRejected;
+  }
+
+  /**
+   * Records a refused task.
+   *
+   */
+
+  protected final synchronized void
+  rejected()
+  {
+    nRejected++;
+  }
+
+  /**
+   * Dispatches a task.
+   *
+   * @returns false if the dispatcher refused the task.
+   *
+   */
+
+  abstract boolean
+  dispatch(Runnable runnable);
+
+  /**
+   * Gets the number of tasks waiting to run.
+   *
+   */
+
+  abstract int
+  getQueueDepth();
+
+  /**
+   * Gets the number of tasks currently running.
+   *
+   */
+
+  abstract int
+  getActiveCount();
+
+  /**
+   * Shuts the dispatcher down.
+   *
+   * Tasks already accepted are allowed to finish.
+   *
+   */
+
+  abstract void
+  shutdown();
+
+  /**
+   * Creates the dispatcher named by the system properties.
+   *
+   * @see PooledDispatcher
+   * @see ThreadDispatcher
+   *
+   */
+
+  static Dispatcher
+  createDispatcher(String strName)
+  {
+    String strMode = System.getProperty("etcee.ki.dispatcher", "pool");
+
+    int nThreads = Integer.getInteger("etcee.ki.dispatcher.threads", 16).intValue();
+    int nQueue = Integer.getInteger("etcee.ki.dispatcher.queue", 1024).intValue();
+
+    if (strMode.equals("virtual"))
+    {
+      return new ThreadDispatcher(strName, nThreads + nQueue, true);
+    }
+    else if (strMode.equals("thread"))
+    {
+      return new ThreadDispatcher(strName, nThreads + nQueue, false);
+    }
+    else if (strMode.equals("pool"))
+    {
+      return new PooledDispatcher(strName, nThreads, nQueue);
+    }
+    else
+    {
+      throw new IllegalArgumentException("unknown dispatcher " + strMode);
+    }
+  }
+}
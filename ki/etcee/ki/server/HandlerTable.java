@@ -0,0 +1,385 @@
+package etcee.ki.server;
+
+import etcee.ki.agent.Message;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import java.lang.reflect.Method;
+
+import java.util.Hashtable;
+
+/**
+ * The handler table.
+ *
+ * The <CODE>HandlerTable</CODE> class maps the message names of a
+ * target class to its message handlers -- its public methods whose
+ * names begin with "handle".  Each handler is compiled, once, into a
+ * method handle that takes the target and the parameters as objects
+ * and returns an object.  Invoking it costs no reflective access
+ * check and, for handlers of up to four parameters, no parameter
+ * array.
+ *
+ * Handler tables are built once per target class and shared by
+ * every agent of that class.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see AgentWrapper.setup
+ *
+ */
+
+final class HandlerTable
+{
+  /**
+   * The handler.
+   *
+   */
+
+  final static class Handler
+  {
+    /**
+     * The method handle.
+     *
+     * The method handle is null if the method was not accessible.
+     *
+     */
+
+    private MethodHandle methodhandle = null;
+
+    /**
+     * The exception thrown when the method was made into a method
+     * handle, if any.
+     *
+     */
+
+    private IllegalAccessException illegalaccessexception = null;
+
+    /**
+     * The parameter types.
+     *
+     */
+
+    private Class [] rgclassParameters = null;
+
+    /**
+     * Constructs the handler.
+     *
+     */
+
+    Handler(Method method)
+    {
+      rgclassParameters = method.getParameterTypes();
+
+      try
+      {
+        methodhandle = MethodHandles.publicLookup().unreflect(method);
+
+        methodhandle = methodhandle.asType(MethodType.genericMethodType(rgclassParameters.length + 1));
+
+        if (rgclassParameters.length > 4)
+        {
+          methodhandle = methodhandle.asSpreader(Object [].class, rgclassParameters.length);
+        }
+      }
+      catch (IllegalAccessException ex)
+      {
+        methodhandle = null;
+
+        illegalaccessexception = ex;
+      }
+    }
+
+    /**
+     * Checks the parameters.
+     *
+     * @throws IllegalAccessException if the method was not
+     *         accessible.
+     *
+     * @throws IllegalArgumentException if the number or types of the
+     *         parameters do not match those of the method.
+     *
+     */
+
+    private void
+    check(int n)
+      throws IllegalAccessException
+    {
+      if (methodhandle == null)
+      {
+        throw illegalaccessexception;
+      }
+
+      if (n != rgclassParameters.length)
+      {
+        throw new IllegalArgumentException("wrong number of arguments");
+      }
+    }
+
+    private void
+    check(int i, Object obj)
+    {
+      if (!isAssignable(rgclassParameters[i], obj))
+      {
+        throw new IllegalArgumentException("argument type mismatch");
+      }
+    }
+
+    /**
+     * Invokes the handler with the parameters of a message.
+     *
+     * The parameters are read from the message in place.
+     *
+     * @throws IllegalAccessException if the method was not
+     *         accessible.
+     *
+     * @throws IllegalArgumentException if the number or types of the
+     *         parameters do not match those of the method.
+     *
+     * @throws Throwable if the handler threw it.
+     *
+     */
+
+    final Object
+    invoke(Object objTarget, Message message)
+      throws Throwable
+    {
+      int n = message.getParameterCount();
+
+      check(n);
+
+      for (int i = 0; i < n; i++)
+      {
+        check(i, message.getParameter(i));
+      }
+
+      switch (n)
+      {
+      case 0:
+        return (Object)methodhandle.invokeExact(objTarget);
+      case 1:
+        return (Object)methodhandle.invokeExact(objTarget,
+                                                message.getParameter(0));
+      case 2:
+        return (Object)methodhandle.invokeExact(objTarget,
+                                                message.getParameter(0),
+                                                message.getParameter(1));
+      case 3:
+        return (Object)methodhandle.invokeExact(objTarget,
+                                                message.getParameter(0),
+                                                message.getParameter(1),
+                                                message.getParameter(2));
+      case 4:
+        return (Object)methodhandle.invokeExact(objTarget,
+                                                message.getParameter(0),
+                                                message.getParameter(1),
+                                                message.getParameter(2),
+                                                message.getParameter(3));
+      default:
+        return (Object)methodhandle.invokeExact(objTarget,
+                                                message.getParameters());
+      }
+    }
+
+    /**
+     * Invokes the handler as a catch-all handler.
+     *
+     * The catch-all handler is passed the message name and the
+     * parameters.
+     *
+     * @throws IllegalAccessException if the method was not
+     *         accessible.
+     *
+     * @throws IllegalArgumentException if the method does not take a
+     *         message name and the parameters.
+     *
+     * @throws Throwable if the handler threw it.
+     *
+     */
+
+    final Object
+    invokeCatchAll(Object objTarget, Message message)
+      throws Throwable
+    {
+      check(2);
+
+      String strMessageName = message.getMessageName();
+
+      Object [] rgobj = message.getParameters();
+
+      check(0, strMessageName);
+      check(1, rgobj);
+
+      return (Object)methodhandle.invokeExact(objTarget,
+                                              (Object)strMessageName,
+                                              (Object)rgobj);
+    }
+  }
+
+  /**
+   * The wrapper table.
+   *
+   * The wrapper table maps each primitive type to the wrapper types
+   * whose values widen to it.
+   *
+   */
+
+  private final static Hashtable hashtableWrappers = new Hashtable();
+
+  static
+  {
+    hashtableWrappers.put(Boolean.TYPE, new Class [] { Boolean.class });
+    hashtableWrappers.put(Character.TYPE, new Class [] { Character.class });
+    hashtableWrappers.put(Byte.TYPE, new Class [] { Byte.class });
+    hashtableWrappers.put(Short.TYPE, new Class [] { Short.class, Byte.class });
+    hashtableWrappers.put(Integer.TYPE, new Class [] { Integer.class, Character.class, Short.class, Byte.class });
+    hashtableWrappers.put(Long.TYPE, new Class [] { Long.class, Integer.class, Character.class, Short.class, Byte.class });
+    hashtableWrappers.put(Float.TYPE, new Class [] { Float.class, Long.class, Integer.class, Character.class, Short.class, Byte.class });
+    hashtableWrappers.put(Double.TYPE, new Class [] { Double.class, Float.class, Long.class, Integer.class, Character.class, Short.class, Byte.class });
+  }
+
+  /**
+   * Determines whether or not an object may be passed as a parameter
+   * of the specified type.
+   *
+   * The rules are those of <CODE>Method.invoke()</CODE>.
+   *
+   */
+
+  private static boolean
+  isAssignable(Class c, Object obj)
+  {
+    if (!c.isPrimitive())
+    {
+      return obj == null || c.isInstance(obj);
+    }
+
+    if (obj == null)
+    {
+      return false;
+    }
+
+    Class [] rgclass = (Class [])hashtableWrappers.get(c);
+
+    for (int i = 0; i < rgclass.length; i++)
+    {
+      if (rgclass[i] == obj.getClass())
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * The handler table cache.
+   *
+   */
+
+  private final static ClassValue classvalueHandlerTables = new ClassValue()
+    {
+      protected Object
+      computeValue(Class c)
+      {
+        return new HandlerTable(c);
+      }
+    };
+
+  /**
+   * Gets the handler table of a target class.
+   *
+   */
+
+  static HandlerTable
+  getHandlerTable(Class c)
+  {
+    return (HandlerTable)classvalueHandlerTables.get(c);
+  }
+
+  /**
+   * The handler table.
+   *
+   * The handler table maps message names to handlers.  The catch-all
+   * handler has the empty message name.
+   *
+   */
+
+  private Hashtable hashtableHandlers = null;
+
+  /**
+   * The duplicate message name.
+   *
+   */
+
+  private String strDuplicate = null;
+
+  /**
+   * Gets the duplicate message name.
+   *
+   * @returns the name of a message for which the target class defines
+   *          more than one handler, or null if there is none.
+   *
+   */
+
+  final String
+  getDuplicate()
+  {
+    return strDuplicate;
+  }
+
+  /**
+   * Constructs the handler table.
+   *
+   */
+
+  private
+  HandlerTable(Class c)
+  {
+    Method [] rgmethod = c.getMethods();
+
+    hashtableHandlers = new Hashtable(rgmethod.length);
+
+    for (int i = 0; i < rgmethod.length; i++)
+    {
+      String strName = rgmethod[i].getName();
+
+      if (strName.startsWith("handle"))
+      {
+        String strMessageName = strName.substring(6);
+
+        if (hashtableHandlers.put(strMessageName, new Handler(rgmethod[i])) != null)
+        {
+          strDuplicate = strMessageName;
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the handler for a message.
+   *
+   * @returns the handler, or null if there is none.
+   *
+   */
+
+  final Handler
+  getHandler(String strMessageName)
+  {
+    return (Handler)hashtableHandlers.get(strMessageName);
+  }
+
+  /**
+   * Gets the catch-all handler.
+   *
+   * @returns the handler, or null if there is none.
+   *
+   */
+
+  final Handler
+  getCatchAllHandler()
+  {
+    return (Handler)hashtableHandlers.get("");
+  }
+}
@@ -0,0 +1,216 @@
+package etcee.ki.server;
+
+import etcee.ki.agent.AgentIdentity;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * The identity table.
+ *
+ * The <CODE>IdentityTable</CODE> class interns the agent identities
+ * an agent host keeps, so that its tables share one instance per
+ * agent.  Each agent host has its own identity table -- an agent host
+ * sets the agent host name of the agent identities of the agents it
+ * hosts, and must not change an instance another agent host in the
+ * same virtual machine shares.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see ServerData
+ *
+ */
+
+final class IdentityTable
+{
+  /**
+   * The most agent identities interned before the table grows.
+   *
+   */
+
+  private int nThreshold = 48;
+
+  /**
+   * The intern table.
+   *
+   * The intern table is a hash table of weak references to interned
+   * agent identities, chained by bucket.  An agent identity that is
+   * no longer used elsewhere drops out of it.
+   *
+   */
+
+  private Reference [] rgreference = new Reference [64];
+
+  /**
+   * The number of references in the intern table.
+   *
+   */
+
+  private int nReferences = 0;
+
+  /**
+   * The queue of references whose agent identities have been
+   * collected.
+   *
+   */
+
+  private final ReferenceQueue referencequeue = new ReferenceQueue();
+
+  /**
+   * A reference in the intern table.
+   *
+   */
+
+  private final static class Reference
+    extends WeakReference
+  {
+    final int nHash;
+
+    Reference referenceNext = null;
+
+    Reference(AgentIdentity agentidentity, Reference referenceNext, ReferenceQueue referencequeue)
+    {
+      super(agentidentity, referencequeue);
+
+      this.nHash = agentidentity.hashCode();
+      this.referenceNext = referenceNext;
+    }
+  }
+
+  /**
+   * Interns an agent identity.
+   *
+   * If an equal agent identity has already been interned, it is
+   * returned.  Otherwise this agent identity is interned and
+   * returned.
+   *
+   * The agent identity returned is shared by this agent host's
+   * tables only, so the agent host may set its agent host name.
+   *
+   */
+
+  final AgentIdentity
+  intern(AgentIdentity agentidentity)
+  {
+    if (agentidentity == null)
+    {
+      return null;
+    }
+
+    int nHash = agentidentity.hashCode();
+
+    synchronized (referencequeue)
+    {
+      expunge();
+
+      int n = nHash & (rgreference.length - 1);
+
+      for (Reference reference = rgreference[n]; reference != null; reference = reference.referenceNext)
+      {
+        AgentIdentity agentidentityInterned = (AgentIdentity)reference.get();
+
+        if (reference.nHash == nHash && agentidentity.equals(agentidentityInterned))
+        {
+          return agentidentityInterned;
+        }
+      }
+
+      rgreference[n] = new Reference(agentidentity, rgreference[n], referencequeue);
+
+      if (++nReferences > nThreshold)
+      {
+        resize();
+      }
+
+      return agentidentity;
+    }
+  }
+
+  /**
+   * Gets the number of agent identities interned.
+   *
+   */
+
+  final int
+  getInternedCount()
+  {
+    synchronized (referencequeue)
+    {
+      expunge();
+
+      return nReferences;
+    }
+  }
+
+  /**
+   * Removes the references whose agent identities have been collected.
+   *
+   */
+
+  private void
+  expunge()
+  {
+    Reference referenceCleared = null;
+
+    while ((referenceCleared = (Reference)referencequeue.poll()) != null)
+    {
+      int n = referenceCleared.nHash & (rgreference.length - 1);
+
+      Reference referencePrevious = null;
+
+      for (Reference reference = rgreference[n]; reference != null; reference = reference.referenceNext)
+      {
+        if (reference == referenceCleared)
+        {
+          if (referencePrevious == null)
+          {
+            rgreference[n] = reference.referenceNext;
+          }
+          else
+          {
+            referencePrevious.referenceNext = reference.referenceNext;
+          }
+
+          nReferences--;
+
+          break;
+        }
+
+        referencePrevious = reference;
+      }
+    }
+  }
+
+  /**
+   * Doubles the size of the intern table.
+   *
+   */
+
+  private void
+  resize()
+  {
+    Reference [] rgreferenceNew = new Reference [rgreference.length * 2];
+
+    for (int i = 0; i < rgreference.length; i++)
+    {
+      Reference reference = rgreference[i];
+
+      while (reference != null)
+      {
+        Reference referenceNext = reference.referenceNext;
+
+        int n = reference.nHash & (rgreferenceNew.length - 1);
+
+        reference.referenceNext = rgreferenceNew[n];
+
+        rgreferenceNew[n] = reference;
+
+        reference = referenceNext;
+      }
+    }
+
+    rgreference = rgreferenceNew;
+
+    nThreshold = rgreferenceNew.length * 3 / 4;
+  }
+}
@@ -0,0 +1,457 @@
+package etcee.ki.server;
+
+import etcee.ki.agent.AgentIdentity;
+
+import java.io.UnsupportedEncodingException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.HashMap;
+import java.util.SortedMap;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.Vector;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The location service.
+ *
+ * The <CODE>LocationService</CODE> class tracks where agents are.
+ * The agent hosts listed in the <CODE>etcee.ki.hosts</CODE> system
+ * property (separated by commas) share the work.  Each agent has a
+ * home -- the listed agent host that the agent's identity hashes to
+ * on a consistent hash ring -- and the home records where the agent
+ * is.  Every agent host must list the same agent hosts.
+ *
+ * When an agent arrives at an agent host, the agent host tells the
+ * agent's home where the agent came from and where it is now.  The
+ * home only accepts a move from where it believes the agent to be.
+ * A move that arrives ahead of the one before it is held until that
+ * one arrives.
+ *
+ * A sender that does not know where an agent is asks the agent's
+ * home, so a message reaches an agent with one lookup and one
+ * delivery however far the agent has travelled.  The answers are
+ * kept in the sender's address book.
+ *
+ * The locations are not persistent.  When an agent host starts, it
+ * claims the agents it holds.  A location that is missing or stale
+ * leaves the sender to follow the agent from host to host, as it
+ * would without the service.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see AgentHostImplementation.locateAgent
+ * @see AgentHostImplementation.relocateAgent
+ *
+ */
+
+final class LocationService
+{
+  /**
+   * The number of points each agent host has on the ring.
+   *
+   */
+
+  private final static int nPoints = 128;
+
+  /**
+   * The maximum number of moves held for an agent.
+   *
+   */
+
+  private final static int nMaximumHeld = 8;
+
+  /**
+   * Gets the agent hosts listed in the <CODE>etcee.ki.hosts</CODE>
+   * system property.
+   *
+   * @returns the agent host names, or null if none are listed.
+   *
+   */
+
+  static String []
+  getAgentHostNames()
+  {
+    String str = System.getProperty("etcee.ki.hosts");
+
+    if (str == null)
+    {
+      return null;
+    }
+
+    Vector vector = new Vector();
+
+    StringTokenizer stringtokenizer = new StringTokenizer(str, ", ");
+
+    while (stringtokenizer.hasMoreTokens())
+    {
+      vector.addElement(stringtokenizer.nextToken());
+    }
+
+    if (vector.size() == 0)
+    {
+      return null;
+    }
+
+    String [] rgstrAgentHostNames = new String [vector.size()];
+
+    vector.copyInto(rgstrAgentHostNames);
+
+    return rgstrAgentHostNames;
+  }
+
+  /**
+   * Creates the location service.
+   *
+   * @returns the location service, or null if the
+   *          <CODE>etcee.ki.hosts</CODE> system property lists no
+   *          agent hosts.
+   *
+   */
+
+  static LocationService
+  createLocationService(String strAgentHostName, IdentityTable identitytable)
+  {
+    String [] rgstrAgentHostNames = getAgentHostNames();
+
+    if (rgstrAgentHostNames == null)
+    {
+      return null;
+    }
+
+    return new LocationService(strAgentHostName, rgstrAgentHostNames, identitytable);
+  }
+
+  /**
+   * The agent host name.
+   *
+   */
+
+  private String strAgentHostName = null;
+
+  /**
+   * The identity table.
+   *
+   */
+
+  private IdentityTable identitytable = null;
+
+  /**
+   * The ring.
+   *
+   * The ring maps points to agent host names.  It is not changed once
+   * the service is constructed.
+   *
+   */
+
+  private TreeMap treemapRing = new TreeMap();
+
+  /**
+   * The location table.
+   *
+   * The location table maps the identities of the agents whose home
+   * is this agent host to the names of the agent hosts they are on.
+   *
+   */
+
+  private ConcurrentHashMap concurrenthashmapLocations = new ConcurrentHashMap();
+
+  /**
+   * The held moves.
+   *
+   * The held moves map agent identities to vectors of moves that
+   * arrived out of order.  Each move is a pair of agent host names.
+   *
+   */
+
+  private HashMap hashmapHeld = new HashMap();
+
+  /**
+   * The counters.
+   *
+   */
+
+  private AtomicLong atomiclongLookups = new AtomicLong();
+  private AtomicLong atomiclongMisses = new AtomicLong();
+  private AtomicLong atomiclongMoves = new AtomicLong();
+  private AtomicLong atomiclongHeld = new AtomicLong();
+  private AtomicLong atomiclongFailures = new AtomicLong();
+
+  /**
+   * Constructs the location service.
+   *
+   */
+
+  LocationService(String strAgentHostName,
+                  String [] rgstrAgentHostNames,
+                  IdentityTable identitytable)
+  {
+    this.strAgentHostName = strAgentHostName;
+    this.identitytable = identitytable;
+
+    for (int i = 0; i < rgstrAgentHostNames.length; i++)
+    {
+      for (int j = 0; j < nPoints; j++)
+      {
+        treemapRing.put(Integer.valueOf(position(rgstrAgentHostNames[i] + "#" + j)),
+                        rgstrAgentHostNames[i]);
+      }
+    }
+  }
+
+  /**
+   * Gets the position of an agent host's point on the ring.
+   *
+   */
+
+  private static int
+  position(String str)
+  {
+    try
+    {
+      byte [] rgb = MessageDigest.getInstance("MD5").digest(str.getBytes("UTF-8"));
+
+      return (rgb[0] & 0xFF) |
+             ((rgb[1] & 0xFF) << 8) |
+             ((rgb[2] & 0xFF) << 16) |
+             ((rgb[3] & 0xFF) << 24);
+    }
+    catch (NoSuchAlgorithmException ex)
+    {
+      throw new InternalError(ex.toString());
+    }
+    catch (UnsupportedEncodingException ex)
+    {
+      throw new InternalError(ex.toString());
+    }
+  }
+
+  /**
+   * Gets the position of an agent on the ring.
+   *
+   * The hashcode of an agent identity is taken from random bytes, so
+   * it is the same on every agent host.  It is mixed so that agents
+   * spread evenly even if those bytes do not.
+   *
+   */
+
+  private static int
+  position(AgentIdentity agentidentity)
+  {
+    int n = agentidentity.hashCode();
+
+    n ^= n >>> 16;
+    n *= 0x85ebca6b;
+    n ^= n >>> 13;
+    n *= 0xc2b2ae35;
+    n ^= n >>> 16;
+
+    return n;
+  }
+
+  /**
+   * Gets the name of an agent's home.
+   *
+   */
+
+  final String
+  getHome(AgentIdentity agentidentity)
+  {
+    SortedMap sortedmap = treemapRing.tailMap(Integer.valueOf(position(agentidentity)));
+
+    Integer integer = (Integer)(sortedmap.isEmpty() ? treemapRing.firstKey() : sortedmap.firstKey());
+
+    return (String)treemapRing.get(integer);
+  }
+
+  /**
+   * Determines whether or not this agent host is an agent's home.
+   *
+   */
+
+  final boolean
+  isHome(AgentIdentity agentidentity)
+  {
+    return strAgentHostName.equals(getHome(agentidentity));
+  }
+
+  /**
+   * Locates an agent whose home is this agent host.
+   *
+   * @returns the name of the agent host the agent is on, or null if
+   *          the agent is unknown.
+   *
+   */
+
+  final String
+  locate(AgentIdentity agentidentity)
+  {
+    atomiclongLookups.incrementAndGet();
+
+    String str = (String)concurrenthashmapLocations.get(agentidentity);
+
+    if (str == null)
+    {
+      atomiclongMisses.incrementAndGet();
+    }
+
+    return str;
+  }
+
+  /**
+   * Records the move of an agent whose home is this agent host.
+   *
+   * A move from null claims an agent whose location is unknown.
+   *
+   * @parameter strFrom the agent host the agent left, or null.
+   *
+   * @parameter strTo the agent host the agent is now on.
+   *
+   */
+
+  final synchronized void
+  relocate(AgentIdentity agentidentity, String strFrom, String strTo)
+  {
+    String str = (String)concurrenthashmapLocations.get(agentidentity);
+
+    boolean boolAccepted = strFrom == null ? str == null : str == null || str.equals(strFrom);
+
+    if (!boolAccepted)
+    {
+      // The move is ahead of the one before it -- hold it.
+
+      if (strFrom == null)
+      {
+        return;
+      }
+
+      Vector vector = (Vector)hashmapHeld.get(agentidentity);
+
+      if (vector == null)
+      {
+        vector = new Vector();
+
+        hashmapHeld.put(agentidentity, vector);
+      }
+
+      if (vector.size() == nMaximumHeld)
+      {
+        vector.removeElementAt(0);
+      }
+
+      vector.addElement(new String [] { strFrom, strTo });
+
+      atomiclongHeld.incrementAndGet();
+
+      return;
+    }
+
+    atomiclongMoves.incrementAndGet();
+
+    // Apply the held moves that follow this one.
+
+    Vector vector = (Vector)hashmapHeld.get(agentidentity);
+
+    for (int i = 0; vector != null && i < vector.size(); i++)
+    {
+      String [] rgstr = (String [])vector.elementAt(i);
+
+      if (rgstr[0].equals(strTo))
+      {
+        vector.removeElementAt(i);
+
+        strTo = rgstr[1];
+
+        i = -1;
+      }
+    }
+
+    if (vector != null && vector.size() == 0)
+    {
+      hashmapHeld.remove(agentidentity);
+    }
+
+    concurrenthashmapLocations.put(identitytable.intern(agentidentity), strTo);
+  }
+
+  /**
+   * Records the failure to reach an agent's home.
+   *
+   */
+
+  final void
+  recordFailure()
+  {
+    atomiclongFailures.incrementAndGet();
+  }
+
+  /**
+   * Gets the number of agents whose home is this agent host.
+   *
+   */
+
+  final int
+  getLocationCount()
+  {
+    return concurrenthashmapLocations.size();
+  }
+
+  /**
+   * Gets the number of lookups answered.
+   *
+   */
+
+  final long
+  getLookupCount()
+  {
+    return atomiclongLookups.get();
+  }
+
+  /**
+   * Gets the number of lookups for unknown agents.
+   *
+   */
+
+  final long
+  getMissCount()
+  {
+    return atomiclongMisses.get();
+  }
+
+  /**
+   * Gets the number of moves recorded.
+   *
+   */
+
+  final long
+  getMoveCount()
+  {
+    return atomiclongMoves.get();
+  }
+
+  /**
+   * Gets the number of moves held because they arrived out of order.
+   *
+   */
+
+  final long
+  getHeldCount()
+  {
+    return atomiclongHeld.get();
+  }
+
+  /**
+   * Gets the number of times an agent's home could not be reached.
+   *
+   */
+
+  final long
+  getFailureCount()
+  {
+    return atomiclongFailures.get();
+  }
+}
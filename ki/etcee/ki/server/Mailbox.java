@@ -0,0 +1,453 @@
+package etcee.ki.server;
+
+import etcee.ki.agent.AgentIdentity;
+import etcee.ki.agent.Message;
+
+import etcee.ki.agenthost.AgentHost;
+import etcee.ki.agenthost.MessageFailedException;
+import etcee.ki.agenthost.Response;
+import etcee.ki.agenthost.Voucher;
+
+import java.util.LinkedList;
+
+/**
+ * The mailbox.
+ *
+ * The <CODE>Mailbox</CODE> class queues the messages sent to an
+ * agent.  The thread that delivers a message to the mailbox returns
+ * as soon as the message is queued.  A single consumer, run by the
+ * agent host's handler dispatcher, hands the messages to the agent
+ * one at a time, in the order in which they arrived, and delivers
+ * each response to the sending agent host.  A response that cannot
+ * be delivered is tried once more, and then left to the sending agent
+ * host, which fails the message once it has waited long enough.
+ *
+ * The mailbox is bounded.  When it is full, a new message is handled
+ * according to the overflow policy:
+ *
+ * <UL>
+ * <LI><CODE>REJECT</CODE> -- the new message fails
+ * <LI><CODE>DROP_OLDEST</CODE> -- the oldest queued message fails
+ *     and the new message is queued
+ * <LI><CODE>BLOCK</CODE> -- the sender waits until there is room
+ * </UL>
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see AgentHost.deliverResponse
+ *
+ */
+
+final class Mailbox
+{
+  /**
+   * The overflow policies.
+   *
+   */
+
+  final static int REJECT = 0;
+  final static int DROP_OLDEST = 1;
+  final static int BLOCK = 2;
+
+  /**
+   * The maximum number of messages a consumer handles before it
+   * yields its thread.
+   *
+   */
+
+  private final static int nRun = 64;
+
+  /**
+   * The letter.
+   *
+   * A letter is a queued message along with the information needed
+   * to deliver its response.
+   *
+   */
+
+  private final static class Letter
+  {
+    AgentHost agenthost = null;
+    Voucher voucher = null;
+    Message message = null;
+
+    Letter(AgentHost agenthost, Voucher voucher, Message message)
+    {
+      this.agenthost = agenthost;
+      this.voucher = voucher;
+      this.message = message;
+    }
+  }
+
+  /**
+   * The agent wrapper.
+   *
+   */
+
+  private AgentWrapper agentwrapper = null;
+
+  /**
+   * The dispatcher.
+   *
+   */
+
+  private Dispatcher dispatcher = null;
+
+  /**
+   * The metrics.
+   *
+   * The agent host's metrics count the messages every mailbox
+   * rejects or drops.
+   *
+   */
+
+  private Metrics metrics = null;
+
+  /**
+   * The capacity.
+   *
+   */
+
+  private int nCapacity = 0;
+
+  /**
+   * The overflow policy.
+   *
+   */
+
+  private int nPolicy = REJECT;
+
+  /**
+   * The queue.
+   *
+   */
+
+  private LinkedList linkedlistLetters = new LinkedList();
+
+  /**
+   * The scheduled flag.
+   *
+   * The scheduled flag is set while a consumer is scheduled or
+   * running.  There is never more than one.
+   *
+   */
+
+  private boolean boolScheduled = false;
+
+  /**
+   * The closed flag.
+   *
+   */
+
+  private boolean boolClosed = false;
+
+  /**
+   * The mailbox counters.
+   *
+   */
+
+  private long nDelivered = 0;
+  private long nRejected = 0;
+  private long nDropped = 0;
+
+  /**
+   * The consumer.
+   *
+   */
+
+  private Runnable runnableConsumer = new Runnable()
+    {
+      public void
+      run()
+      {
+        consume();
+      }
+    };
+
+  /**
+   * Constructs the mailbox.
+   *
+   */
+
+  Mailbox(AgentWrapper agentwrapper,
+          Dispatcher dispatcher,
+          Metrics metrics,
+          int nCapacity,
+          int nPolicy)
+  {
+    this.agentwrapper = agentwrapper;
+    this.dispatcher = dispatcher;
+    this.metrics = metrics;
+    this.nCapacity = nCapacity;
+    this.nPolicy = nPolicy;
+  }
+
+  /**
+   * Parses an overflow policy.
+   *
+   * @returns the overflow policy, or <CODE>REJECT</CODE> if the name
+   *          was null or unknown.
+   *
+   */
+
+  static int
+  parsePolicy(String str)
+  {
+    if ("drop-oldest".equals(str))
+    {
+      return DROP_OLDEST;
+    }
+    else if ("block".equals(str))
+    {
+      return BLOCK;
+    }
+
+    return REJECT;
+  }
+
+  /**
+   * Gets the number of queued messages.
+   *
+   */
+
+  final synchronized int
+  getDepth()
+  {
+    return linkedlistLetters.size();
+  }
+
+  /**
+   * Gets the number of messages handed to the agent.
+   *
+   */
+
+  final synchronized long
+  getDeliveredCount()
+  {
+    return nDelivered;
+  }
+
+  /**
+   * Gets the number of messages rejected because the mailbox was
+   * full.
+   *
+   */
+
+  final synchronized long
+  getRejectedCount()
+  {
+    return nRejected;
+  }
+
+  /**
+   * Gets the number of queued messages dropped to make room.
+   *
+   */
+
+  final synchronized long
+  getDroppedCount()
+  {
+    return nDropped;
+  }
+
+  /**
+   * Posts a message.
+   *
+   * @returns a response with the code <CODE>QUEUED</CODE> if the
+   *          message was queued, or the final response if it was not.
+   *
+   */
+
+  final Response
+  post(AgentHost agenthost, Voucher voucher, Message message)
+  {
+    AgentIdentity agentidentity = agentwrapper.getAgentIdentity();
+
+    Letter letterDropped = null;
+
+    boolean boolSchedule = false;
+
+    synchronized (this)
+    {
+      while (!boolClosed && nPolicy == BLOCK &&
+             linkedlistLetters.size() >= nCapacity)
+      {
+        try
+        {
+          wait();
+        }
+        catch (InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+
+          return new Response(agentidentity, ex, Response.FAILED);
+        }
+      }
+
+      if (boolClosed)
+      {
+        return new Response(agentidentity, null, Response.LOCKED);
+      }
+
+      if (linkedlistLetters.size() >= nCapacity)
+      {
+        if (nPolicy == REJECT)
+        {
+          nRejected++;
+
+          metrics.increment("ki_mailbox_rejected");
+
+          return new Response(agentidentity,
+                              new MessageFailedException("mailbox full"),
+                              Response.FAILED);
+        }
+
+        letterDropped = (Letter)linkedlistLetters.removeFirst();
+
+        nDropped++;
+
+        metrics.increment("ki_mailbox_dropped");
+      }
+
+      linkedlistLetters.addLast(new Letter(agenthost, voucher, message));
+
+      if (!boolScheduled)
+      {
+        boolScheduled = true;
+
+        boolSchedule = true;
+      }
+    }
+
+    if (letterDropped != null)
+    {
+      reply(letterDropped,
+            new Response(agentidentity,
+                         new MessageFailedException("mailbox full"),
+                         Response.FAILED));
+    }
+
+    // If the dispatcher is saturated, the sender's thread becomes the
+    // consumer.  This pushes back on the sender.
+
+    if (boolSchedule && !dispatcher.dispatch(runnableConsumer))
+    {
+      consume();
+    }
+
+    return new Response(agentidentity, null, Response.QUEUED);
+  }
+
+  /**
+   * Consumes queued messages.
+   *
+   * The consumer hands at most a fixed number of messages to the
+   * agent, and then reschedules itself, so that a busy agent does not
+   * keep a dispatcher thread from other agents.
+   *
+   */
+
+  private void
+  consume()
+  {
+    for (int i = 0; i < nRun; i++)
+    {
+      Letter letter = null;
+
+      synchronized (this)
+      {
+        if (linkedlistLetters.isEmpty())
+        {
+          boolScheduled = false;
+
+          notifyAll();
+
+          return;
+        }
+
+        letter = (Letter)linkedlistLetters.removeFirst();
+
+        nDelivered++;
+
+        notifyAll();
+      }
+
+      Response response = agentwrapper.handleMessage(letter.message);
+
+      // The agent was locked because it is being passivated -- send
+      // the message back here, so that the agent is activated again.
+
+      if (response.nCode == Response.LOCKED)
+      {
+        response = new Response(response.agentidentity,
+                                agentwrapper.getAgentHostImplementation().getAgentHostName(),
+                                Response.TRY_AGAIN);
+      }
+
+      reply(letter, response);
+    }
+
+    if (!dispatcher.dispatch(runnableConsumer))
+    {
+      consume();
+    }
+  }
+
+  /**
+   * Delivers a response to the sending agent host.
+   *
+   */
+
+  private void
+  reply(Letter letter, Response response)
+  {
+    for (int i = 0; i < 2; i++)
+    {
+      try
+      {
+        letter.agenthost.deliverResponse(letter.voucher, response);
+
+        return;
+      }
+      catch (Exception ex)
+      {
+        if (i > 0)
+        {
+          ex.printStackTrace();
+        }
+      }
+    }
+
+    agentwrapper.getAgentHostImplementation().getMetrics().increment("ki_mailbox_reply_failures");
+  }
+
+  /**
+   * Closes the mailbox.
+   *
+   * New messages are refused.  Messages already queued are handed to
+   * the agent before this method returns.
+   *
+   */
+
+  final synchronized void
+  close()
+  {
+    boolClosed = true;
+
+    notifyAll();
+
+    while (boolScheduled)
+    {
+      try
+      {
+        wait();
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,347 @@
+package etcee.ki.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.HashMap;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The mapped archive.
+ *
+ * The <CODE>MappedArchive</CODE> class maps a resource file into
+ * memory and indexes its entries when it is opened.  Entries are
+ * read from the mapping -- a stored entry is handed out as a view of
+ * the mapping itself, a deflated entry is inflated from it.
+ *
+ * Only what the agent class loader needs is supported -- entries
+ * must be stored or deflated, and the archive must not need the
+ * zip64 extensions.  An archive that can not be indexed is refused,
+ * and the class loader falls back to reading it as a zipfile.
+ *
+ * The mapping is released when the archive is garbage collected,
+ * not when it is closed.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see AgentClassLoader
+ *
+ */
+
+final class MappedArchive
+{
+  /**
+   * The record signatures.
+   *
+   */
+
+  private final static int END = 0x06054b50;
+  private final static int CENTRAL = 0x02014b50;
+  private final static int LOCAL = 0x04034b50;
+
+  /**
+   * The compression methods.
+   *
+   */
+
+  private final static int STORED = 0;
+  private final static int DEFLATED = 8;
+
+  /**
+   * The indexed entry.
+   *
+   */
+
+  private final static class Entry
+  {
+    int nMethod = 0;
+    int nOffset = 0;
+    int nCompressedSize = 0;
+    int nSize = 0;
+  }
+
+  /**
+   * The mapping.
+   *
+   */
+
+  private MappedByteBuffer mappedbytebuffer = null;
+
+  /**
+   * The index.
+   *
+   * The index maps entry names to entries.  It is not changed once
+   * the archive is open.
+   *
+   */
+
+  private HashMap hashmapEntries = new HashMap();
+
+  /**
+   * Opens the mapped archive.
+   *
+   * @throws IOException if the file could not be mapped or indexed.
+   *
+   */
+
+  MappedArchive(File file)
+    throws IOException
+  {
+    RandomAccessFile randomaccessfile = new RandomAccessFile(file, "r");
+
+    try
+    {
+      FileChannel filechannel = randomaccessfile.getChannel();
+
+      if (filechannel.size() > Integer.MAX_VALUE)
+      {
+        throw new IOException("archive too large");
+      }
+
+      mappedbytebuffer = filechannel.map(FileChannel.MapMode.READ_ONLY, 0, filechannel.size());
+    }
+    finally
+    {
+      randomaccessfile.close();
+    }
+
+    mappedbytebuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+    // A truncated or malformed central directory points outside the
+    // archive -- report it like any other bad archive, so that the
+    // caller can fall back.
+
+    try
+    {
+      index();
+    }
+    catch (IndexOutOfBoundsException ex)
+    {
+      throw new IOException("bad central directory");
+    }
+    catch (BufferUnderflowException ex)
+    {
+      throw new IOException("bad central directory");
+    }
+  }
+
+  /**
+   * Indexes the archive.
+   *
+   */
+
+  private void
+  index()
+    throws IOException
+  {
+    ByteBuffer bytebuffer = mappedbytebuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+    // The end record is followed by a comment of up to 64K.
+
+    int nEnd = -1;
+
+    for (int i = bytebuffer.limit() - 22; i >= 0 && i >= bytebuffer.limit() - 22 - 65535; i--)
+    {
+      if (bytebuffer.getInt(i) == END)
+      {
+        nEnd = i;
+
+        break;
+      }
+    }
+
+    if (nEnd < 0)
+    {
+      throw new IOException("no central directory");
+    }
+
+    int nEntries = bytebuffer.getShort(nEnd + 10) & 0xFFFF;
+
+    long nCentral = bytebuffer.getInt(nEnd + 16) & 0xFFFFFFFFL;
+
+    if (nEntries == 0xFFFF || nCentral >= bytebuffer.limit())
+    {
+      throw new IOException("unsupported archive");
+    }
+
+    int n = (int)nCentral;
+
+    for (int i = 0; i < nEntries; i++)
+    {
+      if (bytebuffer.getInt(n) != CENTRAL)
+      {
+        throw new IOException("bad central directory");
+      }
+
+      int nFlags = bytebuffer.getShort(n + 8) & 0xFFFF;
+      int nMethod = bytebuffer.getShort(n + 10) & 0xFFFF;
+      long nCompressedSize = bytebuffer.getInt(n + 20) & 0xFFFFFFFFL;
+      long nSize = bytebuffer.getInt(n + 24) & 0xFFFFFFFFL;
+      int nNameLength = bytebuffer.getShort(n + 28) & 0xFFFF;
+      int nExtraLength = bytebuffer.getShort(n + 30) & 0xFFFF;
+      int nCommentLength = bytebuffer.getShort(n + 32) & 0xFFFF;
+      long nLocal = bytebuffer.getInt(n + 42) & 0xFFFFFFFFL;
+
+      if (nCompressedSize == 0xFFFFFFFFL || nSize == 0xFFFFFFFFL || nLocal == 0xFFFFFFFFL)
+      {
+        throw new IOException("unsupported archive");
+      }
+
+      if (nMethod != STORED && nMethod != DEFLATED)
+      {
+        throw new IOException("unsupported compression method " + nMethod);
+      }
+
+      byte [] rgbName = new byte [nNameLength];
+
+      ByteBuffer bytebufferName = bytebuffer.duplicate();
+
+      bytebufferName.position(n + 46);
+      bytebufferName.get(rgbName);
+
+      // Bit 11 marks a name encoded in UTF-8.
+
+      String strName = new String(rgbName,
+                                  (nFlags & 0x0800) != 0 ?
+                                  StandardCharsets.UTF_8 :
+                                  StandardCharsets.ISO_8859_1);
+
+      // The local header may have its own extra field, so the data
+      // offset is found there.
+
+      int nLocalHeader = (int)nLocal;
+
+      if (bytebuffer.getInt(nLocalHeader) != LOCAL)
+      {
+        throw new IOException("bad local header");
+      }
+
+      Entry entry = new Entry();
+
+      entry.nMethod = nMethod;
+      entry.nOffset = nLocalHeader + 30 +
+                      (bytebuffer.getShort(nLocalHeader + 26) & 0xFFFF) +
+                      (bytebuffer.getShort(nLocalHeader + 28) & 0xFFFF);
+      entry.nCompressedSize = (int)nCompressedSize;
+      entry.nSize = (int)nSize;
+
+      if ((long)entry.nOffset + nCompressedSize > bytebuffer.limit())
+      {
+        throw new IOException("bad entry " + strName);
+      }
+
+      if (!strName.endsWith("/"))
+      {
+        hashmapEntries.put(strName, entry);
+      }
+
+      n += 46 + nNameLength + nExtraLength + nCommentLength;
+    }
+  }
+
+  /**
+   * Closes the mapped archive.
+   *
+   */
+
+  final synchronized void
+  close()
+  {
+    mappedbytebuffer = null;
+  }
+
+  /**
+   * Gets an entry.
+   *
+   * @returns a buffer holding the contents of the entry, or null if
+   *          there is no such entry.
+   *
+   * @throws IOException if the entry could not be inflated, or the
+   *         archive is closed.
+   *
+   */
+
+  final ByteBuffer
+  getEntry(String strName)
+    throws IOException
+  {
+    Entry entry = (Entry)hashmapEntries.get(strName);
+
+    if (entry == null)
+    {
+      return null;
+    }
+
+    ByteBuffer bytebuffer = null;
+
+    synchronized (this)
+    {
+      if (mappedbytebuffer == null)
+      {
+        throw new IOException("archive closed");
+      }
+
+      bytebuffer = mappedbytebuffer.duplicate();
+    }
+
+    bytebuffer.position(entry.nOffset);
+    bytebuffer.limit(entry.nOffset + entry.nCompressedSize);
+
+    if (entry.nMethod == STORED)
+    {
+      return bytebuffer.slice();
+    }
+
+    // Inflating without a header may need one byte past the end of
+    // the data.
+
+    byte [] rgbCompressed = new byte [entry.nCompressedSize + 1];
+
+    bytebuffer.get(rgbCompressed, 0, entry.nCompressedSize);
+
+    byte [] rgb = new byte [entry.nSize];
+
+    Inflater inflater = new Inflater(true);
+
+    try
+    {
+      inflater.setInput(rgbCompressed);
+
+      int n = 0;
+
+      while (n < rgb.length)
+      {
+        int m = inflater.inflate(rgb, n, rgb.length - n);
+
+        if (m == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+        {
+          throw new IOException("truncated entry " + strName);
+        }
+
+        n += m;
+      }
+    }
+    catch (DataFormatException ex)
+    {
+      throw new IOException("bad entry " + strName + ": " + ex.getMessage());
+    }
+    finally
+    {
+      inflater.end();
+    }
+
+    return ByteBuffer.wrap(rgb);
+  }
+}
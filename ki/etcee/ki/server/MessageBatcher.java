@@ -0,0 +1,435 @@
+package etcee.ki.server;
+
+import etcee.ki.agent.AgentIdentity;
+import etcee.ki.agent.Message;
+import etcee.ki.agent.MessageResponse;
+
+import etcee.ki.agenthost.AgentHost;
+import etcee.ki.agenthost.MessageFailedException;
+import etcee.ki.agenthost.Response;
+import etcee.ki.agenthost.Voucher;
+
+import java.rmi.RemoteException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.ConnectException;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+
+/**
+ * The message batcher.
+ *
+ * The <CODE>MessageBatcher</CODE> class coalesces outbound messages
+ * by destination agent host.  The first message bound for a host
+ * opens a batch.  The batch is sent, in a single call, when the
+ * coalescing window closes or when the batch is full -- whichever
+ * happens first.
+ *
+ * Messages whose agent has moved are sent on their own, following
+ * the agent, after the batch returns.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see AgentHost.sendMessages
+ *
+ */
+
+final class MessageBatcher
+{
+  /**
+   * The batch.
+   *
+   */
+
+  private final static class Batch
+  {
+    Vector vectorAgentIdentities = new Vector();
+    Vector vectorMessages = new Vector();
+    Vector vectorMessageResponses = new Vector();
+
+    final int
+    size()
+    {
+      return vectorMessages.size();
+    }
+  }
+
+  /**
+   * The agent host implementation.
+   *
+   */
+
+  private AgentHostImplementation agenthostimplementation = null;
+
+  /**
+   * The coalescing window (in milliseconds).
+   *
+   */
+
+  private long msWindow = 0;
+
+  /**
+   * The maximum number of messages in a batch.
+   *
+   */
+
+  private int nSize = 0;
+
+  /**
+   * The open batch table.
+   *
+   * The open batch table maps agent host names to batches.
+   *
+   */
+
+  private Hashtable hashtableBatches = new Hashtable();
+
+  /**
+   * The timer.
+   *
+   * The timer closes batches when their window closes.
+   *
+   */
+
+  private Timer timer = new Timer("batcher", true);
+
+  /**
+   * The shut down flag.
+   *
+   */
+
+  private boolean boolShutdown = false;
+
+  /**
+   * The batch and message counters.
+   *
+   */
+
+  private long nBatches = 0;
+  private long nMessages = 0;
+
+  /**
+   * Gets the number of batches sent.
+   *
+   */
+
+  final synchronized long
+  getBatchCount()
+  {
+    return nBatches;
+  }
+
+  /**
+   * Gets the number of messages sent in batches.
+   *
+   */
+
+  final synchronized long
+  getMessageCount()
+  {
+    return nMessages;
+  }
+
+  /**
+   * Constructs the message batcher.
+   *
+   */
+
+  MessageBatcher(AgentHostImplementation agenthostimplementation,
+                 long msWindow,
+                 int nSize)
+  {
+    this.agenthostimplementation = agenthostimplementation;
+    this.msWindow = msWindow;
+    this.nSize = nSize;
+  }
+
+  /**
+   * Adds a message to the batch for the specified agent host.
+   *
+   * @returns false if the message batcher has been shut down.
+   *
+   */
+
+  final boolean
+  add(final String strAgentHostName,
+      AgentIdentity agentidentity,
+      Message message,
+      MessageResponse messageresponse)
+  {
+    Batch batchFull = null;
+
+    synchronized (this)
+    {
+      if (boolShutdown)
+      {
+        return false;
+      }
+
+      Batch batch = (Batch)hashtableBatches.get(strAgentHostName);
+
+      if (batch == null)
+      {
+        final Batch batchNew = new Batch();
+
+        hashtableBatches.put(strAgentHostName, batchNew);
+
+        timer.schedule(new TimerTask()
+          {
+            public void
+            run()
+            {
+              synchronized (MessageBatcher.this)
+              {
+                if (hashtableBatches.get(strAgentHostName) != batchNew)
+                {
+                  return;
+                }
+
+                hashtableBatches.remove(strAgentHostName);
+              }
+
+              dispatchBatch(strAgentHostName, batchNew);
+            }
+          },
+          msWindow);
+
+        batch = batchNew;
+      }
+
+      batch.vectorAgentIdentities.addElement(agentidentity);
+      batch.vectorMessages.addElement(message);
+      batch.vectorMessageResponses.addElement(messageresponse);
+
+      if (batch.size() >= nSize)
+      {
+        hashtableBatches.remove(strAgentHostName);
+
+        batchFull = batch;
+      }
+    }
+
+    if (batchFull != null)
+    {
+      dispatchBatch(strAgentHostName, batchFull);
+    }
+
+    return true;
+  }
+
+  /**
+   * Dispatches a closed batch.
+   *
+   */
+
+  private void
+  dispatchBatch(final String strAgentHostName, final Batch batch)
+  {
+    Runnable runnable = new Runnable()
+      {
+        public void
+        run()
+        {
+          sendBatch(strAgentHostName, batch);
+        }
+      };
+
+    if (!agenthostimplementation.getDispatcher().dispatch(runnable))
+    {
+      failBatch(batch, new MessageFailedException("dispatcher saturated"));
+    }
+  }
+
+  /**
+   * Sends a closed batch.
+   *
+   */
+
+  private void
+  sendBatch(String strAgentHostName, Batch batch)
+  {
+    int n = batch.size();
+
+    AgentIdentity [] rgagentidentity = new AgentIdentity [n];
+    Message [] rgmessage = new Message [n];
+
+    batch.vectorAgentIdentities.copyInto(rgagentidentity);
+    batch.vectorMessages.copyInto(rgmessage);
+
+    // Each message gets its own voucher, so that the response to a
+    // queued message can be matched to it.
+
+    Voucher [] rgvoucher = new Voucher [n];
+
+    for (int i = 0; i < n; i++)
+    {
+      rgvoucher[i] = new Voucher();
+
+      agenthostimplementation.awaitResponse(rgvoucher[i],
+                                            rgagentidentity[i],
+                                            rgmessage[i],
+                                            (MessageResponse)batch.vectorMessageResponses.elementAt(i));
+    }
+
+    Response [] rgresponse = null;
+
+    try
+    {
+      AgentHost agenthost = agenthostimplementation.lookupAgentHost(strAgentHostName);
+
+      rgresponse = agenthost.sendMessages(agenthostimplementation,
+                                          rgvoucher,
+                                          rgagentidentity,
+                                          rgmessage);
+
+      // A response for each message, in order, or none at all.
+
+      if (rgresponse == null || rgresponse.length != n)
+      {
+        throw new MessageFailedException("mismatched batch response");
+      }
+
+      for (int i = 0; i < n; i++)
+      {
+        if (rgresponse[i] == null)
+        {
+          throw new MessageFailedException("mismatched batch response");
+        }
+      }
+    }
+    catch (RemoteException ex)
+    {
+      forgetResponses(rgvoucher);
+
+      agenthostimplementation.getAgentHostCache().invalidate(strAgentHostName);
+
+      // If the batch was never delivered, send the messages on their
+      // own -- they will look the agent host up again.
+
+      if (ex instanceof NoSuchObjectException ||
+          ex instanceof ConnectException)
+      {
+        for (int i = 0; i < n; i++)
+        {
+          agenthostimplementation.deliverMessage(strAgentHostName,
+                                                 rgagentidentity[i],
+                                                 rgmessage[i],
+                                                 (MessageResponse)batch.vectorMessageResponses.elementAt(i));
+        }
+      }
+      else
+      {
+        failBatch(batch, ex);
+      }
+
+      return;
+    }
+    catch (Exception ex)
+    {
+      forgetResponses(rgvoucher);
+
+      failBatch(batch, ex);
+
+      return;
+    }
+
+    synchronized (this)
+    {
+      nBatches++;
+      nMessages += n;
+    }
+
+    for (int i = 0; i < n; i++)
+    {
+      MessageResponse messageresponse =
+        (MessageResponse)batch.vectorMessageResponses.elementAt(i);
+
+      String str = agenthostimplementation.completeMessage(rgvoucher[i],
+                                                           rgagentidentity[i],
+                                                           rgmessage[i],
+                                                           messageresponse,
+                                                           rgresponse[i]);
+
+      // The agent has moved -- follow it.
+
+      if (str != null)
+      {
+        agenthostimplementation.deliverMessage(str,
+                                               rgagentidentity[i],
+                                               rgmessage[i],
+                                               messageresponse,
+                                               1);
+      }
+      else
+      {
+        agenthostimplementation.getMetrics().record("ki_message_hops", 0);
+      }
+    }
+  }
+
+  /**
+   * Marks the messages in a batch as no longer pending.
+   *
+   */
+
+  private void
+  forgetResponses(Voucher [] rgvoucher)
+  {
+    for (int i = 0; i < rgvoucher.length; i++)
+    {
+      agenthostimplementation.forgetResponse(rgvoucher[i]);
+    }
+  }
+
+  /**
+   * Fails every message in a batch.
+   *
+   */
+
+  private void
+  failBatch(Batch batch, Exception ex)
+  {
+    Enumeration enumeration = batch.vectorMessageResponses.elements();
+
+    while (enumeration.hasMoreElements())
+    {
+      ((MessageResponse)enumeration.nextElement()).setFailed(ex);
+    }
+  }
+
+  /**
+   * Shuts the message batcher down.
+   *
+   * Open batches are sent immediately.
+   *
+   */
+
+  final void
+  shutdown()
+  {
+    Hashtable hashtable = null;
+
+    synchronized (this)
+    {
+      boolShutdown = true;
+
+      hashtable = hashtableBatches;
+
+      hashtableBatches = new Hashtable();
+    }
+
+    timer.cancel();
+
+    Enumeration enumeration = hashtable.keys();
+
+    while (enumeration.hasMoreElements())
+    {
+      String strAgentHostName = (String)enumeration.nextElement();
+
+      dispatchBatch(strAgentHostName, (Batch)hashtable.get(strAgentHostName));
+    }
+  }
+}
@@ -0,0 +1,725 @@
+package etcee.ki.server;
+
+import etcee.ki.agent.AgentIdentity;
+import etcee.ki.agent.DirectoryEntry;
+
+import java.io.PrintWriter;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InvalidAttributeValueException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * The metrics.
+ *
+ * The <CODE>Metrics</CODE> class collects an agent host's counters,
+ * histograms and gauges under one roof.
+ *
+ * <UL>
+ * <LI>A counter counts events.  A counter may have a label -- the
+ *     message name, for instance -- written after its name as
+ *     <CODE>name{label="value"}</CODE>.
+ * <LI>A histogram records amounts (times, sizes) in power of two
+ *     buckets, and reports their count, sum, maximum and estimated
+ *     quantiles.
+ * <LI>A gauge reads a value, such as the number of resident agents,
+ *     when the metrics are read.
+ * </UL>
+ *
+ * The metrics are registered as an MBean, with one read-only
+ * attribute per value, and may be read as text -- one
+ * <CODE>name value</CODE> line per value, sorted by name.
+ *
+ * The number of label values a counter may take is bounded, so that
+ * agents choosing message names can not grow the metrics without
+ * bound.  Further values are counted under <CODE>other</CODE>.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see MetricsEndpoint
+ *
+ */
+
+final class Metrics
+  implements DynamicMBean
+{
+  /**
+   * The most labelled counters.
+   *
+   */
+
+  private final static int nMaximumLabels = 256;
+
+  /**
+   * A histogram.
+   *
+   */
+
+  final static class Histogram
+  {
+    /**
+     * The buckets.
+     *
+     * Bucket <CODE>n</CODE> counts amounts less than 2^n and no less
+     * than 2^(n-1).  Bucket zero counts amounts of zero.
+     *
+     */
+
+    private AtomicLongArray atomiclongarrayBuckets = new AtomicLongArray(64);
+
+    private AtomicLong atomiclongCount = new AtomicLong();
+    private AtomicLong atomiclongSum = new AtomicLong();
+    private AtomicLong atomiclongMaximum = new AtomicLong();
+
+    /**
+     * Records an amount.
+     *
+     */
+
+    final void
+    record(long n)
+    {
+      if (n < 0)
+      {
+        n = 0;
+      }
+
+      atomiclongarrayBuckets.incrementAndGet(64 - Long.numberOfLeadingZeros(n));
+
+      atomiclongCount.incrementAndGet();
+      atomiclongSum.addAndGet(n);
+
+      long nMaximum = atomiclongMaximum.get();
+
+      while (n > nMaximum && !atomiclongMaximum.compareAndSet(nMaximum, n))
+      {
+        nMaximum = atomiclongMaximum.get();
+      }
+    }
+
+    /**
+     * Gets the number of amounts recorded.
+     *
+     */
+
+    final long
+    getCount()
+    {
+      return atomiclongCount.get();
+    }
+
+    /**
+     * Gets the sum of the amounts recorded.
+     *
+     */
+
+    final long
+    getSum()
+    {
+      return atomiclongSum.get();
+    }
+
+    /**
+     * Gets the largest amount recorded.
+     *
+     */
+
+    final long
+    getMaximum()
+    {
+      return atomiclongMaximum.get();
+    }
+
+    /**
+     * Estimates a quantile.
+     *
+     * @parameter d the quantile, between 0 and 1.
+     *
+     * @returns the upper bound of the bucket holding the quantile, or
+     *          the largest amount recorded if that is less.
+     *
+     */
+
+    final long
+    getQuantile(double d)
+    {
+      long nCount = atomiclongCount.get();
+
+      if (nCount == 0)
+      {
+        return 0;
+      }
+
+      long nRank = (long)Math.ceil(d * nCount);
+
+      long n = 0;
+
+      for (int i = 0; i < 64; i++)
+      {
+        n += atomiclongarrayBuckets.get(i);
+
+        if (n >= nRank)
+        {
+          long nBound = i == 0 ? 0 : i == 63 ? Long.MAX_VALUE : (1L << i) - 1;
+
+          return Math.min(nBound, getMaximum());
+        }
+      }
+
+      return getMaximum();
+    }
+  }
+
+  /**
+   * A gauge.
+   *
+   */
+
+  abstract static class Gauge
+  {
+    /**
+     * Reads the value.
+     *
+     */
+
+    abstract long
+    getValue();
+  }
+
+  /**
+   * A table.
+   *
+   * A table reads a set of labelled values, such as one per resident
+   * agent, that are too many to list with the other values.  Tables
+   * are read over JMX only.
+   *
+   */
+
+  abstract static class Table
+  {
+    /**
+     * Reads the values into a map of names to longs.
+     *
+     */
+
+    abstract void
+    read(Map map);
+  }
+
+  /**
+   * The counters.
+   *
+   * The counters map names (with their labels) to atomic longs.
+   *
+   */
+
+  private ConcurrentHashMap concurrenthashmapCounters = new ConcurrentHashMap();
+
+  /**
+   * The number of labelled counters.
+   *
+   */
+
+  private AtomicLong atomiclongLabels = new AtomicLong();
+
+  /**
+   * The histograms.
+   *
+   */
+
+  private ConcurrentHashMap concurrenthashmapHistograms = new ConcurrentHashMap();
+
+  /**
+   * The gauges.
+   *
+   */
+
+  private ConcurrentHashMap concurrenthashmapGauges = new ConcurrentHashMap();
+
+  /**
+   * The tables.
+   *
+   */
+
+  private CopyOnWriteArrayList copyonwritearraylistTables = new CopyOnWriteArrayList();
+
+  /**
+   * The name the metrics are registered under, or null.
+   *
+   */
+
+  private ObjectName objectname = null;
+
+  /**
+   * Gets a counter.
+   *
+   */
+
+  private AtomicLong
+  getCounter(String strName)
+  {
+    AtomicLong atomiclong = (AtomicLong)concurrenthashmapCounters.get(strName);
+
+    if (atomiclong == null)
+    {
+      atomiclong = new AtomicLong();
+
+      AtomicLong atomiclongExisting =
+        (AtomicLong)concurrenthashmapCounters.putIfAbsent(strName, atomiclong);
+
+      if (atomiclongExisting != null)
+      {
+        atomiclong = atomiclongExisting;
+      }
+    }
+
+    return atomiclong;
+  }
+
+  /**
+   * Counts an event.
+   *
+   */
+
+  final void
+  increment(String strName)
+  {
+    getCounter(strName).incrementAndGet();
+  }
+
+  /**
+   * Counts an event with a label.
+   *
+   */
+
+  final void
+  increment(String strName, String strLabel, String strValue)
+  {
+    String str = label(strName, strLabel, strValue);
+
+    AtomicLong atomiclong = (AtomicLong)concurrenthashmapCounters.get(str);
+
+    if (atomiclong == null)
+    {
+      if (atomiclongLabels.incrementAndGet() > nMaximumLabels)
+      {
+        atomiclongLabels.decrementAndGet();
+
+        str = label(strName, strLabel, "other");
+      }
+
+      atomiclong = getCounter(str);
+    }
+
+    atomiclong.incrementAndGet();
+  }
+
+  /**
+   * Builds the name of a labelled counter.
+   *
+   */
+
+  private static String
+  label(String strName, String strLabel, String strValue)
+  {
+    StringBuffer stringbuffer = new StringBuffer(strName);
+
+    stringbuffer.append('{');
+    stringbuffer.append(strLabel);
+    stringbuffer.append("=\"");
+
+    for (int i = 0; i < strValue.length(); i++)
+    {
+      char c = strValue.charAt(i);
+
+      if (c == '"' || c == '\\')
+      {
+        stringbuffer.append('\\');
+      }
+
+      stringbuffer.append(c < ' ' ? '?' : c);
+    }
+
+    stringbuffer.append("\"}");
+
+    return stringbuffer.toString();
+  }
+
+  /**
+   * Gets the name of an agent for use as a label -- its ID in
+   * hexadecimal.
+   *
+   */
+
+  static String
+  getName(AgentIdentity agentidentity)
+  {
+    String str = DirectoryEntry.getCursor("", agentidentity);
+
+    return str.substring(1);
+  }
+
+  /**
+   * Records an amount in a histogram.
+   *
+   */
+
+  final void
+  record(String strName, long n)
+  {
+    Histogram histogram = (Histogram)concurrenthashmapHistograms.get(strName);
+
+    if (histogram == null)
+    {
+      histogram = new Histogram();
+
+      Histogram histogramExisting =
+        (Histogram)concurrenthashmapHistograms.putIfAbsent(strName, histogram);
+
+      if (histogramExisting != null)
+      {
+        histogram = histogramExisting;
+      }
+    }
+
+    histogram.record(n);
+  }
+
+  /**
+   * Gets a histogram.
+   *
+   * @returns the histogram, or null if nothing has been recorded in
+   *          it.
+   *
+   */
+
+  final Histogram
+  getHistogram(String strName)
+  {
+    return (Histogram)concurrenthashmapHistograms.get(strName);
+  }
+
+  /**
+   * Adds a gauge.
+   *
+   */
+
+  final void
+  addGauge(String strName, Gauge gauge)
+  {
+    concurrenthashmapGauges.put(strName, gauge);
+  }
+
+  /**
+   * Adds a table.
+   *
+   */
+
+  final void
+  addTable(Table table)
+  {
+    copyonwritearraylistTables.add(table);
+  }
+
+  /**
+   * Gets the value of a counter.
+   *
+   */
+
+  final long
+  getCount(String strName)
+  {
+    AtomicLong atomiclong = (AtomicLong)concurrenthashmapCounters.get(strName);
+
+    return atomiclong == null ? 0 : atomiclong.get();
+  }
+
+  /**
+   * Reads every value.
+   *
+   * @returns a map of names to longs, sorted by name.
+   *
+   */
+
+  final TreeMap
+  read()
+  {
+    TreeMap treemap = new TreeMap();
+
+    Iterator iterator = concurrenthashmapCounters.entrySet().iterator();
+
+    while (iterator.hasNext())
+    {
+      Map.Entry entry = (Map.Entry)iterator.next();
+
+      treemap.put(entry.getKey(), Long.valueOf(((AtomicLong)entry.getValue()).get()));
+    }
+
+    iterator = concurrenthashmapHistograms.entrySet().iterator();
+
+    while (iterator.hasNext())
+    {
+      Map.Entry entry = (Map.Entry)iterator.next();
+
+      String strName = (String)entry.getKey();
+
+      Histogram histogram = (Histogram)entry.getValue();
+
+      treemap.put(strName + "_count", Long.valueOf(histogram.getCount()));
+      treemap.put(strName + "_sum", Long.valueOf(histogram.getSum()));
+      treemap.put(strName + "_max", Long.valueOf(histogram.getMaximum()));
+      treemap.put(strName + "{quantile=\"0.5\"}", Long.valueOf(histogram.getQuantile(0.5)));
+      treemap.put(strName + "{quantile=\"0.9\"}", Long.valueOf(histogram.getQuantile(0.9)));
+      treemap.put(strName + "{quantile=\"0.99\"}", Long.valueOf(histogram.getQuantile(0.99)));
+    }
+
+    iterator = concurrenthashmapGauges.entrySet().iterator();
+
+    while (iterator.hasNext())
+    {
+      Map.Entry entry = (Map.Entry)iterator.next();
+
+      treemap.put(entry.getKey(), Long.valueOf(((Gauge)entry.getValue()).getValue()));
+    }
+
+    return treemap;
+  }
+
+  /**
+   * Reads every value, and the values of every table.
+   *
+   * @returns a map of names to longs, sorted by name.
+   *
+   */
+
+  private TreeMap
+  readAll()
+  {
+    TreeMap treemap = read();
+
+    Iterator iterator = copyonwritearraylistTables.iterator();
+
+    while (iterator.hasNext())
+    {
+      ((Table)iterator.next()).read(treemap);
+    }
+
+    return treemap;
+  }
+
+  /**
+   * Writes every value as text.
+   *
+   */
+
+  final void
+  write(PrintWriter printwriter)
+  {
+    Iterator iterator = read().entrySet().iterator();
+
+    while (iterator.hasNext())
+    {
+      Map.Entry entry = (Map.Entry)iterator.next();
+
+      printwriter.print(entry.getKey());
+      printwriter.print(' ');
+      printwriter.println(entry.getValue());
+    }
+  }
+
+  /**
+   * Registers the metrics as an MBean.
+   *
+   * The MBean is named
+   * <CODE>etcee.ki:type=AgentHost,name="<EM>agent host name</EM>"</CODE>.
+   *
+   */
+
+  final synchronized void
+  register(String strAgentHostName)
+    throws JMException
+  {
+    ObjectName objectname =
+      new ObjectName("etcee.ki:type=AgentHost,name=" + ObjectName.quote(strAgentHostName));
+
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectname);
+
+    this.objectname = objectname;
+  }
+
+  /**
+   * Unregisters the metrics.
+   *
+   */
+
+  final synchronized void
+  unregister()
+  {
+    if (objectname == null)
+    {
+      return;
+    }
+
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectname);
+    }
+    catch (JMException ex)
+    {
+    }
+
+    objectname = null;
+  }
+
+  /**
+   * Gets an attribute.
+   *
+   * @see DynamicMBean.getAttribute
+   *
+   */
+
+  public Object
+  getAttribute(String strName)
+    throws AttributeNotFoundException
+  {
+    Object obj = readAll().get(strName);
+
+    if (obj == null)
+    {
+      throw new AttributeNotFoundException(strName);
+    }
+
+    return obj;
+  }
+
+  /**
+   * Gets attributes.
+   *
+   * @see DynamicMBean.getAttributes
+   *
+   */
+
+  public AttributeList
+  getAttributes(String [] rgstrNames)
+  {
+    TreeMap treemap = readAll();
+
+    AttributeList attributelist = new AttributeList();
+
+    for (int i = 0; i < rgstrNames.length; i++)
+    {
+      Object obj = treemap.get(rgstrNames[i]);
+
+      if (obj != null)
+      {
+        attributelist.add(new Attribute(rgstrNames[i], obj));
+      }
+    }
+
+    return attributelist;
+  }
+
+  /**
+   * Sets an attribute.
+   *
+   * The attributes are read-only.
+   *
+   * @see DynamicMBean.setAttribute
+   *
+   */
+
+  public void
+  setAttribute(Attribute attribute)
+    throws AttributeNotFoundException,
+           InvalidAttributeValueException
+  {
+    throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+  }
+
+  /**
+   * Sets attributes.
+   *
+   * The attributes are read-only, so none are set.
+   *
+   * @see DynamicMBean.setAttributes
+   *
+   */
+
+  public AttributeList
+  setAttributes(AttributeList attributelist)
+  {
+    return new AttributeList();
+  }
+
+  /**
+   * Invokes an operation.
+   *
+   * There are no operations.
+   *
+   * @see DynamicMBean.invoke
+   *
+   */
+
+  public Object
+  invoke(String strName, Object [] rgobjParameters, String [] rgstrSignature)
+    throws MBeanException,
+           ReflectionException
+  {
+    throw new ReflectionException(new NoSuchMethodException(strName));
+  }
+
+  /**
+   * Gets the MBean info.
+   *
+   * The attributes are the values present when the info is asked
+   * for.
+   *
+   * @see DynamicMBean.getMBeanInfo
+   *
+   */
+
+  public MBeanInfo
+  getMBeanInfo()
+  {
+    TreeMap treemap = readAll();
+
+    MBeanAttributeInfo [] rgmbeanattributeinfo = new MBeanAttributeInfo [treemap.size()];
+
+    Iterator iterator = treemap.keySet().iterator();
+
+    for (int i = 0; iterator.hasNext(); i++)
+    {
+      String strName = (String)iterator.next();
+
+      rgmbeanattributeinfo[i] =
+        new MBeanAttributeInfo(strName, "java.lang.Long", strName, true, false, false);
+    }
+
+    return new MBeanInfo(getClass().getName(),
+                         "agent host metrics",
+                         rgmbeanattributeinfo,
+                         null,
+                         new MBeanOperationInfo [0],
+                         null);
+  }
+}
@@ -0,0 +1,210 @@
+package etcee.ki.server;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * The metrics endpoint.
+ *
+ * The <CODE>MetricsEndpoint</CODE> class serves an agent host's
+ * metrics as text to a local scraper.  It listens on the loopback
+ * interface only, and answers each connection with an HTTP response
+ * holding one <CODE>name value</CODE> line per value, so that it may
+ * be read with an HTTP client or by reading the socket to its end.
+ *
+ * A request for <CODE>/agents</CODE> is answered with the time each
+ * resident agent has spent handling messages, the state of its
+ * mailbox, and the time and space its classes took, instead.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see Metrics
+ *
+ */
+
+final class MetricsEndpoint
+  implements Runnable
+{
+  /**
+   * The time (in milliseconds) a scraper has to send its request.
+   *
+   */
+
+  private final static int msTimeout = 2000;
+
+  /**
+   * The agent host implementation.
+   *
+   */
+
+  private AgentHostImplementation agenthostimplementation = null;
+
+  /**
+   * The server socket.
+   *
+   */
+
+  private ServerSocket serversocket = null;
+
+  /**
+   * The thread.
+   *
+   */
+
+  private Thread thread = null;
+
+  /**
+   * Constructs the metrics endpoint and starts it.
+   *
+   * @parameter nPort the port to listen on.
+   *
+   */
+
+  MetricsEndpoint(AgentHostImplementation agenthostimplementation, int nPort)
+    throws IOException
+  {
+    this.agenthostimplementation = agenthostimplementation;
+
+    serversocket = new ServerSocket();
+
+    serversocket.setReuseAddress(true);
+
+    serversocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), nPort));
+
+    thread = new Thread(this, "metrics");
+
+    thread.setDaemon(true);
+
+    thread.start();
+  }
+
+  /**
+   * Gets the port the endpoint listens on.
+   *
+   */
+
+  final int
+  getPort()
+  {
+    return serversocket.getLocalPort();
+  }
+
+  /**
+   * Shuts the endpoint down.
+   *
+   */
+
+  final void
+  shutdown()
+  {
+    try
+    {
+      serversocket.close();
+    }
+    catch (IOException ex)
+    {
+    }
+  }
+
+  /**
+   * Answers connections until the endpoint is shut down.
+   *
+   */
+
+  public void
+  run()
+  {
+    while (!serversocket.isClosed())
+    {
+      Socket socket = null;
+
+      try
+      {
+        socket = serversocket.accept();
+      }
+      catch (IOException ex)
+      {
+        continue;
+      }
+
+      try
+      {
+        answer(socket);
+      }
+      catch (IOException ex)
+      {
+      }
+      finally
+      {
+        try
+        {
+          socket.close();
+        }
+        catch (IOException ex)
+        {
+        }
+      }
+    }
+  }
+
+  /**
+   * Answers a connection.
+   *
+   */
+
+  private void
+  answer(Socket socket)
+    throws IOException
+  {
+    socket.setSoTimeout(msTimeout);
+
+    // The request line is optional -- a scraper that sends nothing
+    // gets the metrics once the timeout expires.
+
+    String strPath = "/";
+
+    try
+    {
+      BufferedReader bufferedreader =
+        new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+
+      String str = bufferedreader.readLine();
+
+      if (str != null && str.startsWith("GET "))
+      {
+        int n = str.indexOf(' ', 4);
+
+        strPath = n < 0 ? str.substring(4) : str.substring(4, n);
+      }
+    }
+    catch (IOException ex)
+    {
+    }
+
+    PrintWriter printwriter =
+      new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+
+    printwriter.print("HTTP/1.0 200 OK\r\n");
+    printwriter.print("Content-Type: text/plain; charset=utf-8\r\n");
+    printwriter.print("\r\n");
+
+    if (strPath.equals("/agents"))
+    {
+      agenthostimplementation.writeAgentMetrics(printwriter);
+    }
+    else
+    {
+      agenthostimplementation.getMetrics().write(printwriter);
+    }
+
+    printwriter.flush();
+  }
+}
@@ -80,6 +80,22 @@ public final class Monitor
   public final synchronized boolean
   beginOperation()
   {
+    // A pause is short, so wait it out.
+
+    while (boolPaused && !boolLocked)
+    {
+      try
+      {
+        wait();
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+
+        return false;
+      }
+    }
+
     if (boolLocked)
     {
       return false;
@@ -100,6 +116,54 @@ public final class Monitor
   {
     nOperations--;
 
-    notify();
+    notifyAll();
+  }
+
+  /**
+   * The pause flag.
+   *
+   */
+
+  private boolean boolPaused = false;
+
+  /**
+   * Pauses the client.
+   *
+   * Pauses the client if it isn't handling any operations.  New
+   * operations wait until the client is resumed.  Unlike
+   * <CODE>lockAndWait()</CODE>, this method never waits.
+   *
+   * @returns false if the client is busy, locked or already paused.
+   *
+   * @see resume
+   *
+   */
+
+  public final synchronized boolean
+  pause()
+  {
+    if (boolLocked || boolPaused || nOperations > 0)
+    {
+      return false;
+    }
+
+    boolPaused = true;
+
+    return true;
+  }
+
+  /**
+   * Resumes the client.
+   *
+   * @see pause
+   *
+   */
+
+  public final synchronized void
+  resume()
+  {
+    boolPaused = false;
+
+    notifyAll();
   }
 }
@@ -0,0 +1,646 @@
+package etcee.ki.server;
+
+import etcee.ki.agent.AgentIdentity;
+import etcee.ki.agent.Message;
+
+import etcee.ki.agenthost.AgentHost;
+import etcee.ki.agenthost.AgentDefinitionException;
+import etcee.ki.agenthost.AgentNotFoundException;
+import etcee.ki.agenthost.DirectoryUpdate;
+import etcee.ki.agenthost.Load;
+import etcee.ki.agenthost.MessageFailedException;
+import etcee.ki.agenthost.TransferFailedException;
+import etcee.ki.agenthost.TransferPackage;
+import etcee.ki.agenthost.Response;
+import etcee.ki.agenthost.Voucher;
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+
+import java.rmi.ConnectException;
+import java.rmi.MarshalException;
+import java.rmi.RemoteException;
+import java.rmi.UnexpectedException;
+import java.rmi.UnmarshalException;
+
+/**
+ * The NIO agent host.
+ *
+ * The <CODE>NioAgentHost</CODE> class stands in for a remote agent
+ * host reached over the NIO transport, the way an RMI stub stands in
+ * for one reached over RMI.  Exceptions thrown by the remote agent
+ * host are rethrown.  Undeclared checked exceptions are wrapped in an
+ * <CODE>UnexpectedException</CODE>, as RMI does.
+ *
+ * The connection is opened on the first call, and opened again if it
+ * has closed.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see NioTransport
+ *
+ */
+
+final class NioAgentHost
+  implements AgentHost
+{
+  /**
+   * The agent host name.
+   *
+   */
+
+  private String strAgentHostName = null;
+
+  /**
+   * Gets the agent host name.
+   *
+   */
+
+  final String
+  getAgentHostName()
+  {
+    return strAgentHostName;
+  }
+
+  /**
+   * The address.
+   *
+   */
+
+  private InetSocketAddress inetsocketaddress = null;
+
+  /**
+   * The connection.
+   *
+   */
+
+  private NioTransport.Connection connection = null;
+
+  /**
+   * Constructs the NIO agent host.
+   *
+   * @throws MalformedURLException if the agent host name was not a
+   *         valid URL.
+   *
+   */
+
+  NioAgentHost(String strAgentHostName)
+    throws MalformedURLException
+  {
+    this.strAgentHostName = strAgentHostName;
+
+    inetsocketaddress = NioTransport.parseAddress(strAgentHostName);
+  }
+
+  /**
+   * Gets the connection, opening it if need be.
+   *
+   */
+
+  private synchronized NioTransport.Connection
+  getConnection()
+    throws RemoteException
+  {
+    if (connection == null || connection.isClosed())
+    {
+      try
+      {
+        connection = NioTransport.getTransport().connect(inetsocketaddress);
+      }
+      catch (RemoteException ex)
+      {
+        throw ex;
+      }
+      catch (IOException ex)
+      {
+        throw new ConnectException("transport unavailable", ex);
+      }
+    }
+
+    return connection;
+  }
+
+  /**
+   * Invokes an operation on the remote agent host.
+   *
+   * @throws Exception if the remote agent host threw it.
+   *
+   */
+
+  private Object
+  invoke(int nOperation, Object [] rgobj)
+    throws Exception
+  {
+    byte [] rgb = null;
+
+    try
+    {
+      rgb = NioSkeleton.encode(rgobj);
+    }
+    catch (IOException ex)
+    {
+      throw new MarshalException("error marshalling arguments", ex);
+    }
+
+    NioTransport.Reply reply = getConnection().call(nOperation, rgb);
+
+    Object obj = null;
+
+    try
+    {
+      obj = NioSkeleton.decode(reply.rgbBody, 1)[0];
+    }
+    catch (Exception ex)
+    {
+      NioTransport.delete(reply.rgfileAttachments);
+
+      throw new UnmarshalException("error unmarshalling return", ex);
+    }
+
+    // The files that came with the reply belong to the transfer
+    // package, if there is one.
+
+    if (reply.rgfileAttachments != null)
+    {
+      if (obj instanceof TransferPackage &&
+          reply.nStatus == NioTransport.RETURN &&
+          reply.rgfileAttachments.length == 2)
+      {
+        ((TransferPackage)obj).attach(reply.rgfileAttachments[0],
+                                      reply.rgfileAttachments[1]);
+      }
+      else
+      {
+        NioTransport.delete(reply.rgfileAttachments);
+      }
+    }
+
+    if (reply.nStatus == NioTransport.EXCEPTION)
+    {
+      if (obj instanceof Error)
+      {
+        throw (Error)obj;
+      }
+
+      throw (Exception)obj;
+    }
+
+    return obj;
+  }
+
+  /**
+   * Sends a message.
+   *
+   * @see AgentHost.sendMessage
+   *
+   */
+
+  public Response
+  sendMessage(AgentHost agenthost,
+              Voucher voucher,
+              AgentIdentity agentidentity,
+              Message message)
+    throws MessageFailedException,
+           AgentNotFoundException,
+           RemoteException
+  {
+    try
+    {
+      return (Response)invoke(NioSkeleton.SEND_MESSAGE,
+                              new Object [] { NioSkeleton.nameOf(agenthost),
+                                              voucher,
+                                              agentidentity,
+                                              message });
+    }
+    catch (MessageFailedException ex)
+    {
+      throw ex;
+    }
+    catch (AgentNotFoundException ex)
+    {
+      throw ex;
+    }
+    catch (RemoteException ex)
+    {
+      throw ex;
+    }
+    catch (RuntimeException ex)
+    {
+      throw ex;
+    }
+    catch (Exception ex)
+    {
+      throw new UnexpectedException("undeclared checked exception", ex);
+    }
+  }
+
+  /**
+   * Delivers the response to a queued message.
+   *
+   * @see AgentHost.deliverResponse
+   *
+   */
+
+  public void
+  deliverResponse(Voucher voucher,
+                  Response response)
+    throws RemoteException
+  {
+    try
+    {
+      invoke(NioSkeleton.DELIVER_RESPONSE,
+             new Object [] { voucher,
+                             response });
+    }
+    catch (RemoteException ex)
+    {
+      throw ex;
+    }
+    catch (RuntimeException ex)
+    {
+      throw ex;
+    }
+    catch (Exception ex)
+    {
+      throw new UnexpectedException("undeclared checked exception", ex);
+    }
+  }
+
+  /**
+   * Sends a batch of messages.
+   *
+   * @see AgentHost.sendMessages
+   *
+   */
+
+  public Response []
+  sendMessages(AgentHost agenthost,
+               Voucher [] rgvoucher,
+               AgentIdentity [] rgagentidentity,
+               Message [] rgmessage)
+    throws MessageFailedException,
+           RemoteException
+  {
+    try
+    {
+      return (Response [])invoke(NioSkeleton.SEND_MESSAGES,
+                                 new Object [] { NioSkeleton.nameOf(agenthost),
+                                                 rgvoucher,
+                                                 rgagentidentity,
+                                                 rgmessage });
+    }
+    catch (MessageFailedException ex)
+    {
+      throw ex;
+    }
+    catch (RemoteException ex)
+    {
+      throw ex;
+    }
+    catch (RuntimeException ex)
+    {
+      throw ex;
+    }
+    catch (Exception ex)
+    {
+      throw new UnexpectedException("undeclared checked exception", ex);
+    }
+  }
+
+  /**
+   * Requests that an agent transfer occur.
+   *
+   * @see AgentHost.requestToTransfer
+   *
+   */
+
+  public void
+  requestToTransfer(AgentHost agenthost,
+                    Voucher voucher,
+                    AgentIdentity agentidentity)
+    throws IOException,
+           IllegalAccessException,
+           InstantiationException,
+           ClassNotFoundException,
+           TransferFailedException,
+           AgentNotFoundException,
+           AgentDefinitionException,
+           RemoteException
+  {
+    try
+    {
+      invoke(NioSkeleton.REQUEST_TO_TRANSFER,
+             new Object [] { NioSkeleton.nameOf(agenthost),
+                             voucher,
+                             agentidentity });
+    }
+    catch (IOException ex)
+    {
+      throw ex;
+    }
+    catch (IllegalAccessException ex)
+    {
+      throw ex;
+    }
+    catch (InstantiationException ex)
+    {
+      throw ex;
+    }
+    catch (ClassNotFoundException ex)
+    {
+      throw ex;
+    }
+    catch (TransferFailedException ex)
+    {
+      throw ex;
+    }
+    catch (AgentNotFoundException ex)
+    {
+      throw ex;
+    }
+    catch (AgentDefinitionException ex)
+    {
+      throw ex;
+    }
+    catch (RuntimeException ex)
+    {
+      throw ex;
+    }
+    catch (Exception ex)
+    {
+      throw new UnexpectedException("undeclared checked exception", ex);
+    }
+  }
+
+  /**
+   * Begins a transfer.
+   *
+   * @see AgentHost.beginTransfer
+   *
+   */
+
+  public void
+  beginTransfer(Voucher voucher,
+                AgentIdentity agentidentity)
+    throws IOException,
+           TransferFailedException,
+           AgentNotFoundException,
+           RemoteException
+  {
+    invokeTransfer(NioSkeleton.BEGIN_TRANSFER,
+                   new Object [] { voucher,
+                                   agentidentity });
+  }
+
+  /**
+   * Transfers an agent.
+   *
+   * @see AgentHost.transferAgent
+   *
+   */
+
+  public TransferPackage
+  transferAgent(Voucher voucher,
+                AgentIdentity agentidentity,
+                String [] rgstrResourceDigests,
+                int nDataEncodings,
+                String strDataDigest)
+    throws IOException,
+           TransferFailedException,
+           AgentNotFoundException,
+           RemoteException
+  {
+    return (TransferPackage)invokeTransfer(NioSkeleton.TRANSFER_AGENT,
+                                           new Object [] { voucher,
+                                                           agentidentity,
+                                                           rgstrResourceDigests,
+                                                           Integer.valueOf(nDataEncodings),
+                                                           strDataDigest });
+  }
+
+  /**
+   * Ends a transfer.
+   *
+   * @see AgentHost.endTransfer
+   *
+   */
+
+  public void
+  endTransfer(Voucher voucher,
+              AgentIdentity agentidentity)
+    throws IOException,
+           TransferFailedException,
+           AgentNotFoundException,
+           RemoteException
+  {
+    invokeTransfer(NioSkeleton.END_TRANSFER,
+                   new Object [] { voucher,
+                                   agentidentity });
+  }
+
+  /**
+   * Transfers the agent's resource file.
+   *
+   * @see AgentHost.transferResourceFile
+   *
+   */
+
+  public byte []
+  transferResourceFile(Voucher voucher,
+                       AgentIdentity agentidentity)
+    throws IOException,
+           TransferFailedException,
+           AgentNotFoundException,
+           RemoteException
+  {
+    return (byte [])invokeTransfer(NioSkeleton.TRANSFER_RESOURCE_FILE,
+                                   new Object [] { voucher,
+                                                   agentidentity });
+  }
+
+  /**
+   * Transfers the agent's data file.
+   *
+   * @see AgentHost.transferDataFile
+   *
+   */
+
+  public byte []
+  transferDataFile(Voucher voucher,
+                   AgentIdentity agentidentity)
+    throws IOException,
+           TransferFailedException,
+           AgentNotFoundException,
+           RemoteException
+  {
+    return (byte [])invokeTransfer(NioSkeleton.TRANSFER_DATA_FILE,
+                                   new Object [] { voucher,
+                                                   agentidentity });
+  }
+
+  /**
+   * Locates an agent.
+   *
+   * @see AgentHost.locateAgent
+   *
+   */
+
+  public String
+  locateAgent(AgentIdentity agentidentity)
+    throws RemoteException
+  {
+    try
+    {
+      return (String)invoke(NioSkeleton.LOCATE_AGENT,
+                            new Object [] { agentidentity });
+    }
+    catch (RemoteException ex)
+    {
+      throw ex;
+    }
+    catch (RuntimeException ex)
+    {
+      throw ex;
+    }
+    catch (Exception ex)
+    {
+      throw new UnexpectedException("undeclared checked exception", ex);
+    }
+  }
+
+  /**
+   * Records the move of an agent.
+   *
+   * @see AgentHost.relocateAgent
+   *
+   */
+
+  public void
+  relocateAgent(AgentIdentity agentidentity,
+                String strFrom,
+                String strTo)
+    throws RemoteException
+  {
+    try
+    {
+      invoke(NioSkeleton.RELOCATE_AGENT,
+             new Object [] { agentidentity,
+                             strFrom,
+                             strTo });
+    }
+    catch (RemoteException ex)
+    {
+      throw ex;
+    }
+    catch (RuntimeException ex)
+    {
+      throw ex;
+    }
+    catch (Exception ex)
+    {
+      throw new UnexpectedException("undeclared checked exception", ex);
+    }
+  }
+
+  /**
+   * Invokes a transfer operation on the remote agent host.
+   *
+   * The transfer operations all declare the same exceptions.
+   *
+   */
+
+  private Object
+  invokeTransfer(int nOperation, Object [] rgobj)
+    throws IOException,
+           TransferFailedException,
+           AgentNotFoundException,
+           RemoteException
+  {
+    try
+    {
+      return invoke(nOperation, rgobj);
+    }
+    catch (IOException ex)
+    {
+      throw ex;
+    }
+    catch (TransferFailedException ex)
+    {
+      throw ex;
+    }
+    catch (AgentNotFoundException ex)
+    {
+      throw ex;
+    }
+    catch (RuntimeException ex)
+    {
+      throw ex;
+    }
+    catch (Exception ex)
+    {
+      throw new UnexpectedException("undeclared checked exception", ex);
+    }
+  }
+
+  /**
+   * Gets the changes to the agents published on the agent host.
+   *
+   * @see AgentHost.getDirectoryUpdate
+   *
+   */
+
+  public DirectoryUpdate
+  getDirectoryUpdate(long nEpoch, long nSequence)
+    throws RemoteException
+  {
+    try
+    {
+      return (DirectoryUpdate)invoke(NioSkeleton.GET_DIRECTORY_UPDATE,
+                                     new Object [] { Long.valueOf(nEpoch),
+                                                     Long.valueOf(nSequence) });
+    }
+    catch (RemoteException ex)
+    {
+      throw ex;
+    }
+    catch (RuntimeException ex)
+    {
+      throw ex;
+    }
+    catch (Exception ex)
+    {
+      throw new UnexpectedException("undeclared checked exception", ex);
+    }
+  }
+
+  /**
+   * Gets the load on the agent host.
+   *
+   * @see AgentHost.getLoad
+   *
+   */
+
+  public Load
+  getLoad()
+    throws RemoteException
+  {
+    try
+    {
+      return (Load)invoke(NioSkeleton.GET_LOAD, new Object [0]);
+    }
+    catch (RemoteException ex)
+    {
+      throw ex;
+    }
+    catch (RuntimeException ex)
+    {
+      throw ex;
+    }
+    catch (Exception ex)
+    {
+      throw new UnexpectedException("undeclared checked exception", ex);
+    }
+  }
+}
@@ -0,0 +1,430 @@
+package etcee.ki.server;
+
+import etcee.ki.agent.AgentIdentity;
+import etcee.ki.agent.Message;
+
+import etcee.ki.agenthost.AgentHost;
+import etcee.ki.agenthost.Codec;
+import etcee.ki.agenthost.Response;
+import etcee.ki.agenthost.TransferPackage;
+import etcee.ki.agenthost.Voucher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.IOException;
+
+import java.rmi.MarshalException;
+import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The NIO skeleton.
+ *
+ * The <CODE>NioSkeleton</CODE> class decodes the requests that
+ * arrive over the NIO transport, calls the agent host, and encodes
+ * the results.  It also holds the encoding both sides share -- each
+ * value is written with the codec.
+ *
+ * The files of a transfer package are detached from it and carried
+ * by the transport alongside the reply.
+ *
+ * An agent host passed as a parameter travels as its name.  The
+ * receiving agent host looks the name up, just as it would look up
+ * any other agent host.
+ *
+ * The encoding counters track the bytes encoded and decoded, and the
+ * time spent doing so, on both sides.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see Codec
+ * @see NioTransport
+ * @see NioAgentHost
+ *
+ */
+
+final class NioSkeleton
+{
+  /**
+   * The operations.
+   *
+   */
+
+  final static int SEND_MESSAGE = 1;
+  final static int SEND_MESSAGES = 2;
+  final static int DELIVER_RESPONSE = 3;
+  final static int REQUEST_TO_TRANSFER = 4;
+  final static int TRANSFER_AGENT = 5;
+  final static int BEGIN_TRANSFER = 6;
+  final static int END_TRANSFER = 7;
+  final static int TRANSFER_RESOURCE_FILE = 8;
+  final static int TRANSFER_DATA_FILE = 9;
+  final static int LOCATE_AGENT = 10;
+  final static int RELOCATE_AGENT = 11;
+  final static int GET_DIRECTORY_UPDATE = 12;
+  final static int GET_LOAD = 13;
+
+  /**
+   * The result of a call.
+   *
+   */
+
+  final static class Result
+  {
+    int nStatus = NioTransport.RETURN;
+
+    byte [] rgbBody = null;
+
+    File [] rgfileAttachments = null;
+
+    Result(int nStatus, byte [] rgbBody)
+    {
+      this.nStatus = nStatus;
+      this.rgbBody = rgbBody;
+    }
+
+    Result(int nStatus, byte [] rgbBody, File [] rgfileAttachments)
+    {
+      this(nStatus, rgbBody);
+
+      this.rgfileAttachments = rgfileAttachments;
+    }
+  }
+
+  /**
+   * The encoding counters.
+   *
+   */
+
+  private final static AtomicLong atomiclongBytesEncoded = new AtomicLong();
+  private final static AtomicLong atomiclongBytesDecoded = new AtomicLong();
+  private final static AtomicLong atomiclongEncodingTime = new AtomicLong();
+  private final static AtomicLong atomiclongDecodingTime = new AtomicLong();
+
+  /**
+   * Gets the number of bytes encoded.
+   *
+   */
+
+  static long
+  getBytesEncoded()
+  {
+    return atomiclongBytesEncoded.get();
+  }
+
+  /**
+   * Gets the number of bytes decoded.
+   *
+   */
+
+  static long
+  getBytesDecoded()
+  {
+    return atomiclongBytesDecoded.get();
+  }
+
+  /**
+   * Gets the total time (in nanoseconds) spent encoding.
+   *
+   */
+
+  static long
+  getEncodingTime()
+  {
+    return atomiclongEncodingTime.get();
+  }
+
+  /**
+   * Gets the total time (in nanoseconds) spent decoding.
+   *
+   */
+
+  static long
+  getDecodingTime()
+  {
+    return atomiclongDecodingTime.get();
+  }
+
+  /**
+   * Gets the name under which an agent host is passed.
+   *
+   * @throws MarshalException if the agent host can not be passed by
+   *         name.
+   *
+   */
+
+  static String
+  nameOf(AgentHost agenthost)
+    throws MarshalException
+  {
+    if (agenthost instanceof AgentHostImplementation)
+    {
+      return ((AgentHostImplementation)agenthost).getAgentHostName();
+    }
+
+    if (agenthost instanceof NioAgentHost)
+    {
+      return ((NioAgentHost)agenthost).getAgentHostName();
+    }
+
+    throw new MarshalException("agent host can not be passed by name");
+  }
+
+  /**
+   * Encodes values.
+   *
+   */
+
+  static byte []
+  encode(Object [] rgobj)
+    throws IOException
+  {
+    long nsStart = System.nanoTime();
+
+    ByteArrayOutputStream bytearrayoutputstream = new ByteArrayOutputStream();
+
+    ObjectOutputStream objectoutputstream =
+      new ObjectOutputStream(bytearrayoutputstream);
+
+    for (int i = 0; i < rgobj.length; i++)
+    {
+      Codec.writeValue(objectoutputstream, rgobj[i]);
+    }
+
+    objectoutputstream.close();
+
+    byte [] rgb = bytearrayoutputstream.toByteArray();
+
+    atomiclongBytesEncoded.addAndGet(rgb.length);
+    atomiclongEncodingTime.addAndGet(System.nanoTime() - nsStart);
+
+    return rgb;
+  }
+
+  /**
+   * Decodes values.
+   *
+   */
+
+  static Object []
+  decode(byte [] rgb, int n)
+    throws IOException,
+           ClassNotFoundException
+  {
+    long nsStart = System.nanoTime();
+
+    ObjectInputStream objectinputstream =
+      new ObjectInputStream(new ByteArrayInputStream(rgb));
+
+    Object [] rgobj = new Object [n];
+
+    for (int i = 0; i < n; i++)
+    {
+      rgobj[i] = Codec.readValue(objectinputstream);
+    }
+
+    objectinputstream.close();
+
+    atomiclongBytesDecoded.addAndGet(rgb.length);
+    atomiclongDecodingTime.addAndGet(System.nanoTime() - nsStart);
+
+    return rgobj;
+  }
+
+  /**
+   * Encodes an exception.
+   *
+   * If the exception itself can not be encoded, a remote exception
+   * that describes it is encoded instead.
+   *
+   */
+
+  static byte []
+  encodeException(Throwable throwable)
+  {
+    try
+    {
+      return encode(new Object [] { throwable });
+    }
+    catch (IOException ex)
+    {
+    }
+
+    try
+    {
+      return encode(new Object [] { new RemoteException(throwable.toString()) });
+    }
+    catch (IOException ex)
+    {
+      throw new InternalError(ex.toString());
+    }
+  }
+
+  /**
+   * Resolves an agent host passed by name.
+   *
+   */
+
+  private static AgentHost
+  resolve(AgentHostImplementation agenthostimplementation, Object obj)
+    throws Exception
+  {
+    String strAgentHostName = (String)obj;
+
+    if (agenthostimplementation.getAgentHostName().equals(strAgentHostName))
+    {
+      return agenthostimplementation;
+    }
+
+    return agenthostimplementation.lookupAgentHost(strAgentHostName);
+  }
+
+  /**
+   * Dispatches a request to an agent host.
+   *
+   */
+
+  static Result
+  dispatch(AgentHostImplementation agenthostimplementation,
+           int nOperation,
+           byte [] rgbBody)
+  {
+    Object obj = null;
+
+    try
+    {
+      Object [] rgobj = null;
+
+      try
+      {
+        rgobj = decode(rgbBody, count(nOperation));
+      }
+      catch (Exception ex)
+      {
+        throw new UnmarshalException("error unmarshalling arguments", ex);
+      }
+
+      switch (nOperation)
+      {
+      case SEND_MESSAGE:
+        obj = agenthostimplementation.sendMessage(resolve(agenthostimplementation, rgobj[0]),
+                                                  (Voucher)rgobj[1],
+                                                  (AgentIdentity)rgobj[2],
+                                                  (Message)rgobj[3]);
+        break;
+      case SEND_MESSAGES:
+        obj = agenthostimplementation.sendMessages(resolve(agenthostimplementation, rgobj[0]),
+                                                   (Voucher [])rgobj[1],
+                                                   (AgentIdentity [])rgobj[2],
+                                                   (Message [])rgobj[3]);
+        break;
+      case DELIVER_RESPONSE:
+        agenthostimplementation.deliverResponse((Voucher)rgobj[0],
+                                                (Response)rgobj[1]);
+        break;
+      case REQUEST_TO_TRANSFER:
+        agenthostimplementation.requestToTransfer(resolve(agenthostimplementation, rgobj[0]),
+                                                  (Voucher)rgobj[1],
+                                                  (AgentIdentity)rgobj[2]);
+        break;
+      case TRANSFER_AGENT:
+        obj = agenthostimplementation.transferAgent((Voucher)rgobj[0],
+                                                    (AgentIdentity)rgobj[1],
+                                                    (String [])rgobj[2],
+                                                    ((Integer)rgobj[3]).intValue(),
+                                                    (String)rgobj[4]);
+        break;
+      case BEGIN_TRANSFER:
+        agenthostimplementation.beginTransfer((Voucher)rgobj[0],
+                                              (AgentIdentity)rgobj[1]);
+        break;
+      case END_TRANSFER:
+        agenthostimplementation.endTransfer((Voucher)rgobj[0],
+                                            (AgentIdentity)rgobj[1]);
+        break;
+      case TRANSFER_RESOURCE_FILE:
+        obj = agenthostimplementation.transferResourceFile((Voucher)rgobj[0],
+                                                           (AgentIdentity)rgobj[1]);
+        break;
+      case TRANSFER_DATA_FILE:
+        obj = agenthostimplementation.transferDataFile((Voucher)rgobj[0],
+                                                       (AgentIdentity)rgobj[1]);
+        break;
+      case LOCATE_AGENT:
+        obj = agenthostimplementation.locateAgent((AgentIdentity)rgobj[0]);
+        break;
+      case RELOCATE_AGENT:
+        agenthostimplementation.relocateAgent((AgentIdentity)rgobj[0],
+                                              (String)rgobj[1],
+                                              (String)rgobj[2]);
+        break;
+      case GET_DIRECTORY_UPDATE:
+        obj = agenthostimplementation.getDirectoryUpdate(((Long)rgobj[0]).longValue(),
+                                                         ((Long)rgobj[1]).longValue());
+        break;
+      case GET_LOAD:
+        obj = agenthostimplementation.getLoad();
+        break;
+      default:
+        throw new UnmarshalException("unknown operation " + nOperation);
+      }
+    }
+    catch (Throwable throwable)
+    {
+      return new Result(NioTransport.EXCEPTION, encodeException(throwable));
+    }
+
+    // The package must be detached before it is encoded.
+
+    File [] rgfileAttachments = null;
+
+    if (obj instanceof TransferPackage)
+    {
+      rgfileAttachments = ((TransferPackage)obj).detach();
+    }
+
+    try
+    {
+      return new Result(NioTransport.RETURN,
+                        encode(new Object [] { obj }),
+                        rgfileAttachments);
+    }
+    catch (IOException ex)
+    {
+      return new Result(NioTransport.EXCEPTION,
+                        encodeException(new MarshalException("error marshalling return", ex)));
+    }
+  }
+
+  /**
+   * Gets the number of parameters of an operation.
+   *
+   */
+
+  static int
+  count(int nOperation)
+  {
+    switch (nOperation)
+    {
+    case SEND_MESSAGE:
+    case SEND_MESSAGES:
+      return 4;
+    case REQUEST_TO_TRANSFER:
+    case RELOCATE_AGENT:
+      return 3;
+    case LOCATE_AGENT:
+      return 1;
+    case GET_LOAD:
+      return 0;
+    case TRANSFER_AGENT:
+      return 5;
+    default:
+      return 2;
+    }
+  }
+}
@@ -0,0 +1,1443 @@
+package etcee.ki.server;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.rmi.ConnectException;
+import java.rmi.MarshalException;
+import java.rmi.RemoteException;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Vector;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The NIO transport.
+ *
+ * The <CODE>NioTransport</CODE> class carries agent host calls over
+ * non-blocking socket channels, as an alternative to RMI.  An agent
+ * host uses it if its name has the <CODE>nio</CODE> scheme:
+ *
+ * <CODE>nio://host:port/name</CODE>
+ *
+ * Each call is a frame:
+ *
+ * <PRE>
+ * int  length (of the rest of the frame)
+ * int  request id
+ * byte operation (in a request) or status (in a reply)
+ * ...  body
+ * </PRE>
+ *
+ * A frame may carry files.  Its operation or status is then marked
+ * with <CODE>ATTACHED</CODE>, and its body is preceded by the number
+ * of files and their lengths (-1 for a missing file).  The contents
+ * of the files follow the frame on the channel.  They are sent
+ * straight from the file with <CODE>FileChannel.transferTo</CODE>,
+ * and received through a direct buffer into temporary files, so they
+ * never pass through the heap and do not count against the maximum
+ * frame length.
+ *
+ * A single connection to each remote agent host carries every call
+ * made to it.  Callers do not wait for each other -- requests are
+ * written as they are made, the remote agent host handles them
+ * concurrently, and replies, which may arrive in any order, are
+ * matched to their requests by request id.
+ *
+ * One selector thread services every channel.  It never runs an
+ * agent host call itself -- received requests are handed to a
+ * dispatcher with one thread per call, which keeps a call that calls
+ * back to its caller (as a transfer does) from deadlocking.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see NioAgentHost
+ * @see NioSkeleton
+ *
+ */
+
+final class NioTransport
+{
+  /**
+   * The scheme of agent host names served by this transport.
+   *
+   */
+
+  final static String SCHEME = "nio";
+
+  /**
+   * The port used if an agent host name has none.
+   *
+   */
+
+  final static int DEFAULT_PORT = 7099;
+
+  /**
+   * The reply statuses.
+   *
+   */
+
+  final static int RETURN = 0;
+  final static int EXCEPTION = 1;
+
+  /**
+   * The mark of a frame that carries files.
+   *
+   */
+
+  final static int ATTACHED = 0x40;
+
+  /**
+   * The maximum number of files a frame may carry.
+   *
+   */
+
+  private final static int nMaximumAttachments = 16;
+
+  /**
+   * The size of the buffer through which files are received.
+   *
+   */
+
+  private final static int nTransferBuffer = 64 * 1024;
+
+  /**
+   * The attachment counters.
+   *
+   */
+
+  private final static AtomicLong atomiclongBytesAttached = new AtomicLong();
+  private final static AtomicLong atomiclongBytesReceived = new AtomicLong();
+
+  /**
+   * Gets the number of bytes of files sent.
+   *
+   */
+
+  static long
+  getBytesAttached()
+  {
+    return atomiclongBytesAttached.get();
+  }
+
+  /**
+   * Gets the number of bytes of files received.
+   *
+   */
+
+  static long
+  getBytesReceived()
+  {
+    return atomiclongBytesReceived.get();
+  }
+
+  /**
+   * Deletes received files.
+   *
+   */
+
+  static void
+  delete(File [] rgfile)
+  {
+    for (int i = 0; rgfile != null && i < rgfile.length; i++)
+    {
+      if (rgfile[i] != null)
+      {
+        rgfile[i].delete();
+      }
+    }
+  }
+
+  /**
+   * A file being sent.
+   *
+   */
+
+  private final static class Region
+  {
+    FileChannel filechannel = null;
+    long nPosition = 0;
+    long nLimit = 0;
+  }
+
+  /**
+   * The size of the frame header after the length.
+   *
+   */
+
+  final static int HEADER = 5;
+
+  /**
+   * The connection.
+   *
+   * A connection is either one this agent host opened to call a
+   * remote agent host, in which case it has calls in progress, or
+   * one a remote agent host opened to call this agent host, in which
+   * case it has an agent host implementation.
+   *
+   */
+
+  final class Connection
+  {
+    private SocketChannel socketchannel = null;
+
+    private SelectionKey selectionkey = null;
+
+    /**
+     * The agent host implementation that serves requests, or null.
+     *
+     */
+
+    private AgentHostImplementation agenthostimplementation = null;
+
+    /**
+     * The length buffer and the frame buffer.
+     *
+     */
+
+    private ByteBuffer bytebufferLength = ByteBuffer.allocate(4);
+    private ByteBuffer bytebufferFrame = null;
+
+    /**
+     * The frame whose files are being received, the files, their
+     * lengths, and the progress through them.
+     *
+     */
+
+    private ByteBuffer bytebufferAttached = null;
+    private File [] rgfileAttached = null;
+    private long [] rgnAttached = null;
+    private int nAttached = 0;
+    private long nAttachedPosition = 0;
+    private FileChannel filechannelAttached = null;
+    private ByteBuffer bytebufferTransfer = null;
+
+    /**
+     * The write queue.
+     *
+     * The write queue holds frames and the files that follow them.
+     *
+     */
+
+    private LinkedList linkedlistWrites = new LinkedList();
+
+    /**
+     * The call table.
+     *
+     * The call table maps request ids to calls in progress.
+     *
+     */
+
+    private ConcurrentHashMap concurrenthashmapCalls = new ConcurrentHashMap();
+
+    private AtomicInteger atomicintegerRequestIds = new AtomicInteger();
+
+    private boolean boolClosed = false;
+
+    Connection(SocketChannel socketchannel,
+               AgentHostImplementation agenthostimplementation)
+    {
+      this.socketchannel = socketchannel;
+      this.agenthostimplementation = agenthostimplementation;
+    }
+
+    /**
+     * Determines whether or not the connection is closed.
+     *
+     */
+
+    final synchronized boolean
+    isClosed()
+    {
+      return boolClosed;
+    }
+
+    /**
+     * Calls the remote agent host.
+     *
+     * @returns the reply.
+     *
+     * @throws RemoteException if the connection was closed before the
+     *         reply arrived.
+     *
+     */
+
+    final Reply
+    call(int nOperation, byte [] rgbBody)
+      throws RemoteException
+    {
+      int nRequestId = atomicintegerRequestIds.incrementAndGet();
+
+      Reply reply = new Reply();
+
+      concurrenthashmapCalls.put(Integer.valueOf(nRequestId), reply);
+
+      // The connection may have closed while the call was being set
+      // up, in which case nobody else will complete it.
+
+      if (isClosed())
+      {
+        concurrenthashmapCalls.remove(Integer.valueOf(nRequestId));
+
+        throw new ConnectException("connection closed");
+      }
+
+      write(nRequestId, nOperation, rgbBody);
+
+      return reply.await();
+    }
+
+    /**
+     * Queues a frame for writing.
+     *
+     */
+
+    final void
+    write(int nRequestId, int nCode, byte [] rgbBody)
+    {
+      ByteBuffer bytebuffer = ByteBuffer.allocate(4 + HEADER + rgbBody.length);
+
+      bytebuffer.putInt(HEADER + rgbBody.length);
+      bytebuffer.putInt(nRequestId);
+      bytebuffer.put((byte)nCode);
+      bytebuffer.put(rgbBody);
+
+      bytebuffer.flip();
+
+      queue(new Object [] { bytebuffer });
+    }
+
+    /**
+     * Queues a frame that carries files for writing.
+     *
+     * The files are opened at once, so they may be renamed or
+     * deleted while they wait to be sent.
+     *
+     * @throws IOException if a file could not be opened.
+     *
+     */
+
+    final void
+    write(int nRequestId, int nCode, byte [] rgbBody, File [] rgfile)
+      throws IOException
+    {
+      if (rgfile == null)
+      {
+        write(nRequestId, nCode, rgbBody);
+
+        return;
+      }
+
+      Object [] rgobj = new Object [rgfile.length + 1];
+
+      int nHeader = HEADER + 4 + rgfile.length * 8;
+
+      ByteBuffer bytebuffer = ByteBuffer.allocate(4 + nHeader + rgbBody.length);
+
+      bytebuffer.putInt(nHeader + rgbBody.length);
+      bytebuffer.putInt(nRequestId);
+      bytebuffer.put((byte)(nCode | ATTACHED));
+      bytebuffer.putInt(rgfile.length);
+
+      try
+      {
+        for (int i = 0; i < rgfile.length; i++)
+        {
+          if (rgfile[i] == null)
+          {
+            bytebuffer.putLong(-1);
+
+            continue;
+          }
+
+          Region region = new Region();
+
+          rgobj[i + 1] = region;
+
+          region.filechannel = new FileInputStream(rgfile[i]).getChannel();
+          region.nLimit = region.filechannel.size();
+
+          bytebuffer.putLong(region.nLimit);
+        }
+      }
+      catch (IOException ex)
+      {
+        release(rgobj);
+
+        throw ex;
+      }
+
+      bytebuffer.put(rgbBody);
+
+      bytebuffer.flip();
+
+      rgobj[0] = bytebuffer;
+
+      queue(rgobj);
+    }
+
+    /**
+     * Queues frames and files for writing.
+     *
+     */
+
+    private void
+    queue(Object [] rgobj)
+    {
+      boolean boolFailed = false;
+
+      synchronized (this)
+      {
+        if (boolClosed)
+        {
+          release(rgobj);
+
+          return;
+        }
+
+        boolean boolEmpty = linkedlistWrites.isEmpty();
+
+        for (int i = 0; i < rgobj.length; i++)
+        {
+          if (rgobj[i] != null)
+          {
+            linkedlistWrites.addLast(rgobj[i]);
+          }
+        }
+
+        // If nothing is queued ahead of it, write the frame at once.
+        // Only what the channel does not take waits for the selector.
+
+        if (boolEmpty)
+        {
+          try
+          {
+            if (drain())
+            {
+              return;
+            }
+          }
+          catch (IOException ex)
+          {
+            boolFailed = true;
+          }
+        }
+      }
+
+      if (boolFailed)
+      {
+        close();
+
+        return;
+      }
+
+      later(new Runnable()
+        {
+          public void
+          run()
+          {
+            if (selectionkey != null && selectionkey.isValid())
+            {
+              selectionkey.interestOps(selectionkey.interestOps() | SelectionKey.OP_WRITE);
+            }
+          }
+        });
+    }
+
+    /**
+     * Writes queued frames and files, until the channel would block.
+     *
+     * The caller must hold the connection's lock.
+     *
+     * @returns true if the queue was emptied.
+     *
+     */
+
+    private boolean
+    drain()
+      throws IOException
+    {
+      while (!linkedlistWrites.isEmpty())
+      {
+        Object obj = linkedlistWrites.getFirst();
+
+        if (obj instanceof ByteBuffer)
+        {
+          ByteBuffer bytebuffer = (ByteBuffer)obj;
+
+          socketchannel.write(bytebuffer);
+
+          if (bytebuffer.hasRemaining())
+          {
+            return false;
+          }
+        }
+        else
+        {
+          Region region = (Region)obj;
+
+          while (region.nPosition < region.nLimit)
+          {
+            long n = region.filechannel.transferTo(region.nPosition,
+                                                   region.nLimit - region.nPosition,
+                                                   socketchannel);
+
+            if (n == 0)
+            {
+              // The file may have shrunk since its length was sent.
+
+              if (region.nPosition >= region.filechannel.size())
+              {
+                throw new EOFException("file truncated");
+              }
+
+              return false;
+            }
+
+            region.nPosition += n;
+
+            atomiclongBytesAttached.addAndGet(n);
+          }
+
+          region.filechannel.close();
+        }
+
+        linkedlistWrites.removeFirst();
+      }
+
+      return true;
+    }
+
+    /**
+     * Writes queued frames, until the channel would block.
+     *
+     */
+
+    private void
+    flush()
+      throws IOException
+    {
+      synchronized (this)
+      {
+        if (!drain())
+        {
+          return;
+        }
+      }
+
+      selectionkey.interestOps(selectionkey.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Reads whatever frames have arrived.
+     *
+     */
+
+    private void
+    fill()
+      throws IOException
+    {
+      while (true)
+      {
+        if (bytebufferAttached != null)
+        {
+          if (!receive())
+          {
+            return;
+          }
+
+          ByteBuffer bytebuffer = bytebufferAttached;
+          File [] rgfile = rgfileAttached;
+
+          bytebufferAttached = null;
+          rgfileAttached = null;
+
+          received(bytebuffer, rgfile);
+
+          continue;
+        }
+
+        if (bytebufferFrame == null)
+        {
+          if (socketchannel.read(bytebufferLength) < 0)
+          {
+            throw new IOException("connection closed");
+          }
+
+          if (bytebufferLength.hasRemaining())
+          {
+            return;
+          }
+
+          bytebufferLength.flip();
+
+          int n = bytebufferLength.getInt();
+
+          bytebufferLength.clear();
+
+          if (n < HEADER || n > nMaximumFrame)
+          {
+            throw new IOException("bad frame length " + n);
+          }
+
+          bytebufferFrame = ByteBuffer.allocate(n);
+        }
+
+        if (socketchannel.read(bytebufferFrame) < 0)
+        {
+          throw new IOException("connection closed");
+        }
+
+        if (bytebufferFrame.hasRemaining())
+        {
+          return;
+        }
+
+        bytebufferFrame.flip();
+
+        ByteBuffer bytebuffer = bytebufferFrame;
+
+        bytebufferFrame = null;
+
+        if ((bytebuffer.get(4) & ATTACHED) != 0)
+        {
+          expect(bytebuffer);
+
+          continue;
+        }
+
+        received(bytebuffer, null);
+      }
+    }
+
+    /**
+     * Prepares to receive the files that follow a frame.
+     *
+     */
+
+    private void
+    expect(ByteBuffer bytebuffer)
+      throws IOException
+    {
+      if (bytebuffer.limit() < HEADER + 4)
+      {
+        throw new IOException("bad frame");
+      }
+
+      int n = bytebuffer.getInt(HEADER);
+
+      if (n < 0 || n > nMaximumAttachments || bytebuffer.limit() < HEADER + 4 + n * 8)
+      {
+        throw new IOException("bad attachment count " + n);
+      }
+
+      bytebufferAttached = bytebuffer;
+      rgfileAttached = new File [n];
+      rgnAttached = new long [n];
+      nAttached = 0;
+      nAttachedPosition = 0;
+
+      for (int i = 0; i < n; i++)
+      {
+        rgnAttached[i] = bytebuffer.getLong(HEADER + 4 + i * 8);
+
+        if (rgnAttached[i] < -1)
+        {
+          throw new IOException("bad attachment length " + rgnAttached[i]);
+        }
+
+        if (rgnAttached[i] >= 0)
+        {
+          rgfileAttached[i] = File.createTempFile("ki-", null);
+        }
+      }
+    }
+
+    /**
+     * Receives the files that follow a frame.
+     *
+     * @returns true if every file has been received.
+     *
+     */
+
+    private boolean
+    receive()
+      throws IOException
+    {
+      if (bytebufferTransfer == null)
+      {
+        bytebufferTransfer = ByteBuffer.allocateDirect(nTransferBuffer);
+      }
+
+      while (nAttached < rgfileAttached.length)
+      {
+        long n = rgnAttached[nAttached];
+
+        if (n < 0)
+        {
+          nAttached++;
+
+          continue;
+        }
+
+        if (filechannelAttached == null)
+        {
+          filechannelAttached = new FileOutputStream(rgfileAttached[nAttached]).getChannel();
+        }
+
+        while (nAttachedPosition < n)
+        {
+          bytebufferTransfer.clear();
+          bytebufferTransfer.limit((int)Math.min(bytebufferTransfer.capacity(), n - nAttachedPosition));
+
+          int m = socketchannel.read(bytebufferTransfer);
+
+          if (m < 0)
+          {
+            throw new IOException("connection closed");
+          }
+
+          if (m == 0)
+          {
+            return false;
+          }
+
+          bytebufferTransfer.flip();
+
+          while (bytebufferTransfer.hasRemaining())
+          {
+            filechannelAttached.write(bytebufferTransfer);
+          }
+
+          nAttachedPosition += m;
+
+          atomiclongBytesReceived.addAndGet(m);
+        }
+
+        filechannelAttached.close();
+
+        filechannelAttached = null;
+
+        nAttached++;
+        nAttachedPosition = 0;
+      }
+
+      return true;
+    }
+
+    /**
+     * Handles a frame.
+     *
+     */
+
+    private void
+    received(ByteBuffer bytebuffer, File [] rgfile)
+    {
+      final int nRequestId = bytebuffer.getInt();
+
+      int n = bytebuffer.get();
+
+      if ((n & ATTACHED) != 0)
+      {
+        n &= ~ATTACHED;
+
+        bytebuffer.position(bytebuffer.position() + 4 + bytebuffer.getInt() * 8);
+      }
+
+      final int nCode = n;
+
+      final byte [] rgbBody = new byte [bytebuffer.remaining()];
+
+      bytebuffer.get(rgbBody);
+
+      if (agenthostimplementation == null)
+      {
+        Reply reply = (Reply)concurrenthashmapCalls.remove(Integer.valueOf(nRequestId));
+
+        if (reply != null)
+        {
+          reply.complete(nCode, rgbBody, rgfile, null);
+        }
+        else
+        {
+          delete(rgfile);
+        }
+
+        return;
+      }
+
+      // Requests carry no files.
+
+      delete(rgfile);
+
+      Runnable runnable = new Runnable()
+        {
+          public void
+          run()
+          {
+            NioSkeleton.Result result =
+              NioSkeleton.dispatch(agenthostimplementation, nCode, rgbBody);
+
+            try
+            {
+              write(nRequestId, result.nStatus, result.rgbBody, result.rgfileAttachments);
+            }
+            catch (IOException ex)
+            {
+              write(nRequestId,
+                    EXCEPTION,
+                    NioSkeleton.encodeException(new MarshalException("error marshalling return", ex)));
+            }
+          }
+        };
+
+      if (!dispatcher.dispatch(runnable))
+      {
+        write(nRequestId,
+              EXCEPTION,
+              NioSkeleton.encodeException(new RemoteException("agent host saturated")));
+      }
+    }
+
+    /**
+     * Closes the connection.
+     *
+     * Calls in progress fail.
+     *
+     */
+
+    final void
+    close()
+    {
+      synchronized (this)
+      {
+        if (boolClosed)
+        {
+          return;
+        }
+
+        boolClosed = true;
+
+        release(linkedlistWrites.toArray());
+
+        linkedlistWrites.clear();
+      }
+
+      // Only the selector thread receives files, so it discards the
+      // ones partly received.
+
+      later(new Runnable()
+        {
+          public void
+          run()
+          {
+            if (filechannelAttached != null)
+            {
+              try
+              {
+                filechannelAttached.close();
+              }
+              catch (IOException ex)
+              {
+              }
+
+              filechannelAttached = null;
+            }
+
+            delete(rgfileAttached);
+
+            bytebufferAttached = null;
+            rgfileAttached = null;
+          }
+        });
+
+      try
+      {
+        socketchannel.close();
+      }
+      catch (IOException ex)
+      {
+      }
+
+      vectorConnections.removeElement(this);
+
+      Iterator iterator = concurrenthashmapCalls.values().iterator();
+
+      while (iterator.hasNext())
+      {
+        ((Reply)iterator.next()).complete(0, null, null, new ConnectException("connection closed"));
+      }
+
+      concurrenthashmapCalls.clear();
+    }
+  }
+
+  /**
+   * Closes the files of queued regions.
+   *
+   */
+
+  private static void
+  release(Object [] rgobj)
+  {
+    for (int i = 0; i < rgobj.length; i++)
+    {
+      if (rgobj[i] instanceof Region)
+      {
+        try
+        {
+          ((Region)rgobj[i]).filechannel.close();
+        }
+        catch (IOException ex)
+        {
+        }
+      }
+    }
+  }
+
+  /**
+   * The reply.
+   *
+   */
+
+  final static class Reply
+  {
+    int nStatus = 0;
+
+    byte [] rgbBody = null;
+
+    /**
+     * The files received with the reply, or null.  The caller owns
+     * them.
+     *
+     */
+
+    File [] rgfileAttachments = null;
+
+    private RemoteException remoteexception = null;
+
+    private boolean boolDone = false;
+
+    final synchronized void
+    complete(int nStatus, byte [] rgbBody, File [] rgfileAttachments, RemoteException remoteexception)
+    {
+      if (boolDone)
+      {
+        delete(rgfileAttachments);
+
+        return;
+      }
+
+      this.nStatus = nStatus;
+      this.rgbBody = rgbBody;
+      this.rgfileAttachments = rgfileAttachments;
+      this.remoteexception = remoteexception;
+
+      boolDone = true;
+
+      notifyAll();
+    }
+
+    final synchronized Reply
+    await()
+      throws RemoteException
+    {
+      while (!boolDone)
+      {
+        try
+        {
+          wait();
+        }
+        catch (InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+
+          // The caller has given up, so whatever files the reply
+          // brings are discarded.
+
+          boolDone = true;
+
+          throw new RemoteException("interrupted", ex);
+        }
+      }
+
+      if (remoteexception != null)
+      {
+        throw remoteexception;
+      }
+
+      return this;
+    }
+  }
+
+  /**
+   * The transport.
+   *
+   */
+
+  private static NioTransport niotransport = null;
+
+  /**
+   * Gets the transport, starting it if need be.
+   *
+   */
+
+  static synchronized NioTransport
+  getTransport()
+    throws IOException
+  {
+    if (niotransport == null)
+    {
+      niotransport = new NioTransport();
+    }
+
+    return niotransport;
+  }
+
+  /**
+   * Determines whether or not an agent host name is served by this
+   * transport.
+   *
+   */
+
+  static boolean
+  isTransportName(String strAgentHostName)
+  {
+    return strAgentHostName != null &&
+           strAgentHostName.startsWith(SCHEME + ":");
+  }
+
+  /**
+   * Parses the address from an agent host name.
+   *
+   * @throws MalformedURLException if the agent host name was not a
+   *         valid URL.
+   *
+   */
+
+  static InetSocketAddress
+  parseAddress(String strAgentHostName)
+    throws MalformedURLException
+  {
+    try
+    {
+      URI uri = new URI(strAgentHostName);
+
+      if (uri.getHost() == null)
+      {
+        throw new MalformedURLException(strAgentHostName);
+      }
+
+      return new InetSocketAddress(uri.getHost(),
+                                   uri.getPort() < 0 ? DEFAULT_PORT : uri.getPort());
+    }
+    catch (URISyntaxException ex)
+    {
+      throw new MalformedURLException(strAgentHostName);
+    }
+  }
+
+  /**
+   * The selector.
+   *
+   */
+
+  private Selector selector = null;
+
+  /**
+   * The pending task queue.
+   *
+   * Only the selector thread may register channels or change their
+   * interest, so other threads queue those changes here.
+   *
+   */
+
+  private LinkedList linkedlistTasks = new LinkedList();
+
+  /**
+   * The dispatcher that runs received requests.
+   *
+   */
+
+  private Dispatcher dispatcher = null;
+
+  /**
+   * The maximum frame length.
+   *
+   * The maximum frame length is set with the
+   * <CODE>etcee.ki.transport.maxframe</CODE> system property.
+   *
+   */
+
+  private int nMaximumFrame = Integer.getInteger("etcee.ki.transport.maxframe", 64 * 1024 * 1024).intValue();
+
+  /**
+   * The listener table.
+   *
+   * The listener table maps agent host names to server socket
+   * channels.
+   *
+   */
+
+  private Hashtable hashtableListeners = new Hashtable();
+
+  /**
+   * The accepted connections.
+   *
+   */
+
+  private Vector vectorConnections = new Vector();
+
+  /**
+   * Constructs the transport.
+   *
+   */
+
+  private
+  NioTransport()
+    throws IOException
+  {
+    selector = Selector.open();
+
+    dispatcher = new ThreadDispatcher("transport",
+                                      Integer.getInteger("etcee.ki.transport.calls", 256).intValue(),
+                                      true);
+
+    Thread thread = new Thread("transport")
+      {
+        public void
+        run()
+        {
+          loop();
+        }
+      };
+
+    thread.setDaemon(true);
+
+    thread.start();
+  }
+
+  /**
+   * Queues a task for the selector thread.
+   *
+   */
+
+  private void
+  later(Runnable runnable)
+  {
+    synchronized (linkedlistTasks)
+    {
+      linkedlistTasks.addLast(runnable);
+    }
+
+    selector.wakeup();
+  }
+
+  /**
+   * Serves calls to an agent host.
+   *
+   * @throws MalformedURLException if the agent host name was not a
+   *         valid URL.
+   *
+   * @throws IOException if the port could not be bound.
+   *
+   */
+
+  final void
+  listen(String strAgentHostName,
+         final AgentHostImplementation agenthostimplementation)
+    throws IOException
+  {
+    InetSocketAddress inetsocketaddress = parseAddress(strAgentHostName);
+
+    final ServerSocketChannel serversocketchannel = ServerSocketChannel.open();
+
+    serversocketchannel.socket().setReuseAddress(true);
+    serversocketchannel.socket().bind(new InetSocketAddress(inetsocketaddress.getPort()));
+    serversocketchannel.configureBlocking(false);
+
+    hashtableListeners.put(strAgentHostName, serversocketchannel);
+
+    later(new Runnable()
+      {
+        public void
+        run()
+        {
+          try
+          {
+            serversocketchannel.register(selector,
+                                         SelectionKey.OP_ACCEPT,
+                                         agenthostimplementation);
+          }
+          catch (IOException ex)
+          {
+            ex.printStackTrace();
+          }
+        }
+      });
+  }
+
+  /**
+   * Stops serving calls to an agent host.
+   *
+   * Connections from remote agent hosts are closed.  Their calls in
+   * progress fail.
+   *
+   */
+
+  final void
+  unlisten(String strAgentHostName)
+  {
+    ServerSocketChannel serversocketchannel =
+      (ServerSocketChannel)hashtableListeners.remove(strAgentHostName);
+
+    if (serversocketchannel != null)
+    {
+      try
+      {
+        serversocketchannel.close();
+      }
+      catch (IOException ex)
+      {
+      }
+    }
+
+    Object [] rgobj = vectorConnections.toArray();
+
+    for (int i = 0; i < rgobj.length; i++)
+    {
+      Connection connection = (Connection)rgobj[i];
+
+      if (strAgentHostName.equals(connection.agenthostimplementation.getAgentHostName()))
+      {
+        connection.close();
+      }
+    }
+  }
+
+  /**
+   * Opens a connection to an agent host.
+   *
+   * @throws ConnectException if the connection could not be made.
+   *
+   */
+
+  final Connection
+  connect(InetSocketAddress inetsocketaddress)
+    throws RemoteException
+  {
+    SocketChannel socketchannel = null;
+
+    try
+    {
+      socketchannel = SocketChannel.open(inetsocketaddress);
+
+      socketchannel.socket().setTcpNoDelay(true);
+      socketchannel.configureBlocking(false);
+    }
+    catch (IOException ex)
+    {
+      if (socketchannel != null)
+      {
+        try
+        {
+          socketchannel.close();
+        }
+        catch (IOException exClose)
+        {
+        }
+      }
+
+      throw new ConnectException("connection refused to " + inetsocketaddress, ex);
+    }
+
+    Connection connection = new Connection(socketchannel, null);
+
+    register(connection);
+
+    return connection;
+  }
+
+  /**
+   * Registers a connection with the selector.
+   *
+   */
+
+  private void
+  register(final Connection connection)
+  {
+    later(new Runnable()
+      {
+        public void
+        run()
+        {
+          try
+          {
+            int n = SelectionKey.OP_READ;
+
+            synchronized (connection)
+            {
+              if (!connection.linkedlistWrites.isEmpty())
+              {
+                n |= SelectionKey.OP_WRITE;
+              }
+            }
+
+            connection.selectionkey =
+              connection.socketchannel.register(selector, n, connection);
+          }
+          catch (IOException ex)
+          {
+            connection.close();
+          }
+        }
+      });
+  }
+
+  /**
+   * Runs the selector.
+   *
+   */
+
+  private void
+  loop()
+  {
+    while (true)
+    {
+      while (true)
+      {
+        Runnable runnable = null;
+
+        synchronized (linkedlistTasks)
+        {
+          if (linkedlistTasks.isEmpty())
+          {
+            break;
+          }
+
+          runnable = (Runnable)linkedlistTasks.removeFirst();
+        }
+
+        runnable.run();
+      }
+
+      try
+      {
+        selector.select();
+      }
+      catch (IOException ex)
+      {
+        ex.printStackTrace();
+
+        continue;
+      }
+
+      Iterator iterator = selector.selectedKeys().iterator();
+
+      while (iterator.hasNext())
+      {
+        SelectionKey selectionkey = (SelectionKey)iterator.next();
+
+        iterator.remove();
+
+        if (!selectionkey.isValid())
+        {
+          continue;
+        }
+
+        if (selectionkey.isAcceptable())
+        {
+          accept(selectionkey);
+
+          continue;
+        }
+
+        Connection connection = (Connection)selectionkey.attachment();
+
+        try
+        {
+          if (selectionkey.isReadable())
+          {
+            connection.fill();
+          }
+
+          if (selectionkey.isValid() && selectionkey.isWritable())
+          {
+            connection.flush();
+          }
+        }
+        catch (IOException ex)
+        {
+          connection.close();
+        }
+        catch (CancelledKeyException ex)
+        {
+          // Another thread closed the connection.
+
+          connection.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Accepts a connection.
+   *
+   */
+
+  private void
+  accept(SelectionKey selectionkey)
+  {
+    ServerSocketChannel serversocketchannel =
+      (ServerSocketChannel)selectionkey.channel();
+
+    AgentHostImplementation agenthostimplementation =
+      (AgentHostImplementation)selectionkey.attachment();
+
+    try
+    {
+      SocketChannel socketchannel = serversocketchannel.accept();
+
+      if (socketchannel == null)
+      {
+        return;
+      }
+
+      socketchannel.socket().setTcpNoDelay(true);
+      socketchannel.configureBlocking(false);
+
+      Connection connection = new Connection(socketchannel, agenthostimplementation);
+
+      vectorConnections.addElement(connection);
+
+      connection.selectionkey =
+        socketchannel.register(selector, SelectionKey.OP_READ, connection);
+    }
+    catch (IOException ex)
+    {
+      ex.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package etcee.ki.server;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+
+/**
+ * The passivator.
+ *
+ * The <CODE>Passivator</CODE> class returns resident agents to the
+ * repository so that the agent host holds only the agents in use.
+ * At regular intervals it passivates:
+ *
+ * <OL>
+ * <LI> every agent that has been idle for longer than the idle
+ *      period, and then
+ * <LI> the least recently active agents, until no more than the
+ *      maximum number of agents are resident
+ * </OL>
+ *
+ * An agent with messages waiting in its mailbox is never
+ * passivated.  A passivated agent is activated again when it is sent
+ * a message.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see AgentHostImplementation.passivate
+ * @see AgentHostImplementation.activate
+ *
+ */
+
+final class Passivator
+{
+  /**
+   * The agent host implementation.
+   *
+   */
+
+  private AgentHostImplementation agenthostimplementation = null;
+
+  /**
+   * The idle period (in milliseconds), or 0 for no idle period.
+   *
+   */
+
+  private long msIdle = 0;
+
+  /**
+   * The maximum number of resident agents, or 0 for no maximum.
+   *
+   */
+
+  private int nResident = 0;
+
+  /**
+   * The timer.
+   *
+   */
+
+  private Timer timer = new Timer("passivator", true);
+
+  /**
+   * Constructs the passivator.
+   *
+   * @parameter msIdle the idle period (in milliseconds), or 0.
+   *
+   * @parameter nResident the maximum number of resident agents, or 0.
+   *
+   * @parameter msPeriod the time (in milliseconds) between sweeps.
+   *
+   */
+
+  Passivator(AgentHostImplementation agenthostimplementation,
+             long msIdle,
+             int nResident,
+             long msPeriod)
+  {
+    this.agenthostimplementation = agenthostimplementation;
+    this.msIdle = msIdle;
+    this.nResident = nResident;
+
+    TimerTask timertask = new TimerTask()
+      {
+        public void
+        run()
+        {
+          try
+          {
+            sweep();
+          }
+          catch (Throwable throwable)
+          {
+            throwable.printStackTrace();
+          }
+        }
+      };
+
+    timer.schedule(timertask, msPeriod, msPeriod);
+  }
+
+  /**
+   * Shuts the passivator down.
+   *
+   */
+
+  final void
+  shutdown()
+  {
+    timer.cancel();
+  }
+
+  /**
+   * Sweeps the resident agents.
+   *
+   */
+
+  final void
+  sweep()
+  {
+    Vector vector = agenthostimplementation.getAgentWrappers();
+
+    // The times are copied first -- they change as messages arrive,
+    // and the sort needs them to stand still.
+
+    final long [] rgmsLastActive = new long [vector.size()];
+
+    Integer [] rginteger = new Integer [vector.size()];
+
+    for (int i = 0; i < rginteger.length; i++)
+    {
+      rgmsLastActive[i] = ((AgentWrapper)vector.elementAt(i)).getLastActive();
+
+      rginteger[i] = Integer.valueOf(i);
+    }
+
+    Arrays.sort(rginteger, new Comparator()
+      {
+        public int
+        compare(Object obj1, Object obj2)
+        {
+          long ms1 = rgmsLastActive[((Integer)obj1).intValue()];
+          long ms2 = rgmsLastActive[((Integer)obj2).intValue()];
+
+          return ms1 < ms2 ? -1 : ms1 > ms2 ? 1 : 0;
+        }
+      });
+
+    long msNow = System.currentTimeMillis();
+
+    // The indices run from the least to the most recently active
+    // agent.
+
+    int nRemaining = rginteger.length;
+
+    for (int i = 0; i < rginteger.length; i++)
+    {
+      int n = rginteger[i].intValue();
+
+      AgentWrapper agentwrapper = (AgentWrapper)vector.elementAt(n);
+
+      boolean boolIdle = msIdle > 0 && msNow - agentwrapper.getLastActive() >= msIdle;
+      boolean boolExcess = nResident > 0 && nRemaining > nResident;
+
+      if (!boolIdle && !boolExcess)
+      {
+        break;
+      }
+
+      Mailbox mailbox = agentwrapper.getMailbox();
+
+      if (mailbox != null && mailbox.getDepth() > 0)
+      {
+        continue;
+      }
+
+      if (agenthostimplementation.passivate(agentwrapper.getAgentIdentity()))
+      {
+        nRemaining--;
+      }
+    }
+  }
+}
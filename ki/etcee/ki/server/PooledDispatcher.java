@@ -0,0 +1,131 @@
+package etcee.ki.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pooled dispatcher.
+ *
+ * The <CODE>PooledDispatcher</CODE> class runs tasks on a bounded
+ * pool of threads.  Tasks that arrive while every thread is busy wait
+ * in a bounded queue.  Tasks that arrive while the queue is full are
+ * refused.
+ *
+ * Idle threads exit after a short while, so a quiet agent host holds
+ * no dispatch threads at all.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see Dispatcher
+ *
+ */
+
+final class PooledDispatcher
+  extends Dispatcher
+{
+  /**
+   * The thread pool.
+   *
+   */
+
+  private ThreadPoolExecutor threadpoolexecutor = null;
+
+  /**
+   * Constructs the pooled dispatcher.
+   *
+   * @parameter nThreads the maximum number of threads.
+   *
+   * @parameter nQueue the maximum number of waiting tasks.
+   *
+   */
+
+  PooledDispatcher(final String strName, int nThreads, int nQueue)
+  {
+    ThreadFactory threadfactory = new ThreadFactory()
+      {
+        private int n = 0;
+
+        public synchronized Thread
+        newThread(Runnable runnable)
+        {
+          return new Thread(runnable, strName + "-" + n++);
+        }
+      };
+
+    threadpoolexecutor =
+      new ThreadPoolExecutor(nThreads,
+                             nThreads,
+                             30L,
+                             TimeUnit.SECONDS,
+                             new ArrayBlockingQueue(nQueue),
+                             threadfactory);
+
+    threadpoolexecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Dispatches a task.
+   *
+   * @see Dispatcher.dispatch
+   *
+   */
+
+  final boolean
+  dispatch(Runnable runnable)
+  {
+    try
+    {
+      threadpoolexecutor.execute(runnable);
+    }
+    catch (RejectedExecutionException ex)
+    {
+      rejected();
+
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Gets the number of tasks waiting to run.
+   *
+   * @see Dispatcher.getQueueDepth
+   *
+   */
+
+  final int
+  getQueueDepth()
+  {
+    return threadpoolexecutor.getQueue().size();
+  }
+
+  /**
+   * Gets the number of tasks currently running.
+   *
+   * @see Dispatcher.getActiveCount
+   *
+   */
+
+  final int
+  getActiveCount()
+  {
+    return threadpoolexecutor.getActiveCount();
+  }
+
+  /**
+   * Shuts the dispatcher down.
+   *
+   * @see Dispatcher.shutdown
+   *
+   */
+
+  final void
+  shutdown()
+  {
+    threadpoolexecutor.shutdown();
+  }
+}
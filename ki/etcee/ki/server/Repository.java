@@ -1,12 +1,18 @@
 
 package etcee.ki.server;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.RandomAccessFile;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
+import java.nio.channels.FileChannel;
+
+import java.util.Hashtable;
 import java.util.Vector;
 
 /**
@@ -52,15 +58,68 @@ class Repository
 
   private Vector vectorEntries = null;
 
+  /**
+   * The archive path.
+   *
+   * The archive path holds copies of resource files, named by their
+   * digests.  A resource file is archived when its entry is deleted
+   * -- typically because its agent has been transferred away -- so
+   * that it need not be sent again if an agent with the same code
+   * arrives later.
+   *
+   * @see RepositoryEntry.getResourceDigest
+   *
+   */
+
+  private File fileArchivePath = null;
+
+  /**
+   * The maximum number of archived resource files.
+   *
+   * The least recently used archives are discarded first.  The
+   * maximum is set with the <CODE>etcee.ki.archives</CODE> system
+   * property.
+   *
+   */
+
+  private int nArchives = Integer.getInteger("etcee.ki.archives", 64).intValue();
+
+  /**
+   * The pinned archives.
+   *
+   * The pinned archives map the digests of archived resource files
+   * offered to an agent host that is sending an agent here to the
+   * number of transfers they were offered to.  A pinned archive is
+   * not discarded.
+   *
+   * @see pinArchives
+   *
+   */
+
+  private Hashtable hashtablePinned = new Hashtable();
+
+  /**
+   * The checkpoint log.
+   *
+   * The checkpoint log is replayed whenever the repository is
+   * opened, whether or not the agent host checkpoints agents.
+   *
+   * @see CheckpointLog
+   *
+   */
+
+  private CheckpointLog checkpointlog = null;
+
   /**
    * Constructs the repository.
    *
    * Constructs the repository and makes the initial repository entries.
+   * Agent data left in the checkpoint log is installed first.
    *
    */
 
   Repository(String strPath, String strResourceSuffix, String strDataSuffix)
-    throws FileNotFoundException
+    throws IOException
   {
     if (strResourceSuffix == null)
       throw new NullPointerException("resource suffix is null");
@@ -94,6 +153,12 @@ class Repository
 	}
       };
 
+    fileArchivePath = new File(filePath, "archives");
+
+    checkpointlog = new CheckpointLog(filePath);
+
+    checkpointlog.replay();
+
     String [] rgstrFiles = filePath.list(filenamefilter);
 
     vectorEntries = new Vector(rgstrFiles.length);
@@ -108,6 +173,71 @@ class Repository
     }
   }
 
+  /**
+   * Creates the repository named by the system properties.
+   *
+   * The <CODE>etcee.ki.repository</CODE> system property selects the
+   * backend -- <CODE>files</CODE> (the default) keeps each piece in a
+   * file of its own, <CODE>segmented</CODE> packs them into segment
+   * files.
+   *
+   * @see SegmentedRepository
+   *
+   */
+
+  static Repository
+  createRepository(String strPath, String strResourceSuffix, String strDataSuffix)
+    throws IOException
+  {
+    String strMode = System.getProperty("etcee.ki.repository", "files");
+
+    if (strMode.equals("segmented"))
+    {
+      return new SegmentedRepository(strPath, strResourceSuffix, strDataSuffix);
+    }
+    else if (strMode.equals("files"))
+    {
+      return new Repository(strPath, strResourceSuffix, strDataSuffix);
+    }
+    else
+    {
+      throw new IllegalArgumentException("unknown repository " + strMode);
+    }
+  }
+
+  /**
+   * Gets the file path.
+   *
+   */
+
+  final File
+  getPath()
+  {
+    return filePath;
+  }
+
+  /**
+   * Gets the maximum number of archived resource files.
+   *
+   */
+
+  final int
+  getArchiveLimit()
+  {
+    return nArchives;
+  }
+
+  /**
+   * Gets the checkpoint log.
+   *
+   */
+
+  CheckpointLog
+  getCheckpointLog()
+  {
+    return checkpointlog;
+  }
+
   /**
    * Transforms a filename.
    *
@@ -210,15 +340,413 @@ class Repository
     return repositoryentry;
   }
 
+  /**
+   * Creates a repository entry from existing files.
+   *
+   * The files are moved into the repository.  Either file may be
+   * null.
+   *
+   */
+
+  RepositoryEntry
+  createEntry(File fileResourceSource,
+              File fileDataSource)
+    throws RepositoryException
+  {
+    File fileResource = null;
+    File fileData = null;
+
+    RepositoryEntry repositoryentry = null;
+
+    try
+    {
+      String strName = generateName();
+
+      fileResource = new File(filePath, strName + strResourceSuffix);
+      fileData = new File(filePath, strName + strDataSuffix);
+
+      repositoryentry = new RepositoryEntry(fileResource, fileData);
+
+      if (fileResourceSource != null)
+      {
+        moveFile(fileResourceSource, fileResource);
+      }
+
+      if (fileDataSource != null)
+      {
+        moveFile(fileDataSource, fileData);
+      }
+    }
+    catch (IOException ioex)
+    {
+      throw new RepositoryException("createEntry failed");
+    }
+
+    return repositoryentry;
+  }
+
+  /**
+   * Creates a repository entry from an archived resource file.
+   *
+   * The archived resource file is copied into the repository -- or,
+   * if it is not archived, the specified resource file of an entry
+   * with the same digest.  The data file is moved into the
+   * repository.
+   *
+   * @parameter fileResourceSource the resource file of an entry with
+   *            the same digest, or null.
+   *
+   * @see hasArchive
+   *
+   */
+
+  RepositoryEntry
+  createEntry(String strResourceDigest,
+              File fileResourceSource,
+              File fileDataSource)
+    throws RepositoryException
+  {
+    File fileResource = null;
+    File fileData = null;
+
+    RepositoryEntry repositoryentry = null;
+
+    try
+    {
+      String strName = generateName();
+
+      fileResource = new File(filePath, strName + strResourceSuffix);
+      fileData = new File(filePath, strName + strDataSuffix);
+
+      repositoryentry = new RepositoryEntry(fileResource, fileData);
+
+      // A resource file is archived under the same lock, so the
+      // entry's resource file is either still in place or archived.
+
+      synchronized (this)
+      {
+        File fileArchive = getArchive(strResourceDigest);
+
+        if (fileArchive.exists() || fileResourceSource == null)
+        {
+          copyFile(fileArchive, fileResource);
+
+          fileArchive.setLastModified(System.currentTimeMillis());
+        }
+        else
+        {
+          copyFile(fileResourceSource, fileResource);
+        }
+      }
+
+      repositoryentry.setResourceDigest(strResourceDigest);
+
+      if (fileDataSource != null)
+      {
+        moveFile(fileDataSource, fileData);
+      }
+    }
+    catch (IOException ioex)
+    {
+      if (fileResource != null)
+      {
+        fileResource.delete();
+      }
+
+      throw new RepositoryException("createEntry failed");
+    }
+
+    return repositoryentry;
+  }
+
+  /**
+   * Gets the archived resource file with the specified digest.
+   *
+   */
+
+  private File
+  getArchive(String strResourceDigest)
+  {
+    return new File(fileArchivePath, strResourceDigest + strResourceSuffix);
+  }
+
+  /**
+   * Determines whether or not a resource file with the specified
+   * digest is archived.
+   *
+   */
+
+  synchronized boolean
+  hasArchive(String strResourceDigest)
+  {
+    return getArchive(strResourceDigest).exists();
+  }
+
+  /**
+   * Gets the digests of the archived resource files.
+   *
+   */
+
+  synchronized String []
+  getArchiveDigests()
+  {
+    String [] rgstr = fileArchivePath.list();
+
+    if (rgstr == null)
+    {
+      return new String [0];
+    }
+
+    Vector vector = new Vector(rgstr.length);
+
+    for (int i = 0; i < rgstr.length; i++)
+    {
+      if (rgstr[i].endsWith(strResourceSuffix))
+      {
+        vector.addElement(rgstr[i].substring(0, rgstr[i].length() - strResourceSuffix.length()));
+      }
+    }
+
+    String [] rgstrDigests = new String [vector.size()];
+
+    vector.copyInto(rgstrDigests);
+
+    return rgstrDigests;
+  }
+
+  /**
+   * Pins archived resource files.
+   *
+   * Pinned archives are not discarded until they are unpinned, so
+   * that the archives offered to an agent host are still here when
+   * its agent arrives.  A digest that is not archived may be pinned
+   * too -- it takes effect if the resource file is archived later.
+   *
+   * @see unpinArchives
+   *
+   */
+
+  synchronized void
+  pinArchives(String [] rgstrDigests)
+  {
+    for (int i = 0; i < rgstrDigests.length; i++)
+    {
+      Integer integer = (Integer)hashtablePinned.get(rgstrDigests[i]);
+
+      hashtablePinned.put(rgstrDigests[i], Integer.valueOf(integer == null ? 1 : integer.intValue() + 1));
+    }
+  }
+
+  /**
+   * Unpins archived resource files.
+   *
+   * @see pinArchives
+   *
+   */
+
+  synchronized void
+  unpinArchives(String [] rgstrDigests)
+  {
+    for (int i = 0; i < rgstrDigests.length; i++)
+    {
+      Integer integer = (Integer)hashtablePinned.get(rgstrDigests[i]);
+
+      if (integer == null || integer.intValue() <= 1)
+      {
+        hashtablePinned.remove(rgstrDigests[i]);
+      }
+      else
+      {
+        hashtablePinned.put(rgstrDigests[i], Integer.valueOf(integer.intValue() - 1));
+      }
+    }
+  }
+
+  /**
+   * Determines whether or not an archive file is pinned.
+   *
+   */
+
+  private boolean
+  isPinned(File fileArchive)
+  {
+    String str = fileArchive.getName();
+
+    if (!str.endsWith(strResourceSuffix))
+    {
+      return false;
+    }
+
+    return hashtablePinned.containsKey(str.substring(0, str.length() - strResourceSuffix.length()));
+  }
+
+  /**
+   * Archives the resource piece of a repository entry.
+   *
+   * The resource file is moved into the archive, unless the archive
+   * already holds a copy.
+   *
+   */
+
+  private synchronized void
+  archiveResource(RepositoryEntry repositoryentry)
+    throws IOException
+  {
+    String strResourceDigest = repositoryentry.getResourceDigest();
+
+    if (strResourceDigest == null)
+    {
+      return;
+    }
+
+    File fileArchive = getArchive(strResourceDigest);
+
+    if (fileArchive.exists())
+    {
+      fileArchive.setLastModified(System.currentTimeMillis());
+
+      return;
+    }
+
+    fileArchivePath.mkdir();
+
+    moveFile(repositoryentry.getResource(), fileArchive);
+
+    fileArchive.setLastModified(System.currentTimeMillis());
+
+    // Discard the least recently used archives that are not pinned.
+
+    File [] rgfile = fileArchivePath.listFiles();
+
+    int n = rgfile.length;
+
+    for (int i = 0; i < rgfile.length; i++)
+    {
+      if (isPinned(rgfile[i]))
+      {
+        rgfile[i] = null;
+      }
+    }
+
+    while (n > nArchives)
+    {
+      int k = -1;
+
+      for (int i = 0; i < rgfile.length; i++)
+      {
+        if (rgfile[i] != null &&
+            (k < 0 || rgfile[i].lastModified() < rgfile[k].lastModified()))
+        {
+          k = i;
+        }
+      }
+
+      if (k < 0)
+      {
+        break;
+      }
+
+      rgfile[k].delete();
+
+      rgfile[k] = null;
+
+      n--;
+    }
+  }
+
+  /**
+   * Moves a file.
+   *
+   * Renames the file if possible, and copies it otherwise (for
+   * example, if the two files are on different file systems).
+   *
+   */
+
+  static void
+  moveFile(File fileFrom, File fileTo)
+    throws IOException
+  {
+    if (fileFrom.renameTo(fileTo))
+    {
+      return;
+    }
+
+    copyFile(fileFrom, fileTo);
+
+    fileFrom.delete();
+  }
+
+  /**
+   * Copies a file.
+   *
+   * The file is copied channel to channel, so the contents need not
+   * pass through the heap.
+   *
+   */
+
+  static void
+  copyFile(File fileFrom, File fileTo)
+    throws IOException
+  {
+    FileInputStream fileinputstream = new FileInputStream(fileFrom);
+
+    try
+    {
+      FileOutputStream fileoutputstream = new FileOutputStream(fileTo);
+
+      try
+      {
+        FileChannel filechannelFrom = fileinputstream.getChannel();
+        FileChannel filechannelTo = fileoutputstream.getChannel();
+
+        long nSize = filechannelFrom.size();
+        long n = 0;
+
+        while (n < nSize)
+        {
+          long m = filechannelFrom.transferTo(n, nSize - n, filechannelTo);
+
+          if (m <= 0)
+          {
+            throw new EOFException(fileFrom.getName());
+          }
+
+          n += m;
+        }
+      }
+      finally
+      {
+        fileoutputstream.close();
+      }
+    }
+    finally
+    {
+      fileinputstream.close();
+    }
+  }
+
   /**
    * Deletes a repository entry.
    *
+   * The resource piece is archived rather than deleted.
+   *
+   * @see archiveResource
+   *
    */
 
   void
   deleteEntry(RepositoryEntry repositoryentry)
     throws RepositoryException
   {
+    try
+    {
+      archiveResource(repositoryentry);
+    }
+    catch (IOException ex)
+    {
+      // The archive is only an optimization.
+    }
+
     repositoryentry.delete();
     repositoryentry.invalidate();
   }
@@ -260,4 +788,20 @@ class Repository
 
     repositoryentry.invalidate();
   }
+
+  /**
+   * Closes the repository.
+   *
+   * The agent host calls this method once it has returned all its
+   * repository entries.
+   *
+   * @see assumeEntry
+   *
+   */
+
+  void
+  close()
+    throws IOException
+  {
+  }
 }
@@ -2,9 +2,13 @@
 package etcee.ki.server;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.RandomAccessFile;
 import java.io.IOException;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 /**
  * The responsitory entry.
  *
@@ -15,6 +19,10 @@ import java.io.IOException;
  * class.
  *
  * Repository entries are only constructed/destroyed by a repository.
+ * A repository may subclass the repository entry to keep the pieces
+ * elsewhere until they are needed, so the methods here reach the
+ * pieces through <CODE>getResource()</CODE> and
+ * <CODE>getData()</CODE>.
  *
  * This class <EM>is not</EM> thread safe.
  *
@@ -38,6 +46,17 @@ class RepositoryEntry
 
   private File fileData = null;
 
+  /**
+   * The resource digest.
+   *
+   * The resource digest is computed when first needed.
+   *
+   * @see getResourceDigest
+   *
+   */
+
+  private String strResourceDigest = null;
+
   /**
    * Constructs the repository entry.
    *
@@ -66,6 +85,7 @@ class RepositoryEntry
   {
     this.fileResource = repositoryentry.fileResource;
     this.fileData = repositoryentry.fileData;
+    this.strResourceDigest = repositoryentry.strResourceDigest;
   }
 
   /**
@@ -111,6 +131,8 @@ class RepositoryEntry
   invalidateResource()
   {
     fileResource = null;
+
+    strResourceDigest = null;
   }
 
   /**
@@ -158,6 +180,17 @@ class RepositoryEntry
     return fileData;
   }
 
+  /**
+   * Gets the size (in bytes) of the repository entry.
+   *
+   */
+
+  long
+  getSize()
+  {
+    return getResource().length() + getData().length();
+  }
+
   /**
    * Sets the resource piece of the repository entry.
    *
@@ -169,6 +202,8 @@ class RepositoryEntry
     deleteResource();
 
     this.fileResource = fileResource;
+
+    strResourceDigest = null;
   }
 
   /**
@@ -184,6 +219,127 @@ class RepositoryEntry
     this.fileData = fileData;
   }
 
+  /**
+   * Gets the digest of the resource piece of the repository entry.
+   *
+   * The digest identifies the contents of the resource piece.  Two
+   * entries with the same agent code have the same digest.
+   *
+   * @returns the digest as a string of hexadecimal digits, or null if
+   *          the entry has no resource piece.
+   *
+   */
+
+  String
+  getResourceDigest()
+    throws IOException
+  {
+    if (strResourceDigest == null && getResource() != null && getResource().exists())
+    {
+      strResourceDigest = digest(getResource());
+    }
+
+    return strResourceDigest;
+  }
+
+  /**
+   * Sets the digest of the resource piece of the repository entry.
+   *
+   * The repository calls this method when it already knows the
+   * digest.
+   *
+   */
+
+  void
+  setResourceDigest(String strResourceDigest)
+  {
+    this.strResourceDigest = strResourceDigest;
+  }
+
+  /**
+   * Computes the digest of a file.
+   *
+   */
+
+  static String
+  digest(File file)
+    throws IOException
+  {
+    MessageDigest messagedigest = createMessageDigest();
+
+    FileInputStream fileinputstream = new FileInputStream(file);
+
+    try
+    {
+      byte [] rgb = new byte [64 * 1024];
+
+      int n;
+
+      while ((n = fileinputstream.read(rgb)) > 0)
+      {
+        messagedigest.update(rgb, 0, n);
+      }
+    }
+    finally
+    {
+      fileinputstream.close();
+    }
+
+    return toHex(messagedigest.digest());
+  }
+
+  /**
+   * Computes the digest of an array of bytes.
+   *
+   */
+
+  static String
+  digest(byte [] rgb)
+  {
+    MessageDigest messagedigest = createMessageDigest();
+
+    return toHex(messagedigest.digest(rgb));
+  }
+
+  /**
+   * Creates the message digest used for repository digests.
+   *
+   */
+
+  private static MessageDigest
+  createMessageDigest()
+  {
+    try
+    {
+      return MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException ex)
+    {
+      // Every virtual machine must provide SHA-1.
+
+      throw new InternalError("SHA-1 not available");
+    }
+  }
+
+  /**
+   * Converts a digest to a string of hexadecimal digits.
+   *
+   */
+
+  private static String
+  toHex(byte [] rgbDigest)
+  {
+    StringBuffer stringbuffer = new StringBuffer(rgbDigest.length * 2);
+
+    for (int i = 0; i < rgbDigest.length; i++)
+    {
+      stringbuffer.append(Character.forDigit((rgbDigest[i] >> 4) & 0xF, 16));
+      stringbuffer.append(Character.forDigit(rgbDigest[i] & 0xF, 16));
+    }
+
+    return stringbuffer.toString();
+  }
+
   /**
    * Gets the resource piece of the repository entry as an array of
    * bytes.
@@ -194,12 +350,12 @@ class RepositoryEntry
   getResourceAsBytes()
     throws IOException
   {
-    if (!fileResource.exists())
+    if (!getResource().exists())
     {
       return null;
     }
 
-    return readBytes(fileResource);
+    return readBytes(getResource());
   }
 
   /**
@@ -212,12 +368,12 @@ class RepositoryEntry
   getDataAsBytes()
     throws IOException
   {
-    if (!fileData.exists())
+    if (!getData().exists())
     {
       return null;
     }
 
-    return readBytes(fileData);
+    return readBytes(getData());
   }
 
   /**
@@ -232,6 +388,8 @@ class RepositoryEntry
   {
     deleteResource();
 
+    strResourceDigest = null;
+
     if (rgbResource == null)
     {
       return;
@@ -263,6 +421,9 @@ class RepositoryEntry
   /**
    * Reads an array of bytes from a file.
    *
+   * A single read may return fewer bytes than asked for, so the file
+   * is read until it is full.
+   *
    */
 
   private static byte []
@@ -271,25 +432,32 @@ class RepositoryEntry
   {
     RandomAccessFile randomaccessfile = new RandomAccessFile(file, "r");
 
-    long n = randomaccessfile.length();
-
-    if (n > Integer.MAX_VALUE)
+    try
     {
-      throw new IOException("file " + file.getName() + ": too large");
-    }
+      long n = randomaccessfile.length();
 
-    byte [] rgb = new byte [(int)n];
+      if (n > Integer.MAX_VALUE)
+      {
+        throw new IOException("file " + file.getName() + ": too large");
+      }
 
-    randomaccessfile.read(rgb);
+      byte [] rgb = new byte [(int)n];
 
-    randomaccessfile.close();
+      randomaccessfile.readFully(rgb);
 
-    return rgb;
+      return rgb;
+    }
+    finally
+    {
+      randomaccessfile.close();
+    }
   }
 
   /**
    * Writes an array of bytes to a file.
    *
+   * Whatever the file held before is replaced.
+   *
    */
 
   private static void
@@ -298,8 +466,15 @@ class RepositoryEntry
   {
     RandomAccessFile randomaccessfile = new RandomAccessFile(file, "rw");
 
-    randomaccessfile.write(rgb);
+    try
+    {
+      randomaccessfile.setLength(0);
 
-    randomaccessfile.close();
+      randomaccessfile.write(rgb);
+    }
+    finally
+    {
+      randomaccessfile.close();
+    }
   }
 }
@@ -0,0 +1,609 @@
+package etcee.ki.server;
+
+import etcee.ki.agent.AgentIdentity;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The resurrector.
+ *
+ * The <CODE>Resurrector</CODE> class resurrects the agents in the
+ * repository when the agent host starts.  Resurrection runs as a
+ * pipeline of four stages, each with a bounded pool of threads:
+ *
+ * <OL>
+ * <LI> read -- open the agent's resource file and read its data file
+ * <LI> define -- load the agent wrapper class and create the agent
+ *      wrapper
+ * <LI> restore -- read the agent from its data
+ * <LI> start -- start the agent
+ * </OL>
+ *
+ * Agents may wait in <CODE>start()</CODE>, so the start stage has a
+ * pool of its own, wider than the others.  An agent that waits there
+ * holds a starter thread, and the agent host's wait for the pipeline
+ * to drain, until it returns.  If every starter is waiting, the
+ * agents behind them wait too.
+ *
+ * Only a window of agents is in the pipeline at any one time, so
+ * agent data read ahead of the later stages is bounded.  Agents
+ * enter the pipeline smallest first, so that as many agents as
+ * possible are running early.
+ *
+ * The agent host waits for the pipeline to drain before it makes
+ * itself available.  The resurrector records the time spent in each
+ * phase.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see AgentHostImplementation.resurrect
+ *
+ */
+
+final class Resurrector
+{
+  /**
+   * The state of an agent being resurrected.
+   *
+   */
+
+  final static class Resurrection
+  {
+    RepositoryEntry repositoryentry = null;
+    AgentClassLoader agentclassloader = null;
+    byte [] rgbData = null;
+    boolean boolRestored = false;
+    AgentWrapper agentwrapper = null;
+    AgentIdentity agentidentity = null;
+
+    Resurrection(RepositoryEntry repositoryentry)
+    {
+      this.repositoryentry = repositoryentry;
+    }
+  }
+
+  /**
+   * The phases.
+   *
+   */
+
+  private final static int READ = 0;
+  private final static int DEFINE = 1;
+  private final static int RESTORE = 2;
+  private final static int START = 3;
+
+  /**
+   * The phase names.
+   *
+   */
+
+  private final static String [] rgstrPhases = { "read", "define", "restore", "start" };
+
+  /**
+   * The agent host implementation.
+   *
+   */
+
+  private AgentHostImplementation agenthostimplementation = null;
+
+  /**
+   * The stages.
+   *
+   */
+
+  private ThreadPoolExecutor threadpoolexecutorRead = null;
+  private ThreadPoolExecutor threadpoolexecutorDefine = null;
+  private ThreadPoolExecutor threadpoolexecutorRestore = null;
+  private ThreadPoolExecutor threadpoolexecutorStart = null;
+
+  /**
+   * The window.
+   *
+   * An agent takes a permit when it enters the pipeline, and returns
+   * it when it leaves.
+   *
+   */
+
+  private Semaphore semaphoreWindow = null;
+
+  /**
+   * The readiness barrier.
+   *
+   */
+
+  private CountDownLatch countdownlatch = null;
+
+  /**
+   * The phase times (in nanoseconds).
+   *
+   * The phase times are summed over all the agents, so they may
+   * exceed the elapsed time.
+   *
+   */
+
+  private AtomicLong [] rgatomiclongPhaseTimes = null;
+
+  /**
+   * The agent counters.
+   *
+   */
+
+  private AtomicLong atomiclongResurrected = new AtomicLong();
+  private AtomicLong atomiclongFailed = new AtomicLong();
+
+  /**
+   * The start and finish times (in nanoseconds).
+   *
+   */
+
+  private long nsStart = 0;
+  private long nsFinish = 0;
+
+  /**
+   * The finished flag.
+   *
+   */
+
+  private boolean boolFinished = false;
+
+  /**
+   * Constructs the resurrector.
+   *
+   * @parameter nReaders the number of threads in the read stage.
+   *
+   * @parameter nThreads the number of threads in the define and
+   *            restore stages.
+   *
+   * @parameter nStarters the number of threads in the start stage.
+   *
+   * @parameter nWindow the maximum number of agents in the pipeline.
+   *
+   */
+
+  Resurrector(AgentHostImplementation agenthostimplementation,
+              int nReaders,
+              int nThreads,
+              int nStarters,
+              int nWindow)
+  {
+    this.agenthostimplementation = agenthostimplementation;
+
+    threadpoolexecutorRead = createStage("resurrect-read", nReaders);
+    threadpoolexecutorDefine = createStage("resurrect-define", nThreads);
+    threadpoolexecutorRestore = createStage("resurrect-restore", nThreads);
+    threadpoolexecutorStart = createStage("resurrect-start", nStarters);
+
+    semaphoreWindow = new Semaphore(Math.max(nWindow, 1));
+
+    rgatomiclongPhaseTimes = new AtomicLong [rgstrPhases.length];
+
+    for (int i = 0; i < rgatomiclongPhaseTimes.length; i++)
+    {
+      rgatomiclongPhaseTimes[i] = new AtomicLong();
+    }
+  }
+
+  /**
+   * Creates a stage.
+   *
+   */
+
+  private static ThreadPoolExecutor
+  createStage(final String strName, int nThreads)
+  {
+    ThreadFactory threadfactory = new ThreadFactory()
+      {
+        private int n = 0;
+
+        public synchronized Thread
+        newThread(Runnable runnable)
+        {
+          return new Thread(runnable, strName + "-" + n++);
+        }
+      };
+
+    nThreads = Math.max(nThreads, 1);
+
+    return new ThreadPoolExecutor(nThreads,
+                                  nThreads,
+                                  0L,
+                                  TimeUnit.MILLISECONDS,
+                                  new LinkedBlockingQueue(),
+                                  threadfactory);
+  }
+
+  /**
+   * Resurrects agents.
+   *
+   * The agents are fed into the pipeline on a thread of their own.
+   * This method returns at once.
+   *
+   * @see await
+   *
+   */
+
+  final void
+  resurrect(Vector vectorEntries)
+  {
+    final Vector vector = new Vector(vectorEntries);
+
+    Collections.sort(vector, new Comparator()
+      {
+        public int
+        compare(Object obj1, Object obj2)
+        {
+          long n1 = size((RepositoryEntry)obj1);
+          long n2 = size((RepositoryEntry)obj2);
+
+          return n1 < n2 ? -1 : n1 > n2 ? 1 : 0;
+        }
+      });
+
+    countdownlatch = new CountDownLatch(vector.size());
+
+    nsStart = System.nanoTime();
+
+    if (vector.size() == 0)
+    {
+      finish();
+
+      return;
+    }
+
+    Thread thread = new Thread("resurrect")
+      {
+        public void
+        run()
+        {
+          for (int i = 0; i < vector.size(); i++)
+          {
+            semaphoreWindow.acquireUninterruptibly();
+
+            read(new Resurrection((RepositoryEntry)vector.elementAt(i)));
+          }
+        }
+      };
+
+    thread.setDaemon(true);
+
+    thread.start();
+  }
+
+  /**
+   * Gets the size of a repository entry.
+   *
+   */
+
+  private static long
+  size(RepositoryEntry repositoryentry)
+  {
+    return repositoryentry.getSize();
+  }
+
+  /**
+   * Runs the read stage.
+   *
+   */
+
+  private void
+  read(final Resurrection resurrection)
+  {
+    threadpoolexecutorRead.execute(new Runnable()
+      {
+        public void
+        run()
+        {
+          try
+          {
+            long ns = System.nanoTime();
+
+            agenthostimplementation.readAgent(resurrection);
+
+            rgatomiclongPhaseTimes[READ].addAndGet(System.nanoTime() - ns);
+          }
+          catch (Throwable throwable)
+          {
+            fail(resurrection, throwable);
+
+            return;
+          }
+
+          define(resurrection);
+        }
+      });
+  }
+
+  /**
+   * Runs the define stage.
+   *
+   */
+
+  private void
+  define(final Resurrection resurrection)
+  {
+    threadpoolexecutorDefine.execute(new Runnable()
+      {
+        public void
+        run()
+        {
+          try
+          {
+            long ns = System.nanoTime();
+
+            agenthostimplementation.defineAgent(resurrection);
+
+            rgatomiclongPhaseTimes[DEFINE].addAndGet(System.nanoTime() - ns);
+          }
+          catch (Throwable throwable)
+          {
+            fail(resurrection, throwable);
+
+            return;
+          }
+
+          restore(resurrection);
+        }
+      });
+  }
+
+  /**
+   * Runs the restore stage.
+   *
+   */
+
+  private void
+  restore(final Resurrection resurrection)
+  {
+    threadpoolexecutorRestore.execute(new Runnable()
+      {
+        public void
+        run()
+        {
+          try
+          {
+            long ns = System.nanoTime();
+
+            agenthostimplementation.restoreAgent(resurrection);
+
+            rgatomiclongPhaseTimes[RESTORE].addAndGet(System.nanoTime() - ns);
+          }
+          catch (Throwable throwable)
+          {
+            fail(resurrection, throwable);
+
+            return;
+          }
+
+          start(resurrection);
+        }
+      });
+  }
+
+  /**
+   * Runs the start stage.
+   *
+   */
+
+  private void
+  start(final Resurrection resurrection)
+  {
+    threadpoolexecutorStart.execute(new Runnable()
+      {
+        public void
+        run()
+        {
+          try
+          {
+            long ns = System.nanoTime();
+
+            agenthostimplementation.startAgent(resurrection);
+
+            agenthostimplementation.recordAgent(resurrection);
+
+            rgatomiclongPhaseTimes[START].addAndGet(System.nanoTime() - ns);
+          }
+          catch (Throwable throwable)
+          {
+            fail(resurrection, throwable);
+
+            return;
+          }
+
+          atomiclongResurrected.incrementAndGet();
+
+          done();
+        }
+      });
+  }
+
+  /**
+   * Records a failed resurrection.
+   *
+   */
+
+  private void
+  fail(Resurrection resurrection, Throwable throwable)
+  {
+    throwable.printStackTrace();
+
+    agenthostimplementation.abandonAgent(resurrection);
+
+    atomiclongFailed.incrementAndGet();
+
+    done();
+  }
+
+  /**
+   * Records an agent leaving the pipeline.
+   *
+   */
+
+  private void
+  done()
+  {
+    semaphoreWindow.release();
+
+    countdownlatch.countDown();
+
+    if (countdownlatch.getCount() == 0)
+    {
+      finish();
+    }
+  }
+
+  /**
+   * Finishes resurrection.
+   *
+   */
+
+  private void
+  finish()
+  {
+    synchronized (this)
+    {
+      nsFinish = System.nanoTime();
+
+      boolFinished = true;
+    }
+
+    threadpoolexecutorRead.shutdown();
+    threadpoolexecutorDefine.shutdown();
+    threadpoolexecutorRestore.shutdown();
+    threadpoolexecutorStart.shutdown();
+  }
+
+  /**
+   * Waits for resurrection to finish.
+   *
+   * @parameter ms the longest time to wait (in milliseconds), or 0 to
+   *            wait for as long as it takes.
+   *
+   * @returns false if resurrection had not finished in time.
+   *
+   */
+
+  final boolean
+  await(long ms)
+  {
+    try
+    {
+      if (ms <= 0)
+      {
+        countdownlatch.await();
+
+        return true;
+      }
+
+      return countdownlatch.await(ms, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+
+      return countdownlatch.getCount() == 0;
+    }
+  }
+
+  /**
+   * Gets the number of agents resurrected.
+   *
+   */
+
+  final long
+  getResurrectedCount()
+  {
+    return atomiclongResurrected.get();
+  }
+
+  /**
+   * Gets the number of agents that failed to resurrect.
+   *
+   */
+
+  final long
+  getFailedCount()
+  {
+    return atomiclongFailed.get();
+  }
+
+  /**
+   * Gets the number of agents not yet resurrected.
+   *
+   */
+
+  final long
+  getPendingCount()
+  {
+    return countdownlatch.getCount();
+  }
+
+  /**
+   * Gets the phase times.
+   *
+   * @returns a hashtable that maps phase names to the time (as longs,
+   *          in milliseconds) spent in each phase, summed over all
+   *          agents.  The entry <CODE>elapsed</CODE> holds the time
+   *          from start to finish, or to now if resurrection has not
+   *          finished.
+   *
+   */
+
+  final Hashtable
+  getPhaseTimes()
+  {
+    Hashtable hashtable = new Hashtable();
+
+    for (int i = 0; i < rgstrPhases.length; i++)
+    {
+      hashtable.put(rgstrPhases[i], Long.valueOf(rgatomiclongPhaseTimes[i].get() / 1000000L));
+    }
+
+    long ns;
+
+    synchronized (this)
+    {
+      ns = boolFinished ? nsFinish : System.nanoTime();
+    }
+
+    hashtable.put("elapsed", Long.valueOf((ns - nsStart) / 1000000L));
+
+    return hashtable;
+  }
+
+  /**
+   * Returns a report of the resurrection.
+   *
+   */
+
+  public String
+  toString()
+  {
+    Hashtable hashtable = getPhaseTimes();
+
+    StringBuffer stringbuffer = new StringBuffer();
+
+    stringbuffer.append("resurrected " + getResurrectedCount() +
+                        " failed " + getFailedCount() +
+                        " pending " + getPendingCount() +
+                        " elapsed " + hashtable.get("elapsed") + " ms");
+
+    for (int i = 0; i < rgstrPhases.length; i++)
+    {
+      stringbuffer.append(" " + rgstrPhases[i] + " " + hashtable.get(rgstrPhases[i]) + " ms");
+    }
+
+    return stringbuffer.toString();
+  }
+}
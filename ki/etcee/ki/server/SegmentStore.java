@@ -0,0 +1,957 @@
+package etcee.ki.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+
+import java.util.zip.CRC32;
+
+/**
+ * The segment store.
+ *
+ * The <CODE>SegmentStore</CODE> class packs resource pieces and data
+ * pieces into a few large, append-only segment files.  Every change
+ * is a record appended to the current segment:
+ *
+ * <UL>
+ * <LI> resource -- the contents of a resource piece, keyed by digest
+ * <LI> entry -- an entry name and the digest of its resource piece
+ * <LI> data -- the contents of an entry's data piece
+ * <LI> delete -- the end of an entry
+ * </UL>
+ *
+ * Resource pieces are stored once, however many entries share them.
+ * The index is kept in memory and rebuilt by scanning the segments
+ * in order when the store is opened.  Each record carries a checksum,
+ * and a torn record ends the scan of its segment.  A new segment is
+ * started every time the store is opened, so nothing is ever written
+ * after a torn record.
+ *
+ * Compaction copies the live records into new segments and then
+ * deletes the old ones.  A crash part way through leaves both copies,
+ * and the later copies win when the segments are scanned.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see SegmentedRepository
+ *
+ */
+
+final class SegmentStore
+{
+  /**
+   * The record types.
+   *
+   */
+
+  private final static byte RESOURCE = 1;
+  private final static byte ENTRY = 2;
+  private final static byte DATA = 3;
+  private final static byte DELETE = 4;
+
+  /**
+   * The record signature.
+   *
+   */
+
+  private final static int RECORD = 0x4b495352;
+
+  /**
+   * The segment suffix.
+   *
+   */
+
+  private final static String strSegmentSuffix = ".seg";
+
+  /**
+   * The location of a record.
+   *
+   */
+
+  private final static class Location
+  {
+    int nSegment = 0;
+    long nOffset = 0;
+    int nLength = 0;
+    int nRecordLength = 0;
+    long nUsed = 0;
+  }
+
+  /**
+   * A stored entry.
+   *
+   */
+
+  private final static class Entry
+  {
+    String strDigest = null;
+    Location locationEntry = null;
+    Location locationData = null;
+  }
+
+  /**
+   * The segment path.
+   *
+   */
+
+  private File filePath = null;
+
+  /**
+   * The segment size limit (in bytes).
+   *
+   */
+
+  private long nSegmentLimit = 0;
+
+  /**
+   * The segment numbers, in order.
+   *
+   */
+
+  private Vector vectorSegments = new Vector();
+
+  /**
+   * The current segment.
+   *
+   */
+
+  private int nSegment = 0;
+
+  private RandomAccessFile randomaccessfile = null;
+
+  private long nLength = 0;
+
+  /**
+   * The unforced flag.
+   *
+   */
+
+  private boolean boolUnforced = false;
+
+  /**
+   * The resource table.
+   *
+   * The resource table maps digests to locations.
+   *
+   */
+
+  private HashMap hashmapResources = new HashMap();
+
+  /**
+   * The entry table.
+   *
+   * The entry table maps entry names to entries.
+   *
+   */
+
+  private HashMap hashmapEntries = new HashMap();
+
+  /**
+   * The byte counters.
+   *
+   * Live bytes are held by records that are still in the index.
+   *
+   */
+
+  private long nTotal = 0;
+  private long nLive = 0;
+
+  /**
+   * The use counter.
+   *
+   * The use counter orders resource pieces by when they were last
+   * used, so that compaction keeps the most recently used archives.
+   *
+   */
+
+  private long nUsed = 0;
+
+  /**
+   * Opens the segment store.
+   *
+   * @parameter nSegmentLimit the size (in bytes) at which a new
+   *            segment is started.
+   *
+   */
+
+  SegmentStore(File filePath, long nSegmentLimit)
+    throws IOException
+  {
+    this.filePath = filePath;
+    this.nSegmentLimit = nSegmentLimit;
+
+    filePath.mkdirs();
+
+    String [] rgstr = filePath.list();
+
+    if (rgstr == null)
+    {
+      throw new IOException(filePath + " is not a directory");
+    }
+
+    for (int i = 0; i < rgstr.length; i++)
+    {
+      if (!rgstr[i].endsWith(strSegmentSuffix))
+      {
+        continue;
+      }
+
+      // An empty segment is left by a crash before anything was
+      // written to it.
+
+      if (new File(filePath, rgstr[i]).length() == 0)
+      {
+        new File(filePath, rgstr[i]).delete();
+
+        continue;
+      }
+
+      try
+      {
+        vectorSegments.addElement(Integer.valueOf(rgstr[i].substring(0, rgstr[i].length() - strSegmentSuffix.length())));
+      }
+      catch (NumberFormatException ex)
+      {
+      }
+    }
+
+    Collections.sort(vectorSegments);
+
+    for (int i = 0; i < vectorSegments.size(); i++)
+    {
+      scan(((Integer)vectorSegments.elementAt(i)).intValue());
+    }
+
+    roll();
+  }
+
+  /**
+   * Gets a segment file.
+   *
+   */
+
+  private File
+  getSegment(int n)
+  {
+    return new File(filePath, n + strSegmentSuffix);
+  }
+
+  /**
+   * Starts a new segment.
+   *
+   */
+
+  private void
+  roll()
+    throws IOException
+  {
+    force();
+
+    if (randomaccessfile != null)
+    {
+      randomaccessfile.close();
+    }
+
+    nSegment = vectorSegments.size() == 0 ? 1 : ((Integer)vectorSegments.lastElement()).intValue() + 1;
+
+    randomaccessfile = new RandomAccessFile(getSegment(nSegment), "rw");
+
+    randomaccessfile.setLength(0);
+
+    nLength = 0;
+
+    vectorSegments.addElement(Integer.valueOf(nSegment));
+  }
+
+  /**
+   * Scans a segment.
+   *
+   */
+
+  private void
+  scan(int n)
+    throws IOException
+  {
+    DataInputStream datainputstream =
+      new DataInputStream(new BufferedInputStream(new FileInputStream(getSegment(n))));
+
+    long nOffset = 0;
+
+    long nSegmentLength = getSegment(n).length();
+
+    try
+    {
+      while (true)
+      {
+        int nSignature = datainputstream.readInt();
+
+        if (nSignature != RECORD)
+        {
+          break;
+        }
+
+        byte nType = datainputstream.readByte();
+
+        String strKey = datainputstream.readUTF();
+
+        int nPayload = datainputstream.readInt();
+
+        if (nPayload < 0 || nPayload > nSegmentLength)
+        {
+          break;
+        }
+
+        byte [] rgbHeader = header(nType, strKey, nPayload);
+
+        byte [] rgb = new byte [nPayload];
+
+        datainputstream.readFully(rgb);
+
+        CRC32 crc32 = new CRC32();
+
+        crc32.update(rgbHeader);
+        crc32.update(rgb);
+
+        if (datainputstream.readLong() != crc32.getValue())
+        {
+          break;
+        }
+
+        Location location = new Location();
+
+        location.nSegment = n;
+        location.nOffset = nOffset + rgbHeader.length;
+        location.nLength = nPayload;
+        location.nRecordLength = rgbHeader.length + nPayload + 8;
+
+        nTotal += location.nRecordLength;
+
+        apply(nType, strKey, rgb, location);
+
+        nOffset += location.nRecordLength;
+      }
+    }
+    catch (EOFException ex)
+    {
+      // A torn record.
+    }
+    finally
+    {
+      datainputstream.close();
+    }
+  }
+
+  /**
+   * Builds a record header.
+   *
+   */
+
+  private static byte []
+  header(byte nType, String strKey, int nPayload)
+    throws IOException
+  {
+    ByteArrayOutputStream bytearrayoutputstream = new ByteArrayOutputStream();
+
+    DataOutputStream dataoutputstream = new DataOutputStream(bytearrayoutputstream);
+
+    dataoutputstream.writeInt(RECORD);
+    dataoutputstream.writeByte(nType);
+    dataoutputstream.writeUTF(strKey);
+    dataoutputstream.writeInt(nPayload);
+
+    dataoutputstream.close();
+
+    return bytearrayoutputstream.toByteArray();
+  }
+
+  /**
+   * Applies a record to the index.
+   *
+   */
+
+  private void
+  apply(byte nType, String strKey, byte [] rgb, Location location)
+    throws IOException
+  {
+    Entry entry = (Entry)hashmapEntries.get(strKey);
+
+    switch (nType)
+    {
+    case RESOURCE:
+
+      release((Location)hashmapResources.put(strKey, location));
+
+      location.nUsed = ++nUsed;
+
+      break;
+
+    case ENTRY:
+
+      if (entry == null)
+      {
+        entry = new Entry();
+
+        hashmapEntries.put(strKey, entry);
+      }
+
+      release(entry.locationEntry);
+
+      entry.strDigest = new String(rgb, "UTF-8");
+      entry.locationEntry = location;
+
+      break;
+
+    case DATA:
+
+      if (entry == null)
+      {
+        // Data without an entry is garbage.
+
+        return;
+      }
+
+      release(entry.locationData);
+
+      entry.locationData = location;
+
+      break;
+
+    case DELETE:
+
+      if (entry != null)
+      {
+        release(entry.locationEntry);
+        release(entry.locationData);
+
+        hashmapEntries.remove(strKey);
+      }
+
+      // The delete record itself is never live.
+
+      return;
+
+    default:
+
+      throw new IOException("unknown record type " + nType);
+    }
+
+    nLive += location.nRecordLength;
+  }
+
+  /**
+   * Releases a record that is no longer live.
+   *
+   */
+
+  private void
+  release(Location location)
+  {
+    if (location != null)
+    {
+      nLive -= location.nRecordLength;
+    }
+  }
+
+  /**
+   * Appends a record.
+   *
+   */
+
+  private void
+  append(byte nType, String strKey, byte [] rgb)
+    throws IOException
+  {
+    if (nLength > 0 && nLength + rgb.length > nSegmentLimit)
+    {
+      roll();
+    }
+
+    byte [] rgbHeader = header(nType, strKey, rgb.length);
+
+    CRC32 crc32 = new CRC32();
+
+    crc32.update(rgbHeader);
+    crc32.update(rgb);
+
+    ByteArrayOutputStream bytearrayoutputstream =
+      new ByteArrayOutputStream(rgbHeader.length + rgb.length + 8);
+
+    DataOutputStream dataoutputstream = new DataOutputStream(bytearrayoutputstream);
+
+    dataoutputstream.write(rgbHeader);
+    dataoutputstream.write(rgb);
+    dataoutputstream.writeLong(crc32.getValue());
+
+    dataoutputstream.close();
+
+    randomaccessfile.seek(nLength);
+    randomaccessfile.write(bytearrayoutputstream.toByteArray());
+
+    Location location = new Location();
+
+    location.nSegment = nSegment;
+    location.nOffset = nLength + rgbHeader.length;
+    location.nLength = rgb.length;
+    location.nRecordLength = bytearrayoutputstream.size();
+
+    nLength += location.nRecordLength;
+    nTotal += location.nRecordLength;
+
+    boolUnforced = true;
+
+    apply(nType, strKey, rgb, location);
+  }
+
+  /**
+   * Reads the payload of a record.
+   *
+   */
+
+  private byte []
+  read(Location location)
+    throws IOException
+  {
+    byte [] rgb = new byte [location.nLength];
+
+    if (location.nSegment == nSegment)
+    {
+      randomaccessfile.seek(location.nOffset);
+      randomaccessfile.readFully(rgb);
+
+      return rgb;
+    }
+
+    RandomAccessFile randomaccessfileSegment =
+      new RandomAccessFile(getSegment(location.nSegment), "r");
+
+    try
+    {
+      randomaccessfileSegment.seek(location.nOffset);
+      randomaccessfileSegment.readFully(rgb);
+    }
+    finally
+    {
+      randomaccessfileSegment.close();
+    }
+
+    return rgb;
+  }
+
+  /**
+   * Forces the current segment to disk.
+   *
+   */
+
+  final synchronized void
+  force()
+    throws IOException
+  {
+    if (boolUnforced)
+    {
+      randomaccessfile.getChannel().force(false);
+
+      boolUnforced = false;
+    }
+  }
+
+  /**
+   * Closes the segment store.
+   *
+   * An empty current segment is deleted.
+   *
+   */
+
+  final synchronized void
+  close()
+    throws IOException
+  {
+    force();
+
+    randomaccessfile.close();
+
+    if (nLength == 0)
+    {
+      getSegment(nSegment).delete();
+
+      vectorSegments.removeElement(Integer.valueOf(nSegment));
+    }
+  }
+
+  /**
+   * Determines whether or not a resource piece is stored.
+   *
+   */
+
+  final synchronized boolean
+  hasResource(String strDigest)
+  {
+    return hashmapResources.containsKey(strDigest);
+  }
+
+  /**
+   * Gets the digests of the stored resource pieces.
+   *
+   */
+
+  final synchronized String []
+  getResourceDigests()
+  {
+    String [] rgstr = new String [hashmapResources.size()];
+
+    hashmapResources.keySet().toArray(rgstr);
+
+    return rgstr;
+  }
+
+  /**
+   * Stores a resource piece, unless it is already stored.
+   *
+   */
+
+  final synchronized void
+  putResource(String strDigest, byte [] rgb)
+    throws IOException
+  {
+    Location location = (Location)hashmapResources.get(strDigest);
+
+    if (location != null)
+    {
+      location.nUsed = ++nUsed;
+
+      return;
+    }
+
+    append(RESOURCE, strDigest, rgb);
+  }
+
+  /**
+   * Reads a resource piece.
+   *
+   * @returns the resource piece, or null if it is not stored.
+   *
+   */
+
+  final synchronized byte []
+  readResource(String strDigest)
+    throws IOException
+  {
+    Location location = (Location)hashmapResources.get(strDigest);
+
+    if (location == null)
+    {
+      return null;
+    }
+
+    location.nUsed = ++nUsed;
+
+    return read(location);
+  }
+
+  /**
+   * Gets the names of the stored entries.
+   *
+   */
+
+  final synchronized Vector
+  getEntryNames()
+  {
+    return new Vector(hashmapEntries.keySet());
+  }
+
+  /**
+   * Determines whether or not an entry is stored.
+   *
+   */
+
+  final synchronized boolean
+  hasEntry(String strName)
+  {
+    return hashmapEntries.containsKey(strName);
+  }
+
+  /**
+   * Gets the resource digest of a stored entry.
+   *
+   */
+
+  final synchronized String
+  getEntryDigest(String strName)
+  {
+    Entry entry = (Entry)hashmapEntries.get(strName);
+
+    return entry == null ? null : entry.strDigest;
+  }
+
+  /**
+   * Stores an entry.
+   *
+   * The resource piece must already be stored.
+   *
+   * @parameter rgbData the data piece, or null to leave the stored
+   *            data piece as it is.
+   *
+   */
+
+  final synchronized void
+  putEntry(String strName, String strDigest, byte [] rgbData)
+    throws IOException
+  {
+    Entry entry = (Entry)hashmapEntries.get(strName);
+
+    if (entry == null || !entry.strDigest.equals(strDigest))
+    {
+      append(ENTRY, strName, strDigest.getBytes("UTF-8"));
+    }
+
+    if (rgbData != null)
+    {
+      append(DATA, strName, rgbData);
+    }
+  }
+
+  /**
+   * Reads the data piece of a stored entry.
+   *
+   * @returns the data piece, or null if there is none.
+   *
+   */
+
+  final synchronized byte []
+  readData(String strName)
+    throws IOException
+  {
+    Entry entry = (Entry)hashmapEntries.get(strName);
+
+    if (entry == null || entry.locationData == null)
+    {
+      return null;
+    }
+
+    return read(entry.locationData);
+  }
+
+  /**
+   * Gets the size (in bytes) of a stored entry.
+   *
+   */
+
+  final synchronized long
+  getEntrySize(String strName)
+  {
+    Entry entry = (Entry)hashmapEntries.get(strName);
+
+    if (entry == null)
+    {
+      return 0;
+    }
+
+    Location location = (Location)hashmapResources.get(entry.strDigest);
+
+    return (location == null ? 0 : location.nLength) +
+           (entry.locationData == null ? 0 : entry.locationData.nLength);
+  }
+
+  /**
+   * Deletes a stored entry.
+   *
+   * The delete is forced to disk, so a deleted entry never comes
+   * back.
+   *
+   */
+
+  final synchronized void
+  deleteEntry(String strName)
+    throws IOException
+  {
+    if (!hashmapEntries.containsKey(strName))
+    {
+      return;
+    }
+
+    append(DELETE, strName, new byte [0]);
+
+    force();
+  }
+
+  /**
+   * Compacts the store.
+   *
+   * The store is compacted once the dead records outweigh the live
+   * ones.  Resource pieces no entry refers to are kept as archives,
+   * the most recently used first, up to the specified number.
+   *
+   * @parameter nArchives the number of unreferenced resource pieces
+   *            to keep.
+   *
+   * @parameter nMinimum the fewest dead bytes worth compacting.
+   *
+   * @returns false if the store did not need compacting.
+   *
+   */
+
+  final synchronized boolean
+  compact(int nArchives, long nMinimum)
+    throws IOException
+  {
+    long nDead = nTotal - nLive;
+
+    if (nDead < nMinimum || nDead < nLive)
+    {
+      return false;
+    }
+
+    // Every segment before the first new one is replaced.
+
+    roll();
+
+    int nFirst = nSegment;
+
+    HashMap hashmapReferenced = new HashMap();
+
+    Iterator iterator = hashmapEntries.values().iterator();
+
+    while (iterator.hasNext())
+    {
+      hashmapReferenced.put(((Entry)iterator.next()).strDigest, Boolean.TRUE);
+    }
+
+    Vector vectorArchives = new Vector();
+
+    iterator = hashmapResources.entrySet().iterator();
+
+    while (iterator.hasNext())
+    {
+      Map.Entry mapentry = (Map.Entry)iterator.next();
+
+      if (!hashmapReferenced.containsKey(mapentry.getKey()))
+      {
+        vectorArchives.addElement(mapentry);
+      }
+    }
+
+    Collections.sort(vectorArchives, new Comparator()
+      {
+        public int
+        compare(Object obj1, Object obj2)
+        {
+          long n1 = ((Location)((Map.Entry)obj1).getValue()).nUsed;
+          long n2 = ((Location)((Map.Entry)obj2).getValue()).nUsed;
+
+          return n1 > n2 ? -1 : n1 < n2 ? 1 : 0;
+        }
+      });
+
+    for (int i = nArchives; i < vectorArchives.size(); i++)
+    {
+      Map.Entry mapentry = (Map.Entry)vectorArchives.elementAt(i);
+
+      release((Location)hashmapResources.remove(mapentry.getKey()));
+    }
+
+    // Copy the live records.  Copying replaces each record in the
+    // index.
+
+    Vector vectorResources = new Vector(hashmapResources.keySet());
+
+    for (int i = 0; i < vectorResources.size(); i++)
+    {
+      String strDigest = (String)vectorResources.elementAt(i);
+
+      Location location = (Location)hashmapResources.get(strDigest);
+
+      byte [] rgb = read(location);
+
+      long n = location.nUsed;
+
+      append(RESOURCE, strDigest, rgb);
+
+      ((Location)hashmapResources.get(strDigest)).nUsed = n;
+    }
+
+    Vector vectorNames = new Vector(hashmapEntries.keySet());
+
+    for (int i = 0; i < vectorNames.size(); i++)
+    {
+      String strName = (String)vectorNames.elementAt(i);
+
+      Entry entry = (Entry)hashmapEntries.get(strName);
+
+      byte [] rgbData = entry.locationData == null ? null : read(entry.locationData);
+
+      append(ENTRY, strName, entry.strDigest.getBytes("UTF-8"));
+
+      if (rgbData != null)
+      {
+        append(DATA, strName, rgbData);
+      }
+    }
+
+    force();
+
+    // The copies are safe, so the old segments can go.
+
+    Integer [] rgn = new Integer [vectorSegments.size()];
+
+    vectorSegments.copyInto(rgn);
+
+    for (int i = 0; i < rgn.length; i++)
+    {
+      if (rgn[i].intValue() < nFirst)
+      {
+        getSegment(rgn[i].intValue()).delete();
+
+        vectorSegments.removeElement(rgn[i]);
+      }
+    }
+
+    nTotal = nLive;
+
+    return true;
+  }
+
+  /**
+   * Gets the number of segments.
+   *
+   */
+
+  final synchronized int
+  getSegmentCount()
+  {
+    return vectorSegments.size();
+  }
+
+  /**
+   * Gets the number of bytes in live records.
+   *
+   */
+
+  final synchronized long
+  getLiveBytes()
+  {
+    return nLive;
+  }
+
+  /**
+   * Gets the number of bytes in all records.
+   *
+   */
+
+  final synchronized long
+  getTotalBytes()
+  {
+    return nTotal;
+  }
+}
@@ -0,0 +1,932 @@
+package etcee.ki.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.util.Vector;
+
+/**
+ * The segmented repository.
+ *
+ * The <CODE>SegmentedRepository</CODE> class is a repository that
+ * keeps its entries packed in a segment store rather than as a pair
+ * of files each.
+ *
+ * The agent host works with files, so the pieces of an entry are
+ * copied out into the spool directory when they are first needed --
+ * the resource piece when the agent's classes are loaded, the data
+ * piece when it is written or handed to another agent host.  Data
+ * that is only read is read straight from the store.  Entries are
+ * named from a counter, so new names need not be checked against the
+ * directory.
+ *
+ * When the agent host returns an entry, its spooled pieces are
+ * packed into the store and removed.  The spool is recovered when
+ * the repository is opened: the checkpoint log is replayed into it,
+ * and anything still there is packed.  Entries left in the
+ * repository directory by the file-per-piece repository are packed
+ * too, along with its archived resource files.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see SegmentStore
+ * @see Repository.createRepository
+ *
+ */
+
+final class SegmentedRepository
+  extends Repository
+{
+  /**
+   * The segmented repository entry.
+   *
+   * The pieces of the entry are spooled when they are first needed.
+   * Once spooled, the spool file is the authoritative copy.
+   *
+   */
+
+  final static class Entry
+    extends RepositoryEntry
+  {
+    private SegmentStore segmentstore = null;
+
+    private String strName = null;
+
+    private boolean boolResource = false;
+    private boolean boolData = false;
+
+    Entry(SegmentStore segmentstore,
+          String strName,
+          File fileResource,
+          File fileData,
+          boolean boolSpooled)
+    {
+      super(fileResource, fileData);
+
+      this.segmentstore = segmentstore;
+      this.strName = strName;
+
+      boolResource = boolSpooled;
+      boolData = boolSpooled;
+
+      if (!boolSpooled)
+      {
+        setResourceDigest(segmentstore.getEntryDigest(strName));
+      }
+    }
+
+    /**
+     * Spools a piece.
+     *
+     * @parameter rgb the piece, or null if there is none.
+     *
+     */
+
+    private static void
+    spool(File file, byte [] rgb)
+      throws IOException
+    {
+      if (rgb == null)
+      {
+        return;
+      }
+
+      RandomAccessFile randomaccessfile = new RandomAccessFile(file, "rw");
+
+      try
+      {
+        randomaccessfile.setLength(0);
+
+        randomaccessfile.write(rgb);
+      }
+      finally
+      {
+        randomaccessfile.close();
+      }
+    }
+
+    /**
+     * Gets the name of the entry.
+     *
+     */
+
+    final String
+    getName()
+    {
+      return strName;
+    }
+
+    /**
+     * Gets the resource piece, spooling it if necessary.
+     *
+     */
+
+    File
+    getResource()
+    {
+      File file = super.getResource();
+
+      if (file != null && !boolResource)
+      {
+        try
+        {
+          spool(file, segmentstore.readResource(segmentstore.getEntryDigest(strName)));
+        }
+        catch (IOException ex)
+        {
+          // The spool file is missing, so the entry looks empty.
+
+          ex.printStackTrace();
+        }
+
+        boolResource = true;
+      }
+
+      return file;
+    }
+
+    /**
+     * Gets the data piece, spooling it if necessary.
+     *
+     */
+
+    File
+    getData()
+    {
+      File file = super.getData();
+
+      if (file != null && !boolData)
+      {
+        try
+        {
+          spool(file, segmentstore.readData(strName));
+        }
+        catch (IOException ex)
+        {
+          ex.printStackTrace();
+        }
+
+        boolData = true;
+      }
+
+      return file;
+    }
+
+    /**
+     * Gets the resource piece as an array of bytes.
+     *
+     */
+
+    byte []
+    getResourceAsBytes()
+      throws IOException
+    {
+      if (!boolResource)
+      {
+        return segmentstore.readResource(segmentstore.getEntryDigest(strName));
+      }
+
+      return super.getResourceAsBytes();
+    }
+
+    /**
+     * Gets the data piece as an array of bytes.
+     *
+     * Unspooled data is read straight from the store.
+     *
+     */
+
+    byte []
+    getDataAsBytes()
+      throws IOException
+    {
+      if (!boolData)
+      {
+        return segmentstore.readData(strName);
+      }
+
+      return super.getDataAsBytes();
+    }
+
+    /**
+     * Sets the resource piece as an array of bytes.
+     *
+     */
+
+    void
+    setResourceAsBytes(byte [] rgbResource)
+      throws IOException
+    {
+      boolResource = true;
+
+      super.setResourceAsBytes(rgbResource);
+    }
+
+    /**
+     * Sets the data piece as an array of bytes.
+     *
+     */
+
+    void
+    setDataAsBytes(byte [] rgbData)
+      throws IOException
+    {
+      boolData = true;
+
+      super.setDataAsBytes(rgbData);
+    }
+
+    /**
+     * Deletes the resource piece.
+     *
+     */
+
+    void
+    deleteResource()
+    {
+      boolResource = true;
+
+      super.deleteResource();
+    }
+
+    /**
+     * Deletes the data piece.
+     *
+     */
+
+    void
+    deleteData()
+    {
+      boolData = true;
+
+      super.deleteData();
+    }
+
+    /**
+     * Gets the size (in bytes) of the entry.
+     *
+     */
+
+    long
+    getSize()
+    {
+      if (!boolResource && !boolData)
+      {
+        return segmentstore.getEntrySize(strName);
+      }
+
+      return super.getSize();
+    }
+
+    /**
+     * Determines whether or not the resource piece is spooled.
+     *
+     */
+
+    final boolean
+    isResourceSpooled()
+    {
+      return boolResource;
+    }
+
+    /**
+     * Determines whether or not the data piece is spooled.
+     *
+     */
+
+    final boolean
+    isDataSpooled()
+    {
+      return boolData;
+    }
+  }
+
+  /**
+   * The number of packed entries to hold before forcing the store.
+   *
+   */
+
+  private final static int nBatch = 256;
+
+  /**
+   * The fewest dead bytes worth compacting.
+   *
+   */
+
+  private final static long nCompactionMinimum = 1024L * 1024L;
+
+  /**
+   * The suffix for resource files.
+   *
+   */
+
+  private String strResourceSuffix = null;
+
+  /**
+   * The suffix for data files.
+   *
+   */
+
+  private String strDataSuffix = null;
+
+  /**
+   * The spool path.
+   *
+   */
+
+  private File fileSpoolPath = null;
+
+  /**
+   * The segment store.
+   *
+   */
+
+  private SegmentStore segmentstore = null;
+
+  /**
+   * The checkpoint log.
+   *
+   * The checkpoint log of a segmented repository lives in the spool,
+   * next to the data files it writes.
+   *
+   */
+
+  private CheckpointLog checkpointlog = null;
+
+  /**
+   * The repository entry vector.
+   *
+   */
+
+  private Vector vectorEntries = new Vector();
+
+  /**
+   * The next entry name.
+   *
+   */
+
+  private long nNext = 1;
+
+  /**
+   * The packed files.
+   *
+   * Files are removed once the entries packed from them are forced
+   * to disk.
+   *
+   */
+
+  private Vector vectorPacked = new Vector();
+
+  /**
+   * The closed flag.
+   *
+   */
+
+  private boolean boolClosed = false;
+
+  /**
+   * Constructs the segmented repository.
+   *
+   * Opens the segment store, recovers the spool and imports any
+   * loose entries.
+   *
+   */
+
+  SegmentedRepository(String strPath, String strResourceSuffix, String strDataSuffix)
+    throws IOException
+  {
+    super(strPath, strResourceSuffix, strDataSuffix);
+
+    this.strResourceSuffix = strResourceSuffix;
+    this.strDataSuffix = strDataSuffix;
+
+    fileSpoolPath = new File(getPath(), "spool");
+
+    fileSpoolPath.mkdir();
+
+    long nSegmentLimit = Long.getLong("etcee.ki.repository.segment", 16L * 1024L * 1024L).longValue();
+
+    segmentstore = new SegmentStore(new File(getPath(), "segments"), nSegmentLimit);
+
+    checkpointlog = new CheckpointLog(fileSpoolPath);
+
+    checkpointlog.replay();
+
+    recover();
+
+    importEntries();
+
+    flush();
+
+    segmentstore.compact(getArchiveLimit(), nCompactionMinimum);
+
+    Vector vectorNames = segmentstore.getEntryNames();
+
+    for (int i = 0; i < vectorNames.size(); i++)
+    {
+      String strName = (String)vectorNames.elementAt(i);
+
+      try
+      {
+        nNext = Math.max(nNext, Long.parseLong(strName) + 1);
+      }
+      catch (NumberFormatException ex)
+      {
+      }
+
+      vectorEntries.addElement(newEntry(strName, false));
+    }
+  }
+
+  /**
+   * Creates an entry.
+   *
+   */
+
+  private Entry
+  newEntry(String strName, boolean boolSpooled)
+  {
+    return new Entry(segmentstore,
+                     strName,
+                     new File(fileSpoolPath, strName + strResourceSuffix),
+                     new File(fileSpoolPath, strName + strDataSuffix),
+                     boolSpooled);
+  }
+
+  /**
+   * Generates an entry name.
+   *
+   */
+
+  private synchronized String
+  generateName()
+  {
+    return Long.toString(nNext++);
+  }
+
+  /**
+   * Recovers the spool.
+   *
+   * Whatever is in the spool is newer than the store.
+   *
+   */
+
+  private void
+  recover()
+    throws IOException
+  {
+    String [] rgstr = fileSpoolPath.list();
+
+    for (int i = 0; i < rgstr.length; i++)
+    {
+      File file = new File(fileSpoolPath, rgstr[i]);
+
+      if (rgstr[i].endsWith(".tmp"))
+      {
+        file.delete();
+      }
+      else if (rgstr[i].endsWith(strResourceSuffix))
+      {
+        String strName = rgstr[i].substring(0, rgstr[i].length() - strResourceSuffix.length());
+
+        pack(strName, file, new File(fileSpoolPath, strName + strDataSuffix));
+      }
+      else if (rgstr[i].endsWith(strDataSuffix))
+      {
+        String strName = rgstr[i].substring(0, rgstr[i].length() - strDataSuffix.length());
+
+        // Data whose resource piece is spooled is packed with it.
+
+        if (new File(fileSpoolPath, strName + strResourceSuffix).exists())
+        {
+          continue;
+        }
+
+        if (segmentstore.hasEntry(strName))
+        {
+          pack(strName, null, file);
+        }
+        else
+        {
+          file.delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * Imports the entries and archives of the file-per-piece
+   * repository.
+   *
+   */
+
+  private void
+  importEntries()
+    throws IOException
+  {
+    Vector vector = super.relinquishEntries();
+
+    for (int i = 0; i < vector.size(); i++)
+    {
+      RepositoryEntry repositoryentry = (RepositoryEntry)vector.elementAt(i);
+
+      pack(generateName(), repositoryentry.getResource(), repositoryentry.getData());
+    }
+
+    String [] rgstrDigests = super.getArchiveDigests();
+
+    for (int i = 0; i < rgstrDigests.length; i++)
+    {
+      File file = new File(new File(getPath(), "archives"), rgstrDigests[i] + strResourceSuffix);
+
+      segmentstore.putResource(rgstrDigests[i], readFile(file));
+
+      vectorPacked.addElement(file);
+    }
+  }
+
+  /**
+   * Packs the pieces of an entry into the store.
+   *
+   * The files are removed once the store is forced.
+   *
+   * @parameter fileResource the resource file, or null if the
+   *            resource piece is already stored.
+   *
+   * @parameter fileData the data file, or null if the data piece is
+   *            already stored.
+   *
+   */
+
+  private void
+  pack(String strName, File fileResource, File fileData)
+    throws IOException
+  {
+    String strDigest = null;
+
+    if (fileResource != null && fileResource.exists())
+    {
+      strDigest = RepositoryEntry.digest(fileResource);
+
+      if (!segmentstore.hasResource(strDigest))
+      {
+        segmentstore.putResource(strDigest, readFile(fileResource));
+      }
+
+      vectorPacked.addElement(fileResource);
+    }
+    else
+    {
+      strDigest = segmentstore.getEntryDigest(strName);
+    }
+
+    if (strDigest == null)
+    {
+      // Neither piece can be used without a resource piece.
+
+      if (fileData != null)
+      {
+        fileData.delete();
+      }
+
+      return;
+    }
+
+    byte [] rgbData = null;
+
+    if (fileData != null && fileData.exists())
+    {
+      rgbData = readFile(fileData);
+
+      vectorPacked.addElement(fileData);
+    }
+
+    segmentstore.putEntry(strName, strDigest, rgbData);
+
+    if (vectorPacked.size() >= nBatch)
+    {
+      flush();
+    }
+  }
+
+  /**
+   * Forces the store and removes the packed files.
+   *
+   */
+
+  private void
+  flush()
+    throws IOException
+  {
+    segmentstore.force();
+
+    for (int i = 0; i < vectorPacked.size(); i++)
+    {
+      ((File)vectorPacked.elementAt(i)).delete();
+    }
+
+    vectorPacked.removeAllElements();
+  }
+
+  /**
+   * Reads a file.
+   *
+   */
+
+  private static byte []
+  readFile(File file)
+    throws IOException
+  {
+    RandomAccessFile randomaccessfile = new RandomAccessFile(file, "r");
+
+    try
+    {
+      long n = randomaccessfile.length();
+
+      if (n > Integer.MAX_VALUE)
+      {
+        throw new IOException("file " + file.getName() + ": too large");
+      }
+
+      byte [] rgb = new byte [(int)n];
+
+      randomaccessfile.readFully(rgb);
+
+      return rgb;
+    }
+    finally
+    {
+      randomaccessfile.close();
+    }
+  }
+
+  /**
+   * Gets the checkpoint log.
+   *
+   */
+
+  CheckpointLog
+  getCheckpointLog()
+  {
+    return checkpointlog;
+  }
+
+  /**
+   * Creates a repository entry.
+   *
+   */
+
+  RepositoryEntry
+  createEntry(byte [] rgbResource,
+              byte [] rgbData)
+    throws RepositoryException
+  {
+    Entry entry = newEntry(generateName(), true);
+
+    try
+    {
+      entry.setResourceAsBytes(rgbResource);
+      entry.setDataAsBytes(rgbData);
+    }
+    catch (IOException ioex)
+    {
+      throw new RepositoryException("createEntry failed");
+    }
+
+    return entry;
+  }
+
+  /**
+   * Creates a repository entry from existing files.
+   *
+   * The files are moved into the spool.  Either file may be null.
+   *
+   */
+
+  RepositoryEntry
+  createEntry(File fileResourceSource,
+              File fileDataSource)
+    throws RepositoryException
+  {
+    Entry entry = newEntry(generateName(), true);
+
+    try
+    {
+      if (fileResourceSource != null)
+      {
+        moveFile(fileResourceSource, entry.getResource());
+      }
+
+      if (fileDataSource != null)
+      {
+        moveFile(fileDataSource, entry.getData());
+      }
+    }
+    catch (IOException ioex)
+    {
+      throw new RepositoryException("createEntry failed");
+    }
+
+    return entry;
+  }
+
+  /**
+   * Creates a repository entry from a stored resource piece.
+   *
+   * The resource piece is spooled.  The data file is moved into the
+   * spool.  Every resource piece is stored, so the resource file of
+   * the entry with the same digest is not needed.
+   *
+   * @see hasArchive
+   *
+   */
+
+  RepositoryEntry
+  createEntry(String strResourceDigest,
+              File fileResourceSource,
+              File fileDataSource)
+    throws RepositoryException
+  {
+    Entry entry = newEntry(generateName(), true);
+
+    try
+    {
+      byte [] rgbResource = segmentstore.readResource(strResourceDigest);
+
+      if (rgbResource == null)
+      {
+        throw new IOException("no resource " + strResourceDigest);
+      }
+
+      entry.setResourceAsBytes(rgbResource);
+
+      entry.setResourceDigest(strResourceDigest);
+
+      if (fileDataSource != null)
+      {
+        moveFile(fileDataSource, entry.getData());
+      }
+    }
+    catch (IOException ioex)
+    {
+      entry.deleteResource();
+
+      throw new RepositoryException("createEntry failed");
+    }
+
+    return entry;
+  }
+
+  /**
+   * Determines whether or not a resource piece with the specified
+   * digest is stored.
+   *
+   * Every stored resource piece counts, whether or not an entry
+   * refers to it.
+   *
+   */
+
+  boolean
+  hasArchive(String strResourceDigest)
+  {
+    return segmentstore.hasResource(strResourceDigest);
+  }
+
+  /**
+   * Gets the digests of the stored resource pieces.
+   *
+   */
+
+  String []
+  getArchiveDigests()
+  {
+    return segmentstore.getResourceDigests();
+  }
+
+  /**
+   * Deletes a repository entry.
+   *
+   * The resource piece stays in the store as an archive.
+   *
+   */
+
+  void
+  deleteEntry(RepositoryEntry repositoryentry)
+    throws RepositoryException
+  {
+    Entry entry = (Entry)repositoryentry;
+
+    try
+    {
+      String strDigest = entry.getResourceDigest();
+
+      if (entry.isResourceSpooled() &&
+          entry.getResource().exists() &&
+          strDigest != null &&
+          !segmentstore.hasResource(strDigest))
+      {
+        segmentstore.putResource(strDigest, readFile(entry.getResource()));
+      }
+
+      segmentstore.deleteEntry(entry.getName());
+
+      segmentstore.compact(getArchiveLimit(), nCompactionMinimum);
+    }
+    catch (IOException ex)
+    {
+      throw new RepositoryException("deleteEntry failed");
+    }
+
+    entry.delete();
+    entry.invalidate();
+  }
+
+  /**
+   * Relinquishes all repository entries.
+   *
+   * @see Repository.relinquishEntries
+   *
+   */
+
+  synchronized Vector
+  relinquishEntries()
+  {
+    // The spool must be clear of packed files before the entries are
+    // spooled again.
+
+    try
+    {
+      flush();
+    }
+    catch (IOException ex)
+    {
+      ex.printStackTrace();
+    }
+
+    Vector vector = vectorEntries;
+
+    vectorEntries = new Vector();
+
+    return vector;
+  }
+
+  /**
+   * Assumes ownership of a repository entry.
+   *
+   * The entry's spooled pieces are packed into the store.
+   *
+   * @see Repository.assumeEntry
+   *
+   */
+
+  synchronized void
+  assumeEntry(RepositoryEntry repositoryentry)
+  {
+    Entry entry = (Entry)repositoryentry;
+
+    try
+    {
+      pack(entry.getName(),
+           entry.isResourceSpooled() ? entry.getResource() : null,
+           entry.isDataSpooled() ? entry.getData() : null);
+
+      vectorEntries.addElement(newEntry(entry.getName(), false));
+    }
+    catch (IOException ex)
+    {
+      // The spool files remain, and are packed when the repository
+      // is next opened.
+
+      ex.printStackTrace();
+    }
+
+    entry.invalidate();
+  }
+
+  /**
+   * Closes the repository.
+   *
+   * The packed entries are forced to disk and the store is compacted
+   * if it needs it.
+   *
+   */
+
+  synchronized void
+  close()
+    throws IOException
+  {
+    if (boolClosed)
+    {
+      return;
+    }
+
+    boolClosed = true;
+
+    flush();
+
+    segmentstore.compact(getArchiveLimit(), nCompactionMinimum);
+
+    segmentstore.close();
+  }
+}
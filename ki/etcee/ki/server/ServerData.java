@@ -3,7 +3,7 @@ package etcee.ki.server;
 
 import java.io.Serializable;
 
-import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The persistant server data.
@@ -23,17 +23,31 @@ final class ServerData implements Serializable
    *
    */
 
-  final Hashtable hashtableAgentAddressBook = new Hashtable();
+  final ConcurrentHashMap concurrenthashmapAgentAddressBook = new ConcurrentHashMap();
 
   /**
    * The agent directory.
    *
-   * The agent directory maps strings to agent identities.
+   * The agent directory indexes published agents.
    *
    * The agent directory can be used as the yellow pages - mapping
-   * services to the agent that provides those services.
+   * services to the agents that provide those services.
+   *
+   * @see Directory
+   *
+   */
+
+  final Directory directory = new Directory();
+
+  /**
+   * The identity table.
+   *
+   * The identity table interns the agent identities this agent host
+   * keeps.  It is not saved.
+   *
+   * @see IdentityTable
    *
    */
 
-  final Hashtable hashtableDirectory = new Hashtable();
+  final transient IdentityTable identitytable = new IdentityTable();
 }
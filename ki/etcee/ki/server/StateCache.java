@@ -0,0 +1,120 @@
+package etcee.ki.server;
+
+import etcee.ki.agent.AgentIdentity;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The state cache.
+ *
+ * The <CODE>StateCache</CODE> class remembers, for each agent, the
+ * last data (serialized state) this agent host sent or received when
+ * the agent was transferred.  When the agent is transferred again
+ * between the same two agent hosts, both hold the same state and it
+ * can serve as the base for a delta.
+ *
+ * The cache holds at most a fixed number of states, set with the
+ * <CODE>etcee.ki.statecache</CODE> system property.  The least
+ * recently used states are discarded first.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see StateCodec
+ *
+ */
+
+final class StateCache
+{
+  /**
+   * The cached state.
+   *
+   */
+
+  final static class State
+  {
+    byte [] rgb = null;
+
+    String strDigest = null;
+
+    State(byte [] rgb, String strDigest)
+    {
+      this.rgb = rgb;
+      this.strDigest = strDigest;
+    }
+  }
+
+  /**
+   * The state table.
+   *
+   * The state table maps agent identities to states, in order of
+   * use.
+   *
+   */
+
+  private LinkedHashMap linkedhashmapStates = null;
+
+  /**
+   * The identity table.
+   *
+   */
+
+  private IdentityTable identitytable = null;
+
+  /**
+   * Constructs the state cache.
+   *
+   */
+
+  StateCache(IdentityTable identitytable)
+  {
+    this.identitytable = identitytable;
+
+    final int nStates = Integer.getInteger("etcee.ki.statecache", 256).intValue();
+
+    linkedhashmapStates = new LinkedHashMap(16, 0.75f, true)
+      {
+        protected boolean
+        removeEldestEntry(Map.Entry entry)
+        {
+          return size() > nStates;
+        }
+      };
+  }
+
+  /**
+   * Gets the state of an agent.
+   *
+   * @returns the state, or null if the cache holds none.
+   *
+   */
+
+  final synchronized State
+  get(AgentIdentity agentidentity)
+  {
+    return (State)linkedhashmapStates.get(agentidentity);
+  }
+
+  /**
+   * Puts the state of an agent.
+   *
+   */
+
+  final synchronized void
+  put(AgentIdentity agentidentity, byte [] rgb)
+  {
+    linkedhashmapStates.put(identitytable.intern(agentidentity),
+                            new State(rgb, RepositoryEntry.digest(rgb)));
+  }
+
+  /**
+   * Removes the state of an agent.
+   *
+   */
+
+  final synchronized void
+  remove(AgentIdentity agentidentity)
+  {
+    linkedhashmapStates.remove(agentidentity);
+  }
+}
@@ -0,0 +1,440 @@
+package etcee.ki.server;
+
+import etcee.ki.agenthost.TransferPackage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.Hashtable;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The state codec.
+ *
+ * The <CODE>StateCodec</CODE> class encodes an agent's data (its
+ * serialized state) for transfer.  Two encodings are available, and
+ * they may be combined:
+ *
+ * <UL>
+ * <LI><CODE>DEFLATE</CODE> -- the data is compressed
+ * <LI><CODE>DELTA</CODE> -- the data is expressed as a sequence of
+ *     copies from a base (an earlier state of the same agent, which
+ *     both agent hosts hold) and literal bytes
+ * </UL>
+ *
+ * When both encodings are used, the delta is compressed.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ */
+
+final class StateCodec
+{
+  /**
+   * The data is compressed.
+   *
+   */
+
+  final static int DEFLATE = TransferPackage.DEFLATE;
+
+  /**
+   * The data is a delta against a base.
+   *
+   */
+
+  final static int DELTA = TransferPackage.DELTA;
+
+  /**
+   * The block size used to find matches in the base.
+   *
+   */
+
+  private final static int nBlock = 32;
+
+  /**
+   * The delta operations.
+   *
+   */
+
+  private final static int COPY = 1;
+  private final static int LITERAL = 2;
+  private final static int END = 0;
+
+  /**
+   * Encodes data.
+   *
+   * @parameter rgbBase the base, which is required if the encoding
+   *            includes <CODE>DELTA</CODE>.
+   *
+   */
+
+  static byte []
+  encode(byte [] rgb, byte [] rgbBase, int nEncoding)
+    throws IOException
+  {
+    if ((nEncoding & DELTA) != 0)
+    {
+      rgb = delta(rgb, rgbBase);
+    }
+
+    if ((nEncoding & DEFLATE) != 0)
+    {
+      rgb = deflate(rgb);
+    }
+
+    return rgb;
+  }
+
+  /**
+   * Decodes data.
+   *
+   * @parameter rgbBase the base, which is required if the encoding
+   *            includes <CODE>DELTA</CODE>.
+   *
+   */
+
+  static byte []
+  decode(byte [] rgb, byte [] rgbBase, int nEncoding)
+    throws IOException
+  {
+    if ((nEncoding & DEFLATE) != 0)
+    {
+      rgb = inflate(rgb);
+    }
+
+    if ((nEncoding & DELTA) != 0)
+    {
+      rgb = patch(rgb, rgbBase);
+    }
+
+    return rgb;
+  }
+
+  /**
+   * Compresses data.
+   *
+   */
+
+  private static byte []
+  deflate(byte [] rgb)
+  {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    deflater.setInput(rgb);
+    deflater.finish();
+
+    ByteArrayOutputStream bytearrayoutputstream =
+      new ByteArrayOutputStream(rgb.length / 2 + 64);
+
+    byte [] rgbBuffer = new byte [8192];
+
+    while (!deflater.finished())
+    {
+      int n = deflater.deflate(rgbBuffer);
+
+      bytearrayoutputstream.write(rgbBuffer, 0, n);
+    }
+
+    deflater.end();
+
+    return bytearrayoutputstream.toByteArray();
+  }
+
+  /**
+   * Decompresses data.
+   *
+   */
+
+  private static byte []
+  inflate(byte [] rgb)
+    throws IOException
+  {
+    Inflater inflater = new Inflater();
+
+    inflater.setInput(rgb);
+
+    ByteArrayOutputStream bytearrayoutputstream =
+      new ByteArrayOutputStream(rgb.length * 4);
+
+    byte [] rgbBuffer = new byte [8192];
+
+    try
+    {
+      while (!inflater.finished())
+      {
+        int n = inflater.inflate(rgbBuffer);
+
+        // A call that produces nothing may still reach the end of
+        // the data (an empty state does) -- only then is it done.
+
+        if (n == 0 && !inflater.finished() &&
+            (inflater.needsInput() || inflater.needsDictionary()))
+        {
+          throw new IOException("truncated state");
+        }
+
+        bytearrayoutputstream.write(rgbBuffer, 0, n);
+      }
+    }
+    catch (DataFormatException ex)
+    {
+      throw new IOException("corrupt state");
+    }
+    finally
+    {
+      inflater.end();
+    }
+
+    return bytearrayoutputstream.toByteArray();
+  }
+
+  /**
+   * Computes the hash of a block.
+   *
+   */
+
+  private static int
+  hash(byte [] rgb, int i)
+  {
+    int n = 0;
+
+    for (int j = i; j < i + nBlock; j++)
+    {
+      n = n * 31 + (rgb[j] & 0xFF);
+    }
+
+    return n;
+  }
+
+  /**
+   * Computes a delta.
+   *
+   * The base is indexed by the hash of each of its aligned blocks.
+   * The data is then scanned with a rolling hash.  Wherever a block
+   * of the data matches a block of the base, the match is extended
+   * in both directions and emitted as a copy.  Everything else is
+   * emitted as literal bytes.
+   *
+   */
+
+  private static byte []
+  delta(byte [] rgb, byte [] rgbBase)
+    throws IOException
+  {
+    Hashtable hashtable = new Hashtable();
+
+    for (int i = 0; i + nBlock <= rgbBase.length; i += nBlock)
+    {
+      Integer integer = Integer.valueOf(hash(rgbBase, i));
+
+      if (!hashtable.containsKey(integer))
+      {
+        hashtable.put(integer, Integer.valueOf(i));
+      }
+    }
+
+    // The multiplier needed to remove a byte from the rolling hash.
+
+    int nPower = 1;
+
+    for (int j = 0; j < nBlock - 1; j++)
+    {
+      nPower *= 31;
+    }
+
+    ByteArrayOutputStream bytearrayoutputstream =
+      new ByteArrayOutputStream(rgb.length / 4 + 64);
+
+    DataOutputStream dataoutputstream =
+      new DataOutputStream(bytearrayoutputstream);
+
+    dataoutputstream.writeInt(rgb.length);
+
+    int nLiteral = 0;
+
+    int i = 0;
+
+    int n = rgb.length >= nBlock ? hash(rgb, 0) : 0;
+
+    while (i + nBlock <= rgb.length)
+    {
+      Integer integer = (Integer)hashtable.get(Integer.valueOf(n));
+
+      int k = integer == null ? -1 : integer.intValue();
+
+      if (k >= 0 && matches(rgb, i, rgbBase, k, nBlock))
+      {
+        // Extend the match backward over pending literal bytes and
+        // forward as far as it goes.
+
+        int nBack = 0;
+
+        while (nBack < i - nLiteral && nBack < k &&
+               rgb[i - nBack - 1] == rgbBase[k - nBack - 1])
+        {
+          nBack++;
+        }
+
+        int nLength = nBlock;
+
+        while (i + nLength < rgb.length && k + nLength < rgbBase.length &&
+               rgb[i + nLength] == rgbBase[k + nLength])
+        {
+          nLength++;
+        }
+
+        writeLiteral(dataoutputstream, rgb, nLiteral, i - nBack - nLiteral);
+
+        dataoutputstream.writeByte(COPY);
+        dataoutputstream.writeInt(k - nBack);
+        dataoutputstream.writeInt(nLength + nBack);
+
+        i += nLength;
+
+        nLiteral = i;
+
+        if (i + nBlock <= rgb.length)
+        {
+          n = hash(rgb, i);
+        }
+
+        continue;
+      }
+
+      // Roll the hash forward by one byte.
+
+      if (i + nBlock < rgb.length)
+      {
+        n = (n - (rgb[i] & 0xFF) * nPower) * 31 + (rgb[i + nBlock] & 0xFF);
+      }
+
+      i++;
+    }
+
+    writeLiteral(dataoutputstream, rgb, nLiteral, rgb.length - nLiteral);
+
+    dataoutputstream.writeByte(END);
+
+    dataoutputstream.close();
+
+    return bytearrayoutputstream.toByteArray();
+  }
+
+  /**
+   * Compares two ranges of bytes.
+   *
+   */
+
+  private static boolean
+  matches(byte [] rgb, int i, byte [] rgbBase, int k, int n)
+  {
+    for (int j = 0; j < n; j++)
+    {
+      if (rgb[i + j] != rgbBase[k + j])
+      {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Writes a literal operation.
+   *
+   */
+
+  private static void
+  writeLiteral(DataOutputStream dataoutputstream, byte [] rgb, int i, int n)
+    throws IOException
+  {
+    if (n <= 0)
+    {
+      return;
+    }
+
+    dataoutputstream.writeByte(LITERAL);
+    dataoutputstream.writeInt(n);
+    dataoutputstream.write(rgb, i, n);
+  }
+
+  /**
+   * Applies a delta.
+   *
+   * @throws IOException if the delta is corrupt, or does not fit the
+   *         base.
+   *
+   */
+
+  private static byte []
+  patch(byte [] rgbDelta, byte [] rgbBase)
+    throws IOException
+  {
+    DataInputStream datainputstream =
+      new DataInputStream(new ByteArrayInputStream(rgbDelta));
+
+    int nLength = datainputstream.readInt();
+
+    if (nLength < 0)
+    {
+      throw new IOException("corrupt delta");
+    }
+
+    byte [] rgb = new byte [nLength];
+
+    int i = 0;
+
+    while (true)
+    {
+      int nOperation = datainputstream.readByte();
+
+      if (nOperation == END)
+      {
+        break;
+      }
+      else if (nOperation == COPY)
+      {
+        int k = datainputstream.readInt();
+        int n = datainputstream.readInt();
+
+        if (k < 0 || n < 0 || n > rgbBase.length - k || n > rgb.length - i)
+        {
+          throw new IOException("corrupt delta");
+        }
+
+        System.arraycopy(rgbBase, k, rgb, i, n);
+
+        i += n;
+      }
+      else if (nOperation == LITERAL)
+      {
+        int n = datainputstream.readInt();
+
+        if (n < 0 || n > rgb.length - i)
+        {
+          throw new IOException("corrupt delta");
+        }
+
+        datainputstream.readFully(rgb, i, n);
+
+        i += n;
+      }
+      else
+      {
+        throw new IOException("corrupt delta");
+      }
+    }
+
+    if (i != rgb.length)
+    {
+      throw new IOException("corrupt delta");
+    }
+
+    return rgb;
+  }
+}
@@ -0,0 +1,222 @@
+package etcee.ki.server;
+
+import java.lang.reflect.Method;
+
+/**
+ * The thread dispatcher.
+ *
+ * The <CODE>ThreadDispatcher</CODE> class runs each task on a thread
+ * of its own.  If asked to, and if the virtual machine supports them,
+ * it uses virtual threads -- otherwise it uses ordinary threads.  The number of tasks in flight is bounded
+ * -- tasks that arrive while the limit is reached are refused.
+ *
+ * This class <EM>is</EM> thread safe.
+ *
+ * @see Dispatcher
+ *
+ */
+
+final class ThreadDispatcher
+  extends Dispatcher
+{
+  /**
+   * The name given to dispatch threads.
+   *
+   */
+
+  private String strName = null;
+
+  /**
+   * The maximum number of tasks in flight.
+   *
+   */
+
+  private int nLimit = 0;
+
+  /**
+   * The number of tasks in flight.
+   *
+   */
+
+  private int nActive = 0;
+
+  /**
+   * The thread counter.
+   *
+   */
+
+  private int nThreads = 0;
+
+  /**
+   * The shut down flag.
+   *
+   */
+
+  private boolean boolShutdown = false;
+
+  /**
+   * The virtual thread factory method.
+   *
+   * The method is null if the dispatcher uses ordinary threads.
+   *
+   */
+
+  private Method methodStartVirtualThread = null;
+
+  /**
+   * Constructs the thread dispatcher.
+   *
+   * @parameter nLimit the maximum number of tasks in flight.
+   *
+   * @parameter boolVirtual use virtual threads, if available.
+   *
+   */
+
+  ThreadDispatcher(String strName, int nLimit, boolean boolVirtual)
+  {
+    this.strName = strName;
+    this.nLimit = nLimit;
+
+    if (boolVirtual)
+    {
+      // Virtual threads may be present but disabled (they are a
+      // preview feature on some virtual machines), so start one to
+      // find out.
+
+      try
+      {
+        methodStartVirtualThread =
+          Thread.class.getMethod("startVirtualThread", new Class [] { Runnable.class });
+
+        methodStartVirtualThread.invoke(null, new Object [] { new Runnable()
+          {
+            public void
+            run()
+            {
+            }
+          } });
+      }
+      catch (Exception ex)
+      {
+        // Fall back to ordinary threads.
+
+        methodStartVirtualThread = null;
+      }
+    }
+  }
+
+  /**
+   * Dispatches a task.
+   *
+   * @see Dispatcher.dispatch
+   *
+   */
+
+  final boolean
+  dispatch(final Runnable runnable)
+  {
+    synchronized (this)
+    {
+      if (boolShutdown || nActive >= nLimit)
+      {
+        rejected();
+
+        return false;
+      }
+
+      nActive++;
+    }
+
+    Runnable runnableT = new Runnable()
+      {
+        public void
+        run()
+        {
+          try
+          {
+            runnable.run();
+          }
+          finally
+          {
+            synchronized (ThreadDispatcher.this)
+            {
+              nActive--;
+            }
+          }
+        }
+      };
+
+    try
+    {
+      if (methodStartVirtualThread != null)
+      {
+        methodStartVirtualThread.invoke(null, new Object [] { runnableT });
+      }
+      else
+      {
+        Thread thread;
+
+        synchronized (this)
+        {
+          thread = new Thread(runnableT, strName + "-" + nThreads++);
+        }
+
+        thread.start();
+      }
+    }
+    catch (Exception ex)
+    {
+      synchronized (this)
+      {
+        nActive--;
+      }
+
+      rejected();
+
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Gets the number of tasks waiting to run.
+   *
+   * Tasks never wait -- they are either run or refused.
+   *
+   * @see Dispatcher.getQueueDepth
+   *
+   */
+
+  final int
+  getQueueDepth()
+  {
+    return 0;
+  }
+
+  /**
+   * Gets the number of tasks currently running.
+   *
+   * @see Dispatcher.getActiveCount
+   *
+   */
+
+  final synchronized int
+  getActiveCount()
+  {
+    return nActive;
+  }
+
+  /**
+   * Shuts the dispatcher down.
+   *
+   * @see Dispatcher.shutdown
+   *
+   */
+
+  final synchronized void
+  shutdown()
+  {
+    boolShutdown = true;
+  }
+}